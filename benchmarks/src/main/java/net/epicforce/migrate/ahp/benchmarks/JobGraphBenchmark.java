@@ -0,0 +1,82 @@
+package net.epicforce.migrate.ahp.benchmarks;
+
+/*
+ * JobGraphBenchmark.java
+ *
+ * How long it takes to build a workflow's job graph (adjacency, order,
+ * levels and critical path) for wide, deep and layered workflows.
+ *
+ * JobLayout isn't measured: it can only be built from AHP's own graph
+ * objects, which need a server to come from, and JobGraph replaces it.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobGraphBenchmark
+{
+    @Param({ "wide", "deep", "layered" })
+    public String   shape;
+
+    @Param({ "16", "256", "2048" })
+    public int      size;
+
+    private WorkflowDefinitionJobConfig[]   jobs;
+    private int[]                           from;
+    private int[]                           to;
+
+    @Setup
+    public void setup()
+    {
+        JobGraph g = Workloads.graph(shape, size);
+        int edges = 0;
+
+        for(int i = 0; i < g.size(); i++) {
+            edges += g.getChildCount(i);
+        }
+
+        jobs = g.getAllJobs().toArray(new WorkflowDefinitionJobConfig[g.size()]);
+        from = new int[edges];
+        to = new int[edges];
+
+        for(int i = 0, e = 0; i < g.size(); i++) {
+            for(int k = 0; k < g.getChildCount(i); k++, e++) {
+                from[e] = i;
+                to[e] = g.getChild(i, k);
+            }
+        }
+    }
+
+    @Benchmark
+    public JobGraph build()
+    {
+        return new JobGraph(jobs, from, to);
+    }
+
+    @Benchmark
+    public int[] criticalPath()
+    {
+        return new JobGraph(jobs, from, to).getCriticalPath();
+    }
+}
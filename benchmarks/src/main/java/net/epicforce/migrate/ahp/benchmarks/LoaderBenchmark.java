@@ -0,0 +1,92 @@
+package net.epicforce.migrate.ahp.benchmarks;
+
+/*
+ * LoaderBenchmark.java
+ *
+ * Step class resolution: AbstractLoader.loadClass once its constructor
+ * is cached, DefaultLoader.loadStepClass for a step it can't handle
+ * (which is every step, until default step classes exist), and a
+ * RegistryLoader for comparison.
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+import net.epicforce.migrate.ahp.loader.DefaultLoader;
+import net.epicforce.migrate.ahp.loader.RegistryLoader;
+import net.epicforce.migrate.ahp.loader.StepRegistry;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoaderBenchmark
+{
+    private static final String AHP_STEP =
+                "com.urbancode.anthill3.domain.builder.ant.AntBuildStepConfig";
+
+    private final Workloads.BenchLoader bench = new Workloads.BenchLoader();
+    private final DefaultLoader         def = new DefaultLoader();
+    private final RegistryLoader        registry = new RegistryLoader(
+        new StepRegistry() {
+            public AbstractStep newStep(final String stepName)
+            {
+                return AHP_STEP.equals(stepName)
+                       ? new Workloads.BenchStep() : null;
+            }
+
+            public Set<String> getStepNames()
+            {
+                return Collections.singleton(AHP_STEP);
+            }
+        }
+    );
+
+    @Benchmark
+    public Object loadClass()
+           throws UnsupportedClassException
+    {
+        return bench.load(Workloads.BenchLoader.STEP);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object loadClassContended()
+           throws UnsupportedClassException
+    {
+        return bench.load(Workloads.BenchLoader.STEP);
+    }
+
+    @Benchmark
+    public Object defaultLoaderUnsupported()
+    {
+        try {
+            return def.loadStepClass(AHP_STEP);
+        } catch(UnsupportedClassException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object registryLoader()
+           throws UnsupportedClassException
+    {
+        return registry.loadStepClass(AHP_STEP);
+    }
+}
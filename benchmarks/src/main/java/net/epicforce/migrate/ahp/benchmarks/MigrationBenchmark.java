@@ -0,0 +1,80 @@
+package net.epicforce.migrate.ahp.benchmarks;
+
+/*
+ * MigrationBenchmark.java
+ *
+ * The whole Migration.run() loop -- load, graph walk, loader calls,
+ * step calls -- against an InMemorySource workflow, in sequence and
+ * with parallel levels.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.synthetic.InMemorySource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MigrationBenchmark
+{
+    @Param({ "wide", "deep", "layered" })
+    public String   shape;
+
+    @Param({ "10", "100" })
+    public int      jobs;
+
+    @Param({ "10" })
+    public int      stepsPerJob;
+
+    @Param({ "1", "4" })
+    public int      parallelism;
+
+    private InMemorySource              source;
+    private Workloads.BenchLoader       loader;
+
+    @Setup
+    public void setup()
+           throws MigrateException
+    {
+        source = Workloads.source(shape, jobs, stepsPerJob);
+        loader = new Workloads.BenchLoader();
+    }
+
+    @Benchmark
+    public long run()
+    {
+        Workloads.BenchContext context = new Workloads.BenchContext();
+        Migration m = new Migration(source);
+
+        m.setContext(context);
+        m.setLoader(loader);
+        m.setParallelism(parallelism);
+        m.setWorkflowId(1L);
+        m.run();
+
+        if(m.getStatus() != Migration.SUCCESS) {
+            throw new IllegalStateException("Migration failed",
+                                            m.getError());
+        }
+
+        m.close();
+        return context.steps.get();
+    }
+}
@@ -0,0 +1,156 @@
+package net.epicforce.migrate.ahp.benchmarks;
+
+/*
+ * Workloads.java
+ *
+ * Synthetic workflows for the benchmarks, and the context, loader and
+ * step class to migrate them with.  Nothing here talks to a server, so
+ * the numbers are the library's own overhead and nothing else.
+ */
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+import net.epicforce.migrate.ahp.loader.AbstractLoader;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+import net.epicforce.migrate.ahp.synthetic.InMemorySource;
+import net.epicforce.migrate.ahp.synthetic.SyntheticJobConfig;
+import net.epicforce.migrate.ahp.synthetic.WorkloadGenerator;
+
+final class Workloads
+{
+    /*
+     * Not for instancing
+     */
+    private Workloads()
+    {
+    }
+
+    /*****************************************************************
+     * WORKLOADS
+     ****************************************************************/
+
+    /**
+     * Make a job graph of a given shape; see WorkloadGenerator.
+     *
+     * @param shape     wide, deep, layered or random
+     * @param size      Number of jobs
+     * @return the graph
+     */
+    static JobGraph graph(final String shape, int size)
+    {
+        WorkflowDefinitionJobConfig[] jobs =
+                                new WorkflowDefinitionJobConfig[size];
+
+        for(int i = 0; i < size; i++) {
+            jobs[i] = new SyntheticJobConfig(i + 1L, "job-" + i);
+        }
+
+        return WorkloadGenerator.graph(
+                    WorkloadGenerator.Shape.valueOf(shape.toUpperCase()),
+                    jobs, new Random(0));
+    }
+
+    /**
+     * Make an in-memory AHP holding one workflow, ID 1.
+     *
+     * @param shape         wide, deep, layered or random
+     * @param jobs          Number of jobs
+     * @param stepsPerJob   Number of steps in each
+     * @return the source
+     * @throws MigrateException on error
+     */
+    static InMemorySource source(final String shape, int jobs,
+                                 int stepsPerJob)
+           throws MigrateException
+    {
+        WorkloadGenerator gen = new WorkloadGenerator();
+        InMemorySource ret = new InMemorySource();
+
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(jobs, jobs);
+        gen.setStepsPerJob(stepsPerJob);
+        gen.setShape(WorkloadGenerator.Shape.valueOf(shape.toUpperCase()));
+        gen.populate(ret);
+        return ret;
+    }
+
+    /*****************************************************************
+     * MIGRATION SIDE
+     ****************************************************************/
+
+    /**
+     * Counts steps; forks and merges so parallel runs can be measured.
+     */
+    static class BenchContext extends AbstractContext
+    {
+        final AtomicLong    steps = new AtomicLong();
+
+        @Override
+        public AbstractContext fork()
+        {
+            return new BenchContext();
+        }
+
+        @Override
+        public void merge(final AbstractContext fork)
+        {
+            steps.addAndGet(((BenchContext)fork).steps.get());
+        }
+    }
+
+    /**
+     * A step class that does next to nothing, so the loop around it
+     * is what gets measured.
+     */
+    public static class BenchStep extends AbstractStep
+    {
+        public void run(final AbstractContext context)
+               throws MigrateException
+        {
+            ((BenchContext)context).steps.incrementAndGet();
+        }
+    }
+
+    /**
+     * Resolves every step to BenchStep through AbstractLoader.loadClass,
+     * the way most loaders do.
+     */
+    static class BenchLoader extends AbstractLoader
+    {
+        static final String STEP = BenchStep.class.getName();
+
+        public AbstractWorkflow loadWorkflowClass()
+        {
+            return null;
+        }
+
+        public AbstractJob loadJobClass()
+        {
+            return null;
+        }
+
+        public AbstractStep loadStepClass(final String stepName)
+               throws UnsupportedClassException
+        {
+            return (AbstractStep)loadClass(STEP);
+        }
+
+        /**
+         * Exposed so the loader benchmark can call it directly.
+         */
+        Object load(final String className)
+               throws UnsupportedClassException
+        {
+            return loadClass(className);
+        }
+    }
+}
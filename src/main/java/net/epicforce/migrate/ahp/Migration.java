@@ -13,9 +13,26 @@ package net.epicforce.migrate.ahp;
  * Any exceptions thrown from this will be subclasses of MigrateException
  */
 
-import java.lang.NullPointerException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.urbancode.anthill3.domain.persistent.PersistenceException;
 import com.urbancode.anthill3.domain.project.Project;
@@ -23,19 +40,39 @@ import com.urbancode.anthill3.domain.project.ProjectFactory;
 import com.urbancode.anthill3.domain.security.AuthorizationException;
 import com.urbancode.anthill3.domain.step.StepConfig;
 import com.urbancode.anthill3.domain.step.StepConfigException;
-import com.urbancode.anthill3.domain.workflow.Workflow;
 import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
-import com.urbancode.anthill3.domain.workflow.WorkflowFactory;
 import com.urbancode.anthill3.main.client.AnthillClient;
 import com.urbancode.anthill3.persistence.UnitOfWork;
 
+import net.epicforce.migrate.ahp.cache.JobTranslationCache;
+import net.epicforce.migrate.ahp.checkpoint.Checkpoint;
+import net.epicforce.migrate.ahp.checkpoint.CheckpointStore;
 import net.epicforce.migrate.ahp.context.AbstractContext;
-import net.epicforce.migrate.ahp.context.JobLayout;
+import net.epicforce.migrate.ahp.context.DetachedContext;
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.event.EventBus;
+import net.epicforce.migrate.ahp.event.MigrationEvent;
 import net.epicforce.migrate.ahp.exception.*;
+import net.epicforce.migrate.ahp.fingerprint.Fingerprint;
+import net.epicforce.migrate.ahp.fingerprint.Fingerprinter;
+import net.epicforce.migrate.ahp.fingerprint.FingerprintStore;
 import net.epicforce.migrate.ahp.loader.AbstractLoader;
+import net.epicforce.migrate.ahp.metrics.MetricsListener;
+import net.epicforce.migrate.ahp.metrics.Phase;
 import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
 import net.epicforce.migrate.ahp.migrate.AbstractJob;
 import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+import net.epicforce.migrate.ahp.pool.LeasedClient;
+import net.epicforce.migrate.ahp.query.ProjectWorkflows;
+import net.epicforce.migrate.ahp.query.WorkflowQueryHandler;
+import net.epicforce.migrate.ahp.retry.RetryPolicy;
+import net.epicforce.migrate.ahp.retry.Retryable;
+import net.epicforce.migrate.ahp.source.AnthillSource;
+import net.epicforce.migrate.ahp.source.StepPrefetcher;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+import net.epicforce.migrate.ahp.watchdog.Watchdog;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,6 +104,22 @@ public class Migration implements Runnable
      */
     protected AnthillClient     client;
 
+    /*
+     * If our client came from a pool, this is the lease for it.
+     */
+    protected volatile LeasedClient lease = null;
+
+    /*
+     * If we connected our client ourselves, what to; parallel workers
+     * connect their own sessions with it.
+     */
+    protected ConnectionInfo    connection = null;
+
+    /*
+     * Where workflows come from; usually AHP through our client.
+     */
+    protected WorkflowSource    source = null;
+
     /*
      * Our context for the migration, which will ultimately be
      * the result of the overall migration.
@@ -74,14 +127,20 @@ public class Migration implements Runnable
     protected AbstractContext   context = null;
 
     /*
-     * Status - for threading purposes
+     * What's left of the context once it's been detach()'d
+     */
+    protected DetachedContext   detached = null;
+
+    /*
+     * Status - for threading purposes.  Read by supervisor threads,
+     * so volatile.
      */
-    protected int               status = 0;
+    protected volatile int      status = 0;
 
     /*
      * Keep track of our error (if we've got one)
      */
-    protected MigrateException  error = null;
+    protected volatile MigrateException error = null;
 
     /*
      * What workflow ID are we migrating?
@@ -99,10 +158,130 @@ public class Migration implements Runnable
     protected AbstractLoader    loader = null;
 
     /*
-     * To compute progress
+     * To compute progress.  Despite the names, numSteps is how many
+     * jobs there are and migratedStepCount how many of them are done
+     * (migrated or skipped); they've always counted jobs, and are kept
+     * as they were for subclasses that read them.
+     */
+    protected volatile int      numSteps = 0;
+    protected volatile int      migratedStepCount = 0;
+
+    /*
+     * Finer-grained progress.  These are updated from worker threads
+     * and read by anyone, so they're lock-free rather than
+     * synchronized: jobs done (which migratedStepCount follows), steps
+     * actually migrated, and progress units.
+     *
+     * progressUnits counts JOB_UNITS for each job done, and a share of
+     * that for each step done, so progress moves within a job rather
+     * than a whole job at a time.
+     */
+    protected final AtomicInteger migratedJobCount = new AtomicInteger();
+    protected final AtomicInteger migratedSteps = new AtomicInteger();
+    protected final AtomicLong  progressUnits = new AtomicLong();
+
+    /*
+     * How many jobs of a graph level to run at once.  1 means run
+     * every job in sequence.
+     */
+    protected int               parallelism = 1;
+
+    /*
+     * How many jobs' steps to load ahead of the job being migrated.
+     * 0 means load each job's steps as it comes up.
+     */
+    protected int               prefetchDepth = 0;
+
+    /*
+     * Where to record progress, if anywhere; whether to pick up from
+     * what's recorded there; and, once running, what was.
+     */
+    protected CheckpointStore   checkpoints = null;
+    protected boolean           resume = false;
+    protected Checkpoint        resumeFrom = null;
+
+    /*
+     * True once we know the context can be checkpointed
+     */
+    private boolean             checkpointing = false;
+
+    /*
+     * For incremental runs: where last run's fingerprints are kept,
+     * how to make new ones, and what we've found out this run.
+     */
+    protected FingerprintStore  fingerprints = null;
+    protected Fingerprinter     fingerprinter = new Fingerprinter();
+    protected Fingerprint       fingerprint = null;
+    protected Fingerprint       previousFingerprint = null;
+    protected boolean           unchanged = false;
+    protected final AtomicInteger skippedJobCount = new AtomicInteger();
+
+    /*
+     * Where to look for jobs already migrated elsewhere, if anywhere;
+     * and how many jobs were replayed from it rather than run.
+     */
+    protected JobTranslationCache translations = null;
+    protected final AtomicInteger replayedJobCount = new AtomicInteger();
+
+    /*
+     * Every job's steps, if we had to load them up front
+     */
+    private StepConfig[][]      loadedSteps = null;
+
+    /*
+     * Loads steps ahead of us, while running jobs in sequence; and the
+     * AHP session it does it in, if our source is AHP.  That's either
+     * leased from our pool or connected by us.
+     */
+    private StepPrefetcher      prefetcher = null;
+    private LeasedClient        prefetchLease = null;
+    private AnthillClient       prefetchClient = null;
+
+    /*
+     * Who to tell how long things take, if anyone; and how long our
+     * own connect took, to tell them once we know who they are.
+     */
+    protected MetricsListener   metrics = null;
+    private long                connectNanos = 0;
+
+    /*
+     * Where to publish progress events, if anywhere
+     */
+    protected EventBus          events = null;
+
+    /*
+     * Set to stop the migration at the next job or step.  The timeout
+     * is how long a run may take, or 0 for as long as it likes; once
+     * running, the deadline is when that is up, by System.nanoTime().
+     */
+    private volatile boolean    cancelled = false;
+    protected long              timeoutNanos = 0;
+    private long                deadline = 0;
+
+    /*
+     * Time budgets for each job and each step, or 0 for none; and the
+     * watchdog that enforces them and the timeout, and whether it
+     * interrupts what's overdue.  Once something has run over, overdue
+     * says what.
+     */
+    protected long              jobTimeoutNanos = 0;
+    protected long              stepTimeoutNanos = 0;
+    protected Watchdog          watchdog = null;
+    protected boolean           interruptOverdue = true;
+    private volatile String     overdue = null;
+
+    /*
+     * The thread running us, while we're running
+     */
+    private volatile Thread     runner = null;
+
+    /*
+     * How to retry each kind of operation that can fail for a passing
+     * reason.  Operations without a policy aren't retried.
      */
-    protected int               numSteps = 0;
-    protected int               migratedStepCount = 0;
+    protected final Map<RetryPolicy.Operation, RetryPolicy> retries =
+                    new EnumMap<RetryPolicy.Operation, RetryPolicy>(
+                                            RetryPolicy.Operation.class);
 
     /*****************************************************************
      * CONSTANTS
@@ -118,6 +297,11 @@ public class Migration implements Runnable
     public static final int     SUCCESS = 4;
     public static final int     CLOSED = -1;
 
+    /*
+     * Progress units each job is worth; see progressUnits
+     */
+    protected static final long JOB_UNITS = 1000;
+
     /*****************************************************************
      * ACCESSORS
      ****************************************************************/
@@ -130,6 +314,15 @@ public class Migration implements Runnable
         return context;
     }
 
+    /**
+     * @return the detached context, or null if detach() hasn't been
+     *         called
+     */
+    public DetachedContext getDetachedContext()
+    {
+        return detached;
+    }
+
     /**
      * @param context    A context to set on this migration object.
      *
@@ -150,6 +343,332 @@ public class Migration implements Runnable
         this.loader = loader;
     }
 
+    /**
+     * @param parallelism   How many jobs on the same JobGraph level
+     *                      to migrate at once.  1 (the default) runs
+     *                      every job in sequence.
+     *
+     * Levels only run in parallel if the context supports fork() and
+     * merge(); otherwise this has no effect.  Step and job
+     * classes will be run on other threads, so the loader's classes
+     * must not share state between instances.
+     *
+     * AHP sessions aren't shared between threads: each parallel job
+     * gets its own, leased from the same pool as ours or connected
+     * the same way, and loads the workflow again in it.  If this
+     * migration was given a source with a client it can't make more
+     * sessions for, levels run in sequence.  Sources without a client,
+     * like snapshots, are shared as they are.  In a BatchMigration,
+     * these sessions aren't counted by setMaxSessions, which only
+     * counts the one each workflow's migration is made with.
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException(
+                "Parallelism must be at least 1"
+            );
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param prefetchDepth How many jobs' steps to load ahead of the
+     *                      job being migrated, or 0 (the default) to
+     *                      load each job's steps when it's reached.
+     *
+     * Prefetching overlaps AHP round trips with running the step
+     * classes.  It's done on a separate thread, and only when jobs run
+     * in sequence; parallel levels and incremental runs already load
+     * their steps ahead.  As with parallel jobs, the prefetch thread
+     * doesn't share our AHP session: it gets its own, leased from the
+     * same pool or connected the same way, and loads the workflow
+     * again in it.  The steps it hands over are from its unit of work,
+     * which stays open until the jobs have run.  If there's no way to
+     * get a second session, or getting one fails, steps are loaded as
+     * each job comes up.  Like parallel jobs' sessions, it isn't
+     * counted by BatchMigration.setMaxSessions.
+     *
+     * The run waits for the prefetch thread to stop before it
+     * finishes; if it won't, its session is invalidated (or
+     * disconnected) instead of being reused.
+     */
+    public void setPrefetchDepth(int prefetchDepth)
+    {
+        if(prefetchDepth < 0) {
+            throw new IllegalArgumentException(
+                "Prefetch depth can't be negative"
+            );
+        }
+
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * @param metrics   Who to tell how long each phase, job callback and
+     *                  step class takes, or null for nobody (the
+     *                  default).  Nothing is timed unless this is set.
+     *                  When the source is an AnthillSource, it's told
+     *                  too, so that loading the workflow is broken down
+     *                  into RESTORE_WORKFLOW and BUILD_GRAPH.
+     */
+    public void setMetricsListener(final MetricsListener metrics)
+    {
+        this.metrics = metrics;
+
+        if(source instanceof AnthillSource) {
+            ((AnthillSource)source).setMetricsListener(metrics);
+        }
+    }
+
+    /**
+     * @param events    Where to publish workflow, job and step events
+     *                  as the migration goes, or null for nowhere (the
+     *                  default).
+     *
+     * Events are delivered on the bus's own thread, so listeners never
+     * slow the migration down.  Nothing is built unless the bus has
+     * listeners.
+     */
+    public void setEventBus(final EventBus events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * @param timeout   How long a run may take, or 0 (the default) for
+     *                  no limit
+     * @param unit      Unit of the timeout
+     *
+     * This is checked between jobs and between steps, like cancel(),
+     * and enforced by the watchdog for anything that hangs; a run that
+     * goes over fails with a TimedOutException.
+     */
+    public void setTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param timeout   How long any one job may take, including
+     *                  loading its steps, or 0 (the default) for no
+     *                  limit
+     * @param unit      Unit of the timeout
+     *
+     * See setWatchdog for what happens when a job goes over.
+     */
+    public void setJobTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.jobTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param timeout   How long any one step class may take to run, or
+     *                  0 (the default) for no limit
+     * @param unit      Unit of the timeout
+     *
+     * See setWatchdog for what happens when a step goes over.
+     */
+    public void setStepTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.stepTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param watchdog  What enforces the workflow, job and step
+     *                  timeouts.  If none is set, the shared one is
+     *                  used.
+     * @param interrupt If true (the default), interrupt whatever's
+     *                  overdue; otherwise just cancel the migration
+     *                  so it stops at the next job or step.
+     *
+     * Either way, once anything is overdue the migration fails with a
+     * TimedOutException.  Interrupting gets a thread out of most
+     * blocking calls, but whether an AHP remoting call notices is up
+     * to AHP; see BatchMigration for giving up on ones that don't.
+     */
+    public void setWatchdog(final Watchdog watchdog, boolean interrupt)
+    {
+        this.watchdog = watchdog;
+        this.interruptOverdue = interrupt;
+    }
+
+    /**
+     * @param policy    How to retry loading the workflow, loading steps
+     *                  and running step classes when they fail for a
+     *                  passing reason, or null to not (the default).
+     *
+     * See the other setRetryPolicy for the details.
+     */
+    public void setRetryPolicy(final RetryPolicy policy)
+    {
+        for(RetryPolicy.Operation op : RetryPolicy.Operation.values()) {
+            setRetryPolicy(op, policy);
+        }
+    }
+
+    /**
+     * @param op        Which operation to set a policy for
+     * @param policy    How to retry it, or null to not
+     *
+     * Only the operation that failed is retried; everything migrated
+     * before it stays as it is.
+     *
+     * Retrying a step class runs it again against the same context.
+     * If the context can be checkpointed, it's put back to how it was
+     * before the step's first attempt; otherwise the step class must
+     * cope with whatever a failed attempt left behind.
+     */
+    public void setRetryPolicy(final RetryPolicy.Operation op,
+                               final RetryPolicy policy)
+    {
+        if(policy == null) {
+            retries.remove(op);
+        } else {
+            retries.put(op, policy);
+        }
+    }
+
+    /**
+     * @param checkpoints   Where to record progress after every step
+     *                      and job, or null to not (the default).
+     * @param resume        If true, skip whatever a previous run of
+     *                      this workflow recorded as done, and start
+     *                      the context from the state it saved.  If
+     *                      false, anything recorded is thrown away.
+     *
+     * Checkpoints are only written if the context supports
+     * checkpoint() and restore().  They're cleared once the workflow
+     * migrates successfully.
+     *
+     * When a job was partly done, its pre-run callback is not run
+     * again, since its effects are already in the saved state; the
+     * same goes for the workflow's pre-run callback.  With
+     * parallelism, jobs are only recorded as each graph level
+     * finishes, so a level cut short is redone in full.
+     */
+    public void setCheckpointStore(final CheckpointStore checkpoints,
+                                   boolean resume)
+    {
+        this.checkpoints = checkpoints;
+        this.resume = resume;
+    }
+
+    /**
+     * @param fingerprints  Where to keep each workflow's fingerprint
+     *                      between runs, or null to not (the default).
+     *
+     * Setting this turns on incremental mode.  The workflow, and each
+     * job with its steps, are fingerprinted (see Fingerprinter) before
+     * anything is migrated and compared to the fingerprint from the
+     * last successful run: if nothing changed the workflow is skipped
+     * outright, and otherwise only the jobs that changed are migrated.
+     * The context will only see those jobs, so it must be able to
+     * update an earlier migration in place.
+     */
+    public void setFingerprintStore(final FingerprintStore fingerprints)
+    {
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @param fingerprinter     How to fingerprint workflows in
+     *                          incremental mode.
+     */
+    public void setFingerprinter(final Fingerprinter fingerprinter)
+    {
+        this.fingerprinter = fingerprinter;
+    }
+
+    /**
+     * @param translations  Where to remember what each job config was
+     *                      migrated into, or null for nowhere (the
+     *                      default).
+     *
+     * With a cache, a job whose config and steps have been migrated
+     * before -- by this migration or any other sharing the cache -- is
+     * replayed into the context with replayJob() rather than run.  The
+     * context must support captureJob() and replayJob(); if it doesn't,
+     * nothing is cached.  Jobs being resumed are always run.
+     *
+     * Each job's steps are still loaded, since they're what tells us
+     * whether the cached job is still current; it's the job and step
+     * classes that are skipped.
+     */
+    public void setTranslationCache(final JobTranslationCache translations)
+    {
+        this.translations = translations;
+    }
+
+    /**
+     * @return how many jobs were replayed from the translation cache
+     */
+    public final int getReplayedJobCount()
+    {
+        return replayedJobCount.get();
+    }
+
+    /**
+     * @return true if this was an incremental run and the workflow
+     *         hadn't changed, so nothing was migrated.
+     */
+    public final boolean isUnchanged()
+    {
+        return unchanged;
+    }
+
+    /**
+     * @return how many jobs an incremental run skipped as unchanged
+     */
+    public final int getSkippedJobCount()
+    {
+        return skippedJobCount.get();
+    }
+
+    /**
+     * @return how many jobs the workflow has, or 0 if it isn't loaded
+     *         yet.
+     */
+    public final int getJobCount()
+    {
+        return numSteps;
+    }
+
+    /**
+     * @return how many jobs are done so far, including skipped ones
+     */
+    public final int getMigratedJobCount()
+    {
+        return migratedJobCount.get();
+    }
+
+    /**
+     * @return how many steps have been migrated so far
+     */
+    public final int getMigratedStepCount()
+    {
+        return migratedSteps.get();
+    }
+
     /**
      * @return a status integer (see status constants above)
      */
@@ -215,6 +734,60 @@ public class Migration implements Runnable
         return workflowName;
     }
 
+    /**
+     * Ask the migration to stop.  This is cooperative: it's checked
+     * between jobs and between steps, and the run then fails with a
+     * CancelledException, unbinding from AHP as usual.  Calling this
+     * before the run starts means it won't migrate anything.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Give up on a migration that's stuck, from another thread.  Like
+     * cancel(), but the thread running it is interrupted too, and if
+     * our client is leased, the lease is invalidated so the session
+     * is never reused.  That disconnects it, which usually knocks a
+     * stuck remoting call loose as well.
+     *
+     * The migration fails with a TimedOutException, if it ever
+     * finishes at all.
+     *
+     * @param why   What to put in the error
+     */
+    public void abandon(final String why)
+    {
+        LOG.warn("Abandoning migration of workflow {}: {}", workflowId, why);
+
+        if(overdue == null) {
+            overdue = why;
+        }
+
+        cancelled = true;
+
+        Thread t = runner;
+
+        if(t != null) {
+            t.interrupt();
+        }
+
+        LeasedClient l = lease;
+
+        if(l != null) {
+            l.invalidate();
+        }
+    }
+
+    /**
+     * @return true if cancel() has been called
+     */
+    public final boolean isCancelled()
+    {
+        return cancelled;
+    }
+
     /**
      * Get computed "percent done" as an integer from 1 to 100.
      *
@@ -222,16 +795,20 @@ public class Migration implements Runnable
      */
     public int getProgress()
     {
-        if((status == SUCCESS) || (status == ERROR) || (status == CLOSED)) {
+        int s = status;
+        int jobs = numSteps;
+
+        if((s == SUCCESS) || (s == ERROR) || (s == CLOSED)) {
             return 100;
         }
 
-        if(numSteps == 0) {
+        if(jobs == 0) {
             return 0;
         }
 
         int ret = (int)Math.round(
-                        ((double)migratedStepCount/(double)numSteps)*100
+                        ((double)progressUnits.get() /
+                         ((double)jobs * JOB_UNITS))*100
         );
 
         // don't allow this to be 100
@@ -264,45 +841,47 @@ public class Migration implements Runnable
                      final String password, final String keystorePath,
                      final String keystorePass)
             throws MigrateException {
-        try {
-            LOG.debug("Contructing Migration object");
-
-            // Set properties for keystore load
-            if((keystorePath != null) && (keystorePath.length() > 0)) {
-                System.setProperty("anthill3.client.ssl.keystore.pwd",
-                                   keystorePass);
-                System.setProperty("anthill3.client.ssl.keystore",
-                                   keystorePath);
-            } else {
-                System.clearProperty("anthill3.client.ssl.keystore.pwd");
-                System.clearProperty("anthill3.client.ssl.keystore");
-            }
+        LOG.debug("Contructing Migration object");
 
-            // Try to connect
-            client = AnthillClient.connect(host, port, username, password);
+        long start = System.nanoTime();
 
-            if(client == null) {
-                LOG.error("AnthillClient returned null -- probably bad " +
-                          "credentials.");
-                throw new ConnectException(
-                    "Could not Connect to Anthill Pro.  This is probably "
-                    + "a username/password problem."
-                );
-            }
-        } catch(AuthorizationException e) {
-            LOG.error("Caught exception", e);
-            throw new ConnectException("Could not connect to Anthill Pro", e);
-        } catch(NullPointerException e) {
-            LOG.error("A NullPointerException was thrown -- this is " +
-                      "probably an AHP connection problem (hostname?)");
-            // AHP throws null pointer exceptions if the host name is
-            // wrong (among other potential problems that I guess AHP
-            // doesn't error check for)
-            throw new ConnectException(
-                "One of your settings (probably hostname) is incorrect.  "
-                + "Please double-check and try again."
-            );
-        }
+        connection = new ConnectionInfo(host, port, username, password,
+                                        keystorePath, keystorePass);
+        client = connection.connect();
+        source = new AnthillSource(client);
+        connectNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Constructor: takes a client leased from a ClientPool rather than
+     * connecting on its own.  The lease is released back to the pool
+     * by close() instead of being disconnected.
+     *
+     * @param lease         A leased client; it must not be bound to
+     *                      another thread while this migration runs.
+     */
+    public Migration(final LeasedClient lease)
+    {
+        LOG.debug("Contructing Migration object from leased client");
+
+        this.lease = lease;
+        this.client = lease.getClient();
+        this.source = new AnthillSource(client);
+    }
+
+    /**
+     * Constructor: migrate from some other source of workflows, such
+     * as a snapshot, rather than a live AHP.  The query methods need
+     * an AHP client, and won't work unless the source has one.
+     *
+     * @param source        Where to load workflows from
+     */
+    public Migration(final WorkflowSource source)
+    {
+        LOG.debug("Contructing Migration object from workflow source");
+
+        this.source = source;
+        this.client = source.getClient();
     }
 
     /**
@@ -352,24 +931,84 @@ public class Migration implements Runnable
      * NPE's if you try to call a closed Migration.
      *
      * This does not dispose of the context as in some cases it
-     * may remain useful after termination.
+     * may remain useful after termination.  It does still hold on to
+     * the AHP workflow, jobs and steps, though; if you're keeping a
+     * lot of finished migrations around, detach() them and keep the
+     * DetachedContext instead.
      */
     public void close()
     {
         LOG.debug("Closing Migration object.  Thank you! <3");
 
-        try {
-            client.unbind();
-        } catch(Exception e) { }
+        if(lease != null) {
+            // Connection problems mean the session is probably no good
+            if(error instanceof ConnectException) {
+                lease.invalidate();
+            } else {
+                lease.release();
+            }
 
-        try {
-            client.disconnect();
-        } catch(Exception e) { }
+            lease = null;
+        } else if(client != null) {
+            try {
+                client.unbind();
+            } catch(Exception e) { }
+
+            try {
+                client.disconnect();
+            } catch(Exception e) { }
+        }
 
         client = null;
+        loadedSteps = null;
         status = CLOSED;
     }
 
+    /**
+     * Swap the context for a detached copy of its result, dropping the
+     * AHP objects it refers to.  Afterwards getContext() returns null
+     * and getDetachedContext() returns the copy.
+     *
+     * This can be called once the migration has finished, whether or
+     * not it's been closed.  Calling it again returns the same copy.
+     *
+     * @return the detached context, or null if there was no context
+     * @throws MigrateException if the migration is still running, or
+     *         the context couldn't make its result.  Unless it was
+     *         still running, the context is dropped either way.
+     */
+    public DetachedContext detach()
+           throws MigrateException
+    {
+        if(status == RUNNING) {
+            throw new MigrateException(
+                "Can't detach the context of a running migration"
+            );
+        }
+
+        if(context == null) {
+            return detached;
+        }
+
+        DetachedContext ret;
+
+        try {
+            ret = context.detach();
+        } finally {
+            context = null;
+        }
+
+        // The context only knows its workflow if it got that far
+        if(ret.getWorkflowId() == null) {
+            ret = new DetachedContext(workflowId, workflowName,
+                                      ret.getContextClass(),
+                                      ret.getResult());
+        }
+
+        detached = ret;
+        return ret;
+    }
+
     /*****************************************************************
      * QUERIES
      *
@@ -398,6 +1037,9 @@ public class Migration implements Runnable
      * All results will be returned alphabetically sorted using
      * a linked map.
      *
+     * If you want results as they come in, or to page through them,
+     * use the WorkflowQueryHandler version of this method instead.
+     *
      * @return a map of project names to workflow name/ID pairs.
      * @throws MigrateException on any kind of error.
      */
@@ -439,32 +1081,117 @@ public class Migration implements Runnable
 
             // Process results
             for(Project p : projects) {
-                // Grab workflows (originating)
-                Workflow[] workflows = p.getOriginatingWorkflowArray();
+                ret.put(p.getName(), ProjectWorkflows.load(p));
+            }
 
-                if(LOG.isDebugEnabled()) {
-                    LOG.debug("Project {} got {} results", p.getName(),
-                                                           workflows.length
-                    );
-                }
+            // Done!
+            return ret;
+        } catch(PersistenceException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Got a persistence error from AHP: ",
+                                       e);
+        } catch(AuthorizationException e) {
+            LOG.error("Caught exception", e);
+            throw new ConnectException("Failed authorization with AHP: ",
+                                       e);
+        } finally {
+            // Clean up the UOW
+            if(uow != null) {
+                try {
+                    uow.cancel();
+                } catch(Exception e) { }
 
-                // Add to our map
-                LinkedHashMap<String, Long> wfm =
-                    new LinkedHashMap<String, Long>(workflows.length);
+                uow.close();
+                uow = null;
+            }
+        }
+    }
 
-                for(Workflow w : workflows) {
-                    wfm.put(w.getName(), w.getId());
+    /**
+     * Streaming version of fetchWorkflowsForProjectName.  Rather than
+     * building the whole map, each project's workflows are handed to
+     * the handler as soon as they are loaded, so a UI can show the
+     * first results right away.
+     *
+     * Matching projects are sorted by name and can be paged through:
+     * start with an offset of 0, and pass the returned cursor back in
+     * to get the next page.  The handler can stop the query early by
+     * returning false; the returned cursor will then pick up right
+     * after the last project handled.
+     *
+     * There is no limit here; use pageSize to bound how much work a
+     * single call does.
+     *
+     * Each call asks AHP for every matching project again and skips to
+     * the offset, since there's nowhere to keep AHP's results between
+     * calls.  Paging through n projects a page at a time therefore
+     * lists the projects about n / pageSize times over; for big result
+     * sets use large pages, or a pageSize of 0.  Projects added or
+     * renamed between calls can also shift the pages.
+     *
+     * @param project   The query string
+     * @param offset    Index of the first matching project to load; 0
+     *                  or more
+     * @param pageSize  Maximum number of projects to load.  Can be 0
+     *                  for no limit.
+     * @param handler   Receives each project's workflows
+     *
+     * @return the offset to pass for the next page, or -1 if there are
+     *         no more projects.
+     * @throws MigrateException on any kind of error.
+     * @throws IllegalArgumentException if offset is negative
+     */
+    public int fetchWorkflowsForProjectName(final String project,
+                                            int offset, int pageSize,
+                                            final WorkflowQueryHandler handler)
+           throws MigrateException
+    {
+        if(offset < 0) {
+            throw new IllegalArgumentException(
+                "Offset must not be negative: " + offset
+            );
+        }
 
-                    if(LOG.isDebugEnabled()) {
-                        LOG.debug("...Workflow: {}", w.getName());
-                    }
+        // For our transaction
+        UnitOfWork uow = null;
+
+        LOG.debug("fetchWorkflowsForProjectName: {}, {}, {}", project,
+                  offset, pageSize
+        );
+
+        try {
+            // Start a transaction
+            uow = client.createUnitOfWork();
+
+            // Get project list, sorted so paging is stable
+            Project[] projects = ProjectFactory.getInstance()
+                                               .restoreAllLikeName(project);
+
+            Arrays.sort(projects, new Comparator<Project>() {
+                public int compare(final Project a, final Project b)
+                {
+                    return a.getName().compareTo(b.getName());
                 }
+            });
+
+            LOG.debug("Got {} results", projects.length);
 
-                ret.put(p.getName(), wfm);
+            int end = projects.length;
+
+            if((pageSize > 0) && (offset < end) &&
+               (pageSize < (end - offset))) {
+                end = offset + pageSize;
             }
 
-            // Done!
-            return ret;
+            for(int i = offset; i < end; i++) {
+                if(!handler.handle(projects[i].getName(),
+                                   ProjectWorkflows.load(projects[i]))) {
+                    LOG.debug("Handler stopped query at {}", i);
+                    return ((i + 1) < projects.length) ? (i + 1) : -1;
+                }
+            }
+
+            return (end < projects.length) ? end : -1;
         } catch(PersistenceException e) {
             LOG.error("Caught exception", e);
             throw new MigrateException("Got a persistence error from AHP: ",
@@ -536,22 +1263,35 @@ public class Migration implements Runnable
                   workflowId
         );
 
-        // For our transaction
-        UnitOfWork uow = null;
-
         // And let's go!
         status = RUNNING;
 
+        long runStart = tick();
+
+        if(timeoutNanos > 0) {
+            // 0 means no deadline, so steer clear of it
+            deadline = (System.nanoTime() + timeoutNanos) | 1;
+        }
+
+        runner = Thread.currentThread();
+
+        Future<?> runWatch = watch(timeoutNanos, "Migration");
+
+        if((metrics != null) && (connectNanos > 0)) {
+            metrics.phaseCompleted(workflowId, Phase.CONNECT, connectNanos);
+        }
+
         try {
-            // bind our thread
-            client.bind();
+            // Don't bother if we were cancelled before we started
+            checkCancelled();
 
-            // Create our unit of work
-            uow = client.createUnitOfWork();
+            // bind our thread
+            source.bind();
 
             // try to load our workflow
-            Workflow wf = WorkflowFactory.getInstance()
-                                         .restore(workflowId);
+            long start = tick();
+            WorkflowData wf = loadWorkflow();
+            phase(Phase.LOAD_WORKFLOW, start);
 
             if(wf == null) {
                 LOG.error("Workflow {} does not exist!", workflowId);
@@ -563,90 +1303,94 @@ public class Migration implements Runnable
             // Set our name
             workflowName = wf.getName();
 
-            /*
-             * Jobs in AHP use a "configuration graph".  The configuration
-             * graph allows any combination of parallel / sequential builds.
-             *
-             * This is pretty complex to represent and iterate over, but
-             * we need to visit each job in sequence and put them together
-             * in a useful structure.
-             */
-            LOG.debug("Loading job layout");
-            JobLayout layout = new JobLayout(wf.getWorkflowDefinition());
+            JobGraph graph = wf.getGraph();
+
+            numSteps = graph.size();
+            publish(MigrationEvent.Type.WORKFLOW_STARTED, null, null,
+                    null, null);
 
             // Push the workflow into our context
-            context.setWorkflow(wf);
+            context.setWorkflow(wf.getWorkflow());
             context.setClient(client);
-            context.setLayout(layout);
+            context.setLayout(wf.getLayout());
+            context.setGraph(graph);
+
+            // In incremental mode, find out what's changed
+            if(fingerprints != null) {
+                startIncremental(wf);
+
+                if(unchanged) {
+                    LOG.info("Workflow {} is unchanged; skipping",
+                             workflowId);
+                    this.status = SUCCESS;
+                    return;
+                }
+            }
+
+            // Pick up where a previous run left off, if asked to
+            startCheckpoints();
 
             // Grab our Workflow and Job runner if we have one
             AbstractWorkflow wfRunner = loader.loadWorkflowClass();
 
-            if(wfRunner != null) {
+            if((wfRunner != null) && !isResuming()) {
                 LOG.debug("Running Workflow pre-run step");
+                start = tick();
                 wfRunner.preRun(context);
+                phase(Phase.WORKFLOW_CALLBACK, start);
             }
 
-            numSteps = layout.getAllJobs().size();
-
-            LOG.debug("Job layout got {} steps", numSteps);
-
-            // Iterate over all of them
-            for(WorkflowDefinitionJobConfig job : layout.getAllJobs()) {
-                if(LOG.isDebugEnabled()) {
-                    LOG.debug("Processing job: {}", job.getName());
+            LOG.debug("Job graph got {} jobs", numSteps);
+
+            // Iterate over all of them, a level at a time if we're
+            // going parallel.  Either way, jobs run in the graph's
+            // topological order: every job after all the jobs it
+            // depends on, and each level in job index order.  That's
+            // JobLayout.getAllJobs() order for a simple chain, but not
+            // necessarily for a workflow with parallel branches.
+            if(parallelism > 1) {
+                for(int l = 0; l < graph.getLevelCount(); l++) {
+                    checkCancelled();
+                    runLevel(wf, l);
                 }
-
-                context.setCurrentJob(job);
-
-                // Run job callback if we've got them
-                AbstractJob jobRunner = loader.loadJobClass();
+            } else {
+                startPrefetch(wf);
 
                 try {
-                    if(jobRunner != null) {
-                        LOG.debug("Running Job pre-run step");
-                        jobRunner.preRun(context);
-                    }
-
-                    // Iterate over steps in job.
-                    for(StepConfig step : job.getJobConfig()
-                                             .getActiveStepConfigArray()) {
-                        if(LOG.isDebugEnabled()) {
-                            LOG.debug("Processing step: {}, class {}",
-                                      step.getName(),
-                                      step.getClass().getName()
-                            );
-                        }
-
-                        context.setCurrentStep(step);
-                        AbstractStep stepLoader = loader.loadStepClass(
-                                            step.getClass().getName()
-                        );
-                        try {
-                            stepLoader.run(context);
-                        } catch(SkipException e) {
-                            // swallow the skip exception
-                            LOG.warn("Skipping step: {}", e.getMessage());
-                        }
+                    for(int k = 0; k < graph.size(); k++) {
+                        runJob(context, wf, graph.getOrder(k));
                     }
-
-                    // And the post callback if we've got it.
-                    if(jobRunner != null) {
-                        LOG.debug("Running Job post-run step");
-                        jobRunner.postRun(context);
-                    }
-                } catch(SkipException e) {
-                    // Swallow job skip exception
-                    LOG.warn("Skipping step: {}", e.getMessage());
+                } finally {
+                    stopPrefetch();
                 }
-
-                migratedStepCount++;
             }
 
             // Run post run
+            checkCancelled();
+
             if(wfRunner != null) {
                 LOG.debug("Running Workflow post-run step");
+                start = tick();
                 wfRunner.postRun(context);
+                phase(Phase.WORKFLOW_CALLBACK, start);
+            }
+
+            // Nothing left to resume
+            if(checkpointing) {
+                try {
+                    checkpoints.clear(workflowId);
+                } catch(MigrateException e) {
+                    LOG.warn("Could not clear checkpoint", e);
+                }
+            }
+
+            // Next time, compare against this run
+            if(fingerprint != null) {
+                try {
+                    fingerprints.save(fingerprint);
+                } catch(MigrateException e) {
+                    LOG.warn("Could not save fingerprint", e);
+                }
             }
 
             this.status = SUCCESS;
@@ -680,17 +1424,1079 @@ public class Migration implements Runnable
 
             this.status = ERROR;
         } finally {
-            client.unbind();
+            unwatch(runWatch);
+            source.unbind();
+            runner = null;
+
+            // Whatever it failed with, it failed because it ran out of
+            // time.  Don't leave our interrupt for the next user of the
+            // thread.
+            if(overdue != null) {
+                Thread.interrupted();
+
+                if((status == ERROR) &&
+                   !(error instanceof TimedOutException)) {
+                    error = new TimedOutException(overdue, error);
+                }
+            }
+
+            if(metrics != null) {
+                phase(Phase.TOTAL, runStart);
+                metrics.workflowCompleted(workflowId, status);
+            }
+
+            if(unchanged) {
+                publish(MigrationEvent.Type.WORKFLOW_SKIPPED, null, null,
+                        "unchanged", null);
+            } else if(status == SUCCESS) {
+                publish(MigrationEvent.Type.WORKFLOW_FINISHED, null, null,
+                        null, null);
+            } else {
+                publish(MigrationEvent.Type.WORKFLOW_FAILED, null, null,
+                        (error == null) ? null : error.getMessage(), error);
+            }
+        }
+    }
+
+    /**
+     * Run the migration on an executor rather than the calling thread.
+     * The migration is close()'d when it finishes, whether it worked or
+     * not; its context and error are still there afterwards.
+     *
+     * Set everything up as for run() first.
+     *
+     * @param executor  What to run the migration on
+     * @return a future of the migrated context; cancelling it cancels
+     *         the migration.
+     */
+    public MigrationFuture submit(final Executor executor)
+    {
+        MigrationFuture ret = new MigrationFuture(this);
+
+        executor.execute(ret);
+        return ret;
+    }
+
+    /**
+     * Check whether we should stop: we've been cancelled, run out of
+     * time, or our thread was interrupted.  This is called between
+     * jobs and between steps; subclasses that do long work of their
+     * own can call it too.
+     *
+     * @throws CancelledException if we should stop; a TimedOutException
+     *         if it's because of the deadline.
+     */
+    protected void checkCancelled()
+              throws CancelledException
+    {
+        // Check this first; it's set before cancelled is
+        if(overdue != null) {
+            throw new TimedOutException(overdue);
+        }
+
+        if(cancelled) {
+            throw new CancelledException("Migration of workflow " +
+                                         workflowId + " was cancelled");
+        }
+
+        if(Thread.currentThread().isInterrupted()) {
+            cancelled = true;
+            throw new CancelledException("Migration of workflow " +
+                                         workflowId + " was interrupted");
+        }
+
+        if((deadline != 0) && ((System.nanoTime() - deadline) > 0)) {
+            cancelled = true;
+            throw new TimedOutException("Migration of workflow " +
+                                        workflowId + " took longer than " +
+                                        TimeUnit.NANOSECONDS.toMillis(
+                                            timeoutNanos) + "ms");
+        }
+    }
+
+    /**
+     * Migrate a single job: the job class callbacks (if any) around
+     * each of the job's steps.
+     *
+     * @param ctx   The context to migrate into
+     * @param wf    The workflow
+     * @param index The job's index in the workflow's graph
+     * @throws Exception on any error; see run() for how these are
+     *         reported.
+     */
+    protected void runJob(final AbstractContext ctx, final WorkflowData wf,
+                          int index)
+              throws Exception
+    {
+        runJob(ctx, wf, index, source);
+    }
+
+    /**
+     * Migrate a single job, loading its steps from the given source.
+     *
+     * @param ctx   The context to migrate into
+     * @param wf    The workflow, as loaded from src
+     * @param index The job's index in the workflow's graph
+     * @param src   Where to load the job's steps; our own source, or a
+     *              worker's
+     * @throws Exception on any error
+     */
+    private void runJob(final AbstractContext ctx, final WorkflowData wf,
+                        int index, final WorkflowSource src)
+            throws Exception
+    {
+        WorkflowDefinitionJobConfig job = wf.getGraph().getJob(index);
+        Long jobId = job.getId();
+
+        if(skipJob(wf.getGraph(), index)) {
+            return;
+        }
+
+        checkCancelled();
+
+        if(LOG.isDebugEnabled()) {
+            LOG.debug("Processing job: {}", job.getName());
+        }
+
+        ctx.setCurrentJob(job);
+        publish(MigrationEvent.Type.JOB_STARTED, job, null, null, null);
+
+        // Run job callback if we've got them
+        AbstractJob jobRunner = loader.loadJobClass();
+
+        // Only record progress for the main context; forks are
+        // recorded when they're merged.
+        boolean record = checkpointing && (ctx == context);
+
+        // Progress units handed out for this job so far, and whether
+        // the job class skipped the rest of it
+        long units = 0;
+        boolean skipped = false;
+
+        // With a translation cache, what the job config's version is,
+        // and whether we replayed it rather than ran it
+        Long jobConfigId = cacheKey(job);
+        byte[] version = null;
+        boolean replayed = false;
+
+        Future<?> jobWatch = watch(jobTimeoutNanos, "Job " + job.getName());
+
+        try {
+            StepConfig[] steps = null;
+
+            if((jobConfigId != null) &&
+               ((resumeFrom == null) || !resumeFrom.isJobStarted(jobId))) {
+                steps = stepsFor(src, wf, index);
+                version = jobVersion(job, steps);
+                replayed = replayJob(ctx, jobConfigId, version);
+
+                if(replayed) {
+                    steps = new StepConfig[0];
+                }
+            }
+
+            if((jobRunner != null) && !replayed &&
+               ((resumeFrom == null) || !resumeFrom.isJobStarted(jobId))) {
+                LOG.debug("Running Job pre-run step");
+                long start = tick();
+                jobRunner.preRun(ctx);
+                phase(Phase.JOB_CALLBACK, start);
+            }
+
+            // Iterate over steps in job.
+            if(steps == null) {
+                steps = stepsFor(src, wf, index);
+            }
+
+            for(int i = 0; i < steps.length; i++) {
+                StepConfig step = steps[i];
+                long share = (JOB_UNITS * (i + 1) / steps.length) - units;
+
+                if((resumeFrom != null) &&
+                   resumeFrom.isStepDone(jobId, step.getId())) {
+                    LOG.debug("Step already done: {}", step.getName());
+                    units += share;
+                    progressUnits.addAndGet(share);
+                    publish(MigrationEvent.Type.STEP_SKIPPED, job, step,
+                            "already done", null);
+                    continue;
+                }
+
+                checkCancelled();
+
+                if(LOG.isDebugEnabled()) {
+                    LOG.debug("Processing step: {}, class {}",
+                              step.getName(),
+                              step.getClass().getName()
+                    );
+                }
+
+                ctx.setCurrentStep(step);
+                publish(MigrationEvent.Type.STEP_STARTED, job, step, null,
+                        null);
+
+                AbstractStep stepLoader = loader.loadStepClass(
+                                    step.getClass().getName()
+                );
+                long start = tick();
+                boolean failed = true;
+                String skipReason = null;
+                Future<?> stepWatch = watch(stepTimeoutNanos,
+                                            "Step " + step.getName());
 
-            // close out unit of work
-            if(uow != null) {
                 try {
-                    uow.cancel();
-                } catch(Exception e) { }
+                    runStep(stepLoader, ctx);
+                    failed = false;
+                } catch(SkipException e) {
+                    // swallow the skip exception
+                    failed = false;
+                    skipReason = e.getMessage();
+                    LOG.warn("Skipping step: {}", skipReason);
+                } catch(Exception e) {
+                    publish(MigrationEvent.Type.STEP_FAILED, job, step,
+                            e.getMessage(), e);
+                    throw e;
+                } finally {
+                    unwatch(stepWatch);
+
+                    if(metrics != null) {
+                        long nanos = System.nanoTime() - start;
+
+                        metrics.phaseCompleted(workflowId, Phase.STEP, nanos);
+                        metrics.stepCompleted(workflowId,
+                                              stepLoader.getClass().getName(),
+                                              nanos, failed);
+                    }
+                }
 
-                uow.close();
-                uow = null;
+                units += share;
+                progressUnits.addAndGet(share);
+                migratedSteps.incrementAndGet();
+
+                if(skipReason == null) {
+                    publish(MigrationEvent.Type.STEP_FINISHED, job, step,
+                            null, null);
+                } else {
+                    publish(MigrationEvent.Type.STEP_SKIPPED, job, step,
+                            skipReason, null);
+                }
+
+                if(record) {
+                    start = tick();
+                    checkpoints.stepDone(workflowId, jobId, step.getId(),
+                                         ctx.checkpoint());
+                    phase(Phase.CHECKPOINT, start);
+                }
+            }
+
+            // And the post callback if we've got it.
+            if((jobRunner != null) && !replayed) {
+                LOG.debug("Running Job post-run step");
+                long start = tick();
+                jobRunner.postRun(ctx);
+                phase(Phase.JOB_CALLBACK, start);
             }
+
+            // Remember it for the next workflow that uses this config
+            if((version != null) && !replayed) {
+                Serializable output = ctx.captureJob();
+
+                if(output != null) {
+                    translations.put(jobConfigId, version, output);
+                }
+            }
+        } catch(SkipException e) {
+            // Swallow job skip exception
+            LOG.warn("Skipping step: {}", e.getMessage());
+            skipped = true;
+            publish(MigrationEvent.Type.JOB_SKIPPED, job, null,
+                    e.getMessage(), null);
+        } catch(Exception e) {
+            publish(MigrationEvent.Type.JOB_FAILED, job, null,
+                    e.getMessage(), e);
+            throw e;
+        } finally {
+            unwatch(jobWatch);
+        }
+
+        if(record) {
+            long start = tick();
+            checkpoints.jobDone(workflowId, jobId, ctx.checkpoint());
+            phase(Phase.CHECKPOINT, start);
+        }
+
+        // Whatever's left of the job's share, if it was cut short or
+        // had no steps
+        progressUnits.addAndGet(JOB_UNITS - units);
+        jobDone();
+
+        // A skipped job already said so
+        if(!skipped) {
+            publish(MigrationEvent.Type.JOB_FINISHED, job, null,
+                    replayed ? "replayed from cache" : null, null);
+        }
+    }
+
+    /**
+     * @param job   A job
+     * @return the job config ID to cache it under, or null if we're not
+     *         caching it
+     */
+    private Long cacheKey(final WorkflowDefinitionJobConfig job)
+    {
+        if((translations == null) || (job.getJobConfig() == null)) {
+            return null;
+        }
+
+        return job.getJobConfig().getId();
+    }
+
+    /**
+     * Work out a job config's version for the translation cache.
+     *
+     * @param job       A job with a job config
+     * @param steps     Its steps
+     * @return the version, or null if it can't be had; then the job is
+     *         just run, uncached.
+     */
+    private byte[] jobVersion(final WorkflowDefinitionJobConfig job,
+                              final StepConfig[] steps)
+    {
+        try {
+            return fingerprinter.digestJobConfig(job.getJobConfig(), steps);
+        } catch(MigrateException e) {
+            LOG.warn("Can't cache job config {}: {}",
+                     job.getJobConfig().getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Replay a job from the translation cache, if it's there.
+     *
+     * @param ctx           The context to replay into
+     * @param jobConfigId   The job's config
+     * @param version       Its version, or null if it has none
+     * @return true if it was replayed, false if it must be run
+     * @throws MigrateException if the context couldn't replay it
+     */
+    private boolean replayJob(final AbstractContext ctx,
+                              final Long jobConfigId, final byte[] version)
+            throws MigrateException
+    {
+        if(version == null) {
+            return false;
+        }
+
+        Serializable output = translations.get(jobConfigId, version);
+
+        if(output == null) {
+            return false;
+        }
+
+        LOG.debug("Replaying job config {} from cache", jobConfigId);
+
+        ctx.replayJob(output);
+        replayedJobCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Migrate one level of the job graph.  Jobs on a level don't depend
+     * on each other, so each gets a fork of the context and runs on its
+     * own thread, with an AHP session of its own (see setParallelism);
+     * the forks are merged back in job order once they are all done.
+     *
+     * If the level only has one job, the context can't be forked, or
+     * we can't give workers sessions of their own, the level's jobs
+     * are run in sequence instead.
+     *
+     * @param wf    The workflow
+     * @param l     The level to migrate
+     * @throws Exception on any error; the first job to fail has its
+     *         error thrown, and the rest are interrupted and waited for.
+     */
+    protected void runLevel(final WorkflowData wf, int l)
+              throws Exception
+    {
+        JobGraph graph = wf.getGraph();
+        List<Integer> jobs = new ArrayList<Integer>(graph.getLevelSize(l));
+
+        // Leave out anything we don't need to do
+        for(int k = 0; k < graph.getLevelSize(l); k++) {
+            int job = graph.getLevelJob(l, k);
+
+            if(!skipJob(graph, job)) {
+                jobs.add(job);
+            }
+        }
+
+        int width = jobs.size();
+
+        // Make our forks
+        List<AbstractContext> forks = new ArrayList<AbstractContext>(width);
+
+        if((width > 1) && canRunWorkers()) {
+            for(int k = 0; k < width; k++) {
+                AbstractContext fork = context.fork();
+
+                if(fork == null) {
+                    break;
+                }
+
+                fork.setWorkflow(context.getWorkflow());
+                fork.setClient(client);
+                fork.setLayout(context.getLayout());
+                fork.setGraph(graph);
+                forks.add(fork);
+            }
+        }
+
+        // Can't (or needn't) go parallel
+        if((forks.size() < width) || (width < 2)) {
+            for(int k = 0; k < width; k++) {
+                runJob(context, wf, jobs.get(k));
+            }
+
+            return;
+        }
+
+        LOG.debug("Running level {} with {} jobs in parallel", l, width);
+
+        ExecutorService exec = Executors.newFixedThreadPool(
+                                    Math.min(parallelism, width),
+                                    new ThreadFactory() {
+            public Thread newThread(final Runnable r)
+            {
+                Thread t = new Thread(r, "ahp-migrate-" + workflowId);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        CompletionService<Void> done = new ExecutorCompletionService<Void>(
+                                                                    exec);
+
+        try {
+            for(int k = 0; k < width; k++) {
+                final AbstractContext fork = forks.get(k);
+                final int job = jobs.get(k);
+
+                done.submit(new Callable<Void>() {
+                    public Void call()
+                           throws Exception
+                    {
+                        runWorkerJob(fork, wf, job);
+                        return null;
+                    }
+                });
+            }
+
+            // In the order they finish, so the first failure is seen
+            // as soon as it happens
+            for(int k = 0; k < width; k++) {
+                try {
+                    done.take().get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof Exception) {
+                        throw (Exception)e.getCause();
+                    }
+
+                    throw (Error)e.getCause();
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+            awaitWorkers(exec);
+        }
+
+        // Everything's done; merge in a predictable order.
+        for(AbstractContext fork : forks) {
+            context.merge(fork);
+        }
+
+        // Record the level; the state only needs saving once.
+        if(checkpointing) {
+            for(int k = 0; k < width; k++) {
+                checkpoints.jobDone(workflowId,
+                                    graph.getJob(jobs.get(k)).getId(),
+                                    (k == (width - 1)) ? context.checkpoint()
+                                                       : null
+                );
+            }
+        }
+    }
+
+    /**
+     * @return true if parallel workers can have sessions of their own:
+     *         our source doesn't need one, or we know where ours came
+     *         from.
+     */
+    private boolean canRunWorkers()
+    {
+        if((client == null) || (lease != null) || (connection != null)) {
+            return true;
+        }
+
+        LOG.debug("No way to give workers their own AHP sessions; " +
+                  "running jobs in sequence");
+        return false;
+    }
+
+    /**
+     * Wait for a level's workers to stop, so none of them is still
+     * going once run() returns and our session goes back.  Interrupting
+     * the waiting thread (as abandon() does) gives up on them.
+     *
+     * @param exec  The level's executor, already shut down
+     */
+    private void awaitWorkers(final ExecutorService exec)
+    {
+        try {
+            while(!exec.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for workers of workflow {} to stop",
+                          workflowId);
+            }
+        } catch(InterruptedException e) {
+            LOG.warn("Gave up waiting for workers of workflow {}",
+                     workflowId);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set up checkpointing for a run: check the context supports it,
+     * and either restore what a previous run saved or throw it away.
+     *
+     * @throws MigrateException on any error
+     */
+    private void startCheckpoints()
+            throws MigrateException
+    {
+        if(checkpoints == null) {
+            return;
+        }
+
+        if(context.checkpoint() == null) {
+            LOG.warn("{} can't be checkpointed; not recording progress",
+                     context.getClass().getName());
+            return;
+        }
+
+        checkpointing = true;
+
+        if(!resume) {
+            checkpoints.clear(workflowId);
+            return;
+        }
+
+        Checkpoint cp = checkpoints.load(workflowId);
+
+        if(!cp.isEmpty()) {
+            LOG.info("Resuming workflow {} from checkpoint", workflowId);
+            context.restore(cp.getState());
+            resumeFrom = cp;
+        }
+    }
+
+    /**
+     * Fingerprint the workflow, and compare it to the last run's.  This
+     * loads every job's steps, which are then kept for runJob.
+     *
+     * @param wf    The workflow
+     * @throws MigrateException on any error
+     */
+    private void startIncremental(final WorkflowData wf)
+            throws MigrateException
+    {
+        JobGraph graph = wf.getGraph();
+
+        loadedSteps = new StepConfig[graph.size()][];
+
+        long start = tick();
+
+        for(int i = 0; i < graph.size(); i++) {
+            loadedSteps[i] = loadSteps(source, wf, i);
+        }
+
+        phase(Phase.LOAD_STEPS, start);
+        start = tick();
+        fingerprint = fingerprinter.compute(wf, loadedSteps);
+        phase(Phase.FINGERPRINT, start);
+        previousFingerprint = fingerprints.load(workflowId);
+        unchanged = fingerprint.isUnchangedSince(previousFingerprint);
+    }
+
+    /**
+     * Start loading steps ahead of a sequential run, if we're set up
+     * to and they haven't all been loaded already.
+     *
+     * @param wf    The workflow
+     */
+    private void startPrefetch(final WorkflowData wf)
+    {
+        if((prefetchDepth < 1) || (loadedSteps != null)) {
+            return;
+        }
+
+        JobGraph graph = wf.getGraph();
+        int[] jobs = new int[graph.size()];
+        int count = 0;
+
+        // No sense loading what a checkpoint says is done
+        for(int k = 0; k < graph.size(); k++) {
+            int job = graph.getOrder(k);
+
+            if((resumeFrom == null) ||
+               !resumeFrom.isJobDone(graph.getJob(job).getId())) {
+                jobs[count++] = job;
+            }
+        }
+
+        WorkflowSource src = source;
+
+        // Give the prefetcher an AHP session of its own
+        if(client != null) {
+            if((lease == null) && (connection == null)) {
+                LOG.debug("No second AHP session to prefetch steps in; " +
+                          "loading them as we go");
+                return;
+            }
+
+            try {
+                if(lease != null) {
+                    prefetchLease = lease.leaseAnother();
+                    prefetchClient = prefetchLease.getClient();
+                } else {
+                    prefetchClient = connection.connect();
+                }
+            } catch(MigrateException e) {
+                LOG.warn("Could not get an AHP session to prefetch steps " +
+                         "of workflow {} in; loading them as we go",
+                         workflowId, e);
+                return;
+            }
+
+            src = new AnthillSource(prefetchClient);
+        }
+
+        prefetcher = new StepPrefetcher(src, wf,
+                                        Arrays.copyOf(jobs, count),
+                                        prefetchDepth);
+        prefetcher.setReload(client != null);
+        prefetcher.setRetryPolicy(
+                            retries.get(RetryPolicy.Operation.LOAD_STEPS));
+        prefetcher.start();
+    }
+
+    /**
+     * Stop the prefetcher, if there is one, and give back its session.
+     * If its thread won't stop, it's still using the session, so it's
+     * invalidated rather than given back to the pool.
+     */
+    private void stopPrefetch()
+    {
+        if(prefetcher == null) {
+            return;
+        }
+
+        boolean stopped = prefetcher.stop();
+
+        if(!stopped) {
+            LOG.warn("Step prefetch for workflow {} won't stop; its " +
+                     "session won't be reused", workflowId);
+        }
+
+        if(prefetchClient != null) {
+            giveBack(prefetchLease, prefetchClient, !stopped);
+        }
+
+        prefetcher = null;
+        prefetchLease = null;
+        prefetchClient = null;
+    }
+
+    /**
+     * Decide whether a job can be skipped, because a checkpoint says
+     * it's done or because it hasn't changed since the last run.
+     * Skipped jobs still count towards progress.
+     *
+     * @param graph The job's graph
+     * @param index The job's index in it
+     * @return true to skip it
+     */
+    private boolean skipJob(final JobGraph graph, int index)
+    {
+        WorkflowDefinitionJobConfig job = graph.getJob(index);
+        Long jobId = job.getId();
+        boolean done = (resumeFrom != null) && resumeFrom.isJobDone(jobId);
+        boolean same = (fingerprint != null) &&
+                       fingerprint.isJobUnchangedSince(
+                                previousFingerprint,
+                                Fingerprint.jobKey(graph, index));
+
+        if(!done && !same) {
+            return false;
+        }
+
+        if(LOG.isDebugEnabled()) {
+            LOG.debug("Skipping job {}: {}", job.getName(),
+                      done ? "already done" : "unchanged");
+        }
+
+        progressUnits.addAndGet(JOB_UNITS);
+        jobDone();
+
+        if(same) {
+            skippedJobCount.incrementAndGet();
+        }
+
+        publish(MigrationEvent.Type.JOB_SKIPPED, job, null,
+                done ? "already done" : "unchanged", null);
+        return true;
+    }
+
+    /**
+     * Count a job as done, and bring migratedStepCount up to match.
+     * Jobs can finish on several threads at once, so it only ever
+     * moves forward.
+     */
+    private void jobDone()
+    {
+        int done = migratedJobCount.incrementAndGet();
+
+        synchronized(migratedJobCount) {
+            if(done > migratedStepCount) {
+                migratedStepCount = done;
+            }
+        }
+    }
+
+    /**
+     * @param src   Where the workflow came from
+     * @param wf    The workflow
+     * @param index A job's index in the workflow's graph
+     * @return the job's steps, from what we loaded up front if we did
+     *         and the workflow is ours
+     * @throws MigrateException on any error
+     */
+    private StepConfig[] stepsFor(final WorkflowSource src,
+                                  final WorkflowData wf, int index)
+            throws MigrateException
+    {
+        if((loadedSteps != null) && (src == source)) {
+            return loadedSteps[index];
+        }
+
+        long start = tick();
+        StepConfig[] ret = null;
+
+        // Time spent waiting on the prefetcher counts as loading
+        if((prefetcher != null) && (src == source)) {
+            ret = prefetcher.take(index);
+        }
+
+        if(ret == null) {
+            ret = loadSteps(src, wf, index);
+        }
+
+        phase(Phase.LOAD_STEPS, start);
+        return ret;
+    }
+
+    /**
+     * Load our workflow from the source, retrying if we're set up to.
+     *
+     * @return the workflow, or null if there's no such workflow
+     * @throws MigrateException on any error
+     */
+    private WorkflowData loadWorkflow()
+            throws MigrateException
+    {
+        RetryPolicy policy = retries.get(RetryPolicy.Operation.LOAD_WORKFLOW);
+
+        if(policy == null) {
+            return source.load(workflowId);
+        }
+
+        return policy.execute("Loading workflow " + workflowId,
+                              new Retryable<WorkflowData, MigrateException>() {
+            public WorkflowData attempt(int attempt)
+                   throws MigrateException
+            {
+                return source.load(workflowId);
+            }
+        });
+    }
+
+    /**
+     * Load a job's steps from a source, retrying if we're set up to.
+     *
+     * @param src   Where the workflow came from
+     * @param wf    The workflow
+     * @param index A job's index in the workflow's graph
+     * @return the job's steps
+     * @throws MigrateException on any error
+     */
+    private StepConfig[] loadSteps(final WorkflowSource src,
+                                   final WorkflowData wf, final int index)
+            throws MigrateException
+    {
+        RetryPolicy policy = retries.get(RetryPolicy.Operation.LOAD_STEPS);
+
+        if(policy == null) {
+            return src.loadSteps(wf, index);
+        }
+
+        return policy.execute("Loading steps of job " + index,
+                              new Retryable<StepConfig[], MigrateException>() {
+            public StepConfig[] attempt(int attempt)
+                   throws MigrateException
+            {
+                return src.loadSteps(wf, index);
+            }
+        });
+    }
+
+    /**
+     * Run a step class, retrying if we're set up to.  Before a retry,
+     * the context is put back how it was if it can be.
+     *
+     * @param step  The step class
+     * @param ctx   The context to migrate into
+     * @throws MigrateException on any error
+     */
+    private void runStep(final AbstractStep step, final AbstractContext ctx)
+            throws MigrateException
+    {
+        RetryPolicy policy = retries.get(RetryPolicy.Operation.RUN_STEP);
+
+        if(policy == null) {
+            step.run(ctx);
+            return;
+        }
+
+        final Serializable before = ctx.checkpoint();
+
+        policy.execute("Step " + ctx.getCurrentStep().getName(),
+                       new Retryable<Void, MigrateException>() {
+            public Void attempt(int attempt)
+                   throws MigrateException
+            {
+                if((attempt > 1) && (before != null)) {
+                    ctx.restore(before);
+                }
+
+                step.run(ctx);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return the time, if we're timing things, or 0
+     */
+    private long tick()
+    {
+        return (metrics != null) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Tell our listener a phase finished, if we have one.
+     *
+     * @param phase     The phase
+     * @param start     When it started, from tick()
+     */
+    private void phase(final Phase phase, long start)
+    {
+        if(metrics != null) {
+            metrics.phaseCompleted(workflowId, phase,
+                                   System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Start the watchdog on something the calling thread is about to
+     * do.
+     *
+     * @param budget    How long it may take, or 0 for as long as it
+     *                  likes
+     * @param what      What it is, for the error
+     * @return what to pass to unwatch() when it's done, or null if
+     *         there's no budget
+     */
+    private Future<?> watch(long budget, final String what)
+    {
+        if(budget <= 0) {
+            return null;
+        }
+
+        final Thread thread = Thread.currentThread();
+        final String why = what + " of workflow " + workflowId +
+                           " took longer than " +
+                           TimeUnit.NANOSECONDS.toMillis(budget) + "ms";
+        Watchdog dog = (watchdog != null) ? watchdog : Watchdog.getShared();
+
+        return dog.watch(budget, TimeUnit.NANOSECONDS, new Runnable() {
+            public void run()
+            {
+                timedOut(why, thread);
+            }
+        });
+    }
+
+    /**
+     * @param watch     What watch() returned; may be null
+     */
+    private static void unwatch(final Future<?> watch)
+    {
+        if(watch != null) {
+            watch.cancel(false);
+        }
+    }
+
+    /**
+     * Called on the watchdog thread when something is overdue.
+     *
+     * @param why       What was overdue, for the error
+     * @param thread    The thread doing it
+     */
+    private void timedOut(final String why, final Thread thread)
+    {
+        LOG.warn("{}; {}", why, interruptOverdue ? "interrupting"
+                                                 : "cancelling");
+
+        if(overdue == null) {
+            overdue = why;
+        }
+
+        cancelled = true;
+
+        if(interruptOverdue) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Publish an event, if anyone's listening.
+     *
+     * @param type      What happened
+     * @param job       The job, or null for workflow events
+     * @param step      The step, or null for workflow and job events
+     * @param message   Why something was skipped, or null
+     * @param cause     What went wrong, or null
+     */
+    private void publish(final MigrationEvent.Type type,
+                         final WorkflowDefinitionJobConfig job,
+                         final StepConfig step, final String message,
+                         final Throwable cause)
+    {
+        if((events == null) || !events.hasListeners()) {
+            return;
+        }
+
+        events.publish(new MigrationEvent(type, workflowId, workflowName,
+                                          (job == null) ? null : job.getId(),
+                                          (job == null) ? null : job.getName(),
+                                          (step == null) ? null : step.getId(),
+                                          (step == null) ? null
+                                                         : step.getName(),
+                                          getProgress(), message, cause));
+    }
+
+    /**
+     * @return true if we're picking up from a previous run
+     */
+    private boolean isResuming()
+    {
+        return resumeFrom != null;
+    }
+
+    /**
+     * Run a job on the calling (worker) thread.  If our source is AHP,
+     * the worker gets a session of its own and loads the workflow
+     * again in it, so nothing restored in our unit of work is used
+     * from another thread; otherwise our source is bound to it.
+     *
+     * @param fork  The forked context for this job
+     * @param wf    The workflow
+     * @param index The job's index in the workflow's graph
+     * @throws Exception on any error
+     */
+    private void runWorkerJob(final AbstractContext fork,
+                              final WorkflowData wf, int index)
+            throws Exception
+    {
+        if(client == null) {
+            try {
+                source.bind();
+                runJob(fork, wf, index, source);
+            } finally {
+                source.unbind();
+            }
+
+            return;
+        }
+
+        LeasedClient workerLease = null;
+        AnthillClient workerClient;
+
+        if(lease != null) {
+            workerLease = lease.leaseAnother();
+            workerClient = workerLease.getClient();
+        } else {
+            workerClient = connection.connect();
+        }
+
+        WorkflowSource workerSource = new AnthillSource(workerClient);
+        boolean broken = false;
+
+        try {
+            workerSource.bind();
+
+            WorkflowData own = workerSource.load(workflowId);
+            Long jobId = wf.getGraph().getJob(index).getId();
+
+            if((own == null) || (own.getGraph().size() <= index) ||
+               ((jobId != null) &&
+                !jobId.equals(own.getGraph().getJob(index).getId()))) {
+                throw new MigrateException("Workflow " + workflowId +
+                                           " changed while it was being " +
+                                           "migrated");
+            }
+
+            fork.setWorkflow(own.getWorkflow());
+            fork.setClient(workerClient);
+            fork.setLayout(own.getLayout());
+            fork.setGraph(own.getGraph());
+            runJob(fork, own, index, workerSource);
+        } catch(ConnectException e) {
+            // Probably no good for anyone else
+            broken = true;
+            throw e;
+        } finally {
+            workerSource.unbind();
+            giveBack(workerLease, workerClient, broken);
+        }
+    }
+
+    /**
+     * Finish with a session we made for another thread.
+     *
+     * @param l         Its lease, or null if we connected it ourselves
+     * @param c         The client
+     * @param broken    True if it's no good for anyone else
+     */
+    private static void giveBack(final LeasedClient l, final AnthillClient c,
+                                 boolean broken)
+    {
+        if(l == null) {
+            try {
+                c.disconnect();
+            } catch(Exception e) { }
+        } else if(broken) {
+            l.invalidate();
+        } else {
+            l.release();
         }
     }
 }
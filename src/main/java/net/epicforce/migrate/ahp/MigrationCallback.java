@@ -0,0 +1,37 @@
+package net.epicforce.migrate.ahp;
+
+/*
+ * MigrationCallback.java
+ *
+ * Told when a MigrationFuture finishes, one way or the other.  This is
+ * how to chain work onto a migration without a thread sitting in
+ * get() waiting for it.
+ *
+ * Callbacks run once the migration has really stopped and been
+ * closed, on the thread that got there last: usually the migration's
+ * own thread, even if it was cancelled, or the thread that cancelled it
+ * if it never started.  If the future was already finished when the
+ * callback was added, it runs right away on the adding thread.  They
+ * should be quick.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface MigrationCallback
+{
+    /**
+     * The migration finished successfully.
+     *
+     * @param context   The migrated context
+     */
+    public void onSuccess(final AbstractContext context);
+
+    /**
+     * The migration failed, or was cancelled or timed out; the latter
+     * two come as a CancelledException.
+     *
+     * @param error     What went wrong
+     */
+    public void onFailure(final MigrateException error);
+}
@@ -0,0 +1,283 @@
+package net.epicforce.migrate.ahp;
+
+/*
+ * MigrationFuture.java
+ *
+ * The result of Migration.submit: a Future of the migrated context.
+ *
+ * get() returns the context if the migration succeeded, and otherwise
+ * throws an ExecutionException wrapping the migration's error.
+ * Callbacks can be added to hear about it without blocking.
+ *
+ * Cancelling the future cancels the migration too.  That's
+ * cooperative: the migration stops at the next job or step boundary,
+ * and then unbinds and closes itself like any other run, so nothing is
+ * left bound to the thread.  Interrupting as well (cancel(true)) gets
+ * it out of a blocking wait sooner, but AHP's remoting doesn't always
+ * take kindly to being interrupted, so it's best avoided.
+ *
+ * A migration cancelled before it starts never runs at all; it's
+ * closed when it's cancelled, so its session goes back all the same.
+ *
+ * Like any FutureTask, a cancelled future is done (and get() throws)
+ * straight away, even if the migration is still on its way to the next
+ * boundary.  Callbacks wait: they're only told once the migration has
+ * really stopped and been closed.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.CancelledException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MigrationFuture extends FutureTask<AbstractContext>
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(MigrationFuture.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Migration                 migration;
+
+    /*
+     * Set by whichever comes first: the migration starting, or the
+     * future being cancelled before it did.  The loser leaves the
+     * migration alone.
+     */
+    private final AtomicBoolean             claimed = new AtomicBoolean();
+
+    /*
+     * Callbacks waiting for us to finish.  They run once the future is
+     * done AND the migration has stopped ('completed' and 'stopped',
+     * whichever happens last), and then 'finished' is set and new
+     * callbacks are run straight away.  All guarded by 'callbacks'.
+     */
+    private final List<MigrationCallback>   callbacks =
+                                        new ArrayList<MigrationCallback>();
+    private boolean                         completed = false;
+    private boolean                         stopped = false;
+    private boolean                         finished = false;
+
+    /**
+     * Constructor.  Running the future runs the migration and then
+     * closes it.
+     *
+     * @param migration     A migration that's ready to run
+     */
+    public MigrationFuture(final Migration migration)
+    {
+        this(migration, new Holder());
+    }
+
+    /**
+     * The callable needs to reach the future it belongs to, which
+     * doesn't exist yet when it's made; this carries it across.
+     */
+    private static class Holder
+    {
+        MigrationFuture future;
+    }
+
+    private MigrationFuture(final Migration migration, final Holder holder)
+    {
+        super(new Callable<AbstractContext>() {
+            public AbstractContext call()
+                   throws MigrateException
+            {
+                MigrationFuture self = holder.future;
+                int status;
+
+                if(!self.claimed.compareAndSet(false, true)) {
+                    // Cancelled before we got here; done() closed it
+                    return null;
+                }
+
+                try {
+                    try {
+                        migration.run();
+                        status = migration.getStatus();
+                    } finally {
+                        migration.close();
+                    }
+                } finally {
+                    self.stopped();
+                }
+
+                if(status != Migration.SUCCESS) {
+                    throw migration.getError();
+                }
+
+                return migration.getContext();
+            }
+        });
+
+        this.migration = migration;
+        holder.future = this;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the migration this is the future of
+     */
+    public Migration getMigration()
+    {
+        return migration;
+    }
+
+    /**
+     * @param callback  Who to tell when the migration finishes.  If it
+     *                  already has, they're told now.
+     */
+    public void addCallback(final MigrationCallback callback)
+    {
+        synchronized(callbacks) {
+            if(!finished) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        tell(callback);
+    }
+
+    /*****************************************************************
+     * FUTURE
+     ****************************************************************/
+
+    /**
+     * Cancel the migration.  It stops at the next job or step; if it
+     * hasn't started yet, it never will, and is closed now.
+     *
+     * @param mayInterruptIfRunning     Interrupt the migration's thread
+     *                                  as well
+     * @return false if the migration had already finished
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        migration.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done()
+    {
+        boolean stoppedNow = false;
+
+        // Cancelled before it started: nothing else will ever close it
+        if(claimed.compareAndSet(false, true)) {
+            LOG.debug("Migration of workflow {} cancelled before it " +
+                      "started", migration.getWorkflowId());
+            migration.close();
+            stoppedNow = true;
+        }
+
+        synchronized(callbacks) {
+            completed = true;
+
+            if(stoppedNow) {
+                stopped = true;
+            }
+        }
+
+        tellAll();
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * The migration has stopped and been closed.
+     */
+    private void stopped()
+    {
+        synchronized(callbacks) {
+            stopped = true;
+        }
+
+        tellAll();
+    }
+
+    /**
+     * Tell the waiting callbacks how we finished, if the future is done
+     * and the migration has stopped; otherwise leave it to whichever of
+     * those happens last.
+     */
+    private void tellAll()
+    {
+        List<MigrationCallback> waiting;
+
+        synchronized(callbacks) {
+            if(finished || !completed || !stopped) {
+                return;
+            }
+
+            finished = true;
+            waiting = new ArrayList<MigrationCallback>(callbacks);
+            callbacks.clear();
+        }
+
+        for(MigrationCallback cb : waiting) {
+            tell(cb);
+        }
+    }
+
+    /**
+     * Tell a callback how we finished.  We must be done.
+     *
+     * @param callback  Who to tell
+     */
+    private void tell(final MigrationCallback callback)
+    {
+        AbstractContext ctx = null;
+        MigrateException error = null;
+
+        if(isCancelled()) {
+            error = new CancelledException("Migration of workflow " +
+                                           migration.getWorkflowId() +
+                                           " was cancelled");
+        } else {
+            try {
+                ctx = get();
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof MigrateException) {
+                    error = (MigrateException)e.getCause();
+                } else if(e.getCause() instanceof Exception) {
+                    error = new MigrateException("General error: ",
+                                                 (Exception)e.getCause());
+                } else {
+                    throw (Error)e.getCause();
+                }
+            } catch(InterruptedException e) {
+                // Can't happen; we're done
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        try {
+            if(error == null) {
+                callback.onSuccess(ctx);
+            } else {
+                callback.onFailure(error);
+            }
+        } catch(RuntimeException e) {
+            LOG.warn("Migration callback failed", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * BatchExecutors.java
+ *
+ * Makes the executors BatchMigration runs its workflows on.  Each
+ * workflow gets a thread of its own for as long as it runs; the
+ * batch's concurrency, not the executor, limits how many run at once.
+ *
+ * The executors themselves are unbounded on purpose.  BatchMigration
+ * takes a permit from its 'slots' semaphore, sized to the concurrency,
+ * before it submits each workflow, so there are never more than that
+ * many live workflow threads -- plus any whose workflow was abandoned
+ * as stuck, since abandoning one gives its permit back while its
+ * thread is still hung in AHP.  A fixed pool would leave those stuck
+ * threads holding pool slots, and the batch would stall behind them.
+ *
+ * This is the Java 7 version, which uses ordinary threads.  The jar
+ * is multi-release: on Java 21 and later, the version built from
+ * src/main/java21 is loaded instead, which uses virtual threads.
+ * Migrations spend nearly all their time waiting on AHP, so virtual
+ * threads let a batch keep a lot more of them going without a
+ * platform thread (and its stack) for each.
+ *
+ * Both versions must have the same public methods.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class BatchExecutors
+{
+    /**
+     * Not instanced
+     */
+    private BatchExecutors()
+    {
+    }
+
+    /**
+     * @return true if workflows run on virtual threads
+     */
+    public static boolean isVirtual()
+    {
+        return false;
+    }
+
+    /**
+     * Make an executor that starts a new thread for each task, and
+     * drops threads once they're done with.
+     *
+     * @param prefix    Thread names start with this, followed by a
+     *                  number, so they're easy to find in a thread dump
+     * @return the executor
+     */
+    public static ExecutorService newWorkerExecutor(final String prefix)
+    {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(final Runnable r)
+            {
+                Thread t = new Thread(r, prefix +
+                                         threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
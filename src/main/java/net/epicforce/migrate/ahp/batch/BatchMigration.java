@@ -0,0 +1,997 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * BatchMigration.java
+ *
+ * A Migration object handles exactly one workflow.  When you have
+ * thousands of them to do, this class will juggle the threads for you.
+ *
+ * It takes a set of workflow IDs, a context factory and a loader, and
+ * runs a Migration for each workflow on a worker thread, a bounded
+ * number at a time.  That concurrency is also the maximum number of
+ * migrations that will be talking to AHP at once, unless a lower
+ * session limit is set, so it's the knob to turn to keep AHP busy
+ * without knocking it over.
+ *
+ * Workers come from BatchExecutors, so on Java 21 they're virtual
+ * threads.  Then a high concurrency with a session limit keeps many
+ * workflows in flight, queued for a session, for very little.
+ *
+ * The loader is shared by all the workers, so it must be threadsafe.
+ * The DefaultLoader is.
+ *
+ * If a workflow has a timeout and is still going well after it (most
+ * likely stuck in an AHP call that never returns), it's abandoned:
+ * recorded as timed out, its session thrown away, and its slot given
+ * to the next workflow.  Its thread is left to finish whenever it
+ * does, so a batch can briefly have more threads than its concurrency.
+ */
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.cache.JobTranslationCache;
+import net.epicforce.migrate.ahp.checkpoint.CheckpointStore;
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.context.DetachedContext;
+import net.epicforce.migrate.ahp.event.EventBus;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.TimedOutException;
+import net.epicforce.migrate.ahp.fingerprint.FingerprintStore;
+import net.epicforce.migrate.ahp.loader.AbstractLoader;
+import net.epicforce.migrate.ahp.metrics.MetricsListener;
+import net.epicforce.migrate.ahp.pool.ClientPool;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+import net.epicforce.migrate.ahp.retry.RetryPolicy;
+import net.epicforce.migrate.ahp.watchdog.Watchdog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * See constructor for calling notes.
+ *
+ * Like Migration, this can be run as a thread or inline.  Individual
+ * workflow failures do not fail the batch; check getResults() for
+ * those.
+ */
+public class BatchMigration implements Runnable
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(BatchMigration.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /*
+     * Default number of workflows to migrate at once
+     */
+    public static final int     DEFAULT_CONCURRENCY = 4;
+
+    /*
+     * Default time past its timeout a workflow gets to stop on its
+     * own before it's abandoned, in milliseconds
+     */
+    public static final long    DEFAULT_ABANDON_GRACE = 60000;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Where to connect, and the pool of sessions to do it with.
+     */
+    protected final ConnectionInfo  connection;
+    protected final ClientPool      pool;
+
+    /*
+     * True if we made the pool ourselves and should close it when
+     * the batch is done.
+     */
+    protected final boolean         ownPool;
+
+    /*
+     * What we're migrating and how
+     */
+    protected final Set<Long>       workflowIds;
+    protected final ContextFactory  contextFactory;
+    protected final AbstractLoader  loader;
+
+    /*
+     * How many workflows to run at once
+     */
+    protected int                   concurrency = DEFAULT_CONCURRENCY;
+
+    /*
+     * How many workflows' AHP sessions may be in use at once, or 0 for
+     * one per running workflow
+     */
+    protected int                   maxSessions = 0;
+
+    /*
+     * Where each migration records its progress, if anywhere
+     */
+    protected CheckpointStore       checkpoints = null;
+
+    /*
+     * Where each migration keeps its fingerprint, for incremental runs
+     */
+    protected FingerprintStore      fingerprints = null;
+
+    /*
+     * Who each migration reports its timings to
+     */
+    protected MetricsListener       metrics = null;
+
+    /*
+     * Where each migration publishes its progress events
+     */
+    protected EventBus              events = null;
+
+    /*
+     * Where migrations share the jobs they've migrated, if anywhere
+     */
+    protected JobTranslationCache   translations = null;
+
+    /*
+     * Whether results keep a DetachedContext rather than the context
+     */
+    protected boolean               detachContexts = false;
+
+    /*
+     * How long each workflow, job and step may take, or 0 for no
+     * limit; how long past its timeout a workflow has before we give
+     * up on it; and the watchdog that keeps time.
+     */
+    protected long                  workflowTimeoutNanos = 0;
+    protected long                  jobTimeoutNanos = 0;
+    protected long                  stepTimeoutNanos = 0;
+    protected long                  abandonGraceNanos =
+                    TimeUnit.MILLISECONDS.toNanos(DEFAULT_ABANDON_GRACE);
+    protected Watchdog              watchdog = null;
+
+    /*
+     * How each migration retries operations that fail for a passing
+     * reason.  These are shared, so their budgets cover the batch.
+     */
+    protected final Map<RetryPolicy.Operation, RetryPolicy> retries =
+                    new EnumMap<RetryPolicy.Operation, RetryPolicy>(
+                                            RetryPolicy.Operation.class);
+
+    /*
+     * Status - uses the Migration status constants.  SUCCESS means
+     * the batch ran to the end, not that every workflow succeeded.
+     */
+    protected volatile int          status = Migration.READY;
+
+    /*
+     * What went wrong with the batch itself, if anything; each
+     * workflow's own errors are in its result.
+     */
+    protected volatile MigrateException error = null;
+
+    /*
+     * Results, keyed by workflow ID
+     */
+    protected final ConcurrentMap<Long, BatchResult> results =
+                                    new ConcurrentHashMap<Long, BatchResult>();
+
+    /*
+     * Counters and timing for throughput
+     */
+    protected final AtomicInteger   failedCount = new AtomicInteger();
+    protected volatile long         startTime = 0;
+    protected volatile long         endTime = 0;
+
+    /*
+     * While running: a permit for each workflow that may run at once,
+     * and a count of workflows with no result yet.
+     */
+    private Semaphore               slots = null;
+    private CountDownLatch          remaining = null;
+
+    /*
+     * While running, if sessions are limited: a permit for each
+     */
+    private Semaphore               sessions = null;
+
+    /*
+     * To number batches' threads
+     */
+    private static final AtomicInteger  batchCount = new AtomicInteger();
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: takes AHP connection information, a pool to lease
+     * sessions from, and what to migrate.  Sessions are leased when a
+     * worker starts a workflow and released when it finishes, so the
+     * pool is shared across the whole batch (and can outlive it).
+     *
+     * @param connection    Where to connect
+     * @param pool          Pool to lease sessions from
+     * @param workflowIds   The workflows to migrate
+     * @param contextFactory Makes a fresh context for each workflow
+     * @param loader        The (threadsafe) loader to use for each workflow
+     */
+    public BatchMigration(final ConnectionInfo connection,
+                          final ClientPool pool,
+                          final Collection<Long> workflowIds,
+                          final ContextFactory contextFactory,
+                          final AbstractLoader loader)
+    {
+        this(connection, pool, false, workflowIds, contextFactory, loader);
+    }
+
+    /**
+     * Constructor: takes AHP connection information plus what to migrate.
+     * Unlike Migration, this does not connect right away; each worker
+     * leases a session from a private pool when it starts a workflow,
+     * and the pool is closed when the batch finishes.
+     *
+     * @param host          AHP Host name
+     * @param port          AHP Remoting Port
+     * @param username      AHP User name
+     * @param password      AHP Password
+     * @param keystorePath  Keystore path, if used.
+     * @param keystorePass  Keystore password, if used.
+     * @param workflowIds   The workflows to migrate
+     * @param contextFactory Makes a fresh context for each workflow
+     * @param loader        The (threadsafe) loader to use for each workflow
+     */
+    public BatchMigration(final String host, int port, final String username,
+                          final String password, final String keystorePath,
+                          final String keystorePass,
+                          final Collection<Long> workflowIds,
+                          final ContextFactory contextFactory,
+                          final AbstractLoader loader)
+    {
+        this(new ConnectionInfo(host, port, username, password,
+                                keystorePath, keystorePass),
+             new ClientPool(), true, workflowIds, contextFactory, loader);
+    }
+
+    /**
+     * Constructor: no keystore
+     *
+     * @param host          AHP Host name
+     * @param port          AHP Remoting Port
+     * @param username      AHP User name
+     * @param password      AHP Password
+     * @param workflowIds   The workflows to migrate
+     * @param contextFactory Makes a fresh context for each workflow
+     * @param loader        The (threadsafe) loader to use for each workflow
+     */
+    public BatchMigration(final String host, int port, final String username,
+                          final String password,
+                          final Collection<Long> workflowIds,
+                          final ContextFactory contextFactory,
+                          final AbstractLoader loader)
+    {
+        this(host, port, username, password, null, null, workflowIds,
+             contextFactory, loader);
+    }
+
+    /**
+     * Constructor: the one that does the work.
+     */
+    private BatchMigration(final ConnectionInfo connection,
+                           final ClientPool pool, boolean ownPool,
+                           final Collection<Long> workflowIds,
+                           final ContextFactory contextFactory,
+                           final AbstractLoader loader)
+    {
+        this.connection = connection;
+        this.pool = pool;
+        this.ownPool = ownPool;
+        this.workflowIds = new LinkedHashSet<Long>(workflowIds);
+        this.contextFactory = contextFactory;
+        this.loader = loader;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param concurrency   Maximum number of workflows to migrate at
+     *                      once.  Must be at least 1.
+     *
+     * This must be set before running.
+     */
+    public void setConcurrency(int concurrency)
+    {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException(
+                "Concurrency must be at least 1"
+            );
+        }
+
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param maxSessions   Maximum number of AHP sessions in use at
+     *                      once, or 0 (the default) for one per running
+     *                      workflow.  Workflows past the limit wait for
+     *                      a session before they start.
+     *
+     * The limit counts one session per workflow: the one its Migration
+     * is made with.  A Migration that leases more of its own -- for
+     * parallel jobs (Migration.setParallelism) or a step prefetcher
+     * (Migration.setPrefetchDepth), set up in an overridden
+     * newMigration() -- takes them from the pool on top of the limit,
+     * up to one per parallel job plus one for prefetching.
+     *
+     * This is only worth setting below the concurrency when workers
+     * are virtual threads (see BatchExecutors); otherwise each waiting
+     * workflow ties up a platform thread for nothing.  This must be
+     * set before running.
+     */
+    public void setMaxSessions(int maxSessions)
+    {
+        if(maxSessions < 0) {
+            throw new IllegalArgumentException(
+                "Session limit can't be negative"
+            );
+        }
+
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @param checkpoints   Where each migration records its progress,
+     *                      or null for nowhere (the default).
+     *
+     * Every migration resumes from whatever is recorded for its
+     * workflow, so re-running a batch after a failure only redoes the
+     * work that didn't finish.  See Migration.setCheckpointStore.
+     */
+    public void setCheckpointStore(final CheckpointStore checkpoints)
+    {
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * @param fingerprints  Where each migration keeps its workflow's
+     *                      fingerprint, or null to migrate everything
+     *                      (the default).
+     *
+     * This makes the batch incremental: unchanged workflows are
+     * skipped and only changed jobs are migrated.  See
+     * Migration.setFingerprintStore.
+     */
+    public void setFingerprintStore(final FingerprintStore fingerprints)
+    {
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @param metrics   Who every migration in the batch reports its
+     *                  timings to, or null for nobody (the default).
+     *                  A MigrationMetrics is the usual choice.
+     */
+    public void setMetricsListener(final MetricsListener metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param events    Where every migration in the batch publishes its
+     *                  progress events, or null for nowhere (the
+     *                  default).  The bus isn't closed when the batch
+     *                  finishes.
+     */
+    public void setEventBus(final EventBus events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * @param translations  A cache every migration in the batch shares
+     *                      its migrated jobs through, or null for none
+     *                      (the default).  See
+     *                      Migration.setTranslationCache.
+     */
+    public void setTranslationCache(final JobTranslationCache translations)
+    {
+        this.translations = translations;
+    }
+
+    /**
+     * @param detachContexts    True to detach each workflow's context
+     *                          when it finishes, so its BatchResult
+     *                          keeps a DetachedContext instead of the
+     *                          context and the AHP objects it refers
+     *                          to.  False (the default) keeps the
+     *                          contexts.
+     *
+     * Turn this on for big batches: otherwise every finished workflow
+     * keeps its whole AHP object graph in memory until the batch does
+     * away with its results.
+     */
+    public void setDetachContexts(boolean detachContexts)
+    {
+        this.detachContexts = detachContexts;
+    }
+
+    /**
+     * @param timeout   How long each workflow may take, or 0 (the
+     *                  default) for no limit
+     * @param unit      Unit of the timeout
+     *
+     * Workflows that go over fail with a TimedOutException and the
+     * batch moves on.  See Migration.setTimeout.
+     */
+    public void setWorkflowTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.workflowTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param timeout   How long any one job may take, or 0 (the
+     *                  default) for no limit.  See Migration.setJobTimeout.
+     * @param unit      Unit of the timeout
+     */
+    public void setJobTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.jobTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param timeout   How long any one step may take, or 0 (the
+     *                  default) for no limit.  See
+     *                  Migration.setStepTimeout.
+     * @param unit      Unit of the timeout
+     */
+    public void setStepTimeout(long timeout, final TimeUnit unit)
+    {
+        if(timeout < 0) {
+            throw new IllegalArgumentException(
+                "Timeout can't be negative"
+            );
+        }
+
+        this.stepTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param grace     How long past its timeout a workflow gets to
+     *                  stop on its own before it's abandoned.  Only
+     *                  applies if there's a workflow timeout.
+     * @param unit      Unit of the grace period
+     */
+    public void setAbandonGrace(long grace, final TimeUnit unit)
+    {
+        if(grace < 0) {
+            throw new IllegalArgumentException(
+                "Grace period can't be negative"
+            );
+        }
+
+        this.abandonGraceNanos = unit.toNanos(grace);
+    }
+
+    /**
+     * @param policy    How every migration retries loading workflows,
+     *                  loading steps and running step classes, or null
+     *                  to not (the default).  The policy is shared by
+     *                  the whole batch, and so is its retry budget.
+     *                  See Migration.setRetryPolicy.
+     */
+    public void setRetryPolicy(final RetryPolicy policy)
+    {
+        for(RetryPolicy.Operation op : RetryPolicy.Operation.values()) {
+            setRetryPolicy(op, policy);
+        }
+    }
+
+    /**
+     * @param op        Which operation to set a policy for
+     * @param policy    How every migration retries it, or null to not
+     */
+    public void setRetryPolicy(final RetryPolicy.Operation op,
+                               final RetryPolicy policy)
+    {
+        if(policy == null) {
+            retries.remove(op);
+        } else {
+            retries.put(op, policy);
+        }
+    }
+
+    /**
+     * @param watchdog  What keeps time for the batch and its
+     *                  migrations, or null to use the shared one (the
+     *                  default)
+     */
+    public void setWatchdog(final Watchdog watchdog)
+    {
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * @return the maximum number of workflows migrated at once
+     */
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    /**
+     * @return a status integer (see Migration status constants)
+     */
+    public final int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return what stopped the batch itself, or null.  This isn't set
+     *         when workflows fail; see getResults for that.
+     */
+    public final MigrateException getError()
+    {
+        return error;
+    }
+
+    /**
+     * Get the results so far, in the same order as the workflow IDs
+     * were given.  Workflows that haven't finished yet are left out.
+     *
+     * @return map of workflow ID to result
+     */
+    public Map<Long, BatchResult> getResults()
+    {
+        LinkedHashMap<Long, BatchResult> ret =
+                    new LinkedHashMap<Long, BatchResult>(workflowIds.size());
+
+        for(Long id : workflowIds) {
+            BatchResult r = results.get(id);
+
+            if(r != null) {
+                ret.put(id, r);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return number of workflows that have finished, good or bad
+     */
+    public int getCompletedCount()
+    {
+        return results.size();
+    }
+
+    /**
+     * @return number of workflows that have finished with an error
+     */
+    public int getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /**
+     * @return milliseconds spent so far (or in total, if finished)
+     */
+    public long getElapsedMillis()
+    {
+        if(startTime == 0) {
+            return 0;
+        }
+
+        if(endTime == 0) {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        return endTime - startTime;
+    }
+
+    /**
+     * @return workflows completed per second, averaged over the run
+     */
+    public double getThroughput()
+    {
+        long elapsed = getElapsedMillis();
+
+        if(elapsed <= 0) {
+            return 0;
+        }
+
+        return (double)getCompletedCount() * 1000.0 / (double)elapsed;
+    }
+
+    /**
+     * Get computed "percent done" as an integer from 0 to 100.
+     *
+     * @return a number from 0 to 100
+     */
+    public int getProgress()
+    {
+        if(workflowIds.isEmpty() || (status == Migration.SUCCESS) ||
+           (status == Migration.ERROR)) {
+            return 100;
+        }
+
+        return (int)Math.round(
+            ((double)getCompletedCount()/(double)workflowIds.size())*100
+        );
+    }
+
+    /*****************************************************************
+     * MIGRATE
+     ****************************************************************/
+
+    /**
+     * Run every workflow and wait for them all to finish.
+     *
+     * Like Migration.run(), this never throws; a batch can only be
+     * run once, and running it again sets the status to ERROR and
+     * getError says why.  If the calling thread is interrupted, the
+     * workers are interrupted too and the status is set to ERROR.
+     */
+    public void run()
+    {
+        // Checked and set together, so two threads can't both start it
+        synchronized(results) {
+            if(status != Migration.READY) {
+                // A programmer error, as with Migration
+                LOG.error("Tried to BatchMigration.run() on a used batch");
+                error = new MigrateException(
+                            "This BatchMigration has already been run " +
+                            "and cannot be re-run.  Please instance a " +
+                            "new BatchMigration."
+                );
+                status = Migration.ERROR;
+                return;
+            }
+
+            status = Migration.RUNNING;
+        }
+
+        startTime = System.currentTimeMillis();
+
+        LOG.debug("Starting batch of {} workflows, {} at a time{}",
+                  workflowIds.size(), concurrency,
+                  BatchExecutors.isVirtual() ? " on virtual threads" : ""
+        );
+
+        // Threads come and go with workflows rather than being a fixed
+        // pool, so a slot can be freed up while its thread is stuck.
+        // The executor is unbounded; slots is what bounds it.
+        ExecutorService workers = BatchExecutors.newWorkerExecutor(
+                            "ahp-batch-" + batchCount.incrementAndGet() + "-");
+
+        slots = new Semaphore(concurrency);
+        remaining = new CountDownLatch(workflowIds.size());
+
+        if((maxSessions > 0) && (maxSessions < concurrency)) {
+            sessions = new Semaphore(maxSessions);
+        }
+
+        try {
+            for(final Long id : workflowIds) {
+                slots.acquire();
+
+                workers.execute(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            migrate(id);
+                        } finally {
+                            // Make sure the slot's freed no matter what
+                            if(!results.containsKey(id)) {
+                                record(new BatchResult(id, null,
+                                    Migration.ERROR,
+                                    new MigrateException("Worker died " +
+                                                         "unexpectedly"),
+                                    null, 0));
+                            }
+                        }
+                    }
+                });
+            }
+
+            workers.shutdown();
+
+            while(!remaining.await(1, TimeUnit.SECONDS)) {
+                if(LOG.isDebugEnabled()) {
+                    LOG.debug("Batch progress: {} of {} ({} failed)",
+                              getCompletedCount(), workflowIds.size(),
+                              getFailedCount()
+                    );
+                }
+            }
+
+            status = Migration.SUCCESS;
+        } catch(InterruptedException e) {
+            LOG.error("Batch interrupted; stopping workers");
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            error = new MigrateException("Batch interrupted", e);
+            status = Migration.ERROR;
+        } finally {
+            endTime = System.currentTimeMillis();
+
+            if(ownPool) {
+                pool.close();
+            }
+        }
+
+        LOG.debug("Batch finished: {} workflows, {} failed, {} per second",
+                  getCompletedCount(), getFailedCount(), getThroughput()
+        );
+    }
+
+    /**
+     * Make a new Migration object for a worker.  Override this if
+     * you need to construct your Migrations differently.
+     *
+     * @return a Migration object with a leased client
+     * @throws MigrateException on connection error
+     */
+    protected Migration newMigration()
+              throws MigrateException
+    {
+        return new Migration(pool.lease(connection));
+    }
+
+    /**
+     * Migrate a single workflow and record its result.  This is run
+     * on a worker thread.
+     *
+     * @param workflowId    The workflow to migrate
+     */
+    protected void migrate(final Long workflowId)
+    {
+        final long start = System.currentTimeMillis();
+        Migration m = null;
+        AbstractContext context = null;
+        BatchResult result;
+        Future<?> abandon = null;
+        AtomicBoolean session = new AtomicBoolean(false);
+
+        try {
+            context = contextFactory.newContext(workflowId);
+            acquireSession(session);
+            m = newMigration();
+            m.setContext(context);
+            m.setLoader(loader);
+            m.setWorkflowId(workflowId);
+
+            if(checkpoints != null) {
+                m.setCheckpointStore(checkpoints, true);
+            }
+
+            if(fingerprints != null) {
+                m.setFingerprintStore(fingerprints);
+            }
+
+            m.setMetricsListener(metrics);
+            m.setEventBus(events);
+            m.setTranslationCache(translations);
+            m.setTimeout(workflowTimeoutNanos, TimeUnit.NANOSECONDS);
+            m.setJobTimeout(jobTimeoutNanos, TimeUnit.NANOSECONDS);
+            m.setStepTimeout(stepTimeoutNanos, TimeUnit.NANOSECONDS);
+            m.setWatchdog(watchdog, true);
+
+            for(Map.Entry<RetryPolicy.Operation, RetryPolicy> r :
+                retries.entrySet()) {
+                m.setRetryPolicy(r.getKey(), r.getValue());
+            }
+
+            if(workflowTimeoutNanos > 0) {
+                abandon = watchAbandon(m, context, start, session);
+            }
+
+            m.run();
+
+            DetachedContext detached = null;
+
+            if(detachContexts) {
+                detached = detach(m);
+                context = null;
+            }
+
+            result = new BatchResult(workflowId, m.getWorkflowName(),
+                                     m.getStatus(), m.getError(),
+                                     m.getContext(), detached,
+                                     System.currentTimeMillis() - start,
+                                     m.isUnchanged()
+            );
+        } catch(MigrateException e) {
+            LOG.error("Could not start migration of workflow {}",
+                      workflowId, e
+            );
+
+            DetachedContext detached = null;
+
+            if(detachContexts && (context != null)) {
+                detached = new DetachedContext(workflowId, null,
+                                       context.getClass().getName(), null);
+                context = null;
+            }
+
+            result = new BatchResult(workflowId, null, Migration.ERROR, e,
+                                     context, detached,
+                                     System.currentTimeMillis() - start,
+                                     false
+            );
+        } finally {
+            if(abandon != null) {
+                abandon.cancel(false);
+            }
+
+            if(m != null) {
+                m.close();
+            }
+
+            releaseSession(session);
+        }
+
+        record(result);
+    }
+
+    /**
+     * Wait for an AHP session to be free, if sessions are limited.
+     *
+     * @param held      Set once we have one
+     * @throws MigrateException if interrupted while waiting
+     */
+    private void acquireSession(final AtomicBoolean held)
+            throws MigrateException
+    {
+        if(sessions == null) {
+            return;
+        }
+
+        try {
+            sessions.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrateException("Interrupted waiting for a session",
+                                       e);
+        }
+
+        held.set(true);
+    }
+
+    /**
+     * Give back an AHP session, if we're holding one.  Safe to call
+     * more than once.
+     *
+     * @param held      What acquireSession set
+     */
+    private void releaseSession(final AtomicBoolean held)
+    {
+        if(held.compareAndSet(true, false)) {
+            sessions.release();
+        }
+    }
+
+    /**
+     * Record a workflow's result and free its slot, unless it already
+     * has one; a workflow that was abandoned and then finished after
+     * all keeps the first.
+     *
+     * @param result    The result
+     */
+    protected void record(final BatchResult result)
+    {
+        if(results.putIfAbsent(result.getWorkflowId(), result) != null) {
+            return;
+        }
+
+        if(!result.isSuccess()) {
+            failedCount.incrementAndGet();
+        }
+
+        remaining.countDown();
+        slots.release();
+    }
+
+    /**
+     * Detach a finished migration's context.  If the context can't make
+     * its result, the failure is logged and the result is left out;
+     * the migration itself still counts as it finished.
+     *
+     * @param m     The finished migration
+     * @return its detached context, or null if it had no context
+     */
+    private DetachedContext detach(final Migration m)
+    {
+        AbstractContext context = m.getContext();
+
+        try {
+            return m.detach();
+        } catch(MigrateException e) {
+            LOG.warn("Could not detach the context of workflow {}",
+                     m.getWorkflowId(), e);
+            return new DetachedContext(m.getWorkflowId(),
+                                       m.getWorkflowName(),
+                                       context.getClass().getName(), null);
+        }
+    }
+
+    /**
+     * Have the watchdog abandon a migration if it's still going once
+     * its timeout and grace period are up.
+     *
+     * @param m         The migration
+     * @param context   Its context
+     * @param start     When it started, in milliseconds
+     * @param session   Its hold on an AHP session
+     * @return a future to cancel once the migration's done
+     */
+    private Future<?> watchAbandon(final Migration m,
+                                   final AbstractContext context,
+                                   final long start,
+                                   final AtomicBoolean session)
+    {
+        Watchdog dog = (watchdog != null) ? watchdog : Watchdog.getShared();
+
+        return dog.watch(workflowTimeoutNanos + abandonGraceNanos,
+                         TimeUnit.NANOSECONDS, new Runnable() {
+            public void run()
+            {
+                Long id = m.getWorkflowId();
+                String why = "Workflow " + id + " is stuck past its " +
+                             "timeout; abandoned";
+
+                LOG.error(why);
+                m.abandon(why);
+                releaseSession(session);
+
+                AbstractContext     kept = context;
+                DetachedContext     detached = null;
+
+                // The stuck thread still has the context, so it can't be
+                // detached; keep what we know without it.
+                if(detachContexts) {
+                    detached = new DetachedContext(id, m.getWorkflowName(),
+                                           context.getClass().getName(),
+                                           null);
+                    kept = null;
+                }
+
+                record(new BatchResult(id, m.getWorkflowName(),
+                                       Migration.ERROR,
+                                       new TimedOutException(why), kept,
+                                       detached,
+                                       System.currentTimeMillis() - start,
+                                       false));
+            }
+        });
+    }
+}
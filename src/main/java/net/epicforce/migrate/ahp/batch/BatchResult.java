@@ -0,0 +1,189 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * BatchResult.java
+ *
+ * The outcome of a single workflow migration within a batch.  This
+ * is just a read-only bag of what the Migration object knew about
+ * itself when it finished.
+ */
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.context.DetachedContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.TimedOutException;
+
+public class BatchResult
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Long              workflowId;
+    private final String            workflowName;
+    private final int               status;
+    private final MigrateException  error;
+    private final AbstractContext   context;
+    private final DetachedContext   detached;
+    private final long              elapsedMillis;
+    private final boolean           unchanged;
+
+    /**
+     * Constructor: everything is set up front.
+     *
+     * @param workflowId    The workflow ID migrated
+     * @param workflowName  The workflow name, or null if it never loaded
+     * @param status        The final Migration status constant
+     * @param error         The error, or null if there wasn't one
+     * @param context       The context the migration ended up with
+     * @param elapsedMillis How long the migration took, in milliseconds
+     */
+    public BatchResult(final Long workflowId, final String workflowName,
+                       int status, final MigrateException error,
+                       final AbstractContext context, long elapsedMillis)
+    {
+        this(workflowId, workflowName, status, error, context, elapsedMillis,
+             false);
+    }
+
+    /**
+     * Constructor: for incremental runs.
+     *
+     * @param workflowId    The workflow ID migrated
+     * @param workflowName  The workflow name, or null if it never loaded
+     * @param status        The final Migration status constant
+     * @param error         The error, or null if there wasn't one
+     * @param context       The context the migration ended up with
+     * @param elapsedMillis How long the migration took, in milliseconds
+     * @param unchanged     True if the workflow was skipped because it
+     *                      hadn't changed since the last run
+     */
+    public BatchResult(final Long workflowId, final String workflowName,
+                       int status, final MigrateException error,
+                       final AbstractContext context, long elapsedMillis,
+                       boolean unchanged)
+    {
+        this(workflowId, workflowName, status, error, context, null,
+             elapsedMillis, unchanged);
+    }
+
+    /**
+     * Constructor: for batches that detach their contexts.
+     *
+     * @param workflowId    The workflow ID migrated
+     * @param workflowName  The workflow name, or null if it never loaded
+     * @param status        The final Migration status constant
+     * @param error         The error, or null if there wasn't one
+     * @param context       The context the migration ended up with, or
+     *                      null if it was detached
+     * @param detached      The detached context, or null if it wasn't
+     * @param elapsedMillis How long the migration took, in milliseconds
+     * @param unchanged     True if the workflow was skipped because it
+     *                      hadn't changed since the last run
+     */
+    public BatchResult(final Long workflowId, final String workflowName,
+                       int status, final MigrateException error,
+                       final AbstractContext context,
+                       final DetachedContext detached, long elapsedMillis,
+                       boolean unchanged)
+    {
+        this.workflowId = workflowId;
+        this.workflowName = workflowName;
+        this.status = status;
+        this.error = error;
+        this.context = context;
+        this.detached = detached;
+        this.elapsedMillis = elapsedMillis;
+        this.unchanged = unchanged;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the workflow ID that was migrated
+     */
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return the workflow name, or null if it was never loaded
+     */
+    public String getWorkflowName()
+    {
+        return workflowName;
+    }
+
+    /**
+     * @return the final status (see Migration status constants)
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return true if the workflow migrated successfully
+     */
+    public boolean isSuccess()
+    {
+        return status == Migration.SUCCESS;
+    }
+
+    /**
+     * @return true if the workflow was skipped as unchanged by an
+     *         incremental run
+     */
+    public boolean isUnchanged()
+    {
+        return unchanged;
+    }
+
+    /**
+     * @return true if the workflow failed because it ran over one of
+     *         its time budgets, or was abandoned for being stuck
+     */
+    public boolean isTimedOut()
+    {
+        return error instanceof TimedOutException;
+    }
+
+    /**
+     * @return the error, or null if there wasn't one
+     */
+    public MigrateException getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return the context the migration finished with.  May be null if
+     *         we never got far enough to make one, or if it was
+     *         detached.
+     */
+    public AbstractContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return what was kept of the context if the batch detached it,
+     *         or null if it didn't
+     */
+    public DetachedContext getDetachedContext()
+    {
+        return detached;
+    }
+
+    /**
+     * @return how long this workflow took to migrate, in milliseconds
+     */
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+}
@@ -0,0 +1,30 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * ContextFactory.java
+ *
+ * A batch migration runs many workflows, and each of them needs its
+ * own fresh context.  Since the context is defined by whoever is
+ * implementing a migration, the batch needs a way to make new ones.
+ *
+ * This is that way.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface ContextFactory
+{
+    /**
+     * Create a new, empty context for the given workflow.
+     *
+     * This will be called from the batch's worker threads, so it
+     * must be threadsafe.
+     *
+     * @param workflowId    The workflow ID that is about to be migrated
+     * @return a new context; may not be null
+     * @throws MigrateException if a context cannot be made
+     */
+    public AbstractContext newContext(final Long workflowId)
+           throws MigrateException;
+}
@@ -0,0 +1,341 @@
+package net.epicforce.migrate.ahp.cache;
+
+/*
+ * JobTranslationCache.java
+ *
+ * AHP workflows share library jobs: the same JobConfig, with the same
+ * steps, turns up in hundreds of workflows, and a batch would migrate
+ * it from scratch in every one.  This remembers what a job turned into
+ * the first time, so later workflows can replay that into their
+ * context rather than running every step class again.
+ *
+ * Entries are keyed by job config ID and a version: a digest of the
+ * job config and its steps.  Change either and the version changes,
+ * so the stale entry is never used, and ages out.
+ *
+ * What's cached is whatever the context's captureJob() returns, kept
+ * serialized.  That way each replay gets a copy of its own no matter
+ * what thread it's on, and the cache's size is known in bytes.  When
+ * there are too many entries or bytes, the least recently used go.
+ * Each entry remembers the class loader of what was put, and is read
+ * back through it (see LoaderObjectInputStream), so output made of a
+ * migrator's own classes replays too; that keeps those loaders
+ * reachable for as long as the entries are cached.
+ *
+ * This is threadsafe; share one across a batch.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.epicforce.migrate.ahp.context.LoaderObjectInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JobTranslationCache
+{
+    private final static Logger LOG =
+                            LoggerFactory.getLogger(JobTranslationCache.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    public static final int     DEFAULT_MAX_ENTRIES = 1000;
+    public static final long    DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Limits; the cache is trimmed to both
+     */
+    private final int                   maxEntries;
+    private final long                  maxBytes;
+
+    /*
+     * Serialized job output, least recently used first
+     */
+    private final LinkedHashMap<Key, Entry>  entries =
+                                new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long                        bytes = 0;
+
+    /*
+     * Counters, for the curious
+     */
+    private long                        hitCount = 0;
+    private long                        missCount = 0;
+    private long                        evictionCount = 0;
+
+    /**
+     * Constructor: the defaults; 1000 jobs or 64MB, whichever comes
+     * first.
+     */
+    public JobTranslationCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries    The most jobs to keep; at least 1
+     * @param maxBytes      The most serialized bytes to keep.  A job
+     *                      bigger than this is never cached.
+     */
+    public JobTranslationCache(int maxEntries, long maxBytes)
+    {
+        if((maxEntries < 1) || (maxBytes < 1)) {
+            throw new IllegalArgumentException(
+                "Cache limits must be positive"
+            );
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return how many jobs are cached
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return how many serialized bytes are cached
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return how many lookups found something
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return how many lookups didn't
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return how many jobs have been pushed out to make room
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /*****************************************************************
+     * CACHING
+     ****************************************************************/
+
+    /**
+     * Look up a job's output.
+     *
+     * @param jobConfigId   The job's config ID
+     * @param version       Its version; see Fingerprinter.digestJobConfig
+     * @return a fresh copy of what was cached, or null if there's
+     *         nothing, or it won't deserialize (which counts as a miss,
+     *         and drops the entry)
+     */
+    public Serializable get(final Long jobConfigId, final byte[] version)
+    {
+        Entry e;
+
+        synchronized(this) {
+            e = entries.get(new Key(jobConfigId, version));
+
+            if(e == null) {
+                missCount++;
+                return null;
+            }
+        }
+
+        Serializable ret;
+
+        try(ObjectInputStream in = new LoaderObjectInputStream(
+                                        new ByteArrayInputStream(e.data),
+                                        e.loader)) {
+            ret = (Serializable)in.readObject();
+        } catch(IOException | ClassNotFoundException ex) {
+            LOG.warn("Could not read cached job config {}; dropping it",
+                     jobConfigId, ex);
+            remove(jobConfigId, version);
+
+            synchronized(this) {
+                missCount++;
+            }
+
+            return null;
+        }
+
+        synchronized(this) {
+            hitCount++;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Remember a job's output.  If it won't serialize, or is too big to
+     * ever fit, it isn't cached.
+     *
+     * @param jobConfigId   The job's config ID
+     * @param version       Its version; see Fingerprinter.digestJobConfig
+     * @param output        What the context captured for the job
+     */
+    public void put(final Long jobConfigId, final byte[] version,
+                    final Serializable output)
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+
+        try(ObjectOutputStream out = new ObjectOutputStream(buf)) {
+            out.writeObject(output);
+        } catch(IOException e) {
+            LOG.warn("Could not cache job config {}", jobConfigId, e);
+            return;
+        }
+
+        byte[] data = buf.toByteArray();
+
+        if(data.length > maxBytes) {
+            LOG.debug("Job config {} is too big to cache ({} bytes)",
+                      jobConfigId, data.length);
+            return;
+        }
+
+        Entry e = new Entry(data, LoaderObjectInputStream.loaderFor(output));
+
+        synchronized(this) {
+            Entry old = entries.put(new Key(jobConfigId, version), e);
+
+            if(old != null) {
+                bytes -= old.data.length;
+            }
+
+            bytes += data.length;
+            trim();
+        }
+    }
+
+    /**
+     * Forget a job.
+     *
+     * @param jobConfigId   The job's config ID
+     * @param version       Its version
+     */
+    public synchronized void remove(final Long jobConfigId,
+                                    final byte[] version)
+    {
+        Entry old = entries.remove(new Key(jobConfigId, version));
+
+        if(old != null) {
+            bytes -= old.data.length;
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Push out least recently used entries until we're within our
+     * limits.  Call with the lock held.
+     */
+    private void trim()
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+
+        while(((entries.size() > maxEntries) || (bytes > maxBytes)) &&
+              it.hasNext()) {
+            bytes -= it.next().getValue().data.length;
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /*
+     * Serialized output, and the loader to read it back with
+     */
+    private static final class Entry
+    {
+        final byte[]        data;
+        final ClassLoader   loader;
+
+        Entry(final byte[] data, final ClassLoader loader)
+        {
+            this.data = data;
+            this.loader = loader;
+        }
+    }
+
+    /*
+     * A job config ID and version
+     */
+    private static final class Key
+    {
+        private final Long      jobConfigId;
+        private final byte[]    version;
+        private final int       hash;
+
+        Key(final Long jobConfigId, final byte[] version)
+        {
+            this.jobConfigId = jobConfigId;
+            this.version = version;
+            this.hash = (31 * jobConfigId.hashCode()) +
+                        Arrays.hashCode(version);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key)o;
+
+            return jobConfigId.equals(k.jobConfigId) &&
+                   Arrays.equals(version, k.version);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.epicforce.migrate.ahp.checkpoint;
+
+/*
+ * Checkpoint.java
+ *
+ * What a CheckpointStore knows about an earlier, unfinished run of a
+ * workflow: which jobs and steps finished, and the last saved state of
+ * the context.  Jobs and steps are identified by their AHP config IDs,
+ * so a checkpoint still lines up if the job graph is walked in a
+ * different order.
+ */
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class Checkpoint
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Long                      workflowId;
+    private final Set<Long>                 jobs = new HashSet<Long>();
+    private final Map<Long, Set<Long>>      steps =
+                                            new HashMap<Long, Set<Long>>();
+    private Serializable                    state = null;
+
+    /**
+     * Constructor: an empty checkpoint
+     *
+     * @param workflowId    The workflow it's for
+     */
+    public Checkpoint(final Long workflowId)
+    {
+        this.workflowId = workflowId;
+    }
+
+    /*****************************************************************
+     * BUILDING
+     *
+     * Used by stores while reading their checkpoints back in.
+     ****************************************************************/
+
+    /**
+     * Record a finished job.
+     *
+     * @param jobId     The job's WorkflowDefinitionJobConfig ID
+     * @param state     Context state after it, or null if unchanged
+     */
+    public void addJob(final Long jobId, final Serializable state)
+    {
+        jobs.add(jobId);
+
+        if(state != null) {
+            this.state = state;
+        }
+    }
+
+    /**
+     * Record a finished step.
+     *
+     * @param jobId     The job's WorkflowDefinitionJobConfig ID
+     * @param stepId    The step's StepConfig ID
+     * @param state     Context state after it, or null if unchanged
+     */
+    public void addStep(final Long jobId, final Long stepId,
+                        final Serializable state)
+    {
+        Set<Long> done = steps.get(jobId);
+
+        if(done == null) {
+            done = new HashSet<Long>();
+            steps.put(jobId, done);
+        }
+
+        done.add(stepId);
+
+        if(state != null) {
+            this.state = state;
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return true if nothing finished last time
+     */
+    public boolean isEmpty()
+    {
+        return jobs.isEmpty() && steps.isEmpty();
+    }
+
+    /**
+     * @param jobId     A job's WorkflowDefinitionJobConfig ID
+     * @return true if the whole job finished
+     */
+    public boolean isJobDone(final Long jobId)
+    {
+        return jobs.contains(jobId);
+    }
+
+    /**
+     * @param jobId     A job's WorkflowDefinitionJobConfig ID
+     * @return true if any of the job's steps finished
+     */
+    public boolean isJobStarted(final Long jobId)
+    {
+        return jobs.contains(jobId) || steps.containsKey(jobId);
+    }
+
+    /**
+     * @param jobId     A job's WorkflowDefinitionJobConfig ID
+     * @param stepId    A step's StepConfig ID
+     * @return true if the step finished
+     */
+    public boolean isStepDone(final Long jobId, final Long stepId)
+    {
+        Set<Long> done = steps.get(jobId);
+
+        return (done != null) && done.contains(stepId);
+    }
+
+    /**
+     * @return the context state saved with the last finished job or
+     *         step, or null if there isn't any.
+     */
+    public Serializable getState()
+    {
+        return state;
+    }
+}
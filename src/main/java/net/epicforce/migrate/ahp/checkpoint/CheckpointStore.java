@@ -0,0 +1,68 @@
+package net.epicforce.migrate.ahp.checkpoint;
+
+/*
+ * CheckpointStore.java
+ *
+ * Somewhere durable for a Migration to record its progress, so a run
+ * that fails halfway can be resumed by a new Migration without redoing
+ * (and re-fetching) the jobs and steps that already finished.
+ *
+ * One store can be shared by any number of Migrations, as long as
+ * each workflow is only migrated by one of them at a time.
+ */
+
+import java.io.Serializable;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface CheckpointStore
+{
+    /**
+     * Read back what's been recorded for a workflow.
+     *
+     * @param workflowId    The workflow
+     * @return its checkpoint; never null, but may be empty
+     * @throws MigrateException on error
+     */
+    public Checkpoint load(final Long workflowId)
+           throws MigrateException;
+
+    /**
+     * Record that a job finished.  This must be durable by the time it
+     * returns.
+     *
+     * @param workflowId    The workflow
+     * @param jobId         The job's WorkflowDefinitionJobConfig ID
+     * @param state         The context's state, or null if it hasn't
+     *                      changed since the last record
+     * @throws MigrateException on error
+     */
+    public void jobDone(final Long workflowId, final Long jobId,
+                        final Serializable state)
+           throws MigrateException;
+
+    /**
+     * Record that a step finished.  This must be durable by the time it
+     * returns.
+     *
+     * @param workflowId    The workflow
+     * @param jobId         The job's WorkflowDefinitionJobConfig ID
+     * @param stepId        The step's StepConfig ID
+     * @param state         The context's state, or null if it hasn't
+     *                      changed since the last record
+     * @throws MigrateException on error
+     */
+    public void stepDone(final Long workflowId, final Long jobId,
+                         final Long stepId, final Serializable state)
+           throws MigrateException;
+
+    /**
+     * Forget everything about a workflow; done when it finishes, or
+     * when starting it over from scratch.
+     *
+     * @param workflowId    The workflow
+     * @throws MigrateException on error
+     */
+    public void clear(final Long workflowId)
+           throws MigrateException;
+}
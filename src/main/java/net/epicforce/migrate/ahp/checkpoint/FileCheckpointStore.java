@@ -0,0 +1,404 @@
+package net.epicforce.migrate.ahp.checkpoint;
+
+/*
+ * FileCheckpointStore.java
+ *
+ * A CheckpointStore that keeps one append-only log file per workflow
+ * in a directory.  Every record is forced to disk before jobDone() or
+ * stepDone() return, so a crash (or a kill -9) loses nothing that was
+ * reported as done.
+ *
+ * Each log is a header followed by records:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   record: int length, long CRC32 of payload, payload
+ *   payload: byte type, long jobId, long stepId,
+ *            int stateLength (-1 for none), serialized state
+ *
+ * A record that was only partly written when we died fails its length
+ * or CRC check; reading stops there and the log is cut back to the
+ * last good record, so later appends carry on cleanly.
+ *
+ * The log grows by one state per step.  It's deleted when the workflow
+ * finishes, so this is only a problem for contexts with very large
+ * states on very long workflows.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileCheckpointStore implements CheckpointStore, Closeable
+{
+    private final static Logger LOG =
+                        LoggerFactory.getLogger(FileCheckpointStore.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    private static final int    MAGIC = 0x4148504b;     // "AHPK"
+    private static final int    VERSION = 1;
+
+    private static final byte   TYPE_JOB = 1;
+    private static final byte   TYPE_STEP = 2;
+
+    /*
+     * IDs can be null for objects that were never saved in AHP
+     */
+    private static final long   NO_ID = Long.MIN_VALUE;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final File                          directory;
+
+    /*
+     * Open logs, by workflow ID.  Each is locked while being written.
+     */
+    private final ConcurrentMap<Long, FileChannel>  logs =
+                            new ConcurrentHashMap<Long, FileChannel>();
+
+    /**
+     * Constructor
+     *
+     * @param directory     Where to keep the logs; it's created if
+     *                      need be.
+     * @throws MigrateException if the directory can't be made
+     */
+    public FileCheckpointStore(final File directory)
+           throws MigrateException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new MigrateException("Could not create checkpoint " +
+                                       "directory " + directory.getPath());
+        }
+
+        this.directory = directory;
+    }
+
+    /*****************************************************************
+     * CheckpointStore
+     ****************************************************************/
+
+    public Checkpoint load(final Long workflowId)
+           throws MigrateException
+    {
+        Checkpoint ret = new Checkpoint(workflowId);
+        File file = fileFor(workflowId);
+
+        if(!file.exists()) {
+            return ret;
+        }
+
+        FileChannel log = open(workflowId);
+
+        synchronized(log) {
+            try {
+                long good = read(log, ret);
+
+                if(good < log.size()) {
+                    LOG.warn("Checkpoint for workflow {} has a torn record " +
+                             "at {}; dropping it", workflowId, good);
+                    log.truncate(good);
+                    log.force(true);
+                }
+
+                log.position(log.size());
+            } catch(IOException e) {
+                throw new MigrateException("Could not read checkpoint for " +
+                                           "workflow " + workflowId, e);
+            }
+        }
+
+        return ret;
+    }
+
+    public void jobDone(final Long workflowId, final Long jobId,
+                        final Serializable state)
+           throws MigrateException
+    {
+        append(workflowId, TYPE_JOB, jobId, null, state);
+    }
+
+    public void stepDone(final Long workflowId, final Long jobId,
+                         final Long stepId, final Serializable state)
+           throws MigrateException
+    {
+        append(workflowId, TYPE_STEP, jobId, stepId, state);
+    }
+
+    public void clear(final Long workflowId)
+           throws MigrateException
+    {
+        FileChannel log = logs.remove(workflowId);
+
+        if(log != null) {
+            try {
+                log.close();
+            } catch(IOException e) { }
+        }
+
+        File file = fileFor(workflowId);
+
+        if(file.exists() && !file.delete()) {
+            throw new MigrateException("Could not delete checkpoint " +
+                                       file.getPath());
+        }
+    }
+
+    /**
+     * Close any open logs.  They are left on disk.
+     */
+    public void close()
+    {
+        for(Long id : logs.keySet()) {
+            FileChannel log = logs.remove(id);
+
+            if(log != null) {
+                try {
+                    log.close();
+                } catch(IOException e) { }
+            }
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * @param workflowId    A workflow
+     * @return its log file
+     */
+    private File fileFor(final Long workflowId)
+    {
+        return new File(directory, "workflow-" + workflowId + ".ckpt");
+    }
+
+    /**
+     * Get a workflow's open log, opening (and starting) it if need be.
+     *
+     * @param workflowId    The workflow
+     * @return its log, positioned at the end
+     * @throws MigrateException on error
+     */
+    private FileChannel open(final Long workflowId)
+            throws MigrateException
+    {
+        FileChannel ret = logs.get(workflowId);
+
+        if(ret != null) {
+            return ret;
+        }
+
+        try {
+            ret = FileChannel.open(fileFor(workflowId).toPath(),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+
+            FileChannel existing = logs.putIfAbsent(workflowId, ret);
+
+            if(existing != null) {
+                ret.close();
+                return existing;
+            }
+
+            synchronized(ret) {
+                if(ret.size() == 0) {
+                    ByteBuffer head = ByteBuffer.allocate(8);
+
+                    head.putInt(MAGIC).putInt(VERSION).flip();
+                    writeFully(ret, head);
+                    ret.force(true);
+                }
+
+                ret.position(ret.size());
+            }
+
+            return ret;
+        } catch(IOException e) {
+            throw new MigrateException("Could not open checkpoint for " +
+                                       "workflow " + workflowId, e);
+        }
+    }
+
+    /**
+     * Append a record and force it to disk.
+     *
+     * @param workflowId    The workflow
+     * @param type          TYPE_JOB or TYPE_STEP
+     * @param jobId         The job
+     * @param stepId        The step, for step records
+     * @param state         Context state, or null
+     * @throws MigrateException on error
+     */
+    private void append(final Long workflowId, byte type, final Long jobId,
+                        final Long stepId, final Serializable state)
+            throws MigrateException
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(type);
+            out.writeLong((jobId == null) ? NO_ID : jobId);
+            out.writeLong((stepId == null) ? NO_ID : stepId);
+
+            if(state == null) {
+                out.writeInt(-1);
+            } else {
+                ByteArrayOutputStream sbytes = new ByteArrayOutputStream(256);
+
+                try(ObjectOutputStream oout = new ObjectOutputStream(sbytes)) {
+                    oout.writeObject(state);
+                }
+
+                out.writeInt(sbytes.size());
+                sbytes.writeTo(out);
+            }
+
+            out.flush();
+
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            ByteBuffer rec = ByteBuffer.allocate(12 + payload.length);
+            rec.putInt(payload.length).putLong(crc.getValue())
+               .put(payload).flip();
+
+            FileChannel log = open(workflowId);
+
+            synchronized(log) {
+                writeFully(log, rec);
+                log.force(false);
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not write checkpoint for " +
+                                       "workflow " + workflowId, e);
+        }
+    }
+
+    /**
+     * Read a log into a checkpoint.
+     *
+     * @param log   The log
+     * @param into  Where to put what we find
+     * @return the offset just past the last good record
+     * @throws IOException on read error, or if it's not a checkpoint log
+     */
+    private static long read(final FileChannel log, final Checkpoint into)
+            throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(
+                                    Channels.newInputStream(
+                                        log.position(0))));
+
+        if((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+            throw new IOException("Not a checkpoint log we understand");
+        }
+
+        long good = 8;
+
+        while(true) {
+            byte[] payload;
+            long crcValue;
+
+            try {
+                int len = in.readInt();
+
+                if((len < 21) || (good + 12 + len > log.size())) {
+                    return good;
+                }
+
+                crcValue = in.readLong();
+                payload = new byte[len];
+                in.readFully(payload);
+            } catch(EOFException e) {
+                return good;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            if(crc.getValue() != crcValue) {
+                return good;
+            }
+
+            DataInputStream rec = new DataInputStream(
+                                    new ByteArrayInputStream(payload));
+            byte type = rec.readByte();
+            Long jobId = toId(rec.readLong());
+            Long stepId = toId(rec.readLong());
+            Serializable state = null;
+            int stateLen = rec.readInt();
+
+            if(stateLen >= 0) {
+                try(ObjectInputStream oin = new ObjectInputStream(rec)) {
+                    state = (Serializable)oin.readObject();
+                } catch(ClassNotFoundException e) {
+                    throw new IOException("Checkpoint needs a class we " +
+                                          "don't have: " + e.getMessage(), e);
+                }
+            }
+
+            if(type == TYPE_JOB) {
+                into.addJob(jobId, state);
+            } else {
+                into.addStep(jobId, stepId, state);
+            }
+
+            good += 12 + payload.length;
+        }
+    }
+
+    /**
+     * @param id    An ID from a log
+     * @return it as a Long, or null for NO_ID
+     */
+    private static Long toId(long id)
+    {
+        return (id == NO_ID) ? null : id;
+    }
+
+    /**
+     * Write all of a buffer.
+     *
+     * @param log   Where to write
+     * @param buf   What to write
+     * @throws IOException on error
+     */
+    private static void writeFully(final FileChannel log, final ByteBuffer buf)
+            throws IOException
+    {
+        while(buf.hasRemaining()) {
+            log.write(buf);
+        }
+    }
+}
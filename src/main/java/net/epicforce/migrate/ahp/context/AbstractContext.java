@@ -1,10 +1,19 @@
 package net.epicforce.migrate.ahp.context;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
 import com.urbancode.anthill3.domain.step.StepConfig;
 import com.urbancode.anthill3.domain.workflow.Workflow;
 import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
 import com.urbancode.anthill3.main.client.AnthillClient;
 
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
 
 /*
  * AbstractContext.java
@@ -34,6 +43,7 @@ public abstract class AbstractContext
     protected StepConfig                    currentStep = null;
     protected AnthillClient                 client = null;
     protected JobLayout                     layout = null;
+    protected JobGraph                      graph = null;
 
     /*
      * Accessors for our workflow / current job / current step.
@@ -88,8 +98,255 @@ public abstract class AbstractContext
         this.layout = layout;
     }
 
+    public JobGraph getGraph()
+    {
+        return graph;
+    }
+
+    public void setGraph(JobGraph graph)
+    {
+        this.graph = graph;
+    }
+
+    /*****************************************************************
+     * PARALLEL SUPPORT
+     *
+     * If the Migration is set up to run jobs in parallel, each job on
+     * a JobGraph level gets its own copy ("fork") of the context to
+     * work on, and those copies are merged back into this one once
+     * every job on the level is done.
+     *
+     * By default contexts can't be forked, and the Migration will run
+     * everything one job at a time like it always has.
+     ****************************************************************/
+
+    /**
+     * Make a copy of this context for one job of a JobGraph level.
+     * The fork should start with whatever state a job would see if it
+     * were run next in sequence.  The workflow, client and layout are
+     * set on the fork for you, as is the graph; when the job gets an
+     * AHP session of its own, they're replaced by that session's
+     * copies before it runs.
+     *
+     * This is called on the migration thread.  The fork will then be
+     * used on a different thread, so it must not share anything
+     * mutable with this context.
+     *
+     * @return a fork of this context, or null if this context can't
+     *         be forked (the default)
+     * @throws MigrateException on any error
+     */
+    public AbstractContext fork()
+           throws MigrateException
+    {
+        return null;
+    }
+
+    /**
+     * Merge a fork made by fork() back into this context.  This is
+     * called on the migration thread, once per job, in job index
+     * order, after every job on the level has finished -- so the
+     * result is the same no matter what order the jobs actually ran in.
+     *
+     * @param fork  The fork to merge
+     * @throws MigrateException on any error
+     */
+    public void merge(final AbstractContext fork)
+           throws MigrateException
+    {
+    }
+
+    /*****************************************************************
+     * CHECKPOINT SUPPORT
+     *
+     * If the Migration has a CheckpointStore, the context's state is
+     * saved after every step and job so a failed run can be resumed
+     * where it left off.  The AHP objects above are not part of that
+     * state; they're set again on resume.
+     *
+     * By default contexts can't be checkpointed, and no checkpoints
+     * are written for them.
+     ****************************************************************/
+
+    /**
+     * Capture whatever this context has accumulated so far.  The
+     * result is serialized right away, so it may share objects with
+     * the context.
+     *
+     * @return the context's state, or null if this context can't be
+     *         checkpointed (the default)
+     * @throws MigrateException on any error
+     */
+    public Serializable checkpoint()
+           throws MigrateException
+    {
+        return null;
+    }
+
+    /**
+     * Put this context back into a state returned by checkpoint().
+     * This is called on a fresh context, before anything is migrated
+     * into it.
+     *
+     * @param state     A state from checkpoint(), or null if the
+     *                  previous run didn't get far enough to save one
+     * @throws MigrateException on any error
+     */
+    public void restore(final Serializable state)
+           throws MigrateException
+    {
+    }
+
     /*****************************************************************
-     * ABSTRACT METHODS
+     * JOB CACHE SUPPORT
+     *
+     * If the Migration has a JobTranslationCache, a job whose config
+     * has already been migrated -- in this workflow or any other using
+     * the same cache -- is replayed from what was captured the first
+     * time, instead of running its job class and steps again.
+     *
+     * By default contexts can't capture jobs, and nothing is cached
+     * for them.
      ****************************************************************/
 
+    /**
+     * Capture what the current job added to this context: everything
+     * its job class and steps did, and nothing else.  This is called
+     * once the job has finished, with currentJob still set.
+     *
+     * The result is serialized right away, so it may share objects with
+     * the context.  It must not hold any AHP objects.
+     *
+     * @return the job's output, or null if it can't be captured (the
+     *         default)
+     * @throws MigrateException on any error
+     */
+    public Serializable captureJob()
+           throws MigrateException
+    {
+        return null;
+    }
+
+    /**
+     * Add a job's captured output to this context, as though the job
+     * had been run.  This is called in place of running the job, with
+     * currentJob set to it; the output may have been captured from the
+     * same job config in a different workflow, so anything that depends
+     * on the workflow needs doing here.
+     *
+     * @param output    A fresh copy of what captureJob() returned
+     * @throws MigrateException on any error
+     */
+    public void replayJob(final Serializable output)
+           throws MigrateException
+    {
+        throw new MigrateException(getClass().getName() +
+                                   " can't replay jobs");
+    }
+
+    /*****************************************************************
+     * DETACH SUPPORT
+     *
+     * Once a migration is over, the AHP objects above are dead weight:
+     * a workflow drags its whole definition, jobs and steps along with
+     * it.  detach() drops them and hands back just the result, so a
+     * batch that keeps thousands of finished contexts doesn't keep
+     * thousands of AHP object graphs.
+     ****************************************************************/
+
+    /**
+     * Drop every AHP reference this context holds and return what's
+     * left worth keeping.  The context can't be used for a migration
+     * afterwards.
+     *
+     * The result is copied by serializing it, so nothing the context
+     * (or anyone else) does to it afterwards shows up in the copy.
+     *
+     * @return a compact, immutable copy of the result
+     * @throws MigrateException if the result couldn't be made or
+     *         copied; the AHP references are dropped either way
+     */
+    public DetachedContext detach()
+           throws MigrateException
+    {
+        Long    workflowId = null;
+        String  workflowName = null;
+
+        if(workflow != null) {
+            workflowId = workflow.getId();
+            workflowName = workflow.getName();
+        }
+
+        try {
+            return new DetachedContext(workflowId, workflowName,
+                                       getClass().getName(),
+                                       copy(result()));
+        } finally {
+            workflow = null;
+            currentJob = null;
+            currentStep = null;
+            client = null;
+            layout = null;
+            graph = null;
+        }
+    }
+
+    /**
+     * Make the result kept by detach().  It must not hold any AHP
+     * objects.
+     *
+     * By default this is whatever checkpoint() returns, since that is
+     * already the context's state without the AHP objects.  It may
+     * share objects with the context; detach() copies it.  Contexts
+     * whose checkpoints are bigger than their results should override
+     * this.
+     *
+     * @return the result, or null to keep none
+     * @throws MigrateException on any error
+     */
+    protected Serializable result()
+              throws MigrateException
+    {
+        return checkpoint();
+    }
+
+    /**
+     * Deep copy a result by serializing it and reading it back.
+     * Classes are looked up from the result's own class loader first
+     * (see LoaderObjectInputStream), so results made of a migrator's
+     * own classes copy too.
+     *
+     * @param result    The result, or null
+     * @return the copy, or null
+     * @throws MigrateException if it won't serialize
+     */
+    private static Serializable copy(final Serializable result)
+            throws MigrateException
+    {
+        if(result == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+            out.writeObject(result);
+            out.close();
+
+            ObjectInputStream in = new LoaderObjectInputStream(
+                            new ByteArrayInputStream(bytes.toByteArray()),
+                            LoaderObjectInputStream.loaderFor(result));
+
+            try {
+                return (Serializable)in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not copy context result: ", e);
+        } catch(ClassNotFoundException e) {
+            throw new MigrateException("Could not copy context result: ", e);
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package net.epicforce.migrate.ahp.context;
+
+/*
+ * DetachedContext.java
+ *
+ * What's left of a context once its migration is over and it has been
+ * detach()'d: which workflow it was, what kind of context it was, and
+ * the result the context chose to keep.  There are no AHP objects in
+ * here, so holding on to thousands of these costs about as much as the
+ * results themselves.
+ *
+ * This is immutable and Serializable, so it can be handed to other
+ * threads or written out as it is.  AbstractContext.detach() makes
+ * sure of that by handing over a serialized copy of the result;
+ * anyone constructing one directly must not change the result after.
+ */
+
+import java.io.Serializable;
+
+public final class DetachedContext implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Long          workflowId;
+    private final String        workflowName;
+    private final String        contextClass;
+    private final Serializable  result;
+
+    /**
+     * Constructor
+     *
+     * @param workflowId    The workflow the context was for
+     * @param workflowName  Its name, or null if it never loaded
+     * @param contextClass  Class name of the context that was detached
+     * @param result        What the context kept as its result; may be
+     *                      null.  This must not be changed afterwards.
+     */
+    public DetachedContext(final Long workflowId, final String workflowName,
+                           final String contextClass,
+                           final Serializable result)
+    {
+        this.workflowId = workflowId;
+        this.workflowName = workflowName;
+        this.contextClass = contextClass;
+        this.result = result;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the workflow ID the context was for
+     */
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return the workflow name, or null if it was never loaded
+     */
+    public String getWorkflowName()
+    {
+        return workflowName;
+    }
+
+    /**
+     * @return the class name of the context this came from
+     */
+    public String getContextClass()
+    {
+        return contextClass;
+    }
+
+    /**
+     * @return the context's result, or null if it didn't keep one
+     */
+    public Serializable getResult()
+    {
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DetachedContext[workflow " + workflowId + " (" +
+               workflowName + "), " + contextClass + "]";
+    }
+}
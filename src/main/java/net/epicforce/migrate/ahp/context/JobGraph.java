@@ -0,0 +1,529 @@
+package net.epicforce.migrate.ahp.context;
+
+/*
+ * JobGraph.java
+ *
+ * The jobs of a workflow and the dependencies between them, as a
+ * directed acyclic graph.  This replaces JobLayout, which tried to
+ * squash AHP's graph into stacks and never quite got it right.
+ *
+ * Jobs are numbered 0 to size()-1 and everything else is plain int
+ * arrays indexed by those numbers, so it stays small and cheap to walk
+ * even for workflows with hundreds of jobs.  When it's built we work
+ * out:
+ *
+ *   - each job's parents, children and in-degree;
+ *   - a topological order;
+ *   - each job's level: the length of the longest chain of jobs
+ *     before it.  Jobs on the same level never depend on each other,
+ *     so a level can be run in parallel once the level before it is
+ *     done;
+ *   - the critical path: the longest chain of jobs through the graph,
+ *     which is the least amount of sequential work the workflow needs.
+ *
+ * This is immutable once built, so it can be shared between threads.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinition;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+import com.urbancode.commons.graph.Arc;
+import com.urbancode.commons.graph.TableDisplayableGraph;
+import com.urbancode.commons.graph.Vertex;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JobGraph
+{
+    private final static Logger LOG = LoggerFactory.getLogger(JobGraph.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * The jobs, by index
+     */
+    private final WorkflowDefinitionJobConfig[] jobs;
+
+    /*
+     * Adjacency in compressed form: the children of job i are
+     * children[childStart[i]] to children[childStart[i+1]-1], and
+     * likewise for parents.
+     */
+    private final int[]     childStart;
+    private final int[]     children;
+    private final int[]     parentStart;
+    private final int[]     parents;
+
+    /*
+     * Topological order, and each job's level.  Jobs are grouped by
+     * level in the order: level l is order[levelStart[l]] to
+     * order[levelStart[l+1]-1].
+     */
+    private final int[]     order;
+    private final int[]     level;
+    private final int[]     levelStart;
+
+    /*
+     * Job indexes along the critical path, first to last
+     */
+    private final int[]     criticalPath;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Build a graph from an AHP workflow definition.
+     *
+     * @param def   The definition; may be null, which gives an empty
+     *              graph.
+     */
+    public JobGraph(final WorkflowDefinition def)
+    {
+        this(extract(def));
+    }
+
+    /**
+     * Build a graph from jobs and edges.  This is for graphs that
+     * didn't come straight from AHP, such as snapshots.
+     *
+     * @param jobs  The jobs
+     * @param from  Edge sources, as indexes into jobs
+     * @param to    Edge targets, as indexes into jobs; to[i] depends
+     *              on from[i].
+     * @throws IllegalArgumentException if the edges are bad or make
+     *         a cycle.
+     */
+    public JobGraph(final WorkflowDefinitionJobConfig[] jobs,
+                    final int[] from, final int[] to)
+    {
+        this(new Edges(jobs, from, to));
+    }
+
+    /**
+     * Constructor: the one that does the work.
+     *
+     * @param e     The jobs and edges
+     */
+    private JobGraph(final Edges e)
+    {
+        int n = e.jobs.length;
+
+        if(e.from.length != e.to.length) {
+            throw new IllegalArgumentException("Edge arrays differ in size");
+        }
+
+        jobs = e.jobs.clone();
+
+        // Count degrees
+        int[] outDegree = new int[n];
+        int[] inDegree = new int[n];
+
+        for(int i = 0; i < e.from.length; i++) {
+            if((e.from[i] < 0) || (e.from[i] >= n) ||
+               (e.to[i] < 0) || (e.to[i] >= n)) {
+                throw new IllegalArgumentException(
+                    "Edge " + i + " refers to a job that isn't there"
+                );
+            }
+
+            outDegree[e.from[i]]++;
+            inDegree[e.to[i]]++;
+        }
+
+        // Lay out adjacency
+        childStart = prefixSum(outDegree);
+        parentStart = prefixSum(inDegree);
+        children = new int[e.from.length];
+        parents = new int[e.from.length];
+
+        int[] cfill = Arrays.copyOf(childStart, n);
+        int[] pfill = Arrays.copyOf(parentStart, n);
+
+        for(int i = 0; i < e.from.length; i++) {
+            children[cfill[e.from[i]]++] = e.to[i];
+            parents[pfill[e.to[i]]++] = e.from[i];
+        }
+
+        // Kahn's algorithm, a level at a time, so the order comes out
+        // grouped by level and by index within a level.
+        order = new int[n];
+        level = new int[n];
+
+        int[] remaining = inDegree.clone();
+        List<Integer> starts = new ArrayList<Integer>();
+        int done = 0;
+
+        for(int i = 0; i < n; i++) {
+            if(remaining[i] == 0) {
+                order[done++] = i;
+            }
+        }
+
+        int levelBegin = 0;
+        int l = 0;
+
+        while(levelBegin < done) {
+            int levelEnd = done;
+
+            starts.add(levelBegin);
+
+            for(int k = levelBegin; k < levelEnd; k++) {
+                int j = order[k];
+
+                level[j] = l;
+
+                for(int c = childStart[j]; c < childStart[j+1]; c++) {
+                    if(--remaining[children[c]] == 0) {
+                        order[done++] = children[c];
+                    }
+                }
+            }
+
+            // Keep each level in index order so runs are repeatable
+            Arrays.sort(order, levelEnd, done);
+
+            levelBegin = levelEnd;
+            l++;
+        }
+
+        if(done != n) {
+            throw new IllegalArgumentException(
+                "Job graph has a cycle; " + (n - done) +
+                " jobs can never run"
+            );
+        }
+
+        levelStart = new int[starts.size() + 1];
+
+        for(int i = 0; i < starts.size(); i++) {
+            levelStart[i] = starts.get(i);
+        }
+
+        levelStart[starts.size()] = n;
+
+        criticalPath = longestPath(null);
+
+        LOG.debug("Built JobGraph: {} jobs, {} edges, {} levels",
+                  n, children.length, getLevelCount()
+        );
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the number of jobs
+     */
+    public int size()
+    {
+        return jobs.length;
+    }
+
+    /**
+     * @param i     Job index
+     * @return the job
+     */
+    public WorkflowDefinitionJobConfig getJob(int i)
+    {
+        return jobs[i];
+    }
+
+    /**
+     * @return all jobs in topological order
+     */
+    public List<WorkflowDefinitionJobConfig> getAllJobs()
+    {
+        List<WorkflowDefinitionJobConfig> ret =
+                        new ArrayList<WorkflowDefinitionJobConfig>(order.length);
+
+        for(int i : order) {
+            ret.add(jobs[i]);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @param k     Position in the topological order
+     * @return the job index at that position
+     */
+    public int getOrder(int k)
+    {
+        return order[k];
+    }
+
+    /**
+     * @param i     Job index
+     * @return how many jobs i must wait for
+     */
+    public int getInDegree(int i)
+    {
+        return parentStart[i+1] - parentStart[i];
+    }
+
+    /**
+     * @param i     Job index
+     * @return how many jobs wait on i
+     */
+    public int getChildCount(int i)
+    {
+        return childStart[i+1] - childStart[i];
+    }
+
+    /**
+     * @param i     Job index
+     * @param k     Which child, 0 to getChildCount(i)-1
+     * @return the index of the child job
+     */
+    public int getChild(int i, int k)
+    {
+        return children[childStart[i] + k];
+    }
+
+    /**
+     * @param i     Job index
+     * @param k     Which parent, 0 to getInDegree(i)-1
+     * @return the index of the parent job
+     */
+    public int getParent(int i, int k)
+    {
+        return parents[parentStart[i] + k];
+    }
+
+    /**
+     * @param i     Job index
+     * @return the job's level; 0 for jobs that wait on nothing
+     */
+    public int getLevel(int i)
+    {
+        return level[i];
+    }
+
+    /**
+     * @return the number of levels
+     */
+    public int getLevelCount()
+    {
+        return levelStart.length - 1;
+    }
+
+    /**
+     * @param l     Level
+     * @return the number of jobs on the level
+     */
+    public int getLevelSize(int l)
+    {
+        return levelStart[l+1] - levelStart[l];
+    }
+
+    /**
+     * @param l     Level
+     * @param k     Which job, 0 to getLevelSize(l)-1
+     * @return the index of the job
+     */
+    public int getLevelJob(int l, int k)
+    {
+        return order[levelStart[l] + k];
+    }
+
+    /**
+     * @return the widest level; the most jobs that can ever run at once
+     *         with level-at-a-time scheduling.
+     */
+    public int getMaxWidth()
+    {
+        int ret = 0;
+
+        for(int l = 0; l < getLevelCount(); l++) {
+            ret = Math.max(ret, getLevelSize(l));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return job indexes along the longest chain of jobs, first to last
+     */
+    public int[] getCriticalPath()
+    {
+        return criticalPath.clone();
+    }
+
+    /**
+     * Work out the critical path with each job weighted, for example by
+     * its step count or how long it took last time.
+     *
+     * @param weights   Weight of each job, by index
+     * @return job indexes along the heaviest chain, first to last
+     */
+    public int[] getCriticalPath(final long[] weights)
+    {
+        if(weights.length != jobs.length) {
+            throw new IllegalArgumentException(
+                "Need one weight per job"
+            );
+        }
+
+        return longestPath(weights);
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Find the heaviest path through the graph.
+     *
+     * @param weights   Job weights, or null to count jobs
+     * @return job indexes along the path, first to last
+     */
+    private int[] longestPath(final long[] weights)
+    {
+        int n = jobs.length;
+
+        if(n == 0) {
+            return new int[0];
+        }
+
+        long[] best = new long[n];
+        int[] prev = new int[n];
+        int end = order[0];
+
+        for(int k = 0; k < n; k++) {
+            int j = order[k];
+            long w = (weights == null) ? 1 : weights[j];
+
+            best[j] = w;
+            prev[j] = -1;
+
+            for(int p = parentStart[j]; p < parentStart[j+1]; p++) {
+                if(best[parents[p]] + w > best[j]) {
+                    best[j] = best[parents[p]] + w;
+                    prev[j] = parents[p];
+                }
+            }
+
+            if(best[j] > best[end]) {
+                end = j;
+            }
+        }
+
+        int len = 0;
+
+        for(int j = end; j >= 0; j = prev[j]) {
+            len++;
+        }
+
+        int[] ret = new int[len];
+
+        for(int j = end; j >= 0; j = prev[j]) {
+            ret[--len] = j;
+        }
+
+        return ret;
+    }
+
+    /**
+     * @param counts    Per-node counts
+     * @return start offsets, one longer than counts
+     */
+    private static int[] prefixSum(final int[] counts)
+    {
+        int[] ret = new int[counts.length + 1];
+
+        for(int i = 0; i < counts.length; i++) {
+            ret[i+1] = ret[i] + counts[i];
+        }
+
+        return ret;
+    }
+
+    /**
+     * Pull the jobs and dependencies out of AHP's graph.
+     *
+     * @param def   The workflow definition, or null
+     * @return jobs and edges
+     */
+    private static Edges extract(final WorkflowDefinition def)
+    {
+        if(def == null) {
+            return new Edges(new WorkflowDefinitionJobConfig[0],
+                             new int[0], new int[0]);
+        }
+
+        TableDisplayableGraph<WorkflowDefinitionJobConfig> g =
+                                def.getWorkflowJobConfigGraph();
+
+        // Number the vertices by depth, the same order JobLayout used
+        Map<Vertex<WorkflowDefinitionJobConfig>, Integer> index =
+                new IdentityHashMap<Vertex<WorkflowDefinitionJobConfig>,
+                                    Integer>();
+        List<Vertex<WorkflowDefinitionJobConfig>> verts =
+                new ArrayList<Vertex<WorkflowDefinitionJobConfig>>();
+
+        for(int depth = 1; depth <= g.getMaxDepth(); depth++) {
+            for(Vertex<WorkflowDefinitionJobConfig> v :
+                g.getVerticesAtDepth(depth)) {
+                if(!index.containsKey(v)) {
+                    index.put(v, verts.size());
+                    verts.add(v);
+                }
+            }
+        }
+
+        WorkflowDefinitionJobConfig[] jobs =
+                            new WorkflowDefinitionJobConfig[verts.size()];
+        List<int[]> edges = new ArrayList<int[]>();
+
+        for(int i = 0; i < verts.size(); i++) {
+            jobs[i] = verts.get(i).getData();
+
+            for(Arc<WorkflowDefinitionJobConfig> a :
+                verts.get(i).getOutgoingArcs()) {
+                Integer to = index.get(a.getTo());
+
+                if(to != null) {
+                    edges.add(new int[] { i, to });
+                }
+            }
+        }
+
+        int[] from = new int[edges.size()];
+        int[] to = new int[edges.size()];
+
+        for(int i = 0; i < edges.size(); i++) {
+            from[i] = edges.get(i)[0];
+            to[i] = edges.get(i)[1];
+        }
+
+        return new Edges(jobs, from, to);
+    }
+
+    /**
+     * Jobs and edges, before they're turned into a graph.
+     */
+    private static class Edges
+    {
+        final WorkflowDefinitionJobConfig[]   jobs;
+        final int[]                           from;
+        final int[]                           to;
+
+        Edges(final WorkflowDefinitionJobConfig[] jobs, final int[] from,
+              final int[] to)
+        {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -33,6 +33,11 @@ package net.epicforce.migrate.ahp.context;
  *       it instead of trying to process the weird graph that AHP
  *       uses.
  *
+ * JobGraph does this properly, as a real dependency graph, and it's
+ * what Migration uses to decide the order jobs run in.  This is still
+ * built and put in the context so existing step classes keep working,
+ * but new code should use JobGraph.
+ *
  * @author sconley (sconley@epicforce.net)
  */
 
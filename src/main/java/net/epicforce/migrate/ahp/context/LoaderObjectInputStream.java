@@ -0,0 +1,78 @@
+package net.epicforce.migrate.ahp.context;
+
+/*
+ * LoaderObjectInputStream.java
+ *
+ * An ObjectInputStream that looks classes up in a given class loader
+ * before the usual places.  A plain ObjectInputStream resolves classes
+ * from whatever loader loaded the code calling it -- this library's --
+ * which can't see a migrator's own classes when they're loaded
+ * separately (an application server, a plugin).  Anything this library
+ * serializes on a migrator's behalf and reads back later should be
+ * read through one of these, with the loader of whatever was written.
+ *
+ * If the class isn't in the given loader, the calling thread's context
+ * class loader is tried, then the usual lookup.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+public class LoaderObjectInputStream extends ObjectInputStream
+{
+    private final ClassLoader   loader;
+
+    /**
+     * Constructor
+     *
+     * @param in        Where to read
+     * @param loader    Where to look for classes first, or null to go
+     *                  straight to the context class loader
+     * @throws IOException if the stream header can't be read
+     */
+    public LoaderObjectInputStream(final InputStream in,
+                                   final ClassLoader loader)
+           throws IOException
+    {
+        super(in);
+        this.loader = loader;
+    }
+
+    /**
+     * @param o     Something about to be serialized
+     * @return the loader to read it back with: its class's loader, or
+     *         for system classes like collections (which may hold
+     *         anything), the calling thread's context class loader.
+     */
+    public static ClassLoader loaderFor(final Serializable o)
+    {
+        ClassLoader ret = (o == null) ? null : o.getClass().getClassLoader();
+
+        return (ret != null) ? ret
+                             : Thread.currentThread().getContextClassLoader();
+    }
+
+    @Override
+    protected Class<?> resolveClass(final ObjectStreamClass desc)
+              throws IOException, ClassNotFoundException
+    {
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+
+        for(ClassLoader l : new ClassLoader[] { loader, context }) {
+            if(l == null) {
+                continue;
+            }
+
+            try {
+                return Class.forName(desc.getName(), false, l);
+            } catch(ClassNotFoundException e) {
+                // Try the next
+            }
+        }
+
+        return super.resolveClass(desc);
+    }
+}
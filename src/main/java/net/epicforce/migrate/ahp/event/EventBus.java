@@ -0,0 +1,237 @@
+package net.epicforce.migrate.ahp.event;
+
+/*
+ * EventBus.java
+ *
+ * Hands MigrationEvents from migrations to listeners.  Publishing just
+ * drops the event on a queue, so migrations never wait on listeners or
+ * on each other; a single daemon thread takes events off the queue and
+ * delivers them to each listener in turn.
+ *
+ * One bus can be shared by any number of migrations (BatchMigration
+ * does exactly that), so a dashboard subscribes once and sees
+ * everything.
+ *
+ * The queue is bounded so a stuck listener can't eat the heap.  If it
+ * fills up, new events are dropped and counted rather than blocking
+ * the migrations; getDroppedCount() says how many.
+ *
+ * This must be close()'d when you're done with it.  Events still on
+ * the queue are delivered first.
+ */
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class EventBus implements Closeable
+{
+    private final static Logger LOG = LoggerFactory.getLogger(EventBus.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /*
+     * Default number of events that can be waiting for delivery
+     */
+    public static final int     DEFAULT_CAPACITY = 8192;
+
+    /*
+     * How long close() waits for the queue to drain, in milliseconds
+     */
+    private static final long   DRAIN_TIMEOUT = 5000;
+
+    /*
+     * How often the delivery thread checks if we've closed, in
+     * milliseconds
+     */
+    private static final long   POLL_INTERVAL = 250;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final List<MigrationEventListener>  listeners =
+                        new CopyOnWriteArrayList<MigrationEventListener>();
+    private final BlockingQueue<MigrationEvent> queue;
+    private final AtomicLong                    dropped = new AtomicLong();
+    private final Thread                        thread;
+
+    private volatile boolean                    closed = false;
+
+    /**
+     * Constructor: with the default capacity
+     */
+    public EventBus()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor: starts the delivery thread.
+     *
+     * @param capacity  How many events can be waiting for delivery
+     *                  before new ones are dropped
+     */
+    public EventBus(int capacity)
+    {
+        if(capacity < 1) {
+            throw new IllegalArgumentException(
+                "Capacity must be at least 1"
+            );
+        }
+
+        queue = new LinkedBlockingQueue<MigrationEvent>(capacity);
+        thread = new Thread(new Runnable() {
+            public void run()
+            {
+                deliver();
+            }
+        }, "ahp-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*****************************************************************
+     * SUBSCRIBERS
+     ****************************************************************/
+
+    /**
+     * @param listener  Who to deliver every event to from now on
+     */
+    public void subscribe(final MigrationEventListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener  Who to stop delivering events to
+     */
+    public void unsubscribe(final MigrationEventListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /*****************************************************************
+     * PUBLISHERS
+     ****************************************************************/
+
+    /**
+     * @return true if anyone is listening.  Publishers can check this
+     *         to avoid building events nobody will see.
+     */
+    public boolean hasListeners()
+    {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Queue an event for delivery.  This never blocks; if the queue is
+     * full, or the bus is closed, the event is dropped.
+     *
+     * @param event     The event
+     */
+    public void publish(final MigrationEvent event)
+    {
+        if(closed || listeners.isEmpty()) {
+            return;
+        }
+
+        if(!queue.offer(event)) {
+            // Only say so the first time, or we'd make it worse
+            if(dropped.getAndIncrement() == 0) {
+                LOG.warn("Event queue is full; dropping events");
+            }
+        }
+    }
+
+    /**
+     * @return how many events were dropped because the queue was full
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return how many events are waiting for delivery
+     */
+    public int getPendingCount()
+    {
+        return queue.size();
+    }
+
+    /*****************************************************************
+     * DESTRUCTOR
+     ****************************************************************/
+
+    /**
+     * Stop taking events, deliver whatever's queued, and stop the
+     * delivery thread.  This waits a few seconds at most for the queue
+     * to drain; anything left after that is thrown away.
+     */
+    @Override
+    public void close()
+    {
+        if(closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            thread.join(DRAIN_TIMEOUT);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(thread.isAlive()) {
+            LOG.warn("Event listeners did not finish; {} events discarded",
+                     queue.size());
+            thread.interrupt();
+        }
+
+        queue.clear();
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * The delivery thread: take events until we're closed and the
+     * queue's empty.
+     */
+    private void deliver()
+    {
+        try {
+            while(!closed || !queue.isEmpty()) {
+                MigrationEvent event = queue.poll(POLL_INTERVAL,
+                                                  TimeUnit.MILLISECONDS);
+
+                if(event == null) {
+                    continue;
+                }
+
+                for(MigrationEventListener l : listeners) {
+                    try {
+                        l.onEvent(event);
+                    } catch(RuntimeException e) {
+                        // One bad listener shouldn't starve the rest
+                        LOG.warn("Event listener failed", e);
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            LOG.debug("Event delivery interrupted");
+        }
+    }
+}
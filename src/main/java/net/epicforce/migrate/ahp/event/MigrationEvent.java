@@ -0,0 +1,202 @@
+package net.epicforce.migrate.ahp.event;
+
+/*
+ * MigrationEvent.java
+ *
+ * Something that happened during a migration: a workflow, job or step
+ * started, finished, was skipped or failed.  Migrations publish these
+ * to an EventBus as they go, so a dashboard can follow along without
+ * polling getProgress().
+ *
+ * Events only carry IDs and names, not the AHP objects themselves, so
+ * they're safe to hang on to after the migration's unit of work is
+ * gone.  They're immutable.
+ */
+
+public class MigrationEvent
+{
+    /*****************************************************************
+     * TYPES
+     ****************************************************************/
+
+    public enum Type
+    {
+        WORKFLOW_STARTED,
+        WORKFLOW_FINISHED,
+        WORKFLOW_SKIPPED,
+        WORKFLOW_FAILED,
+        JOB_STARTED,
+        JOB_FINISHED,
+        JOB_SKIPPED,
+        JOB_FAILED,
+        STEP_STARTED,
+        STEP_FINISHED,
+        STEP_SKIPPED,
+        STEP_FAILED
+    }
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Type          type;
+    private final Long          workflowId;
+    private final String        workflowName;
+    private final Long          jobId;
+    private final String        jobName;
+    private final Long          stepId;
+    private final String        stepName;
+    private final int           progress;
+    private final long          timestamp;
+    private final String        message;
+    private final Throwable     cause;
+
+    /**
+     * Constructor
+     *
+     * @param type          What happened
+     * @param workflowId    The workflow
+     * @param workflowName  Its name, or null if it isn't loaded yet
+     * @param jobId         The job, or null for workflow events
+     * @param jobName       Its name, or null
+     * @param stepId        The step, or null for workflow and job events
+     * @param stepName      Its name, or null
+     * @param progress      The migration's progress, 0 to 100
+     * @param message       Why something was skipped, or null
+     * @param cause         What went wrong, for failures; otherwise null
+     */
+    public MigrationEvent(final Type type, final Long workflowId,
+                          final String workflowName, final Long jobId,
+                          final String jobName, final Long stepId,
+                          final String stepName, int progress,
+                          final String message, final Throwable cause)
+    {
+        this.type = type;
+        this.workflowId = workflowId;
+        this.workflowName = workflowName;
+        this.jobId = jobId;
+        this.jobName = jobName;
+        this.stepId = stepId;
+        this.stepName = stepName;
+        this.progress = progress;
+        this.timestamp = System.currentTimeMillis();
+        this.message = message;
+        this.cause = cause;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return what happened
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the workflow ID
+     */
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return the workflow name, or null if it wasn't loaded yet
+     */
+    public String getWorkflowName()
+    {
+        return workflowName;
+    }
+
+    /**
+     * @return the job ID, or null for workflow events
+     */
+    public Long getJobId()
+    {
+        return jobId;
+    }
+
+    /**
+     * @return the job name, or null for workflow events
+     */
+    public String getJobName()
+    {
+        return jobName;
+    }
+
+    /**
+     * @return the step ID, or null for workflow and job events
+     */
+    public Long getStepId()
+    {
+        return stepId;
+    }
+
+    /**
+     * @return the step name, or null for workflow and job events
+     */
+    public String getStepName()
+    {
+        return stepName;
+    }
+
+    /**
+     * @return the migration's progress when this happened, 0 to 100
+     */
+    public int getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * @return when this happened, in milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return why something was skipped, or null
+     */
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return what went wrong for failures, or null
+     */
+    public Throwable getCause()
+    {
+        return cause;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder ret = new StringBuilder();
+
+        ret.append(type).append(" workflow ").append(workflowId);
+
+        if(jobId != null) {
+            ret.append(" job ").append(jobId);
+        }
+
+        if(stepId != null) {
+            ret.append(" step ").append(stepId);
+        }
+
+        ret.append(" (").append(progress).append("%)");
+
+        if(message != null) {
+            ret.append(": ").append(message);
+        }
+
+        return ret.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package net.epicforce.migrate.ahp.event;
+
+/*
+ * MigrationEventListener.java
+ *
+ * Subscribes to an EventBus.  Events are delivered one at a time, in
+ * the order they were published, on the bus's own thread; never on a
+ * migration thread.  A slow listener holds up every other listener on
+ * the same bus, but not the migrations.
+ */
+
+public interface MigrationEventListener
+{
+    /**
+     * Something happened.
+     *
+     * @param event     What happened
+     */
+    public void onEvent(final MigrationEvent event);
+}
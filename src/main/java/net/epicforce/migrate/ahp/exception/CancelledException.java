@@ -0,0 +1,21 @@
+package net.epicforce.migrate.ahp.exception;
+
+/**
+ * CancelledException
+ *
+ * The migration was cancelled before it finished.  Cancellation is
+ * checked between jobs and between steps, so whatever was migrated up
+ * to that point is left in the context.
+ */
+public class CancelledException extends MigrateException
+{
+    public CancelledException(final String msg)
+    {
+        super(msg);
+    }
+
+    public CancelledException(final String msg, final Exception e)
+    {
+        super(msg, e);
+    }
+}
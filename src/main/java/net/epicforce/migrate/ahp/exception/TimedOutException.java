@@ -0,0 +1,19 @@
+package net.epicforce.migrate.ahp.exception;
+
+/**
+ * TimedOutException
+ *
+ * The migration ran past its deadline and was cancelled.
+ */
+public class TimedOutException extends CancelledException
+{
+    public TimedOutException(final String msg)
+    {
+        super(msg);
+    }
+
+    public TimedOutException(final String msg, final Exception e)
+    {
+        super(msg, e);
+    }
+}
@@ -0,0 +1,180 @@
+package net.epicforce.migrate.ahp.fingerprint;
+
+/*
+ * FileFingerprintStore.java
+ *
+ * A FingerprintStore that keeps one small file per workflow in a
+ * directory.  Files are written to the side and moved into place, so a
+ * crash never leaves half a fingerprint behind.
+ *
+ * File format:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   int     digest length, digest
+ *   int     job count
+ *   job:    long job ID, int digest length, digest
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileFingerprintStore implements FingerprintStore
+{
+    private final static Logger LOG =
+                        LoggerFactory.getLogger(FileFingerprintStore.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    private static final int    MAGIC = 0x41485046;     // "AHPF"
+    private static final int    VERSION = 1;
+
+    /*
+     * IDs can be null for objects that were never saved in AHP
+     */
+    private static final long   NO_ID = Long.MIN_VALUE;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final File          directory;
+
+    /**
+     * Constructor
+     *
+     * @param directory     Where to keep the fingerprints; it's created
+     *                      if need be.
+     * @throws MigrateException if the directory can't be made
+     */
+    public FileFingerprintStore(final File directory)
+           throws MigrateException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new MigrateException("Could not create fingerprint " +
+                                       "directory " + directory.getPath());
+        }
+
+        this.directory = directory;
+    }
+
+    /*****************************************************************
+     * FingerprintStore
+     ****************************************************************/
+
+    public Fingerprint load(final Long workflowId)
+           throws MigrateException
+    {
+        File file = fileFor(workflowId);
+
+        if(!file.exists()) {
+            return null;
+        }
+
+        try(DataInputStream in = new DataInputStream(
+                                    new BufferedInputStream(
+                                        new FileInputStream(file)))) {
+            if((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                LOG.warn("Ignoring unknown fingerprint file {}",
+                         file.getPath());
+                return null;
+            }
+
+            byte[] digest = readBytes(in);
+            int count = in.readInt();
+            Map<Long, byte[]> jobs = new LinkedHashMap<Long, byte[]>(count);
+
+            for(int i = 0; i < count; i++) {
+                long id = in.readLong();
+
+                jobs.put((id == NO_ID) ? null : id, readBytes(in));
+            }
+
+            return new Fingerprint(workflowId, digest, jobs);
+        } catch(IOException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Could not read fingerprint for " +
+                                       "workflow " + workflowId, e);
+        }
+    }
+
+    public void save(final Fingerprint fingerprint)
+           throws MigrateException
+    {
+        File file = fileFor(fingerprint.getWorkflowId());
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            try(DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(
+                                            new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeBytes(out, fingerprint.getDigest());
+                out.writeInt(fingerprint.getJobDigests().size());
+
+                for(Map.Entry<Long, byte[]> e :
+                    fingerprint.getJobDigests().entrySet()) {
+                    out.writeLong((e.getKey() == null) ? NO_ID : e.getKey());
+                    writeBytes(out, e.getValue());
+                }
+            }
+
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Could not save fingerprint for " +
+                                       "workflow " +
+                                       fingerprint.getWorkflowId(), e);
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * @param workflowId    A workflow
+     * @return its fingerprint file
+     */
+    private File fileFor(final Long workflowId)
+    {
+        return new File(directory, "workflow-" + workflowId + ".fp");
+    }
+
+    private static void writeBytes(final DataOutputStream out,
+                                   final byte[] b)
+            throws IOException
+    {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(final DataInputStream in)
+            throws IOException
+    {
+        byte[] ret = new byte[in.readInt()];
+
+        in.readFully(ret);
+        return ret;
+    }
+}
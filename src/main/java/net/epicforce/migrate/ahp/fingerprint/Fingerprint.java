@@ -0,0 +1,117 @@
+package net.epicforce.migrate.ahp.fingerprint;
+
+/*
+ * Fingerprint.java
+ *
+ * Digests of a workflow's content, as it was when it was migrated: one
+ * for each job (its steps and where it sits in the graph) and one for
+ * the workflow as a whole.  Comparing a fresh fingerprint with the one
+ * from the last run says what, if anything, has changed.
+ *
+ * Jobs are keyed by their WorkflowDefinitionJobConfig ID, or, for jobs
+ * that were never saved in AHP and so have none, by their index in the
+ * graph as a negative number; see jobKey().
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+
+public class Fingerprint
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Long                  workflowId;
+    private final byte[]                digest;
+    private final Map<Long, byte[]>     jobs;
+
+    /**
+     * Constructor
+     *
+     * @param workflowId    The workflow
+     * @param digest        Digest of the whole workflow
+     * @param jobs          Digest of each job, by jobKey().  This is
+     *                      copied.
+     */
+    public Fingerprint(final Long workflowId, final byte[] digest,
+                       final Map<Long, byte[]> jobs)
+    {
+        this.workflowId = workflowId;
+        this.digest = digest;
+        this.jobs = Collections.unmodifiableMap(
+                                new LinkedHashMap<Long, byte[]>(jobs));
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * @return each job's digest by jobKey()
+     */
+    public Map<Long, byte[]> getJobDigests()
+    {
+        return jobs;
+    }
+
+    /*****************************************************************
+     * COMPARISON
+     ****************************************************************/
+
+    /**
+     * @param previous  A fingerprint from an earlier run, or null
+     * @return true if nothing about the workflow has changed since
+     */
+    public boolean isUnchangedSince(final Fingerprint previous)
+    {
+        return (previous != null) &&
+               Arrays.equals(digest, previous.getDigest());
+    }
+
+    /**
+     * @param previous  A fingerprint from an earlier run, or null
+     * @param jobKey    A job's key, from jobKey()
+     * @return true if that job hasn't changed since
+     */
+    public boolean isJobUnchangedSince(final Fingerprint previous,
+                                       final Long jobKey)
+    {
+        if(previous == null) {
+            return false;
+        }
+
+        byte[] then = previous.getJobDigests().get(jobKey);
+
+        return (then != null) && Arrays.equals(jobs.get(jobKey), then);
+    }
+
+    /**
+     * What a job is keyed by: its WorkflowDefinitionJobConfig ID, or if
+     * it has none, -(index + 1), which no saved job's ID can be.
+     *
+     * @param graph     The job's graph
+     * @param index     The job's index in it
+     * @return its key
+     */
+    public static Long jobKey(final JobGraph graph, int index)
+    {
+        Long id = graph.getJob(index).getId();
+
+        return (id != null) ? id : Long.valueOf(-(index + 1L));
+    }
+}
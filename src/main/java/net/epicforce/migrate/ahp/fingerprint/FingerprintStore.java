@@ -0,0 +1,34 @@
+package net.epicforce.migrate.ahp.fingerprint;
+
+/*
+ * FingerprintStore.java
+ *
+ * Keeps each workflow's Fingerprint from the last time it migrated, so
+ * the next run can tell what changed.
+ *
+ * One store can be shared by any number of Migrations, as long as
+ * each workflow is only migrated by one of them at a time.
+ */
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface FingerprintStore
+{
+    /**
+     * @param workflowId    The workflow
+     * @return its fingerprint from the last successful run, or null if
+     *         there isn't one
+     * @throws MigrateException on error
+     */
+    public Fingerprint load(final Long workflowId)
+           throws MigrateException;
+
+    /**
+     * Replace a workflow's fingerprint.
+     *
+     * @param fingerprint   The new fingerprint
+     * @throws MigrateException on error
+     */
+    public void save(final Fingerprint fingerprint)
+           throws MigrateException;
+}
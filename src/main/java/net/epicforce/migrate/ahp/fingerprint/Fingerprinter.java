@@ -0,0 +1,232 @@
+package net.epicforce.migrate.ahp.fingerprint;
+
+/*
+ * Fingerprinter.java
+ *
+ * Works out a workflow's Fingerprint from its job graph and steps.
+ *
+ * A job's digest covers its own settings (its WorkflowDefinitionJobConfig
+ * and JobConfig), the keys of the jobs it depends on, and the class and
+ * content of each of its steps, in order.  Moving a job in the graph,
+ * changing its settings, or touching any of its steps changes it.  The
+ * workflow's digest covers its name, the Workflow itself, and every
+ * job's digest.
+ *
+ * Content is taken from each object's serialized form, since that's
+ * the one view of all of its settings the remoting API gives us.  If
+ * some type drags in things that change from load to load, and so
+ * never looks unchanged, override digestStep, digestJob or
+ * digestWorkflow for it.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.urbancode.anthill3.domain.jobconfig.JobConfig;
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+
+public class Fingerprinter
+{
+    private static final String     ALGORITHM = "SHA-256";
+
+    /**
+     * Fingerprint a workflow.
+     *
+     * @param wf        The workflow
+     * @param steps     Each job's steps, by job index
+     * @return its fingerprint
+     * @throws MigrateException on error
+     */
+    public Fingerprint compute(final WorkflowData wf,
+                               final StepConfig[][] steps)
+           throws MigrateException
+    {
+        JobGraph graph = wf.getGraph();
+        Map<Long, byte[]> jobs = new LinkedHashMap<Long, byte[]>();
+        MessageDigest all = newDigest();
+
+        update(all, wf.getName());
+
+        try {
+            digestWorkflow(all, wf.getWorkflow());
+
+            for(int i = 0; i < graph.size(); i++) {
+                MessageDigest md = newDigest();
+
+                update(md, graph.getJob(i).getName());
+                digestJob(md, graph.getJob(i));
+
+                // Parents, in a stable order
+                long[] parents = new long[graph.getInDegree(i)];
+
+                for(int k = 0; k < parents.length; k++) {
+                    parents[k] = Fingerprint.jobKey(graph,
+                                                    graph.getParent(i, k));
+                }
+
+                Arrays.sort(parents);
+
+                for(long p : parents) {
+                    update(md, String.valueOf(p));
+                }
+
+                for(StepConfig step : steps[i]) {
+                    update(md, step.getClass().getName());
+                    digestStep(md, step);
+                }
+
+                byte[] job = md.digest();
+
+                jobs.put(Fingerprint.jobKey(graph, i), job);
+                all.update(job);
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not fingerprint workflow " +
+                                       wf.getId(), e);
+        }
+
+        return new Fingerprint(wf.getId(), all.digest(), jobs);
+    }
+
+    /**
+     * Digest a job config: its own settings, then the class and content
+     * of each of its steps, in order.  Unlike a job's digest in a
+     * Fingerprint, this leaves out the workflow's job and where it sits
+     * in its workflow, so the same library job gives the same digest in
+     * every workflow that uses it.
+     *
+     * @param config    The job config
+     * @param steps     Its steps
+     * @return the digest
+     * @throws MigrateException if the config or a step won't serialize
+     */
+    public byte[] digestJobConfig(final JobConfig config,
+                                  final StepConfig[] steps)
+           throws MigrateException
+    {
+        MessageDigest md = newDigest();
+
+        try {
+            digestObject(md, config);
+
+            for(StepConfig step : steps) {
+                update(md, step.getClass().getName());
+                digestStep(md, step);
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not digest job config", e);
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Add a step's content to a digest.
+     *
+     * @param md    The digest
+     * @param step  The step
+     * @throws IOException if the step won't serialize
+     */
+    protected void digestStep(final MessageDigest md, final StepConfig step)
+              throws IOException
+    {
+        digestObject(md, step);
+    }
+
+    /**
+     * Add a job's own settings to a digest: the job and its job config.
+     *
+     * @param md    The digest
+     * @param job   The job
+     * @throws IOException if the job won't serialize
+     */
+    protected void digestJob(final MessageDigest md,
+                             final WorkflowDefinitionJobConfig job)
+              throws IOException
+    {
+        digestObject(md, job);
+        digestObject(md, job.getJobConfig());
+    }
+
+    /**
+     * Add the workflow's own settings to a digest.
+     *
+     * @param md        The digest
+     * @param workflow  The AHP workflow; null if the source has none
+     * @throws IOException if the workflow won't serialize
+     */
+    protected void digestWorkflow(final MessageDigest md,
+                                  final Workflow workflow)
+              throws IOException
+    {
+        digestObject(md, workflow);
+    }
+
+    /**
+     * Add an object's serialized form to a digest.
+     *
+     * @param md    The digest
+     * @param o     The object, or null
+     * @throws IOException if it won't serialize
+     */
+    protected static void digestObject(final MessageDigest md,
+                                       final Object o)
+              throws IOException
+    {
+        if(o == null) {
+            md.update((byte)0);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+
+        md.update((byte)1);
+        md.update(bytes.toByteArray());
+    }
+
+    /**
+     * Add a string to a digest, marking where it ends so neighbours
+     * can't run together.
+     *
+     * @param md    The digest
+     * @param str   The string, or null
+     */
+    protected static void update(final MessageDigest md, final String str)
+    {
+        if(str != null) {
+            md.update(str.getBytes(StandardCharsets.UTF_8));
+        }
+
+        md.update((byte)0);
+    }
+
+    /**
+     * @return a new digest
+     */
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch(NoSuchAlgorithmException e) {
+            // Every JVM has to have it
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -20,7 +20,11 @@ import java.lang.ClassNotFoundException;
 import java.lang.IllegalAccessException;
 import java.lang.InstantiationException;
 import java.lang.NoSuchMethodException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
 import net.epicforce.migrate.ahp.migrate.AbstractJob;
@@ -29,6 +33,17 @@ import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
 
 public abstract class AbstractLoader
 {
+    /*
+     * Resolved constructors and known failures, by class name.  These
+     * belong to the loader, so they go when it does and never pin a
+     * class loader past the migrations that used it.  Share one loader
+     * across a batch to get the most out of them.
+     */
+    private final ConcurrentMap<String, Constructor<?>> constructors =
+                        new ConcurrentHashMap<String, Constructor<?>>();
+    private final ConcurrentMap<String, Exception>      unsupported =
+                        new ConcurrentHashMap<String, Exception>();
+
     /**
      * The workflow loader will attempt to load a workflow class
      * and return it.
@@ -80,7 +95,13 @@ public abstract class AbstractLoader
      * and is probably the underlying implementation you'll want to
      * use for your own implementations of the above methods.
      *
-     * It assumes the class it is instancing takes no parameters.
+     * It assumes the class it is instancing takes no parameters, and
+     * that the class and its constructor are public.
+     *
+     * The class lookup is only done once per class name per loader;
+     * after that, the constructor (or the failure) is remembered and
+     * reused, so repeat calls are about as cheap as a map lookup plus
+     * the constructor itself.  Each call still returns a new instance.
      *
      * @param className     Name of class to load
      * @return Object instance of class
@@ -89,13 +110,38 @@ public abstract class AbstractLoader
     protected Object loadClass(final String className)
               throws UnsupportedClassException
     {
+        Constructor<?> ctor = constructors.get(className);
+
+        if(ctor == null) {
+            Exception failure = unsupported.get(className);
+
+            if(failure != null) {
+                throw new UnsupportedClassException(
+                    "Unsupported class: " + className, failure);
+            }
+
+            try {
+                Class<?> type = Class.forName(className);
+
+                if(!Modifier.isPublic(type.getModifiers())) {
+                    throw new IllegalAccessException(
+                        "Class is not public: " + className);
+                }
+
+                ctor = type.getConstructor();
+                constructors.put(className, ctor);
+            } catch(NoSuchMethodException | ClassNotFoundException |
+                    IllegalAccessException | SecurityException e) {
+                unsupported.put(className, e);
+                throw new UnsupportedClassException(
+                    "Unsupported class: " + className, e);
+            }
+        }
+
         try {
-            return Class.forName(className)
-                        .getDeclaredConstructor()
-                        .newInstance();
-        } catch(NoSuchMethodException | InstantiationException |
-                IllegalAccessException | InvocationTargetException |
-                ClassNotFoundException e) {
+            return ctor.newInstance();
+        } catch(InstantiationException | IllegalAccessException |
+                InvocationTargetException e) {
             throw new UnsupportedClassException(
                 "Unsupported class: " + className, e);
         }
@@ -10,9 +10,15 @@ package net.epicforce.migrate.ahp.loader;
  * directly if you wanted to have some kind of default fallback rather than
  * crashing if you choose not to support a given step.
  *
+ * For the "default migration", which dumps every workflow, job and step
+ * to XML, use the DumpLoader.
+ *
  * @author sconley (sconley@epicforce.net)
  */
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
 import net.epicforce.migrate.ahp.migrate.AbstractJob;
 import net.epicforce.migrate.ahp.migrate.AbstractStep;
@@ -20,6 +26,12 @@ import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
 
 public class DefaultLoader extends AbstractLoader
 {
+    /*
+     * AHP step class name to our step class name
+     */
+    private final ConcurrentMap<String, String> stepClassNames =
+                                    new ConcurrentHashMap<String, String>();
+
     /*****************************************************************
      * These methods return null because the default process does not
      * require them.
@@ -39,24 +51,31 @@ public class DefaultLoader extends AbstractLoader
 
     /*****************************************************************
      * By default, we alter the step name and use it to load a class.
+     * The altered names are remembered so we only build each one once.
      ****************************************************************/
     public AbstractStep loadStepClass(final String stepName)
            throws UnsupportedClassException
     {
-        // Make sure we can handle it.
-        if(!stepName.startsWith("com.urbancode.anthill3.")) {
-            throw new UnsupportedClassException(
-                "Cannot process Anthill Step with class: " +
-                stepName
-            );
+        String className = stepClassNames.get(stepName);
+
+        if(className == null) {
+            // Make sure we can handle it.
+            if(!stepName.startsWith("com.urbancode.anthill3.")) {
+                throw new UnsupportedClassException(
+                    "Cannot process Anthill Step with class: " +
+                    stepName
+                );
+            }
+
+            className = stepName.replace(
+                            "com.urbancode.anthill3.",
+                            "net.epicforce.migrate.ahp.migrate.defaults."
+                        ) + "Migrate";
+            stepClassNames.put(stepName, className);
         }
 
-        // Handoff
-        return (AbstractStep)loadClass(
-            stepName.replace(
-                "com.urbancode.anthill3.",
-                "net.epicforce.migrate.ahp.migrate.default."
-            ) + "Migrate"
-        );
+        // Handoff; failures are remembered by loadClass, so a missing
+        // class only costs a lookup after the first time.
+        return (AbstractStep)loadClass(className);
     }
 }
@@ -0,0 +1,60 @@
+package net.epicforce.migrate.ahp.loader;
+
+/*
+ * DumpLoader.java
+ *
+ * The loader for the "default migration": with a DumpContext for each
+ * workflow, every workflow, job and step is streamed to an XML dump as
+ * it's visited.  Steps are loaded like the DefaultLoader does, and any
+ * that don't have a class of their own are handled by DumpStep.
+ *
+ * Only use this with DumpContexts; DumpStep fails for anything else,
+ * rather than quietly dropping the step.
+ */
+
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+import net.epicforce.migrate.ahp.migrate.defaults.DumpJob;
+import net.epicforce.migrate.ahp.migrate.defaults.DumpStep;
+import net.epicforce.migrate.ahp.migrate.defaults.DumpWorkflow;
+
+public class DumpLoader extends DefaultLoader
+{
+    /*****************************************************************
+     * These start and end each workflow and job in the dump.
+     ****************************************************************/
+
+    @Override
+    public AbstractWorkflow loadWorkflowClass()
+           throws UnsupportedClassException
+    {
+        return new DumpWorkflow();
+    }
+
+    @Override
+    public AbstractJob loadJobClass()
+           throws UnsupportedClassException
+    {
+        return new DumpJob();
+    }
+
+    /*****************************************************************
+     * Fall back to DumpStep if there isn't a step class.
+     ****************************************************************/
+    @Override
+    public AbstractStep loadStepClass(final String stepName)
+           throws UnsupportedClassException
+    {
+        try {
+            return super.loadStepClass(stepName);
+        } catch(UnsupportedClassException e) {
+            if(e.getCause() instanceof ClassNotFoundException) {
+                return new DumpStep();
+            }
+
+            throw e;
+        }
+    }
+}
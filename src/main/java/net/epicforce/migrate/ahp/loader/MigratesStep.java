@@ -0,0 +1,35 @@
+package net.epicforce.migrate.ahp.loader;
+
+/*
+ * MigratesStep.java
+ *
+ * Put this on an AbstractStep implementation to say which AHP step
+ * config class(es) it migrates.  The MigratesStepProcessor annotation
+ * processor picks these up at build time and writes a StepRegistry
+ * class mapping AHP step class names straight to constructors, so no
+ * reflection or naming conventions are needed at run time.
+ *
+ * For example:
+ *
+ *     @MigratesStep(ShellStepConfig.class)
+ *     public class ShellMigrate extends AbstractStep { ... }
+ */
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface MigratesStep
+{
+    /**
+     * @return the AHP step config classes this step migrates
+     */
+    Class<? extends StepConfig>[] value();
+}
@@ -0,0 +1,79 @@
+package net.epicforce.migrate.ahp.loader;
+
+/*
+ * RegistryLoader.java
+ *
+ * A loader that gets its step classes from a StepRegistry -- usually
+ * one generated at build time from @MigratesStep annotations -- rather
+ * than looking them up by name.  There's no reflection involved, and
+ * a step with no handler fails with the usual UnsupportedClassException.
+ *
+ * Like the DefaultLoader, there are no workflow or job classes; extend
+ * this if you need them.
+ */
+
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+
+public class RegistryLoader extends AbstractLoader
+{
+    /*
+     * Where our steps come from
+     */
+    private final StepRegistry  registry;
+
+    /**
+     * Constructor
+     *
+     * @param registry  The registry to make steps from
+     */
+    public RegistryLoader(final StepRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    /**
+     * @return the registry this loader uses
+     */
+    public StepRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /*****************************************************************
+     * These methods return null because the registry only covers
+     * steps.
+     ****************************************************************/
+
+    public AbstractWorkflow loadWorkflowClass()
+           throws UnsupportedClassException
+    {
+        return null;
+    }
+
+    public AbstractJob loadJobClass()
+           throws UnsupportedClassException
+    {
+        return null;
+    }
+
+    /*****************************************************************
+     * Ask the registry for the step.
+     ****************************************************************/
+    public AbstractStep loadStepClass(final String stepName)
+           throws UnsupportedClassException
+    {
+        AbstractStep ret = registry.newStep(stepName);
+
+        if(ret == null) {
+            throw new UnsupportedClassException(
+                "Cannot process Anthill Step with class: " +
+                stepName
+            );
+        }
+
+        return ret;
+    }
+}
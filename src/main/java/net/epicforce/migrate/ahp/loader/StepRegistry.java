@@ -0,0 +1,30 @@
+package net.epicforce.migrate.ahp.loader;
+
+/*
+ * StepRegistry.java
+ *
+ * A fixed mapping of AHP step class names to the steps that migrate
+ * them.  These are normally generated at build time by the
+ * MigratesStepProcessor from @MigratesStep annotations, and handed
+ * to a RegistryLoader.
+ */
+
+import java.util.Set;
+
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+
+public interface StepRegistry
+{
+    /**
+     * Make a new step for an AHP step class.
+     *
+     * @param stepName  Full name of AHP step class
+     * @return a new step, or null if nothing migrates this step
+     */
+    public AbstractStep newStep(final String stepName);
+
+    /**
+     * @return every AHP step class name this registry knows about
+     */
+    public Set<String> getStepNames();
+}
@@ -0,0 +1,402 @@
+package net.epicforce.migrate.ahp.loader.processor;
+
+/*
+ * MigratesStepProcessor.java
+ *
+ * Annotation processor for @MigratesStep.  It collects every annotated
+ * step class in the compile and writes a StepRegistry implementation
+ * that maps each AHP step class name to a 'new' of its step class.
+ *
+ * Mistakes are compile errors rather than something you find on the
+ * hundredth workflow:
+ *
+ *   - the annotated class must be a public, non-abstract AbstractStep
+ *     with a public no-argument constructor;
+ *   - an AHP step class can only be migrated by one step class;
+ *   - every AHP step class named in the 'ahp.requiredSteps' option
+ *     (comma separated) must have a step class.
+ *
+ * The generated class name is set with the 'ahp.registry' option; it
+ * defaults to GeneratedStepRegistry in the package of the first
+ * annotated class found.
+ *
+ * The registry is written in the same round as the annotated classes
+ * are found, so javac compiles it along with everything else.  Step
+ * classes that only turn up in a later round -- generated by some
+ * other processor -- can't be added to it, and are an error.  The
+ * required steps are checked once all the rounds are over.
+ *
+ * This claims every annotation type, so it runs even when nothing in
+ * the compile is annotated; otherwise 'ahp.requiredSteps' would go
+ * unchecked in exactly the case it matters most.  It never consumes
+ * the annotations, so other processors see them all as usual.
+ *
+ * This is picked up automatically by javac through the service file in
+ * META-INF/services when this library is on the compile classpath.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+@SupportedAnnotationTypes("*")
+@SupportedOptions({ MigratesStepProcessor.OPTION_REGISTRY,
+                    MigratesStepProcessor.OPTION_REQUIRED })
+public class MigratesStepProcessor extends AbstractProcessor
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    static final String ANNOTATION =
+                        "net.epicforce.migrate.ahp.loader.MigratesStep";
+    static final String OPTION_REGISTRY = "ahp.registry";
+    static final String OPTION_REQUIRED = "ahp.requiredSteps";
+
+    private static final String ABSTRACT_STEP =
+                        "net.epicforce.migrate.ahp.migrate.AbstractStep";
+    private static final String DEFAULT_REGISTRY = "GeneratedStepRegistry";
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * AHP step class name to step class name, collected across rounds.
+     * Sorted so the generated source is stable.  AHP names are binary
+     * names, since that's what the loader looks up at run time; step
+     * class names are canonical names, since they go in source.
+     */
+    private final Map<String, String>   steps = new TreeMap<String, String>();
+
+    /*
+     * Where the registry goes, if not given as an option
+     */
+    private String                      defaultPackage = null;
+
+    /*
+     * Set once the registry's been written; it can only be written once
+     */
+    private String                      generated = null;
+
+    /*****************************************************************
+     * PROCESSING
+     ****************************************************************/
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations,
+                           final RoundEnvironment roundEnv)
+    {
+        // Everything's been seen; all that's left is to check it
+        if(roundEnv.processingOver()) {
+            checkRequired();
+            return false;
+        }
+
+        TypeElement annotation = processingEnv.getElementUtils()
+                                              .getTypeElement(ANNOTATION);
+
+        if(annotation == null) {
+            return false;
+        }
+
+        boolean found = false;
+
+        for(Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if(generated != null) {
+                error(e, "@MigratesStep class found after " + generated +
+                         " was written; it can't be added");
+                continue;
+            }
+
+            collect((TypeElement)e, annotation);
+            found = true;
+        }
+
+        // Write it now rather than in the last round, so it gets
+        // compiled like any other source.
+        if(found && !steps.isEmpty()) {
+            generate();
+        }
+
+        return false;
+    }
+
+    /**
+     * Check an annotated class and record its mappings.
+     *
+     * @param type          The annotated class
+     * @param annotation    The MigratesStep annotation type
+     */
+    private void collect(final TypeElement type,
+                         final TypeElement annotation)
+    {
+        if(!isValidStep(type)) {
+            return;
+        }
+
+        // Not the binary name: '$' is legal in a class name, so it
+        // can't be turned back into '.' for source.
+        String stepClass = type.getQualifiedName().toString();
+
+        if(defaultPackage == null) {
+            defaultPackage = processingEnv.getElementUtils()
+                                          .getPackageOf(type)
+                                          .getQualifiedName().toString();
+        }
+
+        for(TypeElement ahpStep : ahpSteps(type, annotation)) {
+            String ahpName = processingEnv.getElementUtils()
+                                          .getBinaryName(ahpStep).toString();
+            String existing = steps.get(ahpName);
+
+            if((existing != null) && !existing.equals(stepClass)) {
+                error(type, ahpName + " is already migrated by " + existing);
+                continue;
+            }
+
+            steps.put(ahpName, stepClass);
+        }
+    }
+
+    /**
+     * Make sure an annotated class is something we can 'new' as a step.
+     *
+     * @param type  The annotated class
+     * @return true if it's good
+     */
+    private boolean isValidStep(final TypeElement type)
+    {
+        TypeMirror abstractStep = processingEnv.getElementUtils()
+                                               .getTypeElement(ABSTRACT_STEP)
+                                               .asType();
+
+        if((type.getKind() != ElementKind.CLASS) ||
+           !processingEnv.getTypeUtils().isAssignable(type.asType(),
+                                                      abstractStep)) {
+            error(type, "@MigratesStep classes must extend AbstractStep");
+            return false;
+        }
+
+        if(!type.getModifiers().contains(Modifier.PUBLIC) ||
+           type.getModifiers().contains(Modifier.ABSTRACT) ||
+           ((type.getEnclosingElement().getKind() != ElementKind.PACKAGE) &&
+            !type.getModifiers().contains(Modifier.STATIC))) {
+            error(type, "@MigratesStep classes must be public, concrete " +
+                        "and not inner classes");
+            return false;
+        }
+
+        for(ExecutableElement c :
+            ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if(c.getParameters().isEmpty() &&
+               c.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+
+        error(type, "@MigratesStep classes must have a public " +
+                    "no-argument constructor");
+        return false;
+    }
+
+    /**
+     * Pull the AHP step classes out of an annotation.  We read the
+     * mirror rather than the annotation itself, since the classes
+     * aren't loadable while compiling.
+     *
+     * @param type          The annotated class
+     * @param annotation    The MigratesStep annotation type
+     * @return the AHP step config types named
+     */
+    private Iterable<TypeElement> ahpSteps(final TypeElement type,
+                                           final TypeElement annotation)
+    {
+        List<TypeElement> ret = new ArrayList<TypeElement>();
+
+        for(AnnotationMirror am : type.getAnnotationMirrors()) {
+            if(!am.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+
+            for(Map.Entry<? extends ExecutableElement,
+                          ? extends AnnotationValue> v :
+                am.getElementValues().entrySet()) {
+                if(!v.getKey().getSimpleName().contentEquals("value")) {
+                    continue;
+                }
+
+                Object val = v.getValue().getValue();
+
+                // A single class may show up unwrapped
+                if(val instanceof TypeMirror) {
+                    ret.add(asType((TypeMirror)val));
+                    continue;
+                }
+
+                for(Object o : (List<?>)val) {
+                    ret.add(asType((TypeMirror)((AnnotationValue)o)
+                                                            .getValue()));
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @param t     A declared type mirror
+     * @return its element
+     */
+    private static TypeElement asType(final TypeMirror t)
+    {
+        return (TypeElement)((DeclaredType)t).asElement();
+    }
+
+    /**
+     * Fail the compile for any required step that has no step class.
+     */
+    private void checkRequired()
+    {
+        String required = processingEnv.getOptions().get(OPTION_REQUIRED);
+
+        if(required == null) {
+            return;
+        }
+
+        for(String name : required.split(",")) {
+            name = name.trim();
+
+            if((name.length() > 0) && !steps.containsKey(name)) {
+                processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR,
+                    "No @MigratesStep class handles required step " + name
+                );
+            }
+        }
+    }
+
+    /**
+     * Write the registry source.
+     */
+    private void generate()
+    {
+        String registry = processingEnv.getOptions().get(OPTION_REGISTRY);
+
+        if(registry == null) {
+            registry = ((defaultPackage == null) || defaultPackage.isEmpty())
+                       ? DEFAULT_REGISTRY
+                       : defaultPackage + "." + DEFAULT_REGISTRY;
+        }
+
+        generated = registry;
+
+        int dot = registry.lastIndexOf('.');
+        String pkg = (dot < 0) ? null : registry.substring(0, dot);
+        String simple = registry.substring(dot + 1);
+
+        try(PrintWriter out = new PrintWriter(
+                                processingEnv.getFiler()
+                                             .createSourceFile(registry)
+                                             .openWriter())) {
+            if(pkg != null) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+
+            out.println("/*");
+            out.println(" * Generated by MigratesStepProcessor.  " +
+                        "Do not edit.");
+            out.println(" */");
+            out.println();
+            out.println("import java.util.Arrays;");
+            out.println("import java.util.Collections;");
+            out.println("import java.util.HashSet;");
+            out.println("import java.util.Set;");
+            out.println();
+            out.println("import net.epicforce.migrate.ahp.loader.StepRegistry;");
+            out.println("import net.epicforce.migrate.ahp.migrate.AbstractStep;");
+            out.println();
+            out.println("public final class " + simple +
+                        " implements StepRegistry");
+            out.println("{");
+            out.println("    private static final Set<String> NAMES =");
+            out.println("        Collections.unmodifiableSet(" +
+                        "new HashSet<String>(Arrays.asList(");
+
+            int i = 0;
+
+            for(String ahpName : steps.keySet()) {
+                out.println("            \"" + ahpName + "\"" +
+                            ((++i < steps.size()) ? "," : ""));
+            }
+
+            out.println("        )));");
+            out.println();
+            out.println("    public AbstractStep newStep(final String stepName)");
+            out.println("    {");
+            out.println("        switch(stepName) {");
+
+            for(Map.Entry<String, String> e : steps.entrySet()) {
+                out.println("            case \"" + e.getKey() + "\":");
+                out.println("                return new " + e.getValue() +
+                            "();");
+            }
+
+            out.println("            default:");
+            out.println("                return null;");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+            out.println("    public Set<String> getStepNames()");
+            out.println("    {");
+            out.println("        return NAMES;");
+            out.println("    }");
+            out.println("}");
+        } catch(IOException e) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR,
+                "Could not write " + registry + ": " + e.getMessage()
+            );
+        }
+    }
+
+    /**
+     * Report a compile error against an element.
+     *
+     * @param e     Where the problem is
+     * @param msg   What the problem is
+     */
+    private void error(final Element e, final String msg)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                 msg, e);
+    }
+}
@@ -0,0 +1,130 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * LatencyHistogram.java
+ *
+ * A lock-free histogram of durations, in power-of-two nanosecond
+ * buckets.  Recording is a handful of atomic adds, so it's cheap enough
+ * to do for every step; the price is that percentiles are only
+ * accurate to within a factor of two, which is plenty for finding out
+ * where the time goes.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+    /*
+     * Bucket i holds durations from 2^(i-1) up to 2^i - 1 nanos; bucket
+     * 0 holds zero.
+     */
+    private static final int    BUCKETS = 64;
+
+    private final AtomicLongArray   buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong        count = new AtomicLong();
+    private final AtomicLong        total = new AtomicLong();
+    private final AtomicLong        max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos     The duration; negative values count as 0
+     */
+    public void record(long nanos)
+    {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long m;
+
+        while(nanos > (m = max.get())) {
+            if(max.compareAndSet(m, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return how many durations have been recorded
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all durations, in nanos
+     */
+    public long getTotalNanos()
+    {
+        return total.get();
+    }
+
+    /**
+     * @return the longest duration, in nanos
+     */
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the mean duration, in nanos, or 0 if there are none
+     */
+    public double getMeanNanos()
+    {
+        long c = count.get();
+
+        return (c == 0) ? 0 : ((double)total.get() / (double)c);
+    }
+
+    /**
+     * Estimate a percentile.  This is the top of the bucket the
+     * percentile falls in, so it errs high.
+     *
+     * @param p     The percentile, 0 to 100
+     * @return the estimate in nanos, or 0 if there are none
+     */
+    public long getPercentileNanos(double p)
+    {
+        long c = count.get();
+
+        if(c == 0) {
+            return 0;
+        }
+
+        long want = (long)Math.ceil((p / 100.0) * c);
+        long seen = 0;
+
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+
+            if((seen >= want) && (seen > 0)) {
+                return (i == 0) ? 0 : Math.min((1L << i) - 1, max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return a one line summary, in milliseconds
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d total=%.1fms mean=%.3fms " +
+                             "p50=%.3fms p99=%.3fms max=%.3fms",
+                             getCount(), getTotalNanos() / 1e6,
+                             getMeanNanos() / 1e6,
+                             getPercentileNanos(50) / 1e6,
+                             getPercentileNanos(99) / 1e6,
+                             getMaxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,47 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * MetricsListener.java
+ *
+ * Told how long each part of a migration takes.  Set one on a Migration
+ * with setMetricsListener; MigrationMetrics is one that keeps
+ * histograms and publishes them over JMX.
+ *
+ * Calls come from the migration thread and, when jobs run in parallel,
+ * from worker threads, so implementations must be threadsafe.  They're
+ * on the migration's critical path, so they should be quick, too.
+ */
+
+public interface MetricsListener
+{
+    /**
+     * A phase of a migration finished.
+     *
+     * @param workflowId    The workflow being migrated
+     * @param phase         What finished
+     * @param nanos         How long it took
+     */
+    public void phaseCompleted(final Long workflowId, final Phase phase,
+                               long nanos);
+
+    /**
+     * A step class finished running a step.  This comes on top of the
+     * STEP phase.
+     *
+     * @param workflowId    The workflow being migrated
+     * @param stepClass     The AbstractStep class that ran
+     * @param nanos         How long it took
+     * @param failed        True if it threw anything other than a
+     *                      SkipException
+     */
+    public void stepCompleted(final Long workflowId, final String stepClass,
+                              long nanos, boolean failed);
+
+    /**
+     * A migration finished.
+     *
+     * @param workflowId    The workflow that was migrated
+     * @param status        Its final Migration status
+     */
+    public void workflowCompleted(final Long workflowId, int status);
+}
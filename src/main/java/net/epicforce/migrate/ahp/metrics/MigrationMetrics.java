@@ -0,0 +1,277 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * MigrationMetrics.java
+ *
+ * A MetricsListener that keeps a LatencyHistogram per phase and per
+ * step class, plus a few counters.  One of these is meant to be shared
+ * by every Migration in a process (or a batch), and can be published
+ * over JMX with register().
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public class MigrationMetrics implements MetricsListener,
+                                         MigrationMetricsMBean
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private volatile ConcurrentMap<Phase, LatencyHistogram>  phases =
+                        new ConcurrentHashMap<Phase, LatencyHistogram>();
+    private volatile ConcurrentMap<String, LatencyHistogram> steps =
+                        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final AtomicLong    workflowCount = new AtomicLong();
+    private final AtomicLong    failedWorkflowCount = new AtomicLong();
+    private final AtomicLong    stepCount = new AtomicLong();
+    private final AtomicLong    failedStepCount = new AtomicLong();
+
+    /*
+     * Where we're registered, if we are
+     */
+    private ObjectName          objectName = null;
+
+    /*****************************************************************
+     * MetricsListener
+     ****************************************************************/
+
+    public void phaseCompleted(final Long workflowId, final Phase phase,
+                               long nanos)
+    {
+        histogram(phases, phase).record(nanos);
+    }
+
+    public void stepCompleted(final Long workflowId, final String stepClass,
+                              long nanos, boolean failed)
+    {
+        histogram(steps, stepClass).record(nanos);
+        stepCount.incrementAndGet();
+
+        if(failed) {
+            failedStepCount.incrementAndGet();
+        }
+    }
+
+    public void workflowCompleted(final Long workflowId, int status)
+    {
+        workflowCount.incrementAndGet();
+
+        if(status != Migration.SUCCESS) {
+            failedWorkflowCount.incrementAndGet();
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param phase     A phase
+     * @return its histogram, or null if it hasn't been seen
+     */
+    public LatencyHistogram getPhase(final Phase phase)
+    {
+        return phases.get(phase);
+    }
+
+    /**
+     * @param stepClass     An AbstractStep class name
+     * @return its histogram, or null if it hasn't been seen
+     */
+    public LatencyHistogram getStep(final String stepClass)
+    {
+        return steps.get(stepClass);
+    }
+
+    /**
+     * @return every step class's histogram, by class name
+     */
+    public Map<String, LatencyHistogram> getSteps()
+    {
+        return Collections.unmodifiableMap(steps);
+    }
+
+    /*****************************************************************
+     * MigrationMetricsMBean
+     ****************************************************************/
+
+    public long getWorkflowCount()
+    {
+        return workflowCount.get();
+    }
+
+    public long getFailedWorkflowCount()
+    {
+        return failedWorkflowCount.get();
+    }
+
+    public long getStepCount()
+    {
+        return stepCount.get();
+    }
+
+    public long getFailedStepCount()
+    {
+        return failedStepCount.get();
+    }
+
+    public String[] getPhaseTimings()
+    {
+        List<String> ret = new ArrayList<String>();
+
+        for(Phase p : Phase.values()) {
+            LatencyHistogram h = phases.get(p);
+
+            if(h != null) {
+                ret.add(p.name() + ": " + h);
+            }
+        }
+
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    public String[] getStepTimings()
+    {
+        List<Map.Entry<String, LatencyHistogram>> entries =
+            new ArrayList<Map.Entry<String, LatencyHistogram>>(
+                                                        steps.entrySet());
+
+        Collections.sort(entries,
+                         new Comparator<Map.Entry<String, LatencyHistogram>>() {
+            public int compare(final Map.Entry<String, LatencyHistogram> a,
+                               final Map.Entry<String, LatencyHistogram> b)
+            {
+                long ta = a.getValue().getTotalNanos();
+                long tb = b.getValue().getTotalNanos();
+
+                return (ta > tb) ? -1 : ((ta == tb) ? 0 : 1);
+            }
+        });
+
+        String[] ret = new String[entries.size()];
+
+        for(int i = 0; i < ret.length; i++) {
+            ret[i] = entries.get(i).getKey() + ": " +
+                     entries.get(i).getValue();
+        }
+
+        return ret;
+    }
+
+    public double getPercentileMillis(final String name, double p)
+    {
+        LatencyHistogram h = steps.get(name);
+
+        if(h == null) {
+            try {
+                h = phases.get(Phase.valueOf(name));
+            } catch(IllegalArgumentException e) { }
+        }
+
+        return (h == null) ? 0 : (h.getPercentileNanos(p) / 1e6);
+    }
+
+    public void reset()
+    {
+        phases = new ConcurrentHashMap<Phase, LatencyHistogram>();
+        steps = new ConcurrentHashMap<String, LatencyHistogram>();
+        workflowCount.set(0);
+        failedWorkflowCount.set(0);
+        stepCount.set(0);
+        failedStepCount.set(0);
+    }
+
+    /*****************************************************************
+     * JMX
+     ****************************************************************/
+
+    /**
+     * Publish these metrics on the platform MBean server, as
+     * net.epicforce.migrate.ahp:type=MigrationMetrics,name=(name)
+     *
+     * @param name  Tells this set of metrics apart from any others
+     * @throws MigrateException if it can't be registered
+     */
+    public synchronized void register(final String name)
+           throws MigrateException
+    {
+        try {
+            ObjectName on = new ObjectName(
+                "net.epicforce.migrate.ahp:type=MigrationMetrics,name=" +
+                ObjectName.quote(name)
+            );
+
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(this, on);
+            objectName = on;
+        } catch(JMException e) {
+            throw new MigrateException("Could not register metrics", e);
+        }
+    }
+
+    /**
+     * Take these metrics off the MBean server, if they're on it.  This
+     * will not throw an exception.
+     */
+    public synchronized void unregister()
+    {
+        if(objectName == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            server.unregisterMBean(objectName);
+        } catch(JMException e) { }
+
+        objectName = null;
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Get or make a histogram.
+     *
+     * @param map   Where to look
+     * @param key   What for
+     * @return the histogram
+     */
+    private static <K> LatencyHistogram histogram(
+                            final ConcurrentMap<K, LatencyHistogram> map,
+                            final K key)
+    {
+        LatencyHistogram ret = map.get(key);
+
+        if(ret == null) {
+            LatencyHistogram h = new LatencyHistogram();
+
+            ret = map.putIfAbsent(key, h);
+
+            if(ret == null) {
+                ret = h;
+            }
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,44 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * MigrationMetricsMBean.java
+ *
+ * What MigrationMetrics shows over JMX.  Timings are summarized as one
+ * line per phase or step class, so they read well in jconsole without
+ * any client-side classes.
+ */
+
+public interface MigrationMetricsMBean
+{
+    public long getWorkflowCount();
+
+    public long getFailedWorkflowCount();
+
+    public long getStepCount();
+
+    public long getFailedStepCount();
+
+    /**
+     * @return "PHASE: count=... mean=... p50=... p99=... max=..." for
+     *         each phase seen
+     */
+    public String[] getPhaseTimings();
+
+    /**
+     * @return the same as getPhaseTimings, for each step class seen,
+     *         slowest total first
+     */
+    public String[] getStepTimings();
+
+    /**
+     * @param name  A phase or step class name
+     * @param p     A percentile, 0 to 100
+     * @return its estimated latency in milliseconds, or 0 if unknown
+     */
+    public double getPercentileMillis(final String name, double p);
+
+    /**
+     * Start counting from scratch.
+     */
+    public void reset();
+}
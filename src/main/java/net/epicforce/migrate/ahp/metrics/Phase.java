@@ -0,0 +1,65 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * Phase.java
+ *
+ * The parts of a migration that get timed.
+ */
+
+public enum Phase
+{
+    /*
+     * Connecting to AHP, when the Migration made its own connection
+     */
+    CONNECT,
+
+    /*
+     * Loading the workflow from its source, in all
+     */
+    LOAD_WORKFLOW,
+
+    /*
+     * Of LOAD_WORKFLOW, restoring the workflow from AHP
+     */
+    RESTORE_WORKFLOW,
+
+    /*
+     * Of LOAD_WORKFLOW, building the workflow's job graph and layout
+     */
+    BUILD_GRAPH,
+
+    /*
+     * Loading a job's steps
+     */
+    LOAD_STEPS,
+
+    /*
+     * Fingerprinting the workflow, in incremental mode
+     */
+    FINGERPRINT,
+
+    /*
+     * The workflow class's pre- and post-run callbacks
+     */
+    WORKFLOW_CALLBACK,
+
+    /*
+     * A job class's pre- and post-run callbacks
+     */
+    JOB_CALLBACK,
+
+    /*
+     * Running a step class; also broken down by step class
+     */
+    STEP,
+
+    /*
+     * Writing a checkpoint
+     */
+    CHECKPOINT,
+
+    /*
+     * The whole of Migration.run()
+     */
+    TOTAL
+}
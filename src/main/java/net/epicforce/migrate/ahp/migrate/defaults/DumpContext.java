@@ -0,0 +1,123 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpContext.java
+ *
+ * The context of the default migration.  All it keeps is where its
+ * workflow is being dumped to; the DumpLoader's workflow, job and
+ * step classes write to that as Migration.run() goes.
+ *
+ * Use one per workflow, all sharing the same DumpWriter.  For a batch,
+ * factory() makes them.
+ */
+
+import java.io.Serializable;
+
+import net.epicforce.migrate.ahp.batch.ContextFactory;
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public class DumpContext extends AbstractContext
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final DumpWriter    writer;
+    private final Long          workflowId;
+    private WorkflowDump        dump = null;
+
+    /**
+     * Constructor
+     *
+     * @param writer        Where to dump to
+     * @param workflowId    The workflow this context is for
+     */
+    public DumpContext(final DumpWriter writer, final Long workflowId)
+    {
+        this.writer = writer;
+        this.workflowId = workflowId;
+    }
+
+    /**
+     * Make a ContextFactory for a batch dump.
+     *
+     * @param writer    Where every workflow is dumped to
+     * @return a factory of DumpContexts
+     */
+    public static ContextFactory factory(final DumpWriter writer)
+    {
+        return new ContextFactory() {
+            public AbstractContext newContext(final Long workflowId)
+            {
+                return new DumpContext(writer, workflowId);
+            }
+        };
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the workflow's dump; null before startWorkflow()
+     */
+    public WorkflowDump getDump()
+    {
+        return dump;
+    }
+
+    /*****************************************************************
+     * DUMPING
+     ****************************************************************/
+
+    /**
+     * Start dumping our workflow.
+     *
+     * @throws MigrateException on error
+     */
+    public void startWorkflow()
+           throws MigrateException
+    {
+        if(dump != null) {
+            dump.discard();
+        }
+
+        dump = writer.startWorkflow(workflowId,
+                                    (workflow == null) ? null
+                                                       : workflow.getName());
+    }
+
+    /**
+     * Add our workflow to the dump.
+     *
+     * @throws MigrateException on error
+     */
+    public void finishWorkflow()
+           throws MigrateException
+    {
+        if(dump == null) {
+            throw new MigrateException("Workflow " + workflowId +
+                                       " was never started");
+        }
+
+        dump.finish();
+    }
+
+    /**
+     * Our result is the dump itself, so there's nothing to keep; but
+     * a dump that never finished is thrown away now rather than when
+     * the writer is closed.
+     *
+     * @return null
+     */
+    @Override
+    protected Serializable result()
+    {
+        if(dump != null) {
+            dump.discard();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpJob.java
+ *
+ * Starts and ends each job in the dump.  Does nothing if the context
+ * isn't a DumpContext.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+
+public class DumpJob extends AbstractJob
+{
+    public void preRun(final AbstractContext context)
+           throws MigrateException
+    {
+        WorkflowDump dump = DumpStep.dumpOf(context);
+
+        if(dump != null) {
+            dump.startJob(context.getCurrentJob());
+        }
+    }
+
+    public void postRun(final AbstractContext context)
+           throws MigrateException
+    {
+        WorkflowDump dump = DumpStep.dumpOf(context);
+
+        if(dump != null) {
+            dump.endJob();
+        }
+    }
+}
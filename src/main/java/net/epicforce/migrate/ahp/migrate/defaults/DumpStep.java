@@ -0,0 +1,55 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpStep.java
+ *
+ * Writes a step and its properties to the dump.  This handles every
+ * step type; the DumpLoader uses it for any step that doesn't have a
+ * class of its own in this package.  The context must be a
+ * DumpContext.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+
+public class DumpStep extends AbstractStep
+{
+    /**
+     * @param context   The migration context; a DumpContext
+     * @throws UnsupportedClassException if it isn't a DumpContext, since
+     *         then there's nothing that can migrate this step.
+     * @throws MigrateException on any other error
+     */
+    public void run(final AbstractContext context)
+           throws MigrateException
+    {
+        if(!(context instanceof DumpContext)) {
+            throw new UnsupportedClassException(
+                "Cannot process Anthill Step with class: " +
+                context.getCurrentStep().getClass().getName()
+            );
+        }
+
+        WorkflowDump dump = dumpOf(context);
+
+        if(dump != null) {
+            dump.step(context.getCurrentStep());
+        }
+    }
+
+    /**
+     * @param context   A migration context
+     * @return the workflow dump it's writing to, or null if it isn't a
+     *         DumpContext
+     */
+    static WorkflowDump dumpOf(final AbstractContext context)
+    {
+        if(context instanceof DumpContext) {
+            return ((DumpContext)context).getDump();
+        }
+
+        return null;
+    }
+}
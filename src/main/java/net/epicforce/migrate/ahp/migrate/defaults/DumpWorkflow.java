@@ -0,0 +1,31 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpWorkflow.java
+ *
+ * Starts and finishes a workflow's part of the dump.  Does nothing if
+ * the context isn't a DumpContext.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+
+public class DumpWorkflow extends AbstractWorkflow
+{
+    public void preRun(final AbstractContext context)
+           throws MigrateException
+    {
+        if(context instanceof DumpContext) {
+            ((DumpContext)context).startWorkflow();
+        }
+    }
+
+    public void postRun(final AbstractContext context)
+           throws MigrateException
+    {
+        if(context instanceof DumpContext) {
+            ((DumpContext)context).finishWorkflow();
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpWriter.java
+ *
+ * Where the default migration's XML dump goes.  The dump is split
+ * into chunk files -- prefix-00001.xml, prefix-00002.xml and so on --
+ * each a complete document of whole workflows:
+ *
+ *   <ahp-dump chunk="1">
+ *     <workflow id="..." name="...">
+ *       <job id="..." name="..." config="...">
+ *         <step class="..." id="..." name="...">
+ *           <property name="...">...</property>
+ *         </step>
+ *       </job>
+ *     </workflow>
+ *   </ahp-dump>
+ *
+ * A chunk is closed and the next one started once it has enough
+ * workflows or bytes in it, so no single file gets unmanageable.
+ * Chunks left in the directory by an earlier dump with the same prefix
+ * are deleted up front, so a smaller dump doesn't leave stale ones
+ * after its own.
+ *
+ * Workflows in a batch are migrated at the same time, so each is
+ * streamed to a spool file of its own as Migration.run() visits it
+ * (see WorkflowDump), then copied into the current chunk once it's
+ * done.  Nothing is ever held in memory but the copy buffer, and a
+ * workflow that fails never makes it into a chunk.
+ *
+ * This is threadsafe; one writer is shared by every DumpContext of a
+ * dump.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DumpWriter implements Closeable
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(DumpWriter.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    public static final long    DEFAULT_MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+    public static final int     DEFAULT_MAX_CHUNK_WORKFLOWS = 1000;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Where chunks and spool files go, and what chunks are called
+     */
+    private final File                  dir;
+    private final String                prefix;
+
+    /*
+     * When to roll over to a new chunk
+     */
+    private long                        maxChunkBytes =
+                                                DEFAULT_MAX_CHUNK_BYTES;
+    private int                         maxChunkWorkflows =
+                                                DEFAULT_MAX_CHUNK_WORKFLOWS;
+
+    /*
+     * The chunk being written, if any, and how far along it is
+     */
+    private OutputStream                chunk = null;
+    private long                        chunkBytes = 0;
+    private int                         chunkWorkflows = 0;
+
+    /*
+     * Every chunk started so far, and how many workflows are in them
+     */
+    private final List<File>            chunks = new ArrayList<File>();
+    private long                        workflowCount = 0;
+
+    /*
+     * Workflows being dumped right now
+     */
+    private final Set<WorkflowDump>     open = new HashSet<WorkflowDump>();
+
+    private boolean                     closed = false;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor
+     *
+     * @param dir       Where to write chunks; made if it's not there.
+     *                  Existing chunks with the same prefix are
+     *                  deleted.
+     * @param prefix    What to start chunk file names with
+     * @throws MigrateException if the directory can't be made, or an
+     *         old chunk can't be deleted
+     */
+    public DumpWriter(final File dir, final String prefix)
+           throws MigrateException
+    {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new MigrateException("Could not make dump directory " +
+                                       dir);
+        }
+
+        this.dir = dir;
+        this.prefix = prefix;
+
+        // Chunk names are prefix-NNNNN.xml, with 5 or more digits
+        final Pattern name = Pattern.compile(Pattern.quote(prefix) +
+                                             "-[0-9]{5,}\\.xml");
+        File[] old = dir.listFiles(new FileFilter() {
+            public boolean accept(final File f)
+            {
+                return f.isFile() && name.matcher(f.getName()).matches();
+            }
+        });
+
+        if(old == null) {
+            throw new MigrateException("Could not list dump directory " +
+                                       dir);
+        }
+
+        for(File f : old) {
+            LOG.debug("Deleting old dump chunk {}", f);
+
+            if(!f.delete()) {
+                throw new MigrateException("Could not delete old dump " +
+                                           "chunk " + f);
+            }
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param maxChunkBytes     Roll over to a new chunk rather than go
+     *                          past this many bytes.  A workflow bigger
+     *                          than this gets a chunk to itself.
+     */
+    public synchronized void setMaxChunkBytes(long maxChunkBytes)
+    {
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    /**
+     * @param maxChunkWorkflows Roll over to a new chunk after this many
+     *                          workflows; at least 1.
+     */
+    public synchronized void setMaxChunkWorkflows(int maxChunkWorkflows)
+    {
+        if(maxChunkWorkflows < 1) {
+            throw new IllegalArgumentException(
+                "Need at least 1 workflow per chunk"
+            );
+        }
+
+        this.maxChunkWorkflows = maxChunkWorkflows;
+    }
+
+    /**
+     * @return every chunk file started so far, in order
+     */
+    public synchronized List<File> getChunks()
+    {
+        return new ArrayList<File>(chunks);
+    }
+
+    /**
+     * @return how many workflows have been written to chunks
+     */
+    public synchronized long getWorkflowCount()
+    {
+        return workflowCount;
+    }
+
+    /*****************************************************************
+     * DUMPING
+     ****************************************************************/
+
+    /**
+     * Start dumping a workflow.  Write its jobs and steps to the dump
+     * returned, then finish() it to add it to the current chunk, or
+     * discard() it to leave it out.
+     *
+     * @param workflowId    The workflow's ID
+     * @param workflowName  Its name
+     * @return where to write it
+     * @throws MigrateException on I/O error, or if this is closed
+     */
+    public WorkflowDump startWorkflow(final Long workflowId,
+                                      final String workflowName)
+           throws MigrateException
+    {
+        synchronized(this) {
+            if(closed) {
+                throw new MigrateException("Dump writer is closed");
+            }
+        }
+
+        File spool;
+
+        try {
+            spool = File.createTempFile(prefix + "-", ".part", dir);
+        } catch(IOException e) {
+            throw new MigrateException("Could not make spool file in " +
+                                       dir, e);
+        }
+
+        WorkflowDump ret = new WorkflowDump(this, spool, workflowId,
+                                            workflowName);
+
+        synchronized(this) {
+            open.add(ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Copy a finished workflow's spool into the current chunk, rolling
+     * over to a new chunk first if it won't fit.  The spool is deleted
+     * either way.
+     *
+     * @param dump      The finished workflow
+     * @throws MigrateException on I/O error
+     */
+    synchronized void commit(final WorkflowDump dump)
+                 throws MigrateException
+    {
+        File spool = dump.getSpool();
+
+        try {
+            if(closed) {
+                throw new MigrateException("Dump writer is closed");
+            }
+
+            long size = spool.length();
+
+            if((chunk != null) &&
+               ((chunkWorkflows >= maxChunkWorkflows) ||
+                ((chunkBytes + size) > maxChunkBytes))) {
+                endChunk();
+            }
+
+            if(chunk == null) {
+                startChunk();
+            }
+
+            chunkBytes += Files.copy(spool.toPath(), chunk);
+            chunkWorkflows++;
+            workflowCount++;
+        } catch(IOException e) {
+            throw new MigrateException("Could not write workflow " +
+                                       dump.getWorkflowId() + " to dump", e);
+        } finally {
+            open.remove(dump);
+            delete(spool);
+        }
+    }
+
+    /**
+     * Throw away a workflow's spool without writing it anywhere.
+     *
+     * @param dump      The workflow
+     */
+    synchronized void discard(final WorkflowDump dump)
+    {
+        open.remove(dump);
+        delete(dump.getSpool());
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Open the next chunk and write its header.
+     *
+     * @throws IOException on error
+     */
+    private void startChunk()
+            throws IOException
+    {
+        File file = new File(dir, String.format("%s-%05d.xml", prefix,
+                                                chunks.size() + 1));
+
+        LOG.debug("Starting dump chunk {}", file);
+
+        chunk = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        chunks.add(file);
+        chunkBytes = 0;
+        chunkWorkflows = 0;
+
+        write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+              "<ahp-dump chunk=\"" + chunks.size() + "\">\n");
+    }
+
+    /**
+     * Write the current chunk's footer and close it.
+     *
+     * @throws IOException on error
+     */
+    private void endChunk()
+            throws IOException
+    {
+        try {
+            write("</ahp-dump>\n");
+        } finally {
+            chunk.close();
+            chunk = null;
+        }
+    }
+
+    /**
+     * Write markup straight to the current chunk.
+     *
+     * @param str   What to write
+     * @throws IOException on error
+     */
+    private void write(final String str)
+            throws IOException
+    {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+
+        chunk.write(bytes);
+        chunkBytes += bytes.length;
+    }
+
+    /**
+     * Delete a spool file, complaining if it won't go.
+     *
+     * @param spool     The file
+     */
+    private static void delete(final File spool)
+    {
+        if(spool.exists() && !spool.delete()) {
+            LOG.warn("Could not delete dump spool file {}", spool);
+        }
+    }
+
+    /*****************************************************************
+     * DESTRUCTOR
+     ****************************************************************/
+
+    /**
+     * Finish the current chunk.  Workflows still being dumped are
+     * discarded; they must have failed, or they'd have finished.
+     *
+     * @throws IOException if the last chunk can't be finished
+     */
+    @Override
+    public synchronized void close()
+           throws IOException
+    {
+        if(closed) {
+            return;
+        }
+
+        closed = true;
+
+        for(WorkflowDump dump : new ArrayList<WorkflowDump>(open)) {
+            LOG.warn("Workflow {} was never finished; left out of the dump",
+                     dump.getWorkflowId());
+            dump.discard();
+        }
+
+        if(chunk != null) {
+            endChunk();
+        }
+    }
+}
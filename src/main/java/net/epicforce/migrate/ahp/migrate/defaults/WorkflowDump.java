@@ -0,0 +1,478 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * WorkflowDump.java
+ *
+ * One workflow's part of the XML dump, streamed to a spool file with
+ * an XMLStreamWriter as the migration visits each job and step.  When
+ * the workflow's done, finish() hands the spool to the DumpWriter to
+ * copy into the current chunk.
+ *
+ * A step's properties are whatever its public getters return that
+ * can be written as text: strings, numbers, booleans, enums and the
+ * like.  That's a shallow view of the step, but it's the same for
+ * every step type and doesn't need a class per step.
+ *
+ * Characters XML 1.0 can't carry at all -- NUL and most other control
+ * characters, and broken surrogate pairs -- are dropped from names and
+ * values, since not even a character reference would make them legal.
+ *
+ * This is used by one migration thread at a time.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.urbancode.anthill3.domain.jobconfig.JobConfig;
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class WorkflowDump implements Closeable
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(WorkflowDump.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Makes our XML writers
+     */
+    private static final XMLOutputFactory   factory =
+                                            XMLOutputFactory.newInstance();
+
+    /*
+     * Each step class's property getters, sorted by name, so each class
+     * is only looked over once
+     */
+    private static final ConcurrentMap<Class<?>, Method[]> getters =
+                            new ConcurrentHashMap<Class<?>, Method[]>();
+
+    private final DumpWriter        writer;
+    private final File              spool;
+    private final Long              workflowId;
+    private final OutputStream      stream;
+    private final XMLStreamWriter   xml;
+
+    /*
+     * Whether we're in a job, and whether we're done
+     */
+    private boolean                 inJob = false;
+    private boolean                 done = false;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: see DumpWriter.startWorkflow
+     *
+     * @param writer        Where the dump goes once it's finished
+     * @param spool         Where to write it until then
+     * @param workflowId    The workflow's ID
+     * @param workflowName  Its name
+     * @throws MigrateException on I/O error
+     */
+    WorkflowDump(final DumpWriter writer, final File spool,
+                 final Long workflowId, final String workflowName)
+    throws MigrateException
+    {
+        this.writer = writer;
+        this.spool = spool;
+        this.workflowId = workflowId;
+
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(spool),
+                                              65536);
+        } catch(IOException e) {
+            writer.discard(this);
+            throw new MigrateException("Could not open spool file " + spool,
+                                       e);
+        }
+
+        try {
+            synchronized(factory) {
+                xml = factory.createXMLStreamWriter(stream, "UTF-8");
+            }
+
+            xml.writeCharacters("  ");
+            xml.writeStartElement("workflow");
+            attribute("id", workflowId);
+            attribute("name", workflowName);
+        } catch(XMLStreamException e) {
+            discard();
+            throw new MigrateException("Could not start dump of workflow " +
+                                       workflowId, e);
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the ID of the workflow being dumped
+     */
+    public Long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return the spool file
+     */
+    File getSpool()
+    {
+        return spool;
+    }
+
+    /*****************************************************************
+     * WRITING
+     ****************************************************************/
+
+    /**
+     * Start a job.  Its steps go inside it until endJob().
+     *
+     * @param job   The job
+     * @throws MigrateException on error
+     */
+    public void startJob(final WorkflowDefinitionJobConfig job)
+           throws MigrateException
+    {
+        try {
+            if(inJob) {
+                endJob();
+            }
+
+            JobConfig config = job.getJobConfig();
+
+            xml.writeCharacters("\n    ");
+            xml.writeStartElement("job");
+            attribute("id", job.getId());
+            attribute("name", job.getName());
+
+            if(config != null) {
+                attribute("config", config.getId());
+            }
+
+            inJob = true;
+        } catch(XMLStreamException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Write a step and its properties.
+     *
+     * @param step  The step
+     * @throws MigrateException on error
+     */
+    public void step(final StepConfig step)
+           throws MigrateException
+    {
+        // Read everything first, so a getter blowing up can't leave a
+        // half-written step behind.
+        Method[]    props = getters(step.getClass());
+        String[]    values = new String[props.length];
+
+        for(int i = 0; i < props.length; i++) {
+            values[i] = read(step, props[i]);
+        }
+
+        try {
+            xml.writeCharacters("\n      ");
+            xml.writeStartElement("step");
+            attribute("class", step.getClass().getName());
+            attribute("id", step.getId());
+            attribute("name", step.getName());
+
+            for(int i = 0; i < props.length; i++) {
+                if(values[i] == null) {
+                    continue;
+                }
+
+                xml.writeCharacters("\n        ");
+                xml.writeStartElement("property");
+                xml.writeAttribute("name", propertyName(props[i]));
+                xml.writeCharacters(legal(values[i]));
+                xml.writeEndElement();
+            }
+
+            xml.writeCharacters("\n      ");
+            xml.writeEndElement();
+        } catch(XMLStreamException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * End the current job.
+     *
+     * @throws MigrateException on error
+     */
+    public void endJob()
+           throws MigrateException
+    {
+        if(!inJob) {
+            return;
+        }
+
+        try {
+            xml.writeCharacters("\n    ");
+            xml.writeEndElement();
+            inJob = false;
+        } catch(XMLStreamException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * End the workflow and add it to the dump.
+     *
+     * @throws MigrateException on error
+     */
+    public void finish()
+           throws MigrateException
+    {
+        if(done) {
+            return;
+        }
+
+        try {
+            endJob();
+            xml.writeCharacters("\n  ");
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.close();
+            stream.close();
+        } catch(XMLStreamException | IOException e) {
+            throw failed(e);
+        }
+
+        done = true;
+        writer.commit(this);
+    }
+
+    /**
+     * Leave this workflow out of the dump.  This is safe to call at any
+     * time, and more than once.
+     */
+    public void discard()
+    {
+        if(done) {
+            return;
+        }
+
+        done = true;
+
+        try {
+            stream.close();
+        } catch(IOException e) {
+            LOG.debug("Could not close spool file {}", spool, e);
+        }
+
+        writer.discard(this);
+    }
+
+    /**
+     * Same as discard() if the dump wasn't finished; otherwise does
+     * nothing.
+     */
+    @Override
+    public void close()
+    {
+        discard();
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Write an attribute if there's a value for it.
+     *
+     * @param name      Attribute name
+     * @param value     Its value, or null to leave it out
+     * @throws XMLStreamException on error
+     */
+    private void attribute(final String name, final Object value)
+            throws XMLStreamException
+    {
+        if(value != null) {
+            xml.writeAttribute(name, legal(String.valueOf(value)));
+        }
+    }
+
+    /**
+     * Give up on this workflow after a write failed.
+     *
+     * @param e     What failed
+     * @return an exception to throw
+     */
+    private MigrateException failed(final Exception e)
+    {
+        discard();
+        return new MigrateException("Could not dump workflow " + workflowId,
+                                    e);
+    }
+
+    /**
+     * Read one property of a step as text.
+     *
+     * @param step      The step
+     * @param getter    The property's getter
+     * @return its value, or null if it has none or can't be read
+     */
+    private static String read(final StepConfig step, final Method getter)
+    {
+        try {
+            Object value = getter.invoke(step);
+
+            if(value == null) {
+                return null;
+            } else if(value instanceof Date) {
+                return String.valueOf(((Date)value).getTime());
+            } else if(value instanceof Enum) {
+                return ((Enum<?>)value).name();
+            }
+
+            return String.valueOf(value);
+        } catch(IllegalAccessException | InvocationTargetException e) {
+            LOG.debug("Could not read {} of step {}", getter.getName(),
+                      step.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Drop whatever XML 1.0 can't carry from some text.
+     *
+     * @param str   The text
+     * @return the text without them; usually just str
+     */
+    static String legal(final String str)
+    {
+        StringBuilder ret = null;
+
+        for(int i = 0; i < str.length(); ) {
+            int c = str.codePointAt(i);
+            int len = Character.charCount(c);
+            boolean ok = (c == 0x9) || (c == 0xA) || (c == 0xD) ||
+                         ((c >= 0x20) && (c <= 0xD7FF)) ||
+                         ((c >= 0xE000) && (c <= 0xFFFD)) ||
+                         ((c >= 0x10000) && (c <= 0x10FFFF));
+
+            if(!ok && (ret == null)) {
+                ret = new StringBuilder(str.length());
+                ret.append(str, 0, i);
+            } else if(ok && (ret != null)) {
+                ret.appendCodePoint(c);
+            }
+
+            i += len;
+        }
+
+        return (ret == null) ? str : ret.toString();
+    }
+
+    /**
+     * @param getter    A property getter
+     * @return the property's name: getFooBar gives fooBar
+     */
+    private static String propertyName(final Method getter)
+    {
+        String name = getter.getName();
+        name = name.substring(name.startsWith("is") ? 2 : 3);
+
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Find a step class's property getters: public, no arguments, and
+     * returning something that reads well as text.  The ID and name are
+     * left out since they're attributes of the step.
+     *
+     * @param type  The step class
+     * @return its getters, sorted by name
+     */
+    private static Method[] getters(final Class<?> type)
+    {
+        Method[] ret = getters.get(type);
+
+        if(ret != null) {
+            return ret;
+        }
+
+        List<Method> found = new ArrayList<Method>();
+
+        for(Method m : type.getMethods()) {
+            String name = m.getName();
+
+            if(Modifier.isStatic(m.getModifiers()) ||
+               (m.getParameterTypes().length != 0) ||
+               name.equals("getClass") || name.equals("getId") ||
+               name.equals("getName")) {
+                continue;
+            }
+
+            if(!(((name.length() > 3) && name.startsWith("get")) ||
+                 ((name.length() > 2) && name.startsWith("is") &&
+                  (m.getReturnType() == boolean.class)))) {
+                continue;
+            }
+
+            if(isText(m.getReturnType())) {
+                found.add(m);
+            }
+        }
+
+        ret = found.toArray(new Method[found.size()]);
+
+        Arrays.sort(ret, new Comparator<Method>() {
+            public int compare(final Method a, final Method b)
+            {
+                return propertyName(a).compareTo(propertyName(b));
+            }
+        });
+
+        getters.putIfAbsent(type, ret);
+        return ret;
+    }
+
+    /**
+     * @param type  A property's type
+     * @return true if it reads well as text
+     */
+    private static boolean isText(final Class<?> type)
+    {
+        return type.isPrimitive() ? (type != void.class) :
+               ((type == String.class) || (type == Character.class) ||
+                (type == Boolean.class) || type.isEnum() ||
+                Number.class.isAssignableFrom(type) ||
+                Date.class.isAssignableFrom(type));
+    }
+}
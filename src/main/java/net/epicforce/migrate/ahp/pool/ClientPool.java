@@ -0,0 +1,379 @@
+package net.epicforce.migrate.ahp.pool;
+
+/*
+ * ClientPool.java
+ *
+ * Connecting to AHP (and authenticating) is slow, and doing it once per
+ * workflow adds up when there are thousands of workflows.  This keeps
+ * idle AnthillClient sessions around, keyed by host, port, user and
+ * credentials, and leases them out to whoever needs one.
+ *
+ * Sessions that sit idle too long are checked before they are handed
+ * out again, and any that fail the check are thrown away.  Sessions
+ * idle longer than the maximum idle time are disconnected.
+ *
+ * This is threadsafe.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.urbancode.anthill3.main.client.AnthillClient;
+import com.urbancode.anthill3.persistence.UnitOfWork;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ClientPool
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(ClientPool.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /*
+     * Defaults
+     */
+    public static final int     DEFAULT_MAX_IDLE_PER_KEY = 8;
+    public static final long    DEFAULT_VALIDATE_AFTER_MILLIS = 30000;
+    public static final long    DEFAULT_MAX_IDLE_MILLIS = 600000;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Idle sessions by connection.  Most recently used at the head.
+     * Guarded by 'this'.
+     */
+    private final Map<ConnectionInfo, Deque<IdleClient>>  idle =
+                            new HashMap<ConnectionInfo, Deque<IdleClient>>();
+
+    /*
+     * Tunables
+     */
+    private volatile int    maxIdlePerKey = DEFAULT_MAX_IDLE_PER_KEY;
+    private volatile long   validateAfterMillis = DEFAULT_VALIDATE_AFTER_MILLIS;
+    private volatile long   maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+
+    /*
+     * Once closed, nothing goes back in the pool
+     */
+    private boolean         closed = false;
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param maxIdlePerKey  How many idle sessions to keep for each
+     *                       connection.  Extra ones are disconnected.
+     */
+    public void setMaxIdlePerKey(int maxIdlePerKey)
+    {
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * @param validateAfterMillis  Sessions idle longer than this get a
+     *                             health check before being leased.
+     */
+    public void setValidateAfterMillis(long validateAfterMillis)
+    {
+        this.validateAfterMillis = validateAfterMillis;
+    }
+
+    /**
+     * @param maxIdleMillis  Sessions idle longer than this are
+     *                       disconnected rather than reused.
+     */
+    public void setMaxIdleMillis(long maxIdleMillis)
+    {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * @param info   Connection to count idle sessions for
+     * @return number of idle sessions held for a connection
+     */
+    public synchronized int getIdleCount(final ConnectionInfo info)
+    {
+        Deque<IdleClient> q = idle.get(info);
+
+        return (q == null) ? 0 : q.size();
+    }
+
+    /*****************************************************************
+     * LEASING
+     ****************************************************************/
+
+    /**
+     * Lease a client for the given connection.  An idle session will
+     * be reused if there is a healthy one, otherwise a new one is made.
+     *
+     * The client is NOT bound to the calling thread; do that yourself
+     * (Migration does it for you).
+     *
+     * @param info   What to connect to
+     * @return a leased client, which must be released or invalidated.
+     * @throws MigrateException if we have to connect and can't.
+     */
+    public LeasedClient lease(final ConnectionInfo info)
+           throws MigrateException
+    {
+        while(true) {
+            IdleClient ic = takeIdle(info);
+
+            if(ic == null) {
+                break;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if((now - ic.since) > maxIdleMillis) {
+                LOG.debug("Session for {} idle too long; disconnecting", info);
+                disconnect(ic.client);
+                continue;
+            }
+
+            if(((now - ic.checked) > validateAfterMillis) &&
+               !validate(ic.client)) {
+                LOG.warn("Session for {} failed health check; evicting", info);
+                disconnect(ic.client);
+                continue;
+            }
+
+            LOG.debug("Reusing pooled session for {}", info);
+            return new LeasedClient(this, info, ic.client);
+        }
+
+        LOG.debug("No pooled session for {}; connecting", info);
+        return new LeasedClient(this, info, info.connect());
+    }
+
+    /**
+     * Disconnect idle sessions that have been idle longer than the
+     * maximum idle time, and health check the rest.  Leasing does this
+     * lazily anyway; call this periodically if you want idle sessions
+     * to be cleaned up between batches.
+     */
+    public void evictIdle()
+    {
+        List<IdleClient> check = new ArrayList<IdleClient>();
+        List<ConnectionInfo> keys = new ArrayList<ConnectionInfo>();
+        long now = System.currentTimeMillis();
+
+        // Pull out everything that needs attention so we don't talk to
+        // AHP while holding the lock.
+        synchronized(this) {
+            for(Map.Entry<ConnectionInfo, Deque<IdleClient>> e :
+                idle.entrySet()) {
+                Iterator<IdleClient> i = e.getValue().iterator();
+
+                while(i.hasNext()) {
+                    IdleClient ic = i.next();
+
+                    if(((now - ic.checked) > validateAfterMillis) ||
+                       ((now - ic.since) > maxIdleMillis)) {
+                        i.remove();
+                        check.add(ic);
+                        keys.add(e.getKey());
+                    }
+                }
+            }
+        }
+
+        for(int i = 0; i < check.size(); i++) {
+            IdleClient ic = check.get(i);
+
+            if(((now - ic.since) > maxIdleMillis) || !validate(ic.client)) {
+                LOG.debug("Evicting idle session for {}", keys.get(i));
+                disconnect(ic.client);
+            } else {
+                // Still idle since it first went idle; only the check
+                // is new
+                ic.checked = System.currentTimeMillis();
+                putBack(keys.get(i), ic, false);
+            }
+        }
+    }
+
+    /**
+     * Disconnect everything idle and stop pooling.  Clients that are
+     * leased at the time will be disconnected when they are returned.
+     */
+    public void close()
+    {
+        List<IdleClient> all = new ArrayList<IdleClient>();
+
+        synchronized(this) {
+            closed = true;
+
+            for(Deque<IdleClient> q : idle.values()) {
+                all.addAll(q);
+            }
+
+            idle.clear();
+        }
+
+        for(IdleClient ic : all) {
+            disconnect(ic.client);
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Health check a session.  The default binds it, makes a unit of
+     * work and throws it away.  Override if your AHP needs something
+     * more convincing.
+     *
+     * @param client    The client to check
+     * @return true if it's healthy
+     */
+    protected boolean validate(final AnthillClient client)
+    {
+        UnitOfWork uow = null;
+
+        try {
+            client.bind();
+            uow = client.createUnitOfWork();
+            return true;
+        } catch(Exception e) {
+            LOG.debug("Health check failed", e);
+            return false;
+        } finally {
+            if(uow != null) {
+                try {
+                    uow.cancel();
+                } catch(Exception e) { }
+
+                try {
+                    uow.close();
+                } catch(Exception e) { }
+            }
+
+            try {
+                client.unbind();
+            } catch(Exception e) { }
+        }
+    }
+
+    /**
+     * Pop the most recently used idle client for a connection.
+     *
+     * @param info  Connection key
+     * @return an idle client or null
+     */
+    private synchronized IdleClient takeIdle(final ConnectionInfo info)
+    {
+        Deque<IdleClient> q = idle.get(info);
+
+        if((q == null) || q.isEmpty()) {
+            return null;
+        }
+
+        return q.pollFirst();
+    }
+
+    /**
+     * Take a client back into the pool.  Used by LeasedClient.
+     *
+     * @param info      Connection key
+     * @param client    The client coming back
+     */
+    void giveBack(final ConnectionInfo info, final AnthillClient client)
+    {
+        putBack(info, new IdleClient(client), true);
+    }
+
+    /**
+     * Put an idle client in the pool, or disconnect it if the pool is
+     * full or closed.
+     *
+     * @param info      Connection key
+     * @param ic        The idle client
+     * @param recent    True if it was just used, so it goes at the head;
+     *                  false if it's been idle a while, so it goes at
+     *                  the tail
+     */
+    private void putBack(final ConnectionInfo info, final IdleClient ic,
+                         boolean recent)
+    {
+        synchronized(this) {
+            if(!closed) {
+                Deque<IdleClient> q = idle.get(info);
+
+                if(q == null) {
+                    q = new ArrayDeque<IdleClient>();
+                    idle.put(info, q);
+                }
+
+                if(q.size() < maxIdlePerKey) {
+                    if(recent) {
+                        q.addFirst(ic);
+                    } else {
+                        q.addLast(ic);
+                    }
+
+                    return;
+                }
+            }
+        }
+
+        // Pool is full or closed
+        disconnect(ic.client);
+    }
+
+    /**
+     * Throw a client away.  Used by LeasedClient.
+     *
+     * @param info      Connection key
+     * @param client    The client to get rid of
+     */
+    void discard(final ConnectionInfo info, final AnthillClient client)
+    {
+        LOG.debug("Discarding session for {}", info);
+        disconnect(client);
+    }
+
+    /**
+     * Disconnect a client, ignoring any error.
+     *
+     * @param client    The client to disconnect
+     */
+    private static void disconnect(final AnthillClient client)
+    {
+        try {
+            client.disconnect();
+        } catch(Exception e) { }
+    }
+
+    /**
+     * An idle client, when it went idle, and when it was last known to
+     * be healthy.  'checked' is guarded by the pool's lock while the
+     * client is in the pool, and owned by evictIdle while it's out.
+     */
+    private static class IdleClient
+    {
+        final AnthillClient client;
+        final long          since = System.currentTimeMillis();
+        long                checked = since;
+
+        IdleClient(final AnthillClient client)
+        {
+            this.client = client;
+        }
+    }
+}
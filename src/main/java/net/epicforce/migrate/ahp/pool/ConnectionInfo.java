@@ -0,0 +1,222 @@
+package net.epicforce.migrate.ahp.pool;
+
+/*
+ * ConnectionInfo.java
+ *
+ * Everything needed to connect to an AHP server, in one place.
+ *
+ * Two ConnectionInfo's are equal if they point at the same host, port
+ * and user with the same password and keystore; that's what the
+ * ClientPool keys its sessions on.  The credentials have to be part of
+ * the key, or a pooled session that's already logged in would be handed
+ * to someone who never authenticated.
+ */
+
+import java.lang.NullPointerException;
+
+import com.urbancode.anthill3.domain.security.AuthorizationException;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.ConnectException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ConnectionInfo
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(ConnectionInfo.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final String    host;
+    private final int       port;
+    private final String    username;
+    private final String    password;
+    private final String    keystorePath;
+    private final String    keystorePass;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: takes AHP connection information.
+     *
+     * @param host          AHP Host name
+     * @param port          AHP Remoting Port
+     * @param username      AHP User name
+     * @param password      AHP Password
+     * @param keystorePath  Keystore path, if used.
+     * @param keystorePass  Keystore password, if used.
+     */
+    public ConnectionInfo(final String host, int port, final String username,
+                          final String password, final String keystorePath,
+                          final String keystorePass)
+    {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.keystorePath = keystorePath;
+        this.keystorePass = keystorePass;
+    }
+
+    /**
+     * Constructor: no keystore
+     *
+     * @param host          AHP Host name
+     * @param port          AHP Remoting Port
+     * @param username      AHP User name
+     * @param password      AHP Password
+     */
+    public ConnectionInfo(final String host, int port, final String username,
+                          final String password)
+    {
+        this(host, port, username, password, null, null);
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /*****************************************************************
+     * CONNECT
+     ****************************************************************/
+
+    /**
+     * Open a brand new AnthillClient session.
+     *
+     * NOTE : The keystore is set via system properties, so this is not
+     *        threadsafe if different keystores are used at the same
+     *        time.  Same keystore (or no keystore) is fine.
+     *
+     * @return a connected client; never null
+     * @throws MigrateException on error -- probably a ConnectException
+     */
+    public AnthillClient connect()
+           throws MigrateException
+    {
+        try {
+            LOG.debug("Connecting to {}:{} as {}", host, port, username);
+
+            // Set properties for keystore load
+            if((keystorePath != null) && (keystorePath.length() > 0)) {
+                System.setProperty("anthill3.client.ssl.keystore.pwd",
+                                   keystorePass);
+                System.setProperty("anthill3.client.ssl.keystore",
+                                   keystorePath);
+            } else {
+                System.clearProperty("anthill3.client.ssl.keystore.pwd");
+                System.clearProperty("anthill3.client.ssl.keystore");
+            }
+
+            // Try to connect
+            AnthillClient client = AnthillClient.connect(host, port,
+                                                         username, password);
+
+            if(client == null) {
+                LOG.error("AnthillClient returned null -- probably bad " +
+                          "credentials.");
+                throw new ConnectException(
+                    "Could not Connect to Anthill Pro.  This is probably "
+                    + "a username/password problem."
+                );
+            }
+
+            return client;
+        } catch(AuthorizationException e) {
+            LOG.error("Caught exception", e);
+            throw new ConnectException("Could not connect to Anthill Pro", e);
+        } catch(NullPointerException e) {
+            LOG.error("A NullPointerException was thrown -- this is " +
+                      "probably an AHP connection problem (hostname?)");
+            // AHP throws null pointer exceptions if the host name is
+            // wrong (among other potential problems that I guess AHP
+            // doesn't error check for)
+            throw new ConnectException(
+                "One of your settings (probably hostname) is incorrect.  "
+                + "Please double-check and try again."
+            );
+        }
+    }
+
+    /*****************************************************************
+     * KEYING
+     ****************************************************************/
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if(this == o) {
+            return true;
+        }
+
+        if(!(o instanceof ConnectionInfo)) {
+            return false;
+        }
+
+        ConnectionInfo other = (ConnectionInfo)o;
+
+        return (port == other.port) &&
+               same(host, other.host) &&
+               same(username, other.username) &&
+               same(password, other.password) &&
+               same(keystorePath, other.keystorePath) &&
+               same(keystorePass, other.keystorePass);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int ret = port;
+
+        ret = 31 * ret + hash(host);
+        ret = 31 * ret + hash(username);
+        ret = 31 * ret + hash(password);
+        ret = 31 * ret + hash(keystorePath);
+        ret = 31 * ret + hash(keystorePass);
+
+        return ret;
+    }
+
+    /**
+     * Null-safe equality
+     */
+    private static boolean same(final String a, final String b)
+    {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Null-safe hash
+     */
+    private static int hash(final String s)
+    {
+        return (s == null) ? 0 : s.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return username + "@" + host + ":" + port;
+    }
+}
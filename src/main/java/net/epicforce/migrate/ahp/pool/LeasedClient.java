@@ -0,0 +1,140 @@
+package net.epicforce.migrate.ahp.pool;
+
+/*
+ * LeasedClient.java
+ *
+ * An AnthillClient that has been borrowed from a ClientPool.  When
+ * you're done with it, release() it so someone else can have it; if
+ * it's gone bad, invalidate() it instead so it gets thrown away.
+ *
+ * Either one will unbind the client from the calling thread.
+ */
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public class LeasedClient
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final ClientPool        pool;
+    private final ConnectionInfo    info;
+    private final AnthillClient     client;
+
+    /*
+     * Set once the lease is handed back
+     */
+    private final AtomicBoolean     returned = new AtomicBoolean(false);
+
+    /**
+     * Constructor: only the pool makes these.
+     *
+     * @param pool      The pool we came from
+     * @param info      The connection information we were leased for
+     * @param client    The underlying client
+     */
+    LeasedClient(final ClientPool pool, final ConnectionInfo info,
+                 final AnthillClient client)
+    {
+        this.pool = pool;
+        this.info = info;
+        this.client = client;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the leased client
+     */
+    public AnthillClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * @return what this client is connected to
+     */
+    public ConnectionInfo getConnectionInfo()
+    {
+        return info;
+    }
+
+    /**
+     * @return true if this lease has been released or invalidated
+     */
+    public boolean isReturned()
+    {
+        return returned.get();
+    }
+
+    /**
+     * Lease another session for the same connection, from the same
+     * pool.  For when a second thread needs a session of its own.
+     *
+     * @return a new lease, which must be released or invalidated
+     * @throws MigrateException if the pool has to connect and can't
+     */
+    public LeasedClient leaseAnother()
+           throws MigrateException
+    {
+        return pool.lease(info);
+    }
+
+    /*****************************************************************
+     * THREAD BINDING
+     ****************************************************************/
+
+    /**
+     * Bind the client to the calling thread.
+     */
+    public void bind()
+    {
+        client.bind();
+    }
+
+    /**
+     * Unbind the client from the calling thread.  This will not
+     * throw an exception.
+     */
+    public void unbind()
+    {
+        try {
+            client.unbind();
+        } catch(Exception e) { }
+    }
+
+    /*****************************************************************
+     * RETURNING
+     ****************************************************************/
+
+    /**
+     * Give the client back to the pool for reuse.  Safe to call more
+     * than once; only the first call does anything.
+     */
+    public void release()
+    {
+        if(returned.compareAndSet(false, true)) {
+            unbind();
+            pool.giveBack(info, client);
+        }
+    }
+
+    /**
+     * Give the client back to the pool, but have it thrown away rather
+     * than reused.  Use this if the session looks broken.
+     */
+    public void invalidate()
+    {
+        if(returned.compareAndSet(false, true)) {
+            unbind();
+            pool.discard(info, client);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * ParallelWorkflowQuery.java
+ *
+ * Migration.fetchWorkflowsForProjectName loads each project's
+ * workflows one after another, and nearly all of that time is spent
+ * waiting on AHP.  This does the same query, but splits the matching
+ * projects across several sessions (each with its own thread and unit
+ * of work) and loads them at the same time.
+ *
+ * The results are merged back together sorted by project name, so the
+ * answer looks the same as the single threaded version.
+ *
+ * Sessions are leased from a ClientPool, so repeated queries don't
+ * pay to connect every time.  The calls made to AHP are protected
+ * methods, so a subclass can answer from somewhere else.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.project.Project;
+import com.urbancode.anthill3.domain.project.ProjectFactory;
+import com.urbancode.anthill3.domain.security.AuthorizationException;
+import com.urbancode.anthill3.persistence.UnitOfWork;
+
+import net.epicforce.migrate.ahp.exception.ConnectException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.pool.ClientPool;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+import net.epicforce.migrate.ahp.pool.LeasedClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ParallelWorkflowQuery
+{
+    private final static Logger LOG =
+                        LoggerFactory.getLogger(ParallelWorkflowQuery.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final ConnectionInfo    connection;
+    private final ClientPool        pool;
+    private final int               parallelism;
+
+    /**
+     * Constructor
+     *
+     * @param connection    Where to connect
+     * @param pool          Pool to lease sessions from
+     * @param parallelism   How many sessions to load projects with at
+     *                      once.  Must be at least 1.
+     */
+    public ParallelWorkflowQuery(final ConnectionInfo connection,
+                                 final ClientPool pool, int parallelism)
+    {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException(
+                "Parallelism must be at least 1"
+            );
+        }
+
+        this.connection = connection;
+        this.pool = pool;
+        this.parallelism = parallelism;
+    }
+
+    /*****************************************************************
+     * QUERIES
+     ****************************************************************/
+
+    /**
+     * Take a project name query and return a map of project names to
+     * Workflow name/ID pairs, loading projects in parallel.
+     *
+     * See Migration.fetchWorkflowsForProjectName for what the
+     * parameters mean; they're the same.
+     *
+     * @param project  The query string
+     * @param limit    Limit the results to the provided number of
+     *                 projects.  Can be 0 for no limit.
+     * @return a map of project names to workflow name/ID pairs, sorted
+     *         by project name.
+     * @throws MigrateException on any kind of error.
+     */
+    public Map<String, Map<String, Long>>
+           fetchWorkflowsForProjectName(final String project, int limit)
+           throws MigrateException
+    {
+        LOG.debug("fetchWorkflowsForProjectName: {}, {} with {} sessions",
+                  project, limit, parallelism
+        );
+
+        // Find the projects with one session; we only keep the IDs,
+        // since the Project objects belong to this unit of work.
+        final List<Long> ids = findProjects(project, limit);
+
+        if(ids.isEmpty()) {
+            return new LinkedHashMap<String, Map<String, Long>>();
+        }
+
+        final Map<String, Map<String, Long>> found =
+                        new ConcurrentHashMap<String, Map<String, Long>>();
+        int workers = Math.min(parallelism, ids.size());
+
+        ExecutorService exec = Executors.newFixedThreadPool(workers,
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r)
+                {
+                    Thread t = new Thread(r, "ahp-query");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+
+            // Deal the projects out round robin so each worker gets a
+            // similar mix.
+            for(int w = 0; w < workers; w++) {
+                final List<Long> share = new ArrayList<Long>();
+
+                for(int i = w; i < ids.size(); i += workers) {
+                    share.add(ids.get(i));
+                }
+
+                futures.add(exec.submit(new Callable<Void>() {
+                    public Void call()
+                           throws MigrateException
+                    {
+                        load(share, found);
+                        return null;
+                    }
+                }));
+            }
+
+            for(Future<Void> f : futures) {
+                f.get();
+            }
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof MigrateException) {
+                throw (MigrateException)e.getCause();
+            }
+
+            if(e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Error loading projects",
+                                       (Exception)e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrateException("Interrupted while loading projects",
+                                       e);
+        } finally {
+            exec.shutdownNow();
+        }
+
+        // Merge back in name order
+        List<String> names = new ArrayList<String>(found.keySet());
+        Collections.sort(names);
+
+        LinkedHashMap<String, Map<String, Long>> ret =
+                    new LinkedHashMap<String, Map<String, Long>>(names.size());
+
+        for(String name : names) {
+            ret.put(name, found.get(name));
+        }
+
+        return ret;
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Find project IDs matching a name query.
+     *
+     * @param project   The query string
+     * @param limit     Result limit, or 0 for none
+     * @return list of project IDs
+     * @throws MigrateException on error, or too many results
+     */
+    private List<Long> findProjects(final String project,
+                                    final int limit)
+            throws MigrateException
+    {
+        return withSession(new SessionWork<List<Long>>() {
+            public List<Long> run()
+                   throws PersistenceException, AuthorizationException,
+                          MigrateException
+            {
+                Project[] projects = restoreAllLikeName(project);
+
+                LOG.debug("Got {} results", projects.length);
+
+                if((limit > 0) && (projects.length > limit)) {
+                    LOG.error("Got too many results - {} out of {}",
+                              projects.length, limit);
+                    throw new MigrateException(
+                        "Returned too many results: " +
+                        String.valueOf(projects.length) +
+                        " with limit of " +
+                        String.valueOf(limit)
+                    );
+                }
+
+                List<Long> ret = new ArrayList<Long>(projects.length);
+
+                for(Project p : projects) {
+                    ret.add(p.getId());
+                }
+
+                return ret;
+            }
+        });
+    }
+
+    /**
+     * Load workflows for a list of projects on the calling thread.
+     *
+     * @param ids       Project IDs to load
+     * @param found     Where to put the results
+     * @throws MigrateException on error
+     */
+    private void load(final List<Long> ids,
+                      final Map<String, Map<String, Long>> found)
+            throws MigrateException
+    {
+        withSession(new SessionWork<Void>() {
+            public Void run()
+                   throws PersistenceException, AuthorizationException
+            {
+                for(Long id : ids) {
+                    Project p = restore(id);
+
+                    // Could have been deleted since we looked
+                    if(p != null) {
+                        found.put(p.getName(), workflowsOf(p));
+                    }
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Lease a session, bind it to this thread, open a unit of work, run
+     * some work and clean it all up again.
+     *
+     * @param work      What to do
+     * @return whatever the work returns
+     * @throws MigrateException on error
+     */
+    private <T> T withSession(final SessionWork<T> work)
+            throws MigrateException
+    {
+        LeasedClient lease = pool.lease(connection);
+        UnitOfWork uow = null;
+        boolean broken = false;
+
+        try {
+            uow = begin(lease);
+
+            return work.run();
+        } catch(PersistenceException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Got a persistence error from AHP: ",
+                                       e);
+        } catch(AuthorizationException e) {
+            LOG.error("Caught exception", e);
+            broken = true;
+            throw new ConnectException("Failed authorization with AHP: ",
+                                       e);
+        } catch(RuntimeException e) {
+            broken = true;
+            throw e;
+        } finally {
+            if(uow != null) {
+                try {
+                    uow.cancel();
+                } catch(Exception e) { }
+
+                uow.close();
+            }
+
+            if(broken) {
+                lease.invalidate();
+            } else {
+                lease.release();
+            }
+        }
+    }
+
+    /*****************************************************************
+     * AHP CALLS
+     *
+     * Everything the query asks of AHP.  Override these to query
+     * something else; the projects are still dealt out to leased
+     * sessions the same way.
+     ****************************************************************/
+
+    /**
+     * Bind a leased session to the calling thread and start a unit of
+     * work in it.
+     *
+     * @param lease     The session
+     * @return the unit of work, or null if there isn't one
+     * @throws PersistenceException on AHP error
+     */
+    protected UnitOfWork begin(final LeasedClient lease)
+              throws PersistenceException
+    {
+        lease.bind();
+        return lease.getClient().createUnitOfWork();
+    }
+
+    /**
+     * @param project   The query string
+     * @return every project whose name is like it
+     * @throws PersistenceException on AHP error
+     */
+    protected Project[] restoreAllLikeName(final String project)
+              throws PersistenceException
+    {
+        return ProjectFactory.getInstance().restoreAllLikeName(project);
+    }
+
+    /**
+     * @param id    A project ID
+     * @return the project, or null if there's no such project
+     * @throws PersistenceException on AHP error
+     */
+    protected Project restore(final Long id)
+              throws PersistenceException
+    {
+        return ProjectFactory.getInstance().restore(id);
+    }
+
+    /**
+     * @param p     A project
+     * @return its workflows; see ProjectWorkflows.load
+     * @throws PersistenceException on AHP error
+     * @throws AuthorizationException on AHP error
+     */
+    protected Map<String, Long> workflowsOf(final Project p)
+              throws PersistenceException, AuthorizationException
+    {
+        return ProjectWorkflows.load(p);
+    }
+
+    /**
+     * Something to do with a bound session.
+     */
+    private interface SessionWork<T>
+    {
+        T run()
+          throws PersistenceException, AuthorizationException,
+                 MigrateException;
+    }
+}
@@ -0,0 +1,69 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * ProjectWorkflows.java
+ *
+ * Helpers shared by the different ways of looking up workflows by
+ * project.  Everything here must be called on a thread with a bound
+ * client and an open unit of work.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.project.Project;
+import com.urbancode.anthill3.domain.security.AuthorizationException;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class ProjectWorkflows
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(ProjectWorkflows.class);
+
+    /*
+     * Not for instancing
+     */
+    private ProjectWorkflows()
+    {
+    }
+
+    /**
+     * Load the originating workflows for a project into a name to ID
+     * map, in the order AHP gives them to us.
+     *
+     * @param p     The project
+     * @return map of workflow name to ID
+     * @throws PersistenceException on AHP error
+     * @throws AuthorizationException on AHP error
+     */
+    public static Map<String, Long> load(final Project p)
+           throws PersistenceException, AuthorizationException
+    {
+        // Grab workflows (originating)
+        Workflow[] workflows = p.getOriginatingWorkflowArray();
+
+        if(LOG.isDebugEnabled()) {
+            LOG.debug("Project {} got {} results", p.getName(),
+                                                   workflows.length
+            );
+        }
+
+        // Add to our map
+        LinkedHashMap<String, Long> wfm =
+            new LinkedHashMap<String, Long>(workflows.length);
+
+        for(Workflow w : workflows) {
+            wfm.put(w.getName(), w.getId());
+
+            if(LOG.isDebugEnabled()) {
+                LOG.debug("...Workflow: {}", w.getName());
+            }
+        }
+
+        return wfm;
+    }
+}
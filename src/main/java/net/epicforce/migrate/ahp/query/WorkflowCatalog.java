@@ -0,0 +1,530 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * WorkflowCatalog.java
+ *
+ * Finding workflows by project name in AHP takes minutes, because
+ * each project's workflows are a separate remote call.  This keeps a
+ * local copy of the project name / workflow name / workflow ID data,
+ * saved to a file, so lookups are served from memory instead.
+ *
+ * The catalog is built the slow way once, and then kept fresh a few
+ * projects at a time: each refresh pass lists the projects in AHP
+ * (one call), drops the ones that are gone, and reloads the workflows
+ * of new projects first and then the stalest known ones.  This can be
+ * run in the background on a timer.
+ *
+ * Queries never talk to AHP, so the answer may be a little out of date
+ * depending on how often you refresh.
+ *
+ * This is threadsafe.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.project.Project;
+import com.urbancode.anthill3.domain.project.ProjectFactory;
+import com.urbancode.anthill3.domain.security.AuthorizationException;
+import com.urbancode.anthill3.persistence.UnitOfWork;
+
+import net.epicforce.migrate.ahp.exception.ConnectException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.pool.ClientPool;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+import net.epicforce.migrate.ahp.pool.LeasedClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class WorkflowCatalog
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(WorkflowCatalog.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /*
+     * File format identification
+     */
+    private static final int    MAGIC = 0x41485043;   // "AHPC"
+    private static final int    VERSION = 1;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Where to get sessions from and where to save
+     */
+    private final ConnectionInfo    connection;
+    private final ClientPool        pool;
+    private final File              file;
+
+    /*
+     * The catalog itself, sorted by project name.  Entries are never
+     * modified, only replaced, so readers don't need to lock.
+     */
+    private final ConcurrentSkipListMap<String, ProjectEntry>  projects =
+                            new ConcurrentSkipListMap<String, ProjectEntry>();
+
+    /*
+     * Only one refresh at a time
+     */
+    private final Object            refreshLock = new Object();
+
+    /*
+     * Background refresher, if started
+     */
+    private ScheduledExecutorService    refresher = null;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: loads the catalog file if there is one.  It does not
+     * talk to AHP; call refresh() or startBackgroundRefresh() for that.
+     *
+     * @param connection    Where to connect for refreshes
+     * @param pool          Pool to lease sessions from for refreshes
+     * @param file          Where to keep the catalog on disk
+     * @throws MigrateException if the file exists but can't be read
+     */
+    public WorkflowCatalog(final ConnectionInfo connection,
+                           final ClientPool pool, final File file)
+           throws MigrateException
+    {
+        this.connection = connection;
+        this.pool = pool;
+        this.file = file;
+
+        if(file.exists()) {
+            load();
+        }
+    }
+
+    /*****************************************************************
+     * QUERIES
+     ****************************************************************/
+
+    /**
+     * Look up projects by name and return a map of project names to
+     * workflow name/ID pairs -- the same shape of result that
+     * Migration.fetchWorkflowsForProjectName returns, but from the
+     * catalog.
+     *
+     * The query is matched as an SQL LIKE pattern: '%' for any run of
+     * characters and '_' for any one character, with no escape
+     * character, case insensitively.  That is meant to mirror AHP's
+     * restoreAllLikeName, but it's our own matching, not AHP's; if
+     * AHP's database does something different (an escape character,
+     * a case sensitive or accent insensitive collation), the catalog
+     * can match a different set of projects than AHP would.
+     *
+     * @param project  The query string
+     * @param limit    Limit the results to the provided number of
+     *                 projects.  Can be 0 for no limit.
+     * @return a map of project names to workflow name/ID pairs, sorted
+     *         by project name.
+     * @throws MigrateException if there are more results than limit
+     */
+    public Map<String, Map<String, Long>> query(final String project,
+                                                int limit)
+           throws MigrateException
+    {
+        Pattern p = likeToPattern(project);
+        LinkedHashMap<String, Map<String, Long>> ret =
+                            new LinkedHashMap<String, Map<String, Long>>();
+
+        for(ProjectEntry e : projects.values()) {
+            if(!p.matcher(e.name).matches()) {
+                continue;
+            }
+
+            if((limit > 0) && (ret.size() >= limit)) {
+                throw new MigrateException(
+                    "Returned too many results with limit of " +
+                    String.valueOf(limit)
+                );
+            }
+
+            ret.put(e.name, e.workflows);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return the number of projects in the catalog
+     */
+    public int getProjectCount()
+    {
+        return projects.size();
+    }
+
+    /**
+     * @return time of the oldest project refresh in milliseconds since
+     *         the epoch, or 0 if the catalog is empty.
+     */
+    public long getOldestRefresh()
+    {
+        long ret = 0;
+
+        for(ProjectEntry e : projects.values()) {
+            if((ret == 0) || (e.refreshed < ret)) {
+                ret = e.refreshed;
+            }
+        }
+
+        return ret;
+    }
+
+    /*****************************************************************
+     * REFRESH
+     ****************************************************************/
+
+    /**
+     * Rebuild the whole catalog from AHP.  This is slow -- it's the
+     * same minutes-long walk the catalog is meant to avoid -- so you
+     * probably want it once, and refresh(int) after that.
+     *
+     * @throws MigrateException on any AHP error
+     */
+    public void refresh()
+           throws MigrateException
+    {
+        refresh(0);
+    }
+
+    /**
+     * Refresh part of the catalog from AHP and save it.  New projects
+     * are loaded first, then the ones that were refreshed longest ago.
+     * Projects no longer in AHP are removed.
+     *
+     * @param maxProjects   Maximum number of projects to reload
+     *                      workflows for.  0 for all of them.
+     * @throws MigrateException on any AHP error
+     */
+    public void refresh(int maxProjects)
+           throws MigrateException
+    {
+        synchronized(refreshLock) {
+            LeasedClient lease = pool.lease(connection);
+            UnitOfWork uow = null;
+            boolean broken = true;
+
+            try {
+                lease.bind();
+                uow = lease.getClient().createUnitOfWork();
+
+                Project[] all = ProjectFactory.getInstance().restoreAll();
+
+                LOG.debug("Catalog refresh: AHP has {} projects", all.length);
+
+                // Drop projects that have gone away
+                Set<String> names = new HashSet<String>(all.length);
+
+                for(Project p : all) {
+                    names.add(p.getName());
+                }
+
+                projects.keySet().retainAll(names);
+
+                // Decide what to reload: new ones, then stalest
+                List<Project> order = new ArrayList<Project>(all.length);
+
+                Collections.addAll(order, all);
+                Collections.sort(order, new Comparator<Project>() {
+                    public int compare(final Project a, final Project b)
+                    {
+                        return Long.compare(lastRefreshed(a.getName()),
+                                            lastRefreshed(b.getName()));
+                    }
+                });
+
+                if((maxProjects > 0) && (order.size() > maxProjects)) {
+                    order = order.subList(0, maxProjects);
+                }
+
+                for(Project p : order) {
+                    Map<String, Long> wfm = ProjectWorkflows.load(p);
+
+                    projects.put(p.getName(),
+                                 new ProjectEntry(p.getName(),
+                                                  System.currentTimeMillis(),
+                                                  wfm)
+                    );
+                }
+
+                LOG.debug("Catalog refresh: reloaded {} projects",
+                          order.size()
+                );
+
+                broken = false;
+            } catch(PersistenceException e) {
+                LOG.error("Caught exception", e);
+                throw new MigrateException("Got a persistence error from AHP: ",
+                                           e);
+            } catch(AuthorizationException e) {
+                LOG.error("Caught exception", e);
+                throw new ConnectException("Failed authorization with AHP: ",
+                                           e);
+            } finally {
+                if(uow != null) {
+                    try {
+                        uow.cancel();
+                    } catch(Exception e) { }
+
+                    uow.close();
+                }
+
+                if(broken) {
+                    lease.invalidate();
+                } else {
+                    lease.release();
+                }
+            }
+
+            save();
+        }
+    }
+
+    /**
+     * Start refreshing in the background on a daemon thread.  Errors
+     * are logged and the next pass tries again.
+     *
+     * @param periodMillis  Time between refresh passes
+     * @param maxProjects   Projects to reload per pass (0 for all)
+     */
+    public synchronized void startBackgroundRefresh(long periodMillis,
+                                                    final int maxProjects)
+    {
+        if(refresher != null) {
+            return;
+        }
+
+        refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r)
+                {
+                    Thread t = new Thread(r, "ahp-catalog-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try {
+                    refresh(maxProjects);
+                } catch(Exception e) {
+                    LOG.warn("Background catalog refresh failed", e);
+                }
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background refresh, if it's running.  A pass that is
+     * already underway will be interrupted.
+     */
+    public synchronized void stopBackgroundRefresh()
+    {
+        if(refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /*****************************************************************
+     * PERSISTENCE
+     ****************************************************************/
+
+    /**
+     * Save the catalog to its file.  The file is replaced atomically
+     * so a crash mid-save won't leave a broken catalog.
+     *
+     * @throws MigrateException on I/O error
+     */
+    public void save()
+           throws MigrateException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            try(DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(
+                                            new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                List<ProjectEntry> entries =
+                                new ArrayList<ProjectEntry>(projects.values());
+
+                out.writeInt(entries.size());
+
+                for(ProjectEntry e : entries) {
+                    out.writeUTF(e.name);
+                    out.writeLong(e.refreshed);
+                    out.writeInt(e.workflows.size());
+
+                    for(Map.Entry<String, Long> w : e.workflows.entrySet()) {
+                        out.writeUTF(w.getKey());
+                        out.writeLong(w.getValue());
+                    }
+                }
+            }
+
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Could not save workflow catalog", e);
+        }
+    }
+
+    /**
+     * Load the catalog from its file, replacing whatever we had.
+     *
+     * @throws MigrateException on I/O error or a bad file
+     */
+    private void load()
+            throws MigrateException
+    {
+        try(DataInputStream in = new DataInputStream(
+                                    new BufferedInputStream(
+                                        new FileInputStream(file)))) {
+            if((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new MigrateException(
+                    "Not a workflow catalog (or wrong version): " +
+                    file.getPath()
+                );
+            }
+
+            int count = in.readInt();
+
+            projects.clear();
+
+            for(int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long refreshed = in.readLong();
+                int wfCount = in.readInt();
+                LinkedHashMap<String, Long> wfm =
+                                    new LinkedHashMap<String, Long>(wfCount);
+
+                for(int j = 0; j < wfCount; j++) {
+                    String wfName = in.readUTF();
+                    wfm.put(wfName, in.readLong());
+                }
+
+                projects.put(name, new ProjectEntry(name, refreshed, wfm));
+            }
+
+            LOG.debug("Loaded {} projects from catalog {}", count,
+                      file.getPath()
+            );
+        } catch(IOException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Could not load workflow catalog", e);
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * @param name  Project name
+     * @return when the project was last refreshed, or 0 if never
+     */
+    private long lastRefreshed(final String name)
+    {
+        ProjectEntry e = projects.get(name);
+
+        return (e == null) ? 0 : e.refreshed;
+    }
+
+    /**
+     * Turn an SQL LIKE style pattern into a regex: '%' is any run of
+     * characters, '_' is any one character, and there's no escape
+     * character.  Everything else is matched literally: anything that
+     * isn't a letter or digit is backslash escaped, so regex
+     * metacharacters in project names never mean anything.
+     *
+     * @param like  The LIKE pattern
+     * @return a case insensitive Pattern
+     */
+    static Pattern likeToPattern(final String like)
+    {
+        StringBuilder sb = new StringBuilder(like.length() * 2);
+
+        for(char c : like.toCharArray()) {
+            if(c == '%') {
+                sb.append(".*");
+            } else if(c == '_') {
+                sb.append('.');
+            } else if(Character.isLetterOrDigit(c) ||
+                      Character.isSurrogate(c)) {
+                // Never special.  Escaping a letter can make it special
+                // (\d, \w), and escaping half a surrogate pair would
+                // split it.
+                sb.append(c);
+            } else {
+                // A backslash before anything that isn't a letter is
+                // always that thing, literally
+                sb.append('\\').append(c);
+            }
+        }
+
+        return Pattern.compile(sb.toString(),
+                               Pattern.CASE_INSENSITIVE |
+                               Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * A project and its workflows.  Never modified once made.
+     */
+    private static class ProjectEntry
+    {
+        final String                    name;
+        final long                      refreshed;
+        final Map<String, Long>         workflows;
+
+        ProjectEntry(final String name, long refreshed,
+                     final Map<String, Long> workflows)
+        {
+            this.name = name;
+            this.refreshed = refreshed;
+            this.workflows = Collections.unmodifiableMap(workflows);
+        }
+    }
+}
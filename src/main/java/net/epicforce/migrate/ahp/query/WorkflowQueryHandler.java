@@ -0,0 +1,29 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * WorkflowQueryHandler.java
+ *
+ * Callback for the streaming version of
+ * Migration.fetchWorkflowsForProjectName.  It is handed each project's
+ * workflows as soon as they have been loaded, rather than waiting for
+ * the whole query to finish.
+ */
+
+import java.util.Map;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface WorkflowQueryHandler
+{
+    /**
+     * Receive one project's workflows.
+     *
+     * @param projectName   The project name
+     * @param workflows     Workflow name to ID map for the project
+     * @return true to keep going, or false to stop the query here
+     * @throws MigrateException to abort the query with an error
+     */
+    public boolean handle(final String projectName,
+                          final Map<String, Long> workflows)
+           throws MigrateException;
+}
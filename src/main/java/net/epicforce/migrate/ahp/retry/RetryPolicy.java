@@ -0,0 +1,384 @@
+package net.epicforce.migrate.ahp.retry;
+
+/*
+ * RetryPolicy.java
+ *
+ * Tries an operation again when it fails for what looks like a passing
+ * reason: AHP's remoting dropping a connection, the database behind it
+ * hiccupping, that sort of thing.  Only the operation that failed is
+ * retried, not the whole migration.
+ *
+ * Attempts are spaced out with exponential backoff, and each wait is
+ * jittered so that a batch of migrations that all failed at once don't
+ * all come back at once too.
+ *
+ * A policy can also have a retry budget: retries are only allowed
+ * while they're under a given fraction of all the operations the
+ * policy has run (plus a few to get going).  When AHP is down for real
+ * and everything is failing, that stops a big batch from turning into
+ * a retry storm.  The budget is per policy, so sharing one policy
+ * across a batch shares the budget too.
+ *
+ * What counts as passing is decided by isRetryable and isPermanent;
+ * subclass to change it.
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.FileSystemException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+
+import net.epicforce.migrate.ahp.exception.CancelledException;
+import net.epicforce.migrate.ahp.exception.SkipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RetryPolicy
+{
+    private final static Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /*****************************************************************
+     * TYPES
+     ****************************************************************/
+
+    /*
+     * The operations of a migration that can be retried
+     */
+    public enum Operation
+    {
+        /* Restoring the workflow */
+        LOAD_WORKFLOW,
+
+        /* Fetching a job's step configs */
+        LOAD_STEPS,
+
+        /* Running a step class */
+        RUN_STEP
+    }
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    public static final int     DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long    DEFAULT_INITIAL_DELAY = 200;
+    public static final long    DEFAULT_MAX_DELAY = 10000;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * How many times to try, in all
+     */
+    private int                 maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /*
+     * Backoff: the first wait, the most we'll ever wait (both in
+     * milliseconds), what each wait is multiplied by, and how much of
+     * each wait is random.
+     */
+    private long                initialDelay = DEFAULT_INITIAL_DELAY;
+    private long                maxDelay = DEFAULT_MAX_DELAY;
+    private double              multiplier = 2.0;
+    private double              jitter = 0.5;
+
+    /*
+     * Retry budget: retries may be at most this fraction of calls,
+     * plus minRetries.  A negative ratio means no budget.
+     */
+    private double              budgetRatio = -1;
+    private int                 minRetries = 0;
+
+    /*
+     * Counters, for the budget and for the curious
+     */
+    private final AtomicLong    callCount = new AtomicLong();
+    private final AtomicLong    retryCount = new AtomicLong();
+    private final AtomicLong    exhaustedCount = new AtomicLong();
+
+    /**
+     * Constructor: the defaults; 3 attempts, waiting around 200ms and
+     * then 400ms between them, and no budget.
+     */
+    public RetryPolicy()
+    {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxAttempts   How many times to try, in all; 1 means
+     *                      never retry.
+     */
+    public RetryPolicy(int maxAttempts)
+    {
+        setMaxAttempts(maxAttempts);
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param maxAttempts   How many times to try, in all; at least 1.
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        if(maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                "Need at least 1 attempt"
+            );
+        }
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param initialDelay  Milliseconds to wait before the first retry
+     * @param maxDelay      The longest to ever wait between attempts
+     * @param multiplier    What the wait is multiplied by after each
+     *                      retry; at least 1.
+     */
+    public void setBackoff(long initialDelay, long maxDelay,
+                           double multiplier)
+    {
+        if((initialDelay < 0) || (maxDelay < initialDelay) ||
+           (multiplier < 1)) {
+            throw new IllegalArgumentException("Bad backoff settings");
+        }
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @param jitter    How much of each wait is random, from 0 (none)
+     *                  to 1 (anywhere from no wait to the full wait).
+     *                  The default is 0.5.
+     */
+    public void setJitter(double jitter)
+    {
+        if((jitter < 0) || (jitter > 1)) {
+            throw new IllegalArgumentException(
+                "Jitter must be between 0 and 1"
+            );
+        }
+
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param ratio         Retries may be at most this fraction of
+     *                      all operations run under this policy; for
+     *                      example 0.1 for 10%.  Negative for no
+     *                      budget (the default).
+     * @param minRetries    Retries allowed on top of that, so the
+     *                      first few failures can be retried before
+     *                      there's much to take a fraction of.
+     */
+    public void setBudget(double ratio, int minRetries)
+    {
+        this.budgetRatio = ratio;
+        this.minRetries = minRetries;
+    }
+
+    /**
+     * @return how many operations have been run under this policy
+     */
+    public long getCallCount()
+    {
+        return callCount.get();
+    }
+
+    /**
+     * @return how many retries there have been
+     */
+    public long getRetryCount()
+    {
+        return retryCount.get();
+    }
+
+    /**
+     * @return how many times a retry was wanted but the budget was
+     *         spent
+     */
+    public long getExhaustedCount()
+    {
+        return exhaustedCount.get();
+    }
+
+    /*****************************************************************
+     * RETRYING
+     ****************************************************************/
+
+    /**
+     * Run an operation, retrying it if it fails for a passing reason.
+     *
+     * @param what      What it is, for the log
+     * @param op        The operation
+     * @return its result
+     * @throws E the last failure, if every attempt failed or the
+     *         failure isn't worth retrying
+     */
+    public <T, E extends Exception> T execute(final String what,
+                                              final Retryable<T, E> op)
+           throws E
+    {
+        callCount.incrementAndGet();
+
+        for(int attempt = 1; ; attempt++) {
+            try {
+                return op.attempt(attempt);
+            } catch(Exception e) {
+                if((attempt >= maxAttempts) || !isRetryable(e) ||
+                   !spendBudget()) {
+                    throw RetryPolicy.<E>rethrow(e);
+                }
+
+                long delay = delay(attempt);
+
+                LOG.warn("{} failed (attempt {} of {}); retrying in {}ms: {}",
+                         what, attempt, maxAttempts, delay, e.getMessage());
+
+                try {
+                    Thread.sleep(delay);
+                } catch(InterruptedException ie) {
+                    // Probably the watchdog; give up with what we had
+                    Thread.currentThread().interrupt();
+                    throw RetryPolicy.<E>rethrow(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decide whether a failure is worth retrying.  By default that's
+     * anything caused by a PersistenceException, RemoteException or
+     * IOException, so long as the thread hasn't been interrupted and
+     * nothing in the chain is permanent (see isPermanent); never
+     * skips or cancellations.
+     *
+     * @param e     The failure
+     * @return true to retry
+     */
+    public boolean isRetryable(final Exception e)
+    {
+        if((e instanceof SkipException) || (e instanceof CancelledException) ||
+           Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+
+        boolean passing = false;
+
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(isPermanent(t)) {
+                return false;
+            }
+
+            if((t instanceof PersistenceException) ||
+               (t instanceof RemoteException) ||
+               (t instanceof IOException)) {
+                passing = true;
+            }
+
+            if(t.getCause() == t) {
+                break;
+            }
+        }
+
+        return passing;
+    }
+
+    /**
+     * Decide whether one link of a failure's cause chain means trying
+     * again would only fail the same way.  By default that's the I/O
+     * failures that are about the data or the settings rather than the
+     * connection: a class that won't (de)serialize, a missing file, a
+     * bad encoding, URL or host name.  Any of these anywhere in the
+     * chain stops a retry, even when it's wrapped in something that
+     * looks passing, like a RemoteException.
+     *
+     * @param t     A link of the chain
+     * @return true if it's not worth retrying
+     */
+    protected boolean isPermanent(final Throwable t)
+    {
+        return (t instanceof ObjectStreamException) ||
+               (t instanceof FileNotFoundException) ||
+               (t instanceof FileSystemException) ||
+               (t instanceof UnsupportedEncodingException) ||
+               (t instanceof CharacterCodingException) ||
+               (t instanceof MalformedURLException) ||
+               (t instanceof UnknownHostException);
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * @param attempt   The attempt that just failed
+     * @return milliseconds to wait before the next one
+     */
+    protected long delay(int attempt)
+    {
+        double d = initialDelay * Math.pow(multiplier, attempt - 1);
+
+        if(d > maxDelay) {
+            d = maxDelay;
+        }
+
+        d -= d * jitter * ThreadLocalRandom.current().nextDouble();
+
+        return (long)d;
+    }
+
+    /**
+     * Take a retry out of the budget, if there's one to take.
+     *
+     * @return false if the budget's spent
+     */
+    private boolean spendBudget()
+    {
+        long retries = retryCount.incrementAndGet();
+
+        if((budgetRatio < 0) ||
+           (retries <= (minRetries + (budgetRatio * callCount.get())))) {
+            return true;
+        }
+
+        retryCount.decrementAndGet();
+        exhaustedCount.incrementAndGet();
+        LOG.warn("Retry budget spent; not retrying");
+        return false;
+    }
+
+    /**
+     * Rethrow a failure as what the operation is declared to throw.
+     * It can only be that or unchecked.
+     *
+     * @param e     The failure
+     * @return never returns; declared so callers can 'throw' it
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E rethrow(final Exception e)
+    {
+        if(e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+        }
+
+        return (E)e;
+    }
+}
@@ -0,0 +1,24 @@
+package net.epicforce.migrate.ahp.retry;
+
+/*
+ * Retryable.java
+ *
+ * Something a RetryPolicy can try more than once.  The exception type
+ * is part of the interface so that retrying doesn't widen what the
+ * caller has to catch.
+ */
+
+public interface Retryable<T, E extends Exception>
+{
+    /**
+     * Have a go.
+     *
+     * @param attempt   Which attempt this is, starting from 1.  Later
+     *                  attempts can use this to tidy up after the one
+     *                  that failed.
+     * @return the result
+     * @throws E on failure; the policy decides whether to try again
+     */
+    public T attempt(int attempt)
+           throws E;
+}
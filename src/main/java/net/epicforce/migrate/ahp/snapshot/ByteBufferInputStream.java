@@ -0,0 +1,65 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * ByteBufferInputStream.java
+ *
+ * An InputStream over a ByteBuffer, so pieces of a mapped snapshot can
+ * be read with the usual java.io classes without copying them out.
+ * Reading moves the buffer's position along.
+ */
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer    buf;
+
+    /**
+     * Constructor
+     *
+     * @param buf   What to read; this should not be shared with any
+     *              other thread.
+     */
+    ByteBufferInputStream(final ByteBuffer buf)
+    {
+        this.buf = buf;
+    }
+
+    @Override
+    public int read()
+    {
+        return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, int off, int len)
+    {
+        if(len == 0) {
+            return 0;
+        }
+
+        if(!buf.hasRemaining()) {
+            return -1;
+        }
+
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int len = (int)Math.max(0, Math.min(n, buf.remaining()));
+
+        buf.position(buf.position() + len);
+        return len;
+    }
+
+    @Override
+    public int available()
+    {
+        return buf.remaining();
+    }
+}
@@ -0,0 +1,507 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * MappedSnapshotSource.java
+ *
+ * A WorkflowSource over a snapshot file that may be far bigger than the
+ * heap.  SnapshotSource reads the whole file into memory; this maps it
+ * instead and keeps only an index of where each workflow starts.
+ *
+ * Nothing is deserialized until it's asked for: load() unpacks the
+ * workflow and its jobs, loadSteps() unpacks one job's steps, and
+ * loadStep() unpacks a single step.  Everything else stays in the
+ * page cache, where the OS can share it between threads (and
+ * processes) and drop it when memory is short.
+ *
+ * The file is mapped in regions of up to 2GB, split on record
+ * boundaries, since that's as much as one MappedByteBuffer can hold.
+ * Readers work on duplicates of the regions, so any number of threads
+ * can share one of these without copying or locking.
+ *
+ * The snapshot must not be changed while this is using it.
+ */
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MappedSnapshotSource implements WorkflowSource
+{
+    private final static Logger LOG =
+                        LoggerFactory.getLogger(MappedSnapshotSource.class);
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /*
+     * Largest region we'll map in one go
+     */
+    private static final long   MAX_REGION = Integer.MAX_VALUE;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * Mapped regions of the file.  These are never read directly,
+     * only through duplicates.
+     */
+    private final MappedByteBuffer[]    regions;
+
+    /*
+     * The index, sorted by workflow ID: which region each record is
+     * in, where in the region its payload (just after the length)
+     * starts, and how long it is.
+     */
+    private final long[]                ids;
+    private final int[]                 recordRegion;
+    private final int[]                 recordOffset;
+    private final int[]                 recordLength;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: index and map a snapshot file.  This reads just the
+     * length and ID of each record.
+     *
+     * @param file  The snapshot
+     * @throws MigrateException if it can't be read
+     */
+    public MappedSnapshotSource(final File file)
+           throws MigrateException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(12);
+
+            // Check the header
+            readFully(channel, head, 0, 8);
+            SnapshotFormat.readHeader(new DataInputStream(
+                                        new ByteBufferInputStream(head)));
+
+            List<long[]> index = new ArrayList<long[]>();
+            List<long[]> spans = new ArrayList<long[]>();
+            long regionStart = 8;
+            long pos = 8;
+
+            while(pos < size) {
+                readFully(channel, head, pos, 12);
+
+                long len = head.getInt() & 0xffffffffL;
+                long id = head.getLong();
+                long end = pos + 4 + len;
+
+                if((len < 8) || (end > size) || (4 + len > MAX_REGION)) {
+                    throw new IOException("Bad record at offset " + pos);
+                }
+
+                // Start a new region if this won't fit
+                if(end - regionStart > MAX_REGION) {
+                    spans.add(new long[] { regionStart, pos - regionStart });
+                    regionStart = pos;
+                }
+
+                index.add(new long[] {
+                    id, spans.size(), pos + 4 - regionStart, len
+                });
+
+                pos = end;
+            }
+
+            spans.add(new long[] { regionStart, pos - regionStart });
+
+            regions = new MappedByteBuffer[spans.size()];
+
+            for(int i = 0; i < regions.length; i++) {
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                         spans.get(i)[0], spans.get(i)[1]);
+            }
+
+            // The mappings outlive the channel, so we can close it now.
+            long[][] sorted = index.toArray(new long[index.size()][]);
+
+            Arrays.sort(sorted, new Comparator<long[]>() {
+                public int compare(final long[] a, final long[] b)
+                {
+                    return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+                }
+            });
+
+            ids = new long[sorted.length];
+            recordRegion = new int[sorted.length];
+            recordOffset = new int[sorted.length];
+            recordLength = new int[sorted.length];
+
+            for(int i = 0; i < sorted.length; i++) {
+                ids[i] = sorted[i][0];
+                recordRegion[i] = (int)sorted[i][1];
+                recordOffset[i] = (int)sorted[i][2];
+                recordLength[i] = (int)sorted[i][3];
+            }
+
+            LOG.info("Mapped snapshot {}: {} workflows in {} regions",
+                     file.getPath(), ids.length, regions.length);
+        } catch(IOException e) {
+            throw new MigrateException("Could not map snapshot " +
+                                       file.getPath(), e);
+        }
+    }
+
+    /*****************************************************************
+     * INDEX
+     ****************************************************************/
+
+    /**
+     * @return the number of workflows in the snapshot
+     */
+    public int size()
+    {
+        return ids.length;
+    }
+
+    /**
+     * @return the IDs of the workflows in the snapshot, in ID order.
+     *         This is a view on the index, not a copy.
+     */
+    public List<Long> getWorkflowIds()
+    {
+        return new AbstractList<Long>() {
+            public Long get(int i)
+            {
+                return ids[i];
+            }
+
+            public int size()
+            {
+                return ids.length;
+            }
+        };
+    }
+
+    /**
+     * @param workflowId    A workflow ID
+     * @return true if it's in the snapshot
+     */
+    public boolean contains(final Long workflowId)
+    {
+        return Arrays.binarySearch(ids, workflowId) >= 0;
+    }
+
+    /**
+     * Get a workflow's name without unpacking anything else.
+     *
+     * @param workflowId    A workflow ID
+     * @return its name, or null if it's not in the snapshot
+     * @throws MigrateException on read error
+     */
+    public String getWorkflowName(final Long workflowId)
+           throws MigrateException
+    {
+        ByteBuffer rec = record(workflowId);
+
+        if(rec == null) {
+            return null;
+        }
+
+        try {
+            rec.getLong();
+            return SnapshotFormat.readString(
+                    new DataInputStream(new ByteBufferInputStream(rec)));
+        } catch(IOException e) {
+            throw new MigrateException("Could not read workflow " +
+                                       workflowId + " from snapshot", e);
+        }
+    }
+
+    /*****************************************************************
+     * WorkflowSource
+     ****************************************************************/
+
+    public void bind()
+    {
+    }
+
+    public void unbind()
+    {
+    }
+
+    public AnthillClient getClient()
+    {
+        return null;
+    }
+
+    /**
+     * Unpack a workflow and its jobs.  Steps are left in the file until
+     * loadSteps() or loadStep() asks for them.
+     *
+     * @param workflowId    The workflow to load
+     * @return the workflow, or null if it's not in the snapshot
+     * @throws MigrateException on read error
+     */
+    public WorkflowData load(final Long workflowId)
+           throws MigrateException
+    {
+        ByteBuffer rec = record(workflowId);
+
+        if(rec == null) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(
+                                            new ByteBufferInputStream(rec));
+
+            long id = rec.getLong();
+            String name = SnapshotFormat.readString(in);
+            Workflow wf = (Workflow)SnapshotFormat.readObject(rec);
+
+            int edgeCount = rec.getInt();
+            int[] from = new int[edgeCount];
+            int[] to = new int[edgeCount];
+
+            for(int i = 0; i < edgeCount; i++) {
+                from[i] = rec.getInt();
+                to[i] = rec.getInt();
+            }
+
+            int jobCount = rec.getInt();
+            WorkflowDefinitionJobConfig[] jobs =
+                                new WorkflowDefinitionJobConfig[jobCount];
+            int[] jobOffsets = new int[jobCount];
+
+            for(int j = 0; j < jobCount; j++) {
+                int len = rec.getInt();
+                int next = rec.position() + len;
+
+                jobOffsets[j] = rec.position();
+
+                SnapshotFormat.readString(in);
+                jobs[j] = (WorkflowDefinitionJobConfig)
+                                        SnapshotFormat.readObject(rec);
+                rec.position(next);
+            }
+
+            rec.rewind();
+
+            return new MappedWorkflow(id, name, wf,
+                                      new JobGraph(jobs, from, to),
+                                      rec.asReadOnlyBuffer(), jobOffsets);
+        } catch(IOException | RuntimeException e) {
+            throw new MigrateException("Could not read workflow " +
+                                       workflowId + " from snapshot", e);
+        }
+    }
+
+    public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+           throws MigrateException
+    {
+        try {
+            ByteBuffer buf = steps(workflow, job);
+            StepConfig[] ret = new StepConfig[buf.getInt()];
+
+            for(int k = 0; k < ret.length; k++) {
+                int next = buf.getInt();
+                next += buf.position();
+
+                ret[k] = readStep(buf);
+                buf.position(next);
+            }
+
+            return ret;
+        } catch(IOException | RuntimeException e) {
+            throw new MigrateException("Could not read job " + job +
+                                       " of workflow " + workflow.getId() +
+                                       " from snapshot", e);
+        }
+    }
+
+    /**
+     * Unpack a single step, skipping over the others.
+     *
+     * @param workflow  A workflow from load()
+     * @param job       The job's index in the workflow's graph
+     * @param step      The step's index in the job
+     * @return the step
+     * @throws MigrateException on read error, or if there's no such step
+     */
+    public StepConfig loadStep(final WorkflowData workflow, int job,
+                               int step)
+           throws MigrateException
+    {
+        try {
+            ByteBuffer buf = steps(workflow, job);
+            int count = buf.getInt();
+
+            if((step < 0) || (step >= count)) {
+                throw new MigrateException("Job " + job + " of workflow " +
+                                           workflow.getId() +
+                                           " has no step " + step);
+            }
+
+            for(int k = 0; k < step; k++) {
+                int len = buf.getInt();
+                buf.position(buf.position() + len);
+            }
+
+            buf.getInt();
+            return readStep(buf);
+        } catch(IOException | RuntimeException e) {
+            throw new MigrateException("Could not read step " + step +
+                                       " of job " + job + " of workflow " +
+                                       workflow.getId() + " from snapshot",
+                                       e);
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Get a private view of a record's payload.
+     *
+     * @param workflowId    The workflow
+     * @return a buffer holding just the record, positioned at its
+     *         start, or null if it's not in the snapshot.
+     */
+    private ByteBuffer record(final Long workflowId)
+    {
+        int i = Arrays.binarySearch(ids, workflowId);
+
+        if(i < 0) {
+            return null;
+        }
+
+        ByteBuffer ret = regions[recordRegion[i]].duplicate();
+
+        ret.position(recordOffset[i]);
+        ret.limit(recordOffset[i] + recordLength[i]);
+        return ret.slice();
+    }
+
+    /**
+     * Get a private view of a job, positioned at its step count.
+     *
+     * @param workflow  A workflow from load()
+     * @param job       The job's index
+     * @return the buffer
+     * @throws IOException on read error
+     */
+    private static ByteBuffer steps(final WorkflowData workflow, int job)
+            throws IOException
+    {
+        MappedWorkflow mw = (MappedWorkflow)workflow;
+        ByteBuffer buf = mw.getRecord();
+
+        buf.position(mw.getJobOffset(job));
+
+        // Skip the name and job blob
+        SnapshotFormat.readString(new DataInputStream(
+                                        new ByteBufferInputStream(buf)));
+        SnapshotFormat.skipBlob(buf);
+        return buf;
+    }
+
+    /**
+     * Read a step, positioned just after its length.
+     *
+     * @param buf   Where to read
+     * @return the step
+     * @throws IOException on read error
+     */
+    private static StepConfig readStep(final ByteBuffer buf)
+            throws IOException
+    {
+        // Class name; only there for people poking at the file
+        int len = buf.getShort() & 0xffff;
+        buf.position(buf.position() + len);
+
+        return (StepConfig)SnapshotFormat.readObject(buf);
+    }
+
+    /**
+     * Read exactly len bytes at a position into a buffer, and flip it.
+     *
+     * @param channel   Where to read
+     * @param buf       Where to put it
+     * @param pos       File offset
+     * @param len       How much
+     * @throws IOException on error or early end of file
+     */
+    private static void readFully(final FileChannel channel,
+                                  final ByteBuffer buf, long pos, int len)
+            throws IOException
+    {
+        buf.clear();
+        buf.limit(len);
+
+        while(buf.hasRemaining()) {
+            if(channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Snapshot is truncated");
+            }
+        }
+
+        buf.flip();
+    }
+
+    /*****************************************************************
+     * MappedWorkflow
+     ****************************************************************/
+
+    /**
+     * A workflow whose steps are still in the mapped file.
+     */
+    private static class MappedWorkflow extends WorkflowData
+    {
+        private final ByteBuffer    record;
+        private final int[]         jobOffsets;
+
+        MappedWorkflow(long id, final String name, final Workflow workflow,
+                       final JobGraph graph, final ByteBuffer record,
+                       final int[] jobOffsets)
+        {
+            super(id, name, workflow, graph, null);
+            this.record = record;
+            this.jobOffsets = jobOffsets;
+        }
+
+        /**
+         * @return a private view of the record, for this thread only
+         */
+        ByteBuffer getRecord()
+        {
+            return record.duplicate();
+        }
+
+        int getJobOffset(int job)
+        {
+            return jobOffsets[job];
+        }
+    }
+}
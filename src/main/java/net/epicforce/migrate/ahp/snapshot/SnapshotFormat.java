@@ -0,0 +1,297 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * SnapshotFormat.java
+ *
+ * The layout of a workflow snapshot file, and the code to read and
+ * write its pieces.  Kept in one place so the writer and the readers
+ * can't drift apart.
+ *
+ * A snapshot is a header followed by workflow records:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   record* until end of file
+ *
+ * Each record, and each job and step within it, is prefixed with its
+ * length so a reader can skip over anything it doesn't need:
+ *
+ *   record:  int length, long id, string name, blob workflow,
+ *            int edgeCount, (int from, int to) * edgeCount,
+ *            int jobCount, job * jobCount
+ *   job:     int length, string name, blob job, int stepCount,
+ *            step * stepCount
+ *   step:    int length, UTF class name, blob step
+ *   string:  boolean present, UTF (if present)
+ *   blob:    int length (-1 for null), Java serialized object
+ *
+ * AHP's domain objects are Serializable (that's how the remoting API
+ * moves them around) so they go in as-is; each one is serialized on
+ * its own so it can be read back on its own.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+
+final class SnapshotFormat
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    static final int    MAGIC = 0x41485053;     // "AHPS"
+    static final int    VERSION = 1;
+
+    /*
+     * Not for instancing
+     */
+    private SnapshotFormat()
+    {
+    }
+
+    /*****************************************************************
+     * BLOBS
+     ****************************************************************/
+
+    /**
+     * Serialize an object to bytes.
+     *
+     * @param o     The object, or null
+     * @return the bytes, or null if o is null
+     * @throws IOException if it won't serialize
+     */
+    static byte[] toBytes(final Object o)
+           throws IOException
+    {
+        if(o == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize an object from bytes.
+     *
+     * @param b     The bytes, or null
+     * @return the object, or null if b is null
+     * @throws IOException if it won't deserialize
+     */
+    static Object fromBytes(final byte[] b)
+           throws IOException
+    {
+        if(b == null) {
+            return null;
+        }
+
+        try(ObjectInputStream in = new ObjectInputStream(
+                                        new ByteArrayInputStream(b))) {
+            return in.readObject();
+        } catch(ClassNotFoundException e) {
+            throw new IOException("Snapshot needs a class we don't have: " +
+                                  e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a length-prefixed blob.
+     *
+     * @param out   Where to write
+     * @param b     The bytes, or null
+     * @throws IOException on error
+     */
+    static void writeBlob(final DataOutput out, final byte[] b)
+           throws IOException
+    {
+        if(b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Read a length-prefixed blob.
+     *
+     * @param in    Where to read
+     * @return the bytes, or null
+     * @throws IOException on error
+     */
+    static byte[] readBlob(final DataInput in)
+           throws IOException
+    {
+        int len = in.readInt();
+
+        if(len < 0) {
+            return null;
+        }
+
+        byte[] ret = new byte[len];
+        in.readFully(ret);
+        return ret;
+    }
+
+    /**
+     * Read a length-prefixed blob straight out of a buffer and
+     * deserialize it, without copying it first.  The buffer is left
+     * just past the blob.
+     *
+     * @param buf   Where to read
+     * @return the object, or null
+     * @throws IOException on error
+     */
+    static Object readObject(final ByteBuffer buf)
+           throws IOException
+    {
+        int len = buf.getInt();
+
+        if(len < 0) {
+            return null;
+        }
+
+        ByteBuffer blob = buf.slice();
+        blob.limit(len);
+        buf.position(buf.position() + len);
+
+        try(ObjectInputStream in = new ObjectInputStream(
+                                        new ByteBufferInputStream(blob))) {
+            return in.readObject();
+        } catch(ClassNotFoundException e) {
+            throw new IOException("Snapshot needs a class we don't have: " +
+                                  e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Skip a length-prefixed blob in a buffer.
+     *
+     * @param buf   Where to skip
+     */
+    static void skipBlob(final ByteBuffer buf)
+    {
+        int len = buf.getInt();
+
+        if(len > 0) {
+            buf.position(buf.position() + len);
+        }
+    }
+
+    /**
+     * Read and check a file header.
+     *
+     * @param in    Where to read
+     * @throws IOException if it's not a snapshot we understand
+     */
+    static void readHeader(final DataInput in)
+           throws IOException
+    {
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a workflow snapshot");
+        }
+
+        int version = in.readInt();
+
+        if(version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    /**
+     * Write a string that may be null.
+     *
+     * @param out   Where to write
+     * @param str   The string, or null
+     * @throws IOException on error
+     */
+    static void writeString(final DataOutput out, final String str)
+           throws IOException
+    {
+        out.writeBoolean(str != null);
+
+        if(str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    /**
+     * Read a string written by writeString.
+     *
+     * @param in    Where to read
+     * @return the string, or null
+     * @throws IOException on error
+     */
+    static String readString(final DataInput in)
+           throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /*****************************************************************
+     * RECORDS
+     ****************************************************************/
+
+    /**
+     * Read a workflow record, minus its length, and everything in it.
+     *
+     * @param in    Where to read, positioned just after the length
+     * @return the workflow
+     * @throws IOException on error
+     */
+    static SnapshotWorkflow readWorkflow(final DataInput in)
+           throws IOException
+    {
+        long id = in.readLong();
+        String name = readString(in);
+        Workflow wf = (Workflow)fromBytes(readBlob(in));
+
+        int edgeCount = in.readInt();
+        int[] from = new int[edgeCount];
+        int[] to = new int[edgeCount];
+
+        for(int i = 0; i < edgeCount; i++) {
+            from[i] = in.readInt();
+            to[i] = in.readInt();
+        }
+
+        int jobCount = in.readInt();
+        WorkflowDefinitionJobConfig[] jobs =
+                                new WorkflowDefinitionJobConfig[jobCount];
+        StepConfig[][] steps = new StepConfig[jobCount][];
+
+        for(int j = 0; j < jobCount; j++) {
+            in.readInt();   // job length; we read it all anyway
+            readString(in);
+            jobs[j] = (WorkflowDefinitionJobConfig)fromBytes(readBlob(in));
+
+            steps[j] = new StepConfig[in.readInt()];
+
+            for(int k = 0; k < steps[j].length; k++) {
+                in.readInt();   // step length
+                in.readUTF();   // class name
+                steps[j][k] = (StepConfig)fromBytes(readBlob(in));
+            }
+        }
+
+        return new SnapshotWorkflow(id, name, wf,
+                                    new JobGraph(jobs, from, to), steps);
+    }
+}
@@ -0,0 +1,132 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * SnapshotSource.java
+ *
+ * A WorkflowSource that reads from a snapshot file made by
+ * SnapshotWriter instead of talking to AHP.  Hand it to
+ * Migration(WorkflowSource) to rerun a migration offline.
+ *
+ * The file is read into memory when this is made; workflows are only
+ * unpacked (deserialized) when they're loaded.  There's no AHP client,
+ * so steps that use the client directly won't work offline.
+ *
+ * This is threadsafe and can be shared by any number of Migrations.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+
+public class SnapshotSource implements WorkflowSource
+{
+    /*
+     * Undecoded records by workflow ID, in file order
+     */
+    private final Map<Long, byte[]>     records =
+                                        new LinkedHashMap<Long, byte[]>();
+
+    /**
+     * Constructor: reads the snapshot file.
+     *
+     * @param file  The snapshot
+     * @throws MigrateException if it can't be read
+     */
+    public SnapshotSource(final File file)
+           throws MigrateException
+    {
+        try(DataInputStream in = new DataInputStream(
+                                    new BufferedInputStream(
+                                        new FileInputStream(file), 65536))) {
+            SnapshotFormat.readHeader(in);
+
+            while(true) {
+                // End of file is only fine between records; a torn
+                // length is as bad as a torn record
+                int first = in.read();
+
+                if(first < 0) {
+                    break;
+                }
+
+                int len = (first << 24) | (in.readUnsignedByte() << 16) |
+                          (in.readUnsignedByte() << 8) |
+                          in.readUnsignedByte();
+
+                byte[] rec = new byte[len];
+                in.readFully(rec);
+
+                // The ID is the first thing in the record
+                records.put(new DataInputStream(
+                                new ByteArrayInputStream(rec)).readLong(),
+                            rec);
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not read snapshot " +
+                                       file.getPath(), e);
+        }
+    }
+
+    /**
+     * @return the IDs of the workflows in the snapshot, in file order
+     */
+    public Set<Long> getWorkflowIds()
+    {
+        return Collections.unmodifiableSet(records.keySet());
+    }
+
+    /*****************************************************************
+     * WorkflowSource
+     ****************************************************************/
+
+    public void bind()
+    {
+    }
+
+    public void unbind()
+    {
+    }
+
+    public AnthillClient getClient()
+    {
+        return null;
+    }
+
+    public WorkflowData load(final Long workflowId)
+           throws MigrateException
+    {
+        byte[] rec = records.get(workflowId);
+
+        if(rec == null) {
+            return null;
+        }
+
+        try {
+            return SnapshotFormat.readWorkflow(
+                        new DataInputStream(new ByteArrayInputStream(rec)));
+        } catch(IOException e) {
+            throw new MigrateException("Could not read workflow " +
+                                       workflowId + " from snapshot", e);
+        }
+    }
+
+    public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+           throws MigrateException
+    {
+        return ((SnapshotWorkflow)workflow).getSteps(job);
+    }
+}
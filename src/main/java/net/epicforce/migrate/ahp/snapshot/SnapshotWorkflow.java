@@ -0,0 +1,48 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * SnapshotWorkflow.java
+ *
+ * A workflow read back from a snapshot.  Since there's no AHP to ask,
+ * it carries each job's steps along with it.
+ */
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+
+class SnapshotWorkflow extends WorkflowData
+{
+    /*
+     * Steps, by job index
+     */
+    private final StepConfig[][]    steps;
+
+    /**
+     * Constructor
+     *
+     * @param id        Workflow ID
+     * @param name      Workflow name
+     * @param workflow  The AHP workflow, as it was saved
+     * @param graph     The job graph
+     * @param steps     Each job's steps, by job index
+     */
+    SnapshotWorkflow(long id, final String name, final Workflow workflow,
+                     final JobGraph graph, final StepConfig[][] steps)
+    {
+        // There's no AHP graph to make a JobLayout from
+        super(id, name, workflow, graph, null);
+        this.steps = steps;
+    }
+
+    /**
+     * @param job   Job index
+     * @return the job's steps
+     */
+    StepConfig[] getSteps(int job)
+    {
+        return steps[job];
+    }
+}
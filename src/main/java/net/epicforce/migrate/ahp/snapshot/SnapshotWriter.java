@@ -0,0 +1,350 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * SnapshotWriter.java
+ *
+ * Writes workflows to a snapshot file: everything Migration.run() would
+ * load for them -- the workflow, its job graph, each job and each of
+ * its steps.  The file can then be migrated with a SnapshotSource
+ * instead of a live AHP, as many times as you like, at disk speed.
+ *
+ * When writing to a file, the snapshot goes to a temporary file next to
+ * it that only replaces the real one when it's closed, so a reader
+ * never sees half a snapshot.  If a write fails, closing throws the
+ * temporary file away and leaves any old snapshot where it was.
+ *
+ * See SnapshotFormat for what the file looks like.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SnapshotWriter implements Closeable
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(SnapshotWriter.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final DataOutputStream  out;
+    private int                     count = 0;
+
+    /*
+     * When writing a file: the file, and where it's written until
+     * we're closed.  Both null when writing to a stream.
+     */
+    private final File              target;
+    private final File              tmp;
+
+    /*
+     * True once a write has failed, so the file isn't worth keeping;
+     * and once we're closed.
+     */
+    private boolean                 failed = false;
+    private boolean                 closed = false;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Constructor: start a new snapshot file.  It replaces any that's
+     * there when this is closed.
+     *
+     * @param file  Where to write
+     * @throws MigrateException on I/O error
+     */
+    public SnapshotWriter(final File file)
+           throws MigrateException
+    {
+        this(file, new File(file.getPath() + ".tmp"));
+    }
+
+    /**
+     * Constructor: write a snapshot to a stream.  The stream will be
+     * closed when this is, or straight away if this fails.
+     *
+     * @param stream    Where to write
+     * @throws MigrateException on I/O error
+     */
+    public SnapshotWriter(final OutputStream stream)
+           throws MigrateException
+    {
+        this(stream, null, null);
+    }
+
+    /**
+     * Constructor: write to a file by way of a temporary one.
+     *
+     * @param file  Where to end up
+     * @param tmp   Where to write until then
+     * @throws MigrateException on I/O error
+     */
+    private SnapshotWriter(final File file, final File tmp)
+            throws MigrateException
+    {
+        this(open(tmp), file, tmp);
+    }
+
+    /**
+     * Constructor: write the header.
+     *
+     * @param stream    Where to write
+     * @param target    The file to end up in, or null
+     * @param tmp       The file stream writes to, or null
+     * @throws MigrateException on I/O error
+     */
+    private SnapshotWriter(final OutputStream stream, final File target,
+                           final File tmp)
+            throws MigrateException
+    {
+        this.out = new DataOutputStream(
+                                new BufferedOutputStream(stream, 65536));
+        this.target = target;
+        this.tmp = tmp;
+
+        try {
+            out.writeInt(SnapshotFormat.MAGIC);
+            out.writeInt(SnapshotFormat.VERSION);
+        } catch(IOException e) {
+            failed = true;
+
+            try {
+                close();
+            } catch(IOException ce) { }
+
+            throw new MigrateException("Could not write snapshot header", e);
+        }
+    }
+
+    /*****************************************************************
+     * EXPORT
+     ****************************************************************/
+
+    /**
+     * Export workflows from a source.  This binds the source to the
+     * calling thread for the duration.  Workflows that don't exist are
+     * logged and skipped.
+     *
+     * @param source        Where to load from; usually an AnthillSource
+     * @param workflowIds   What to export
+     * @return the number of workflows written
+     * @throws MigrateException on any error
+     */
+    public int export(final WorkflowSource source,
+                      final Collection<Long> workflowIds)
+           throws MigrateException
+    {
+        int ret = 0;
+
+        try {
+            source.bind();
+
+            for(Long id : workflowIds) {
+                WorkflowData wf = source.load(id);
+
+                if(wf == null) {
+                    LOG.warn("Workflow {} does not exist; not exported", id);
+                    continue;
+                }
+
+                write(source, wf);
+                ret++;
+            }
+        } finally {
+            source.unbind();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Write a single workflow.  The source must already be bound to
+     * the calling thread.
+     *
+     * @param source    Where the workflow came from
+     * @param wf        The workflow
+     * @throws MigrateException on any error
+     */
+    public void write(final WorkflowSource source, final WorkflowData wf)
+           throws MigrateException
+    {
+        LOG.debug("Writing workflow {} to snapshot", wf.getId());
+
+        boolean ok = false;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream rec = new DataOutputStream(bytes);
+            JobGraph graph = wf.getGraph();
+
+            rec.writeLong(wf.getId());
+            SnapshotFormat.writeString(rec, wf.getName());
+            SnapshotFormat.writeBlob(rec,
+                                     SnapshotFormat.toBytes(wf.getWorkflow()));
+
+            // Edges
+            int edgeCount = 0;
+
+            for(int i = 0; i < graph.size(); i++) {
+                edgeCount += graph.getChildCount(i);
+            }
+
+            rec.writeInt(edgeCount);
+
+            for(int i = 0; i < graph.size(); i++) {
+                for(int k = 0; k < graph.getChildCount(i); k++) {
+                    rec.writeInt(i);
+                    rec.writeInt(graph.getChild(i, k));
+                }
+            }
+
+            // Jobs
+            rec.writeInt(graph.size());
+
+            for(int i = 0; i < graph.size(); i++) {
+                writeJob(rec, wf, source.loadSteps(wf, i), i);
+            }
+
+            rec.flush();
+
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            count++;
+            ok = true;
+        } catch(IOException e) {
+            throw new MigrateException("Could not write workflow " +
+                                       wf.getId() + " to snapshot", e);
+        } finally {
+            // Even if nothing was written yet, the snapshot would be
+            // missing this workflow
+            if(!ok) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * @return how many workflows have been written so far
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Finish the file.  When writing a file, this moves it into place,
+     * unless a write failed, in which case it's deleted.
+     *
+     * @throws IOException on error
+     */
+    public void close()
+           throws IOException
+    {
+        if(closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            out.close();
+        } catch(IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            if(tmp != null) {
+                if(failed) {
+                    Files.deleteIfExists(tmp.toPath());
+                } else {
+                    Files.move(tmp.toPath(), target.toPath(),
+                               StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Write one job, length-prefixed.
+     *
+     * @param rec       Where to write
+     * @param wf        The workflow
+     * @param steps     The job's steps
+     * @param i         The job's index
+     * @throws IOException on error
+     */
+    private static void writeJob(final DataOutputStream rec,
+                                 final WorkflowData wf,
+                                 final StepConfig[] steps, int i)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream job = new DataOutputStream(bytes);
+
+        SnapshotFormat.writeString(job, wf.getGraph().getJob(i).getName());
+        SnapshotFormat.writeBlob(job,
+                        SnapshotFormat.toBytes(wf.getGraph().getJob(i)));
+        job.writeInt(steps.length);
+
+        for(StepConfig step : steps) {
+            ByteArrayOutputStream sbytes = new ByteArrayOutputStream(512);
+            DataOutputStream s = new DataOutputStream(sbytes);
+
+            s.writeUTF(step.getClass().getName());
+            SnapshotFormat.writeBlob(s, SnapshotFormat.toBytes(step));
+            s.flush();
+
+            job.writeInt(sbytes.size());
+            sbytes.writeTo(job);
+        }
+
+        job.flush();
+
+        rec.writeInt(bytes.size());
+        bytes.writeTo(rec);
+    }
+
+    /**
+     * Open a file for writing, wrapping the error.
+     *
+     * @param file  The file
+     * @return the stream
+     * @throws MigrateException on error
+     */
+    private static OutputStream open(final File file)
+            throws MigrateException
+    {
+        try {
+            return new FileOutputStream(file);
+        } catch(IOException e) {
+            throw new MigrateException("Could not create snapshot " +
+                                       file.getPath(), e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package net.epicforce.migrate.ahp.source;
+
+/*
+ * AnthillSource.java
+ *
+ * The usual WorkflowSource: a live AHP server, through an
+ * AnthillClient.  Each bound thread gets its own unit of work.
+ *
+ * With a MetricsListener, loading a workflow is broken down into
+ * restoring it (the round trip to AHP) and building its job graph and
+ * layout (all local), so it's clear which one is slow.
+ */
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.security.AuthorizationException;
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.step.StepConfigException;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+import com.urbancode.anthill3.domain.workflow.WorkflowFactory;
+import com.urbancode.anthill3.main.client.AnthillClient;
+import com.urbancode.anthill3.persistence.UnitOfWork;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.context.JobLayout;
+import net.epicforce.migrate.ahp.exception.ConnectException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.metrics.MetricsListener;
+import net.epicforce.migrate.ahp.metrics.Phase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AnthillSource implements WorkflowSource
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(AnthillSource.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final AnthillClient             client;
+
+    /*
+     * Each bound thread's unit of work
+     */
+    private final ThreadLocal<UnitOfWork>   uow = new ThreadLocal<UnitOfWork>();
+
+    /*
+     * Who to tell how long loading takes, if anyone
+     */
+    private volatile MetricsListener        metrics = null;
+
+    /**
+     * Constructor
+     *
+     * @param client    A connected client
+     */
+    public AnthillSource(final AnthillClient client)
+    {
+        this.client = client;
+    }
+
+    /**
+     * @param metrics   Who to tell how long restoring a workflow and
+     *                  building its graph take, or null for nobody
+     *                  (the default).
+     */
+    public void setMetricsListener(final MetricsListener metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /*****************************************************************
+     * WorkflowSource
+     ****************************************************************/
+
+    public AnthillClient getClient()
+    {
+        return client;
+    }
+
+    public void bind()
+           throws MigrateException
+    {
+        // bind our thread
+        client.bind();
+
+        // Create our unit of work
+        uow.set(client.createUnitOfWork());
+    }
+
+    public void unbind()
+    {
+        UnitOfWork u = uow.get();
+
+        // close out unit of work
+        if(u != null) {
+            uow.remove();
+
+            try {
+                u.cancel();
+            } catch(Exception e) { }
+
+            try {
+                u.close();
+            } catch(Exception e) { }
+        }
+
+        try {
+            client.unbind();
+        } catch(Exception e) { }
+    }
+
+    public WorkflowData load(final Long workflowId)
+           throws MigrateException
+    {
+        MetricsListener m = metrics;
+
+        try {
+            // try to load our workflow
+            long start = (m != null) ? System.nanoTime() : 0;
+            Workflow wf = WorkflowFactory.getInstance()
+                                         .restore(workflowId);
+
+            if(m != null) {
+                m.phaseCompleted(workflowId, Phase.RESTORE_WORKFLOW,
+                                 System.nanoTime() - start);
+            }
+
+            if(wf == null) {
+                return null;
+            }
+
+            /*
+             * Jobs in AHP use a "configuration graph".  The configuration
+             * graph allows any combination of parallel / sequential builds.
+             *
+             * This is pretty complex to represent and iterate over, but
+             * we need to visit each job in sequence and put them together
+             * in a useful structure.
+             */
+            LOG.debug("Loading job layout");
+
+            start = (m != null) ? System.nanoTime() : 0;
+
+            WorkflowData ret = new WorkflowData(workflowId, wf.getName(), wf,
+                                    new JobGraph(wf.getWorkflowDefinition()),
+                                    new JobLayout(wf.getWorkflowDefinition())
+            );
+
+            if(m != null) {
+                m.phaseCompleted(workflowId, Phase.BUILD_GRAPH,
+                                 System.nanoTime() - start);
+            }
+
+            return ret;
+        } catch(AuthorizationException e) {
+            LOG.error("Caught exception", e);
+            throw new ConnectException("Authorization error from AHP: ", e);
+        } catch(PersistenceException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Persistence error from AHP: ", e);
+        }
+    }
+
+    public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+           throws MigrateException
+    {
+        try {
+            return workflow.getGraph().getJob(job).getJobConfig()
+                                                  .getActiveStepConfigArray();
+        } catch(StepConfigException e) {
+            LOG.error("Caught exception", e);
+            throw new MigrateException("Persistence error from AHP: ", e);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package net.epicforce.migrate.ahp.source;
+
+/*
+ * StepPrefetcher.java
+ *
+ * Loads jobs' steps from a WorkflowSource on a thread of its own, ahead
+ * of the thread that's migrating them.  With AHP, loading steps is
+ * mostly waiting on the network and migrating them is mostly CPU, so
+ * doing both at once means a workflow takes about as long as the
+ * slower of the two instead of both added together.
+ *
+ * Steps are handed over through a bounded queue, so the prefetcher
+ * never gets more than a few jobs ahead.  Jobs must be taken in the
+ * order they were given; jobs that are passed over are dropped.
+ *
+ * The prefetch thread binds the source for itself and uses it while
+ * the taking thread carries on with its own, so the source must be the
+ * prefetcher's alone: for AHP, an AnthillSource on a session of its
+ * own, with setReload so the workflow is restored again in that
+ * session rather than using objects from the taking thread's unit of
+ * work.  Sources without a session, like the snapshot sources, can be
+ * shared as they are.
+ *
+ * Steps restored on the prefetch thread belong to its unit of work, so
+ * it keeps the source bound until stop() -- call that once the steps
+ * are done with, not as soon as the last one's taken.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.retry.RetryPolicy;
+import net.epicforce.migrate.ahp.retry.Retryable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class StepPrefetcher implements Runnable
+{
+    private final static Logger LOG =
+                                LoggerFactory.getLogger(StepPrefetcher.class);
+
+    /**
+     * How long stop() waits for the prefetch thread by default
+     */
+    public static final long    DEFAULT_STOP_MILLIS = 10000;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final WorkflowSource            source;
+    private final WorkflowData              workflow;
+    private final int[]                     jobs;
+    private final BlockingQueue<Fetched>    queue;
+
+    private Thread                          thread = null;
+
+    /*
+     * Counted down by stop(); the prefetch thread waits on it before
+     * it unbinds.
+     */
+    private final CountDownLatch            released = new CountDownLatch(1);
+
+    /*
+     * Whether to load the workflow again on the prefetch thread
+     */
+    private boolean                         reload = false;
+
+    /*
+     * How to retry loading, if at all
+     */
+    private RetryPolicy                     retry = null;
+
+    /*
+     * Set when the prefetch thread has put everything it's going to
+     * put; only touched by the taking thread.
+     */
+    private boolean                         finished = false;
+
+    /**
+     * Constructor
+     *
+     * @param source    Where to load steps from
+     * @param workflow  The workflow, already loaded
+     * @param jobs      Job indexes to load, in the order they'll be
+     *                  taken
+     * @param depth     How many jobs to load ahead; at least 1
+     */
+    public StepPrefetcher(final WorkflowSource source,
+                          final WorkflowData workflow, final int[] jobs,
+                          int depth)
+    {
+        if(depth < 1) {
+            throw new IllegalArgumentException(
+                "Prefetch depth must be at least 1"
+            );
+        }
+
+        this.source = source;
+        this.workflow = workflow;
+        this.jobs = jobs;
+        this.queue = new ArrayBlockingQueue<Fetched>(depth);
+    }
+
+    /*****************************************************************
+     * CONSUMER SIDE
+     ****************************************************************/
+
+    /**
+     * @param retry     How to retry loading a job's steps, or null to
+     *                  not (the default).  Set this before start().
+     */
+    public void setRetryPolicy(final RetryPolicy retry)
+    {
+        this.retry = retry;
+    }
+
+    /**
+     * @param reload    True to load the workflow again from the source
+     *                  on the prefetch thread, and load steps for that
+     *                  copy; for sources whose objects belong to the
+     *                  session that loaded them.  If the jobs have
+     *                  changed since, that's handed over as an error.
+     *                  Set this before start().
+     */
+    public void setReload(boolean reload)
+    {
+        this.reload = reload;
+    }
+
+    /**
+     * Start loading on a new thread.
+     */
+    public void start()
+    {
+        thread = new Thread(this, "ahp-prefetch-" + workflow.getId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Take a job's steps, waiting for them if need be.
+     *
+     * @param job   The job index
+     * @return its steps, or null if this prefetcher isn't loading that
+     *         job (or has already passed it); load them yourself.
+     * @throws MigrateException if loading them failed
+     */
+    public StepConfig[] take(int job)
+           throws MigrateException
+    {
+        while(!finished) {
+            Fetched f;
+
+            try {
+                f = queue.take();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MigrateException("Interrupted waiting for steps",
+                                           e);
+            }
+
+            if(f.error != null) {
+                finished = true;
+                throw f.error;
+            }
+
+            if(f.steps == null) {
+                finished = true;
+                break;
+            }
+
+            if(f.job == job) {
+                return f.steps;
+            }
+
+            LOG.debug("Dropping prefetched job {}", f.job);
+        }
+
+        return null;
+    }
+
+    /**
+     * Stop loading, and wait up to DEFAULT_STOP_MILLIS for the prefetch
+     * thread to finish.  This will not throw an exception.
+     *
+     * @return true if the prefetch thread has stopped
+     */
+    public boolean stop()
+    {
+        return stop(DEFAULT_STOP_MILLIS);
+    }
+
+    /**
+     * Stop loading, let go of the source, and wait for the prefetch
+     * thread to finish.  It may be stuck in a call to the source that
+     * doesn't notice being interrupted; if it's still going when this
+     * returns false, the source is still in use and mustn't be handed
+     * to anyone else.  This will not throw an exception.
+     *
+     * @param timeoutMillis     How long to wait; 0 to not wait
+     * @return true if the prefetch thread has stopped
+     */
+    public boolean stop(long timeoutMillis)
+    {
+        released.countDown();
+
+        if(thread == null) {
+            return true;
+        }
+
+        thread.interrupt();
+
+        if(timeoutMillis > 0) {
+            try {
+                thread.join(timeoutMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return !thread.isAlive();
+    }
+
+    /*****************************************************************
+     * PRODUCER SIDE
+     ****************************************************************/
+
+    /**
+     * The prefetch thread.
+     */
+    public void run()
+    {
+        try {
+            source.bind();
+
+            WorkflowData wf = reload ? reload() : workflow;
+
+            for(int job : jobs) {
+                queue.put(new Fetched(job, load(wf, job), null));
+            }
+
+            queue.put(new Fetched(-1, null, null));
+        } catch(InterruptedException e) {
+            LOG.debug("Prefetch stopped");
+        } catch(MigrateException e) {
+            handOff(e);
+        } catch(RuntimeException e) {
+            handOff(new MigrateException("Error prefetching steps", e));
+        } finally {
+            hold();
+            source.unbind();
+        }
+    }
+
+    /**
+     * Load the workflow again, and make sure the jobs we're to load
+     * are still where they were.
+     *
+     * @return our own copy of the workflow
+     * @throws MigrateException if it can't be loaded or has changed
+     */
+    private WorkflowData reload()
+            throws MigrateException
+    {
+        WorkflowData own = source.load(workflow.getId());
+
+        if((own != null) &&
+           (own.getGraph().size() == workflow.getGraph().size())) {
+            boolean same = true;
+
+            for(int job : jobs) {
+                Long id = workflow.getGraph().getJob(job).getId();
+
+                if((id != null) &&
+                   !id.equals(own.getGraph().getJob(job).getId())) {
+                    same = false;
+                    break;
+                }
+            }
+
+            if(same) {
+                return own;
+            }
+        }
+
+        throw new MigrateException("Workflow " + workflow.getId() +
+                                   " changed while it was being migrated");
+    }
+
+    /**
+     * Wait for stop() before letting go of the source, since what we
+     * loaded may still be in use.
+     */
+    private void hold()
+    {
+        try {
+            released.await();
+        } catch(InterruptedException e) {
+            // stop() counts down before it interrupts; anyone else
+            // interrupting us gets the source back early
+        }
+    }
+
+    /**
+     * Load a job's steps, retrying if we're set up to.
+     *
+     * @param wf    The workflow, as the source knows it
+     * @param job   The job index
+     * @return its steps
+     * @throws MigrateException on error
+     */
+    private StepConfig[] load(final WorkflowData wf, final int job)
+            throws MigrateException
+    {
+        if(retry == null) {
+            return source.loadSteps(wf, job);
+        }
+
+        return retry.execute("Prefetching steps of job " + job,
+                             new Retryable<StepConfig[], MigrateException>() {
+            public StepConfig[] attempt(int attempt)
+                   throws MigrateException
+            {
+                return source.loadSteps(wf, job);
+            }
+        });
+    }
+
+    /**
+     * Pass an error to the taking thread.
+     *
+     * @param e     The error
+     */
+    private void handOff(final MigrateException e)
+    {
+        try {
+            queue.put(new Fetched(-1, null, e));
+        } catch(InterruptedException ie) {
+            LOG.debug("Prefetch stopped");
+        }
+    }
+
+    /**
+     * One job's worth of steps, or the end, or an error.
+     */
+    private static class Fetched
+    {
+        final int               job;
+        final StepConfig[]      steps;
+        final MigrateException  error;
+
+        Fetched(int job, final StepConfig[] steps,
+                final MigrateException error)
+        {
+            this.job = job;
+            this.steps = steps;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.epicforce.migrate.ahp.source;
+
+/*
+ * WorkflowData.java
+ *
+ * A workflow as loaded from a WorkflowSource: its ID and name, the AHP
+ * Workflow object, and its job graph.
+ *
+ * Sources that don't get their steps from the AHP objects (snapshots,
+ * for instance) can extend this to carry whatever they need for
+ * loadSteps().
+ */
+
+import com.urbancode.anthill3.domain.workflow.Workflow;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.context.JobLayout;
+
+public class WorkflowData
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final Long      id;
+    private final String    name;
+    private final Workflow  workflow;
+    private final JobGraph  graph;
+    private final JobLayout layout;
+
+    /**
+     * Constructor
+     *
+     * @param id        Workflow ID
+     * @param name      Workflow name
+     * @param workflow  The AHP workflow
+     * @param graph     The workflow's job graph
+     * @param layout    The old style job layout; may be null if the
+     *                  source can't make one.
+     */
+    public WorkflowData(final Long id, final String name,
+                        final Workflow workflow, final JobGraph graph,
+                        final JobLayout layout)
+    {
+        this.id = id;
+        this.name = name;
+        this.workflow = workflow;
+        this.graph = graph;
+        this.layout = layout;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    public Long getId()
+    {
+        return id;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Workflow getWorkflow()
+    {
+        return workflow;
+    }
+
+    public JobGraph getGraph()
+    {
+        return graph;
+    }
+
+    public JobLayout getLayout()
+    {
+        return layout;
+    }
+}
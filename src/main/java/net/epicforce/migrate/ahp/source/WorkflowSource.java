@@ -0,0 +1,63 @@
+package net.epicforce.migrate.ahp.source;
+
+/*
+ * WorkflowSource.java
+ *
+ * Where a Migration gets its workflows, jobs and steps from.  Normally
+ * that's a live AHP server (AnthillSource), but it can just as well
+ * be a snapshot file, which lets migrations run with no AHP at all.
+ *
+ * A source is used from the migration thread and, when jobs run in
+ * parallel, from worker threads.  Each thread calls bind() before
+ * using the source and unbind() when it's done.
+ */
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public interface WorkflowSource
+{
+    /**
+     * Get the calling thread ready to use this source.  For AHP, this
+     * binds the client and opens a unit of work.
+     *
+     * @throws MigrateException on any error
+     */
+    public void bind()
+           throws MigrateException;
+
+    /**
+     * Undo bind() for the calling thread.  This will not throw an
+     * exception.
+     */
+    public void unbind();
+
+    /**
+     * Load a workflow and its job graph.
+     *
+     * @param workflowId    The workflow to load
+     * @return the workflow, or null if there is no such workflow
+     * @throws MigrateException on any error
+     */
+    public WorkflowData load(final Long workflowId)
+           throws MigrateException;
+
+    /**
+     * Load the active steps of a job, in the order they run.
+     *
+     * @param workflow  A workflow from load()
+     * @param job       The job's index in the workflow's graph
+     * @return the steps; never null
+     * @throws MigrateException on any error
+     */
+    public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+           throws MigrateException;
+
+    /**
+     * @return the AHP client behind this source, or null if there
+     *         isn't one.
+     */
+    public AnthillClient getClient();
+}
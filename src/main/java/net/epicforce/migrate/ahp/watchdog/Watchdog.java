@@ -0,0 +1,139 @@
+package net.epicforce.migrate.ahp.watchdog;
+
+/*
+ * Watchdog.java
+ *
+ * Keeps time for things that might hang.  An AHP remoting call can
+ * stall forever, and a step class that makes one takes its thread and
+ * that thread's bound client with it.  Checking for cancellation
+ * between steps doesn't help with that, since the step never returns.
+ *
+ * So before starting something, watch() it with a time budget and
+ * what to do if it runs over; when it finishes, cancel the returned
+ * future.  If the budget runs out first, the watchdog's own thread
+ * runs the overdue action, which can interrupt the stuck thread,
+ * disconnect its client, or just write it off and move on.
+ *
+ * One watchdog thread can look after any number of migrations;
+ * getShared() gives one to use when nobody sets their own.
+ */
+
+import java.io.Closeable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Watchdog implements Closeable
+{
+    private final static Logger LOG = LoggerFactory.getLogger(Watchdog.class);
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    /*
+     * The one everyone uses if they don't have their own
+     */
+    private static Watchdog                     shared = null;
+
+    private final ScheduledThreadPoolExecutor   timer;
+    private final AtomicLong                    overdueCount = new AtomicLong();
+
+    /**
+     * Constructor: starts the watchdog thread.
+     */
+    public Watchdog()
+    {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(final Runnable r)
+            {
+                Thread t = new Thread(r, "ahp-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Almost everything we watch finishes in time, so don't let
+        // cancelled watches pile up in the queue until they're due.
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return a watchdog shared by everything that doesn't set its
+     *         own.  It's never closed.
+     */
+    public static synchronized Watchdog getShared()
+    {
+        if(shared == null) {
+            shared = new Watchdog();
+        }
+
+        return shared;
+    }
+
+    /*****************************************************************
+     * WATCHING
+     ****************************************************************/
+
+    /**
+     * Start the clock on something.
+     *
+     * @param budget    How long it may take
+     * @param unit      Unit of the budget
+     * @param overdue   What to do if it takes longer.  This is run on
+     *                  the watchdog thread, so it must be quick and
+     *                  must not block.
+     * @return a future to cancel once the thing finishes
+     */
+    public Future<?> watch(long budget, final TimeUnit unit,
+                           final Runnable overdue)
+    {
+        return timer.schedule(new Runnable() {
+            public void run()
+            {
+                overdueCount.incrementAndGet();
+
+                try {
+                    overdue.run();
+                } catch(RuntimeException e) {
+                    LOG.error("Overdue action failed", e);
+                }
+            }
+        }, budget, unit);
+    }
+
+    /**
+     * @return how many things have run over their budget
+     */
+    public long getOverdueCount()
+    {
+        return overdueCount.get();
+    }
+
+    /**
+     * @return how many things are being watched right now
+     */
+    public int getWatchCount()
+    {
+        return timer.getQueue().size();
+    }
+
+    /*****************************************************************
+     * DESTRUCTOR
+     ****************************************************************/
+
+    /**
+     * Stop the watchdog thread.  Nothing that's being watched will be
+     * called overdue after this.
+     */
+    @Override
+    public void close()
+    {
+        timer.shutdownNow();
+    }
+}
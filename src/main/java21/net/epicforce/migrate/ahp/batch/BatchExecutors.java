@@ -0,0 +1,57 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * BatchExecutors.java
+ *
+ * The Java 21 version of BatchExecutors, built into
+ * META-INF/versions/21 of the jar by the 'java21' profile.  Each
+ * workflow runs on a virtual thread, so thousands can be waiting on
+ * AHP at once without thousands of platform threads.
+ *
+ * The executor is unbounded, as in the Java 7 version: BatchMigration's
+ * 'slots' semaphore, sized to the concurrency, bounds how many workflow
+ * threads are live, apart from any whose workflow was abandoned as
+ * stuck, which sit outside that bound until AHP lets go of them.  How
+ * many AHP sessions are in use is bounded separately, by
+ * BatchMigration.setMaxSessions.
+ *
+ * A virtual thread blocked inside a synchronized block keeps its
+ * carrier thread, and AHP's remoting does that a fair bit; it's still
+ * correct, just not as cheap.
+ *
+ * This must have the same public methods as the Java 7 version.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class BatchExecutors
+{
+    /**
+     * Not instanced
+     */
+    private BatchExecutors()
+    {
+    }
+
+    /**
+     * @return true if workflows run on virtual threads
+     */
+    public static boolean isVirtual()
+    {
+        return true;
+    }
+
+    /**
+     * Make an executor that starts a new virtual thread for each task.
+     *
+     * @param prefix    Thread names start with this, followed by a
+     *                  number, so they're easy to find in a thread dump
+     * @return the executor
+     */
+    public static ExecutorService newWorkerExecutor(final String prefix)
+    {
+        return Executors.newThreadPerTaskExecutor(
+                            Thread.ofVirtual().name(prefix, 1).factory());
+    }
+}
@@ -0,0 +1,701 @@
+package net.epicforce.migrate.ahp;
+
+/*
+ * MigrationTest.java
+ *
+ * Migration's own behaviour, run against the in-memory source so no
+ * AHP is needed.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.epicforce.migrate.ahp.checkpoint.FileCheckpointStore;
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.cache.JobTranslationCache;
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.event.EventBus;
+import net.epicforce.migrate.ahp.event.MigrationEvent;
+import net.epicforce.migrate.ahp.event.MigrationEventListener;
+import net.epicforce.migrate.ahp.exception.CancelledException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.SkipException;
+import net.epicforce.migrate.ahp.exception.TimedOutException;
+import net.epicforce.migrate.ahp.fingerprint.Fingerprint;
+import net.epicforce.migrate.ahp.fingerprint.FingerprintStore;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.synthetic.InMemorySource;
+import net.epicforce.migrate.ahp.synthetic.RecordingContext;
+import net.epicforce.migrate.ahp.synthetic.ScriptedLoader;
+import net.epicforce.migrate.ahp.synthetic.SyntheticJobConfig;
+import net.epicforce.migrate.ahp.synthetic.SyntheticLibraryJob;
+import net.epicforce.migrate.ahp.synthetic.SyntheticStepConfig;
+import net.epicforce.migrate.ahp.synthetic.WorkloadGenerator;
+import net.epicforce.migrate.ahp.watchdog.Watchdog;
+
+public class MigrationTest
+{
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeOffsetIsRejected()
+           throws Exception
+    {
+        new Migration(new InMemorySource())
+            .fetchWorkflowsForProjectName("%", -1, 10, null);
+    }
+
+    @Test
+    public void cancelledBeforeStartingIsClosed()
+           throws Exception
+    {
+        Migration m = new Migration(new InMemorySource());
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final AtomicReference<MigrateException> failed =
+                                    new AtomicReference<MigrateException>();
+
+        m.setWorkflowId(1L);
+
+        // Never gets round to running anything
+        MigrationFuture f = m.submit(new Executor() {
+            public void execute(final Runnable r)
+            {
+                queued.add(r);
+            }
+        });
+
+        f.addCallback(new MigrationCallback() {
+            public void onSuccess(final AbstractContext context)
+            {
+            }
+
+            public void onFailure(final MigrateException error)
+            {
+                failed.set(error);
+            }
+        });
+
+        assertTrue(f.cancel(false));
+        assertEquals(Migration.CLOSED, m.getStatus());
+        assertTrue(failed.get() instanceof CancelledException);
+
+        // If it does get round to it, there's nothing to run
+        queued.get(0).run();
+        assertEquals(Migration.CLOSED, m.getStatus());
+    }
+
+    @Test
+    public void firstFailureInALevelIsNotKeptWaiting()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        // job 0, then jobs 1 and 2 side by side
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(3, 3);
+        gen.setStepsPerJob(1);
+        gen.setShape(WorkloadGenerator.Shape.WIDE);
+        gen.populate(src);
+
+        Migration m = new Migration(src);
+
+        m.setWorkflowId(1L);
+        m.setContext(new RecordingContext(true, false));
+        m.setParallelism(2);
+        m.setLoader(new ScriptedLoader(new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+                   throws MigrateException
+            {
+                String job = context.getCurrentJob().getName();
+
+                if(job.endsWith("-1")) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch(InterruptedException e) {
+                        throw new CancelledException("Interrupted");
+                    }
+                } else if(job.endsWith("-2")) {
+                    throw new MigrateException("job 2 failed");
+                }
+            }
+        }));
+
+        long start = System.currentTimeMillis();
+
+        m.run();
+
+        assertEquals(Migration.ERROR, m.getStatus());
+        assertEquals("job 2 failed", m.getError().getMessage());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void overdueStepIsInterrupted()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(1, 1);
+        gen.setStepsPerJob(2);
+        gen.populate(src);
+
+        final List<String> ran = Collections.synchronizedList(
+                                                new ArrayList<String>());
+        Watchdog dog = new Watchdog();
+        Migration m = new Migration(src);
+
+        m.setWorkflowId(1L);
+        m.setContext(new RecordingContext(false, false));
+        m.setStepTimeout(50, TimeUnit.MILLISECONDS);
+        m.setWatchdog(dog, true);
+        m.setLoader(new ScriptedLoader(new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+                   throws MigrateException
+            {
+                ran.add(context.getCurrentStep().getName());
+
+                try {
+                    Thread.sleep(10000);
+                } catch(InterruptedException e) {
+                    throw new MigrateException("Interrupted");
+                }
+            }
+        }));
+
+        try {
+            long start = System.currentTimeMillis();
+
+            m.run();
+
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(Migration.ERROR, m.getStatus());
+            assertTrue(m.getError() instanceof TimedOutException);
+            assertEquals(1, ran.size());
+
+            // Our interrupt isn't left for whatever the thread does next
+            assertFalse(Thread.currentThread().isInterrupted());
+            assertEquals(1, dog.getOverdueCount());
+            assertEquals(0, dog.getWatchCount());
+            m.close();
+        } finally {
+            Thread.interrupted();
+            dog.close();
+        }
+    }
+
+    @Test
+    public void overdueStepIsCancelledWithoutInterrupting()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(1, 1);
+        gen.setStepsPerJob(2);
+        gen.populate(src);
+
+        final List<String> ran = Collections.synchronizedList(
+                                                new ArrayList<String>());
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        Watchdog dog = new Watchdog();
+        Migration m = new Migration(src);
+
+        m.setWorkflowId(1L);
+        m.setContext(new RecordingContext(false, false));
+        m.setStepTimeout(50, TimeUnit.MILLISECONDS);
+        m.setWatchdog(dog, false);
+        m.setLoader(new ScriptedLoader(new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+            {
+                ran.add(context.getCurrentStep().getName());
+
+                // Busy, well past the budget, and not waiting on
+                // anything an interrupt would get us out of
+                long until = System.nanoTime() +
+                             TimeUnit.MILLISECONDS.toNanos(300);
+
+                while(System.nanoTime() - until < 0) {
+                    if(Thread.currentThread().isInterrupted()) {
+                        interrupted.set(true);
+                    }
+                }
+            }
+        }));
+
+        try {
+            m.run();
+
+            // The step was left to finish; the next one never started
+            assertEquals(Migration.ERROR, m.getStatus());
+            assertTrue(m.getError() instanceof TimedOutException);
+            assertEquals(1, ran.size());
+            assertFalse(interrupted.get());
+            assertFalse(Thread.currentThread().isInterrupted());
+            assertEquals(1, dog.getOverdueCount());
+            assertEquals(0, dog.getWatchCount());
+            m.close();
+        } finally {
+            Thread.interrupted();
+            dog.close();
+        }
+    }
+
+    @Test
+    public void eventsComeInOrder()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        // Two jobs in a row, two steps each
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(2, 2);
+        gen.setStepsPerJob(2);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+        gen.populate(src);
+
+        EventBus bus = new EventBus();
+        final List<String> got = Collections.synchronizedList(
+                                                new ArrayList<String>());
+
+        bus.subscribe(new MigrationEventListener() {
+            public void onEvent(final MigrationEvent event)
+            {
+                got.add(event.getType() + " " + event.getJobName() + " " +
+                        event.getStepName());
+            }
+        });
+
+        Migration m = new Migration(src);
+
+        m.setWorkflowId(1L);
+        m.setContext(new RecordingContext(false, false));
+        m.setEventBus(bus);
+        m.setLoader(new ScriptedLoader(new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+                   throws MigrateException
+            {
+                // The last step skips itself
+                if(context.getCurrentStep().getName().equals("step-4")) {
+                    throw new SkipException("not needed");
+                }
+            }
+        }));
+        m.run();
+
+        assertEquals(Migration.SUCCESS, m.getStatus());
+        m.close();
+        bus.close();
+
+        assertEquals(Arrays.asList(
+            "WORKFLOW_STARTED null null",
+            "JOB_STARTED job-1-0 null",
+            "STEP_STARTED job-1-0 step-1",
+            "STEP_FINISHED job-1-0 step-1",
+            "STEP_STARTED job-1-0 step-2",
+            "STEP_FINISHED job-1-0 step-2",
+            "JOB_FINISHED job-1-0 null",
+            "JOB_STARTED job-1-1 null",
+            "STEP_STARTED job-1-1 step-3",
+            "STEP_FINISHED job-1-1 step-3",
+            "STEP_STARTED job-1-1 step-4",
+            "STEP_SKIPPED job-1-1 step-4",
+            "JOB_FINISHED job-1-1 null",
+            "WORKFLOW_FINISHED null null"
+        ), got);
+    }
+
+    @Test
+    public void failedRunResumesFromItsCheckpoint()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        // Three jobs in a row, two steps each
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(3, 3);
+        gen.setStepsPerJob(2);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+        gen.populate(src);
+
+        File dir = Files.createTempDirectory("ckpt").toFile();
+        final List<String> ran = Collections.synchronizedList(
+                                                new ArrayList<String>());
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        ScriptedLoader loader = new ScriptedLoader(
+                                            new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+                   throws MigrateException
+            {
+                String at = context.getCurrentJob().getName() + "/" +
+                            context.getCurrentStep().getName();
+
+                ran.add(at);
+
+                // The second step of the second job fails, once
+                if(at.equals("job-1-1/step-4") && failing.get()) {
+                    throw new MigrateException("second job broke");
+                }
+            }
+        });
+
+        try {
+            FileCheckpointStore store = new FileCheckpointStore(dir);
+            Migration first = new Migration(src);
+
+            first.setWorkflowId(1L);
+            first.setContext(new RecordingContext(false, true));
+            first.setLoader(loader);
+            first.setCheckpointStore(store, true);
+            first.run();
+
+            assertEquals(Migration.ERROR, first.getStatus());
+            assertEquals(4, ran.size());
+            first.close();
+            store.close();
+
+            // A new store, as after a restart
+            store = new FileCheckpointStore(dir);
+
+            Migration second = new Migration(src);
+            RecordingContext ctx = new RecordingContext(false, true);
+
+            failing.set(false);
+            ran.clear();
+            second.setWorkflowId(1L);
+            second.setContext(ctx);
+            second.setLoader(loader);
+            second.setCheckpointStore(store, true);
+            second.run();
+
+            assertEquals(Migration.SUCCESS, second.getStatus());
+            second.close();
+
+            // Only the failed step and what came after it ran again
+            assertEquals(3, ran.size());
+            assertEquals("job-1-1/step-4", ran.get(0));
+
+            // ... and the restored state makes up the rest
+            assertEquals(6, ctx.getLog().size());
+            assertEquals("job-1-0/step-1", ctx.getLog().get(0));
+            assertEquals("job-1-2/step-6", ctx.getLog().get(5));
+
+            // A finished workflow leaves nothing to resume
+            assertTrue(store.load(1L).isEmpty());
+            store.close();
+        } finally {
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void withoutResumeEverythingRunsAgain()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(2, 2);
+        gen.setStepsPerJob(2);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+        gen.populate(src);
+
+        File dir = Files.createTempDirectory("ckpt").toFile();
+
+        try {
+            FileCheckpointStore store = new FileCheckpointStore(dir);
+
+            // Pretend a previous run got through the first job
+            store.jobDone(1L, 1L, new ArrayList<String>());
+
+            Migration m = new Migration(src);
+            RecordingContext ctx = new RecordingContext(false, true);
+
+            m.setWorkflowId(1L);
+            m.setContext(ctx);
+            m.setLoader(new ScriptedLoader(null));
+            m.setCheckpointStore(store, false);
+            m.run();
+
+            assertEquals(Migration.SUCCESS, m.getStatus());
+            m.close();
+            store.close();
+
+            assertEquals(4, ctx.getLog().size());
+            assertFalse(new File(dir, "workflow-1.ckpt").exists());
+        } finally {
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void incrementalRunsOnlyWhatChanged()
+           throws Exception
+    {
+        InMemorySource src = new InMemorySource();
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(3, 3);
+        gen.setStepsPerJob(2);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+        gen.populate(src);
+
+        final Map<Long, Fingerprint> saved = new HashMap<Long, Fingerprint>();
+        FingerprintStore store = new FingerprintStore() {
+            public Fingerprint load(final Long workflowId)
+            {
+                return saved.get(workflowId);
+            }
+
+            public void save(final Fingerprint fingerprint)
+            {
+                saved.put(fingerprint.getWorkflowId(), fingerprint);
+            }
+        };
+
+        // First time round, everything
+        Migration m = incremental(src, store);
+
+        assertEquals(6, ((RecordingContext)m.getContext()).getLog().size());
+        assertFalse(m.isUnchanged());
+
+        // Nothing changed, so nothing runs
+        m = incremental(src, store);
+
+        assertTrue(m.isUnchanged());
+        assertEquals(0, ((RecordingContext)m.getContext()).getLog().size());
+
+        // Change one step of the middle job
+        src.bind();
+
+        try {
+            WorkflowData wf = src.load(1L);
+            StepConfig[][] steps = new StepConfig[3][];
+
+            for(int i = 0; i < steps.length; i++) {
+                steps[i] = src.loadSteps(wf, i);
+            }
+
+            steps[1][0] = new SyntheticStepConfig(steps[1][0].getId(),
+                                                  steps[1][0].getName(), 16);
+            src.add(wf, steps);
+        } finally {
+            src.unbind();
+        }
+
+        m = incremental(src, store);
+
+        List<String> log = ((RecordingContext)m.getContext()).getLog();
+
+        assertFalse(m.isUnchanged());
+        assertEquals(2, m.getSkippedJobCount());
+        assertEquals(2, log.size());
+        assertTrue(log.get(0).startsWith("job-1-1/"));
+        assertTrue(log.get(1).startsWith("job-1-1/"));
+    }
+
+    @Test
+    public void sharedJobConfigIsReplayed()
+           throws Exception
+    {
+        InMemorySource src = library();
+        JobTranslationCache cache = new JobTranslationCache();
+        final List<String> ran = Collections.synchronizedList(
+                                                new ArrayList<String>());
+        ScriptedLoader loader = new ScriptedLoader(
+                                            new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+            {
+                ran.add(context.getCurrentJob().getName() + "/" +
+                        context.getCurrentStep().getName());
+            }
+        });
+
+        RecordingContext first = cached(src, 1L, cache, loader, null);
+
+        assertEquals(2, ran.size());
+        assertEquals(1, cache.size());
+        assertEquals("wf-1-lib/lib-1", first.getLog().get(0));
+
+        // The second workflow's job runs nothing, but ends up the same
+        ran.clear();
+
+        RecordingContext second = cached(src, 2L, cache, loader, null);
+
+        assertEquals(0, ran.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, second.getLog().size());
+        assertEquals("wf-2-lib/lib-1", second.getLog().get(0));
+        assertEquals("wf-2-lib/lib-2", second.getLog().get(1));
+    }
+
+    @Test
+    public void resumedJobIsNotReplayed()
+           throws Exception
+    {
+        InMemorySource src = library();
+        JobTranslationCache cache = new JobTranslationCache();
+        final List<String> ran = Collections.synchronizedList(
+                                                new ArrayList<String>());
+        ScriptedLoader loader = new ScriptedLoader(
+                                            new ScriptedLoader.Script() {
+            public void run(final RecordingContext context)
+            {
+                ran.add(context.getCurrentJob().getName() + "/" +
+                        context.getCurrentStep().getName());
+            }
+        });
+        File dir = Files.createTempDirectory("ckpt").toFile();
+
+        try {
+            cached(src, 1L, cache, loader, null);
+            ran.clear();
+
+            // A previous run of workflow 2 got through the first step
+            FileCheckpointStore store = new FileCheckpointStore(dir);
+            ArrayList<String> state = new ArrayList<String>();
+
+            state.add("wf-2-lib/lib-1");
+            store.stepDone(2L, 2L, 1L, state);
+
+            RecordingContext ctx = cached(src, 2L, cache, loader, store);
+
+            store.close();
+
+            // The rest of the job runs; replaying it would migrate the
+            // first step twice
+            assertEquals(1, ran.size());
+            assertEquals("wf-2-lib/lib-2", ran.get(0));
+            assertEquals(0, cache.getHitCount());
+            assertEquals(2, ctx.getLog().size());
+        } finally {
+            for(File f : dir.listFiles()) {
+                f.delete();
+            }
+
+            dir.delete();
+        }
+    }
+
+    /**
+     * Make workflows 1 and 2, each one job running the same library
+     * job of two steps.
+     *
+     * @return where they are
+     */
+    private static InMemorySource library()
+    {
+        InMemorySource src = new InMemorySource();
+        SyntheticLibraryJob lib = new SyntheticLibraryJob(100L, "lib");
+        StepConfig[][] steps = {
+            {
+                new SyntheticStepConfig(1L, "lib-1", 16),
+                new SyntheticStepConfig(2L, "lib-2", 16)
+            }
+        };
+
+        for(long id = 1; id <= 2; id++) {
+            WorkflowDefinitionJobConfig[] jobs = {
+                new SyntheticJobConfig(id, "wf-" + id + "-lib", lib)
+            };
+
+            src.add(new WorkflowData(id, "workflow-" + id, null,
+                                     WorkloadGenerator.graph(
+                                        WorkloadGenerator.Shape.DEEP, jobs,
+                                        null),
+                                     null),
+                    steps);
+        }
+
+        return src;
+    }
+
+    /**
+     * Run a workflow with a translation cache.
+     *
+     * @param src       Where it is
+     * @param id        The workflow
+     * @param cache     The cache
+     * @param loader    The loader
+     * @param store     Checkpoints to resume from, or null
+     * @return the finished migration's context
+     */
+    private static RecordingContext cached(final InMemorySource src,
+                                           final Long id,
+                                           final JobTranslationCache cache,
+                                           final ScriptedLoader loader,
+                                           final FileCheckpointStore store)
+    {
+        Migration m = new Migration(src);
+        RecordingContext ctx = new RecordingContext(false, true);
+
+        m.setWorkflowId(id);
+        m.setContext(ctx);
+        m.setLoader(loader);
+        m.setTranslationCache(cache);
+
+        if(store != null) {
+            m.setCheckpointStore(store, true);
+        }
+
+        m.run();
+
+        assertEquals(Migration.SUCCESS, m.getStatus());
+        m.close();
+        return ctx;
+    }
+
+    /**
+     * Run workflow 1 in incremental mode.
+     *
+     * @param src       Where it is
+     * @param store     Its fingerprints
+     * @return the finished, closed migration
+     */
+    private static Migration incremental(final InMemorySource src,
+                                         final FingerprintStore store)
+    {
+        Migration m = new Migration(src);
+
+        m.setWorkflowId(1L);
+        m.setContext(new RecordingContext(false, false));
+        m.setLoader(new ScriptedLoader(null));
+        m.setFingerprintStore(store);
+        m.run();
+
+        assertEquals(Migration.SUCCESS, m.getStatus());
+        m.close();
+        return m;
+    }
+}
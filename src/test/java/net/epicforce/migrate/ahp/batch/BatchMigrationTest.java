@@ -0,0 +1,59 @@
+package net.epicforce.migrate.ahp.batch;
+
+/*
+ * BatchMigrationTest.java
+ *
+ * A batch can only be run once, and says so if it's run again.  The
+ * batches here are empty, so nothing connects to AHP.
+ */
+
+import java.util.Collections;
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.pool.ClientPool;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BatchMigrationTest
+{
+    /**
+     * @return an empty batch
+     */
+    private static BatchMigration emptyBatch()
+    {
+        return new BatchMigration(new ConnectionInfo("ahp", 4567, "user",
+                                                     "pw"),
+                                  new ClientPool(),
+                                  Collections.<Long>emptyList(),
+                                  null, null);
+    }
+
+    @Test
+    public void emptyBatchSucceeds()
+    {
+        BatchMigration b = emptyBatch();
+
+        b.run();
+
+        assertEquals(Migration.SUCCESS, b.getStatus());
+        assertEquals(100, b.getProgress());
+        assertNull(b.getError());
+    }
+
+    @Test
+    public void runningTwiceIsAnError()
+    {
+        BatchMigration b = emptyBatch();
+
+        b.run();
+        b.run();
+
+        assertEquals(Migration.ERROR, b.getStatus());
+        assertNotNull(b.getError());
+    }
+}
@@ -0,0 +1,180 @@
+package net.epicforce.migrate.ahp.cache;
+
+/*
+ * JobTranslationCacheTest.java
+ *
+ * The cache hands back copies, keeps to its entry and byte limits by
+ * pushing out the least recently used, never matches a different
+ * version, and turns away what it can't keep.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class JobTranslationCacheTest
+{
+    private static final byte[] V1 = { 1 };
+    private static final byte[] V2 = { 2 };
+
+    @Test
+    public void getHandsBackACopy()
+    {
+        JobTranslationCache cache = new JobTranslationCache();
+        ArrayList<String> output = new ArrayList<String>();
+
+        output.add("a");
+        cache.put(1L, V1, output);
+
+        Serializable got = cache.get(1L, V1);
+
+        assertEquals(output, got);
+        assertNotSame(output, got);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsByEntries()
+    {
+        JobTranslationCache cache = new JobTranslationCache(2, 1L << 20);
+
+        cache.put(1L, V1, "one");
+        cache.put(2L, V1, "two");
+
+        // 1 is now the most recently used, so 2 goes
+        assertNotNull(cache.get(1L, V1));
+        cache.put(3L, V1, "three");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("one", cache.get(1L, V1));
+        assertNull(cache.get(2L, V1));
+        assertEquals("three", cache.get(3L, V1));
+    }
+
+    @Test
+    public void evictsByBytes()
+           throws Exception
+    {
+        byte[] payload = new byte[1000];
+        long each = size(payload);
+        JobTranslationCache cache = new JobTranslationCache(100,
+                                                            (each * 2) + 1);
+
+        cache.put(1L, V1, payload);
+        cache.put(2L, V1, payload);
+        assertEquals(2, cache.size());
+        assertEquals(each * 2, cache.getBytes());
+
+        cache.put(3L, V1, payload);
+
+        assertEquals(2, cache.size());
+        assertEquals(each * 2, cache.getBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(1L, V1));
+        assertArrayEquals(payload, (byte[])cache.get(3L, V1));
+    }
+
+    @Test
+    public void versionMismatchMisses()
+    {
+        JobTranslationCache cache = new JobTranslationCache();
+
+        cache.put(1L, V1, "one");
+
+        assertNull(cache.get(1L, V2));
+        assertNull(cache.get(2L, V1));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // A new version sits alongside the old until it ages out
+        cache.put(1L, V2, "one again");
+        assertEquals("one", cache.get(1L, V1));
+        assertEquals("one again", cache.get(1L, V2));
+    }
+
+    @Test
+    public void oversizeIsRejected()
+           throws Exception
+    {
+        byte[] payload = new byte[1000];
+        JobTranslationCache cache = new JobTranslationCache(100,
+                                                        size(payload) - 1);
+
+        cache.put(1L, V1, payload);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void unserializableIsRejected()
+    {
+        JobTranslationCache cache = new JobTranslationCache();
+        ArrayList<Object> output = new ArrayList<Object>();
+
+        output.add(new Object());
+        cache.put(1L, V1, output);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void unreadableIsAMissAndDropped()
+    {
+        JobTranslationCache cache = new JobTranslationCache();
+
+        cache.put(1L, V1, new Unreadable());
+        assertEquals(1, cache.size());
+
+        assertNull(cache.get(1L, V1));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    /**
+     * @param o     Something to cache
+     * @return how many bytes it takes in the cache
+     */
+    private static long size(final Serializable o)
+            throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream out = new ObjectOutputStream(buf)) {
+            out.writeObject(o);
+        }
+
+        return buf.size();
+    }
+
+    /*
+     * Writes fine, won't read back
+     */
+    private static class Unreadable implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private void readObject(final ObjectInputStream in)
+                throws IOException
+        {
+            throw new IOException("Not today");
+        }
+    }
+}
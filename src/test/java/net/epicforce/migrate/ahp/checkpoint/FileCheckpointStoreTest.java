@@ -0,0 +1,144 @@
+package net.epicforce.migrate.ahp.checkpoint;
+
+/*
+ * FileCheckpointStoreTest.java
+ *
+ * The log survives being reopened, and a record torn by a crash is
+ * dropped and cut off so the log carries on cleanly after it.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileCheckpointStoreTest
+{
+    private static final Long   WF = 7L;
+
+    private File    dir;
+
+    @Before
+    public void makeDirectory()
+           throws Exception
+    {
+        dir = Files.createTempDirectory("ckpt").toFile();
+    }
+
+    @After
+    public void removeDirectory()
+    {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        dir.delete();
+    }
+
+    @Test
+    public void recordsSurviveReopening()
+           throws Exception
+    {
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        store.stepDone(WF, 1L, 10L, "after step 10");
+        store.jobDone(WF, 1L, "after job 1");
+        store.stepDone(WF, 2L, 20L, null);
+        store.close();
+
+        Checkpoint cp = new FileCheckpointStore(dir).load(WF);
+
+        assertTrue(cp.isJobDone(1L));
+        assertFalse(cp.isJobDone(2L));
+        assertTrue(cp.isJobStarted(2L));
+        assertTrue(cp.isStepDone(2L, 20L));
+        assertFalse(cp.isStepDone(2L, 21L));
+        // A record with no state leaves the last one standing
+        assertEquals("after job 1", cp.getState());
+    }
+
+    @Test
+    public void tornRecordIsDropped()
+           throws Exception
+    {
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        store.jobDone(WF, 1L, "after job 1");
+        store.close();
+
+        File log = dir.listFiles()[0];
+        long good = log.length();
+
+        // Half a record: a length and a bit of CRC
+        try(FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        }
+
+        store = new FileCheckpointStore(dir);
+
+        Checkpoint cp = store.load(WF);
+
+        assertTrue(cp.isJobDone(1L));
+        assertEquals("after job 1", cp.getState());
+        assertEquals(good, log.length());
+
+        // And appending carries on from the good part
+        store.jobDone(WF, 2L, "after job 2");
+        store.close();
+
+        cp = new FileCheckpointStore(dir).load(WF);
+
+        assertTrue(cp.isJobDone(1L));
+        assertTrue(cp.isJobDone(2L));
+        assertEquals("after job 2", cp.getState());
+    }
+
+    @Test
+    public void corruptRecordIsDropped()
+           throws Exception
+    {
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        store.jobDone(WF, 1L, "after job 1");
+        store.close();
+
+        File log = dir.listFiles()[0];
+        long good = log.length();
+
+        store = new FileCheckpointStore(dir);
+        store.jobDone(WF, 2L, "after job 2");
+        store.close();
+
+        // Flip the last byte of the second record's payload
+        byte[] bytes = Files.readAllBytes(log.toPath());
+
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(log.toPath(), bytes);
+
+        Checkpoint cp = new FileCheckpointStore(dir).load(WF);
+
+        assertTrue(cp.isJobDone(1L));
+        assertFalse(cp.isJobDone(2L));
+        assertEquals(good, log.length());
+    }
+
+    @Test
+    public void clearForgetsEverything()
+           throws Exception
+    {
+        FileCheckpointStore store = new FileCheckpointStore(dir);
+
+        store.jobDone(WF, 1L, "after job 1");
+        store.clear(WF);
+
+        assertTrue(store.load(WF).isEmpty());
+        assertEquals(0, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,74 @@
+package net.epicforce.migrate.ahp.context;
+
+/*
+ * AbstractContextTest.java
+ *
+ * Detaching keeps a copy of the result that the context can't change.
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AbstractContextTest
+{
+    /*
+     * Hands out its live list as its result
+     */
+    private static class ListContext extends AbstractContext
+    {
+        final ArrayList<String> items = new ArrayList<String>();
+
+        @Override
+        protected Serializable result()
+        {
+            return items;
+        }
+    }
+
+    @Test
+    public void detachedResultDoesNotChangeWithTheContext()
+           throws Exception
+    {
+        ListContext ctx = new ListContext();
+
+        ctx.items.add("one");
+
+        DetachedContext d = ctx.detach();
+
+        ctx.items.add("two");
+
+        assertEquals(1, ((ArrayList<?>)d.getResult()).size());
+        assertEquals(ListContext.class.getName(), d.getContextClass());
+    }
+
+    @Test
+    public void noResultDetachesToNull()
+           throws Exception
+    {
+        assertNull(new AbstractContext() { }.detach().getResult());
+    }
+
+    @Test(expected = MigrateException.class)
+    public void unserializableResultFails()
+           throws Exception
+    {
+        final ArrayList<Object> bad = new ArrayList<Object>();
+
+        bad.add(new Object());
+
+        new AbstractContext() {
+            @Override
+            protected Serializable result()
+            {
+                return bad;
+            }
+        }.detach();
+    }
+}
@@ -0,0 +1,187 @@
+package net.epicforce.migrate.ahp.event;
+
+/*
+ * EventBusTest.java
+ *
+ * Events reach every listener in the order they were published, a full
+ * queue drops and counts rather than blocking, a failing listener
+ * doesn't keep events from the rest, and close() delivers what's
+ * queued.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventBusTest
+{
+    @Test
+    public void deliveredInOrder()
+    {
+        EventBus bus = new EventBus();
+        Recorder r = new Recorder();
+
+        bus.subscribe(r);
+
+        for(long i = 0; i < 100; i++) {
+            bus.publish(event(i));
+        }
+
+        bus.close();
+
+        assertEquals(100, r.got.size());
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(Long.valueOf(i), r.got.get(i).getStepId());
+        }
+    }
+
+    @Test
+    public void nothingIsQueuedWithoutListeners()
+    {
+        EventBus bus = new EventBus();
+
+        try {
+            bus.publish(event(1));
+            assertEquals(0, bus.getPendingCount());
+            assertEquals(0, bus.getDroppedCount());
+        } finally {
+            bus.close();
+        }
+    }
+
+    @Test
+    public void fullQueueDropsAndCounts()
+           throws Exception
+    {
+        EventBus bus = new EventBus(1);
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder r = new Recorder() {
+            @Override
+            public void onEvent(final MigrationEvent event)
+            {
+                holding.countDown();
+
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.onEvent(event);
+            }
+        };
+
+        bus.subscribe(r);
+
+        // The first is taken and held by the listener, the second
+        // fills the queue, and the rest have nowhere to go
+        bus.publish(event(0));
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+        for(long i = 1; i < 4; i++) {
+            bus.publish(event(i));
+        }
+
+        assertEquals(1, bus.getPendingCount());
+        assertEquals(2, bus.getDroppedCount());
+
+        release.countDown();
+        bus.close();
+
+        assertEquals(2, r.got.size());
+        assertEquals(Long.valueOf(0), r.got.get(0).getStepId());
+        assertEquals(Long.valueOf(1), r.got.get(1).getStepId());
+    }
+
+    @Test
+    public void failingListenerDoesNotStarveTheRest()
+    {
+        EventBus bus = new EventBus();
+        Recorder r = new Recorder();
+
+        bus.subscribe(new MigrationEventListener() {
+            public void onEvent(final MigrationEvent event)
+            {
+                throw new IllegalStateException("Listener broke");
+            }
+        });
+        bus.subscribe(r);
+
+        for(long i = 0; i < 10; i++) {
+            bus.publish(event(i));
+        }
+
+        bus.close();
+
+        assertEquals(10, r.got.size());
+    }
+
+    @Test
+    public void closeDeliversWhatIsQueued()
+    {
+        EventBus bus = new EventBus();
+        Recorder r = new Recorder() {
+            @Override
+            public void onEvent(final MigrationEvent event)
+            {
+                try {
+                    Thread.sleep(5);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.onEvent(event);
+            }
+        };
+
+        bus.subscribe(r);
+
+        for(long i = 0; i < 20; i++) {
+            bus.publish(event(i));
+        }
+
+        bus.close();
+
+        assertEquals(20, r.got.size());
+        assertEquals(0, bus.getPendingCount());
+
+        // Closed means closed
+        bus.publish(event(20));
+        assertEquals(20, r.got.size());
+        assertEquals(0, bus.getPendingCount());
+    }
+
+    /**
+     * @param stepId    Tells the events apart
+     * @return an event
+     */
+    private static MigrationEvent event(long stepId)
+    {
+        return new MigrationEvent(MigrationEvent.Type.STEP_FINISHED, 1L,
+                                  "workflow-1", 1L, "job-1", stepId,
+                                  "step-" + stepId, 0, null, null);
+    }
+
+    /*
+     * Remembers what it was given
+     */
+    private static class Recorder implements MigrationEventListener
+    {
+        final List<MigrationEvent>  got = Collections.synchronizedList(
+                                            new ArrayList<MigrationEvent>());
+
+        public void onEvent(final MigrationEvent event)
+        {
+            got.add(event);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.epicforce.migrate.ahp.fingerprint;
+
+/*
+ * FingerprinterTest.java
+ *
+ * What a fingerprint notices: a job's own settings as well as its
+ * steps, and jobs without IDs kept apart.
+ */
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.synthetic.SyntheticJobConfig;
+import net.epicforce.migrate.ahp.synthetic.SyntheticStepConfig;
+
+public class FingerprinterTest
+{
+    /*
+     * A job with a setting of its own
+     */
+    private static class TimedJob extends SyntheticJobConfig
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int timeout;
+
+        TimedJob(final Long id, final String name, int timeout)
+        {
+            super(id, name);
+            this.timeout = timeout;
+        }
+    }
+
+    @Test
+    public void sameContentSameFingerprint()
+           throws Exception
+    {
+        Fingerprint a = compute(new TimedJob(1L, "a", 10),
+                                new TimedJob(2L, "b", 10));
+        Fingerprint b = compute(new TimedJob(1L, "a", 10),
+                                new TimedJob(2L, "b", 10));
+
+        assertTrue(b.isUnchangedSince(a));
+        assertTrue(b.isJobUnchangedSince(a, 1L));
+        assertTrue(b.isJobUnchangedSince(a, 2L));
+    }
+
+    @Test
+    public void jobSettingsCount()
+           throws Exception
+    {
+        Fingerprint a = compute(new TimedJob(1L, "a", 10),
+                                new TimedJob(2L, "b", 10));
+        Fingerprint b = compute(new TimedJob(1L, "a", 10),
+                                new TimedJob(2L, "b", 20));
+
+        assertFalse(b.isUnchangedSince(a));
+        assertTrue(b.isJobUnchangedSince(a, 1L));
+        assertFalse(b.isJobUnchangedSince(a, 2L));
+    }
+
+    @Test
+    public void jobsWithoutIdsAreKeptApart()
+           throws Exception
+    {
+        Fingerprint a = compute(new TimedJob(null, "a", 10),
+                                new TimedJob(null, "b", 10));
+        Fingerprint b = compute(new TimedJob(null, "a", 10),
+                                new TimedJob(null, "b", 20));
+
+        assertEquals(2, a.getJobDigests().size());
+        assertTrue(b.isJobUnchangedSince(a, -1L));
+        assertFalse(b.isJobUnchangedSince(a, -2L));
+    }
+
+    /**
+     * Fingerprint a two job chain, one step each.
+     */
+    private static Fingerprint compute(final WorkflowDefinitionJobConfig a,
+                                       final WorkflowDefinitionJobConfig b)
+            throws Exception
+    {
+        JobGraph graph = new JobGraph(
+                            new WorkflowDefinitionJobConfig[] { a, b },
+                            new int[] { 0 }, new int[] { 1 });
+        StepConfig[][] steps = new StepConfig[2][];
+
+        for(int i = 0; i < steps.length; i++) {
+            steps[i] = new StepConfig[] {
+                new SyntheticStepConfig(10L + i, "step", 0)
+            };
+        }
+
+        return new Fingerprinter().compute(
+                    new WorkflowData(1L, "workflow", null, graph, null),
+                    steps);
+    }
+}
@@ -0,0 +1,118 @@
+package net.epicforce.migrate.ahp.loader;
+
+/*
+ * AbstractLoaderTest.java
+ *
+ * loadClass: fresh instances from a remembered constructor, and
+ * failures that stay failures.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.epicforce.migrate.ahp.exception.UnsupportedClassException;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+
+public class AbstractLoaderTest
+{
+    /*
+     * Something to load
+     */
+    public static class Loadable
+    {
+        static int made = 0;
+
+        public Loadable()
+        {
+            made++;
+        }
+    }
+
+    /*
+     * Something that can only be made from inside
+     */
+    public static class Hidden
+    {
+        private Hidden()
+        {
+        }
+    }
+
+    @Test
+    public void eachCallMakesANewInstance()
+           throws Exception
+    {
+        Loader loader = new Loader();
+        int before = Loadable.made;
+
+        Object a = loader.loadClass(Loadable.class.getName());
+        Object b = loader.loadClass(Loadable.class.getName());
+
+        assertTrue(a instanceof Loadable);
+        assertNotSame(a, b);
+        assertEquals(before + 2, Loadable.made);
+    }
+
+    @Test
+    public void privateConstructorsAreNotForcedOpen()
+    {
+        expectUnsupported(new Loader(), Hidden.class.getName(),
+                          NoSuchMethodException.class);
+    }
+
+    @Test
+    public void missingClassesStayMissing()
+    {
+        Loader loader = new Loader();
+        String name = "net.epicforce.migrate.ahp.NoSuchClass";
+
+        expectUnsupported(loader, name, ClassNotFoundException.class);
+        expectUnsupported(loader, name, ClassNotFoundException.class);
+    }
+
+    /**
+     * @param loader    Loader to use
+     * @param name      Class name that shouldn't load
+     * @param cause     What it should fail with underneath
+     */
+    private static void expectUnsupported(final Loader loader,
+                                          final String name,
+                                          final Class<?> cause)
+    {
+        try {
+            loader.loadClass(name);
+            fail("Loaded " + name);
+        } catch(UnsupportedClassException e) {
+            assertTrue(String.valueOf(e.getCause()),
+                       cause.isInstance(e.getCause()));
+        }
+    }
+
+    /*
+     * The least loader there is
+     */
+    private static class Loader extends AbstractLoader
+    {
+        public AbstractWorkflow loadWorkflowClass()
+        {
+            return null;
+        }
+
+        public AbstractJob loadJobClass()
+        {
+            return null;
+        }
+
+        public AbstractStep loadStepClass(final String stepName)
+               throws UnsupportedClassException
+        {
+            throw new UnsupportedClassException(stepName);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package net.epicforce.migrate.ahp.loader.processor;
+
+/*
+ * MigratesStepProcessorTest.java
+ *
+ * Runs the processor over small compiles: the registry comes out clean,
+ * bad step classes and missing required steps fail the build, and the
+ * required steps are checked even when nothing is annotated.
+ */
+
+import javax.tools.JavaFileObject;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+public class MigratesStepProcessorTest
+{
+    private static final String STEP_CONFIG =
+                        "com.urbancode.anthill3.domain.step.StepConfig";
+
+    /*
+     * A good step class
+     */
+    private static final JavaFileObject STEP = JavaFileObjects.forSourceLines(
+        "test.ConfigMigrate",
+        "package test;",
+        "",
+        "import com.urbancode.anthill3.domain.step.StepConfig;",
+        "import net.epicforce.migrate.ahp.context.AbstractContext;",
+        "import net.epicforce.migrate.ahp.loader.MigratesStep;",
+        "import net.epicforce.migrate.ahp.migrate.AbstractStep;",
+        "",
+        "@MigratesStep(StepConfig.class)",
+        "public class ConfigMigrate extends AbstractStep {",
+        "    public void run(AbstractContext context) { }",
+        "}"
+    );
+
+    /*
+     * Something that isn't annotated
+     */
+    private static final JavaFileObject PLAIN = JavaFileObjects.forSourceLines(
+        "test.Plain",
+        "package test;",
+        "",
+        "public class Plain { }"
+    );
+
+    @Test
+    public void writesTheRegistryWithoutWarnings()
+    {
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .withOptions("-A" +
+                                    MigratesStepProcessor.OPTION_REQUIRED +
+                                    "=" + STEP_CONFIG)
+                               .compile(STEP);
+
+        assertThat(c).succeededWithoutWarnings();
+        assertThat(c).generatedSourceFile("test.GeneratedStepRegistry");
+    }
+
+    @Test
+    public void registryNameCanBeSet()
+    {
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .withOptions("-A" +
+                                    MigratesStepProcessor.OPTION_REGISTRY +
+                                    "=other.Steps")
+                               .compile(STEP);
+
+        assertThat(c).succeededWithoutWarnings();
+        assertThat(c).generatedSourceFile("other.Steps");
+    }
+
+    @Test
+    public void missingRequiredStepFails()
+    {
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .withOptions("-A" +
+                                    MigratesStepProcessor.OPTION_REQUIRED +
+                                    "=" + STEP_CONFIG + ",com.example.Gone")
+                               .compile(STEP);
+
+        assertThat(c).failed();
+        assertThat(c).hadErrorContaining("required step com.example.Gone");
+    }
+
+    @Test
+    public void requiredStepsAreCheckedWithNothingAnnotated()
+    {
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .withOptions("-A" +
+                                    MigratesStepProcessor.OPTION_REQUIRED +
+                                    "=" + STEP_CONFIG)
+                               .compile(PLAIN);
+
+        assertThat(c).failed();
+        assertThat(c).hadErrorContaining("required step " + STEP_CONFIG);
+    }
+
+    @Test
+    public void abstractStepClassFails()
+    {
+        JavaFileObject bad = JavaFileObjects.forSourceLines(
+            "test.AbstractMigrate",
+            "package test;",
+            "",
+            "import com.urbancode.anthill3.domain.step.StepConfig;",
+            "import net.epicforce.migrate.ahp.loader.MigratesStep;",
+            "import net.epicforce.migrate.ahp.migrate.AbstractStep;",
+            "",
+            "@MigratesStep(StepConfig.class)",
+            "public abstract class AbstractMigrate extends AbstractStep { }"
+        );
+
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .compile(bad);
+
+        assertThat(c).failed();
+        assertThat(c).hadErrorContaining("must be public, concrete");
+    }
+
+    @Test
+    public void dollarsAndNestedClassesAreNamedRight()
+    {
+        JavaFileObject dollar = JavaFileObjects.forSourceLines(
+            "test.Config$Migrate",
+            "package test;",
+            "",
+            "import com.urbancode.anthill3.domain.step.StepConfig;",
+            "import net.epicforce.migrate.ahp.context.AbstractContext;",
+            "import net.epicforce.migrate.ahp.loader.MigratesStep;",
+            "import net.epicforce.migrate.ahp.migrate.AbstractStep;",
+            "",
+            "@MigratesStep(StepConfig.class)",
+            "public class Config$Migrate extends AbstractStep {",
+            "    public void run(AbstractContext context) { }",
+            "}"
+        );
+        JavaFileObject nested = JavaFileObjects.forSourceLines(
+            "test.Steps",
+            "package test;",
+            "",
+            "import com.urbancode.anthill3.domain.step.StepConfig;",
+            "import net.epicforce.migrate.ahp.context.AbstractContext;",
+            "import net.epicforce.migrate.ahp.loader.MigratesStep;",
+            "import net.epicforce.migrate.ahp.migrate.AbstractStep;",
+            "",
+            "public class Steps {",
+            "    public static class OtherConfig extends StepConfig { }",
+            "",
+            "    @MigratesStep(OtherConfig.class)",
+            "    public static class Shell extends AbstractStep {",
+            "        public void run(AbstractContext context) { }",
+            "    }",
+            "}"
+        );
+
+        Compilation c = javac().withProcessors(new MigratesStepProcessor())
+                               .compile(dollar, nested);
+
+        assertThat(c).succeededWithoutWarnings();
+        assertThat(c).generatedSourceFile("test.GeneratedStepRegistry")
+                     .contentsAsUtf8String()
+                     .contains("return new test.Config$Migrate();");
+        assertThat(c).generatedSourceFile("test.GeneratedStepRegistry")
+                     .contentsAsUtf8String()
+                     .contains("return new test.Steps.Shell();");
+    }
+}
@@ -0,0 +1,97 @@
+package net.epicforce.migrate.ahp.metrics;
+
+/*
+ * LatencyHistogramTest.java
+ *
+ * Which bucket durations land in, and what percentiles come out.
+ * Bucket i holds 2^(i-1) to 2^i - 1 nanos, and a percentile is the top
+ * of its bucket, capped at the largest duration seen.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void emptyHistogramIsAllZero()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentileNanos(50));
+        assertEquals(0, h.getPercentileNanos(100));
+        assertEquals(0.0, h.getMeanNanos(), 0.0);
+    }
+
+    @Test
+    public void countsTotalsAndMax()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        h.record(10);
+        h.record(30);
+        h.record(-5);
+
+        assertEquals(3, h.getCount());
+        assertEquals(40, h.getTotalNanos());
+        assertEquals(30, h.getMaxNanos());
+        assertEquals(40.0 / 3, h.getMeanNanos(), 0.0001);
+    }
+
+    @Test
+    public void zeroHasItsOwnBucket()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        h.record(0);
+        h.record(0);
+        h.record(1000);
+
+        assertEquals(0, h.getPercentileNanos(50));
+        assertEquals(1000, h.getPercentileNanos(100));
+    }
+
+    @Test
+    public void percentileIsTopOfItsBucket()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        // 5 is in 4..7, 100 in 64..127
+        h.record(5);
+        h.record(100);
+
+        assertEquals(7, h.getPercentileNanos(50));
+
+        // Capped at the max rather than 127
+        assertEquals(100, h.getPercentileNanos(100));
+    }
+
+    @Test
+    public void percentilesErrHighByLessThanDouble()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for(int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+
+        // The 500th is in 256..511; the 990th in 512..1023, capped at
+        // 1000
+        assertEquals(511, h.getPercentileNanos(50));
+        assertEquals(1000, h.getPercentileNanos(99));
+        assertEquals(1, h.getPercentileNanos(0.1));
+    }
+
+    @Test
+    public void hugeDurationsFit()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+
+        h.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, h.getPercentileNanos(50));
+        assertEquals(Long.MAX_VALUE, h.getMaxNanos());
+    }
+}
@@ -0,0 +1,231 @@
+package net.epicforce.migrate.ahp.migrate.defaults;
+
+/*
+ * DumpWriterTest.java
+ *
+ * Chunks roll over by workflow count and by size, each is a
+ * well-formed document even when steps hold characters XML can't,
+ * discarded workflows stay out, and an earlier dump's chunks don't
+ * outlive a new one.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+
+import net.epicforce.migrate.ahp.synthetic.SyntheticJobConfig;
+import net.epicforce.migrate.ahp.synthetic.SyntheticStepConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DumpWriterTest
+{
+    private File    dir;
+
+    @Before
+    public void makeDirectory()
+           throws Exception
+    {
+        dir = Files.createTempDirectory("dump").toFile();
+    }
+
+    @After
+    public void removeDirectory()
+    {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        dir.delete();
+    }
+
+    @Test
+    public void rollsOverByWorkflowCount()
+           throws Exception
+    {
+        DumpWriter w = new DumpWriter(dir, "dump");
+
+        w.setMaxChunkWorkflows(2);
+
+        for(long id = 1; id <= 5; id++) {
+            dump(w, id);
+        }
+
+        w.close();
+
+        List<File> chunks = w.getChunks();
+
+        assertEquals(5, w.getWorkflowCount());
+        assertEquals(3, chunks.size());
+        assertEquals("dump-00001.xml", chunks.get(0).getName());
+        assertEquals(2, workflows(chunks.get(0)).getLength());
+        assertEquals(2, workflows(chunks.get(1)).getLength());
+        assertEquals(1, workflows(chunks.get(2)).getLength());
+    }
+
+    @Test
+    public void rollsOverByBytes()
+           throws Exception
+    {
+        DumpWriter w = new DumpWriter(dir, "dump");
+
+        // Every workflow is bigger than this, so each gets a chunk
+        w.setMaxChunkBytes(1);
+
+        for(long id = 1; id <= 3; id++) {
+            dump(w, id);
+        }
+
+        w.close();
+
+        assertEquals(3, w.getChunks().size());
+
+        for(File chunk : w.getChunks()) {
+            assertEquals(1, workflows(chunk).getLength());
+        }
+    }
+
+    @Test
+    public void discardedWorkflowsAreLeftOut()
+           throws Exception
+    {
+        DumpWriter w = new DumpWriter(dir, "dump");
+
+        dump(w, 1L);
+
+        WorkflowDump failed = w.startWorkflow(2L, "workflow-2");
+
+        failed.startJob(new SyntheticJobConfig(2L, "job-2"));
+        failed.discard();
+
+        // Never finished; close() leaves it out too
+        w.startWorkflow(3L, "workflow-3");
+
+        dump(w, 4L);
+        w.close();
+
+        NodeList wfs = workflows(w.getChunks().get(0));
+
+        assertEquals(2, w.getWorkflowCount());
+        assertEquals(2, wfs.getLength());
+        assertEquals("1", ((Element)wfs.item(0)).getAttribute("id"));
+        assertEquals("4", ((Element)wfs.item(1)).getAttribute("id"));
+
+        // No spool files left behind
+        for(File f : dir.listFiles()) {
+            assertFalse(f.getName().endsWith(".part"));
+        }
+    }
+
+    @Test
+    public void illegalCharactersAreDropped()
+           throws Exception
+    {
+        DumpWriter w = new DumpWriter(dir, "dump");
+        WorkflowDump d = w.startWorkflow(1L, "work\u0000flow");
+
+        d.startJob(new SyntheticJobConfig(1L, "job\u001b-1"));
+        d.step(new TextStep("a\u0000b\u0008c\ud800d\tok\ud83d\ude00"));
+        d.finish();
+        w.close();
+
+        Element wf = (Element)workflows(w.getChunks().get(0)).item(0);
+        Element job = (Element)wf.getElementsByTagName("job").item(0);
+        Element prop = (Element)wf.getElementsByTagName("property").item(0);
+
+        assertEquals("workflow", wf.getAttribute("name"));
+        assertEquals("job-1", job.getAttribute("name"));
+        assertEquals("text", prop.getAttribute("name"));
+        assertEquals("abcd\tok\ud83d\ude00", prop.getTextContent());
+    }
+
+    @Test
+    public void oldChunksAreDeleted()
+           throws Exception
+    {
+        File stale = new File(dir, "dump-00002.xml");
+        File other = new File(dir, "other-00002.xml");
+
+        assertTrue(stale.createNewFile());
+        assertTrue(other.createNewFile());
+
+        DumpWriter w = new DumpWriter(dir, "dump");
+
+        dump(w, 1L);
+        w.close();
+
+        assertEquals(1, w.getChunks().size());
+        assertTrue(w.getChunks().get(0).exists());
+        assertFalse(stale.exists());
+        assertTrue(other.exists());
+    }
+
+    /**
+     * Dump a workflow of two jobs, a step each.
+     *
+     * @param w     Where to
+     * @param id    The workflow's ID
+     */
+    private static void dump(final DumpWriter w, long id)
+            throws Exception
+    {
+        WorkflowDump d = w.startWorkflow(id, "workflow-" + id);
+
+        for(long j = 0; j < 2; j++) {
+            d.startJob(new SyntheticJobConfig((id * 10) + j, "job-" + j));
+            d.step(new SyntheticStepConfig((id * 10) + j, "step", 16));
+        }
+
+        d.finish();
+    }
+
+    /**
+     * Parse a chunk, which fails if it isn't well-formed.
+     *
+     * @param chunk     The chunk file
+     * @return its workflows
+     */
+    private static NodeList workflows(final File chunk)
+            throws Exception
+    {
+        Document doc = DocumentBuilderFactory.newInstance()
+                                             .newDocumentBuilder()
+                                             .parse(chunk);
+
+        assertEquals("ahp-dump", doc.getDocumentElement().getTagName());
+        return doc.getElementsByTagName("workflow");
+    }
+
+    /*
+     * A step with a text property
+     */
+    public static class TextStep extends StepConfig
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String    text;
+
+        public TextStep(final String text)
+        {
+            this.text = text;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.epicforce.migrate.ahp.pool;
+
+/*
+ * ClientPoolTest.java
+ *
+ * Pooling without a server: the connection hands out null clients,
+ * which the pool treats like any other, and health checks are counted
+ * rather than made.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientPoolTest
+{
+    /*
+     * Connects to nothing
+     */
+    private static final ConnectionInfo INFO =
+                            new ConnectionInfo("ahp", 4567, "user", "pw") {
+        @Override
+        public AnthillClient connect()
+        {
+            return null;
+        }
+    };
+
+    /*
+     * A pool whose health checks always pass
+     */
+    private static class HealthyPool extends ClientPool
+    {
+        final AtomicInteger checks = new AtomicInteger();
+
+        @Override
+        protected boolean validate(final AnthillClient client)
+        {
+            checks.incrementAndGet();
+            return true;
+        }
+    }
+
+    @Test
+    public void releasedClientsAreReused()
+           throws Exception
+    {
+        ClientPool pool = new HealthyPool();
+
+        pool.lease(INFO).release();
+        assertEquals(1, pool.getIdleCount(INFO));
+
+        LeasedClient lc = pool.lease(INFO);
+
+        assertEquals(0, pool.getIdleCount(INFO));
+        lc.release();
+        lc.release();
+        assertEquals(1, pool.getIdleCount(INFO));
+    }
+
+    @Test
+    public void poolKeepsNoMoreThanMaxIdle()
+           throws Exception
+    {
+        ClientPool pool = new HealthyPool();
+        LeasedClient[] leases = new LeasedClient[4];
+
+        pool.setMaxIdlePerKey(2);
+
+        for(int i = 0; i < leases.length; i++) {
+            leases[i] = pool.lease(INFO);
+        }
+
+        for(LeasedClient lc : leases) {
+            lc.release();
+        }
+
+        assertEquals(2, pool.getIdleCount(INFO));
+    }
+
+    @Test
+    public void evictionKeepsHealthyClientsWithinMaxIdle()
+           throws Exception
+    {
+        HealthyPool pool = new HealthyPool();
+
+        pool.setValidateAfterMillis(0);
+        pool.setMaxIdleMillis(60000);
+        pool.lease(INFO).release();
+
+        Thread.sleep(20);
+        pool.evictIdle();
+
+        assertEquals(1, pool.getIdleCount(INFO));
+        assertEquals(1, pool.checks.get());
+    }
+
+    @Test
+    public void healthyClientsStillAgeOut()
+           throws Exception
+    {
+        HealthyPool pool = new HealthyPool();
+
+        pool.setValidateAfterMillis(0);
+        pool.setMaxIdleMillis(200);
+        pool.lease(INFO).release();
+
+        // Passing health checks must not make it any younger
+        long end = System.currentTimeMillis() + 1000;
+
+        while((pool.getIdleCount(INFO) > 0) &&
+              (System.currentTimeMillis() < end)) {
+            pool.evictIdle();
+            Thread.sleep(20);
+        }
+
+        assertEquals(0, pool.getIdleCount(INFO));
+        assertTrue(pool.checks.get() > 1);
+    }
+
+    @Test
+    public void otherCredentialsGetNoIdleSession()
+           throws Exception
+    {
+        ClientPool pool = new HealthyPool();
+        final AtomicInteger connects = new AtomicInteger();
+        ConnectionInfo wrong = new ConnectionInfo("ahp", 4567, "user",
+                                                  "not-pw") {
+            @Override
+            public AnthillClient connect()
+            {
+                connects.incrementAndGet();
+                return null;
+            }
+        };
+        ConnectionInfo keystore = new ConnectionInfo("ahp", 4567, "user",
+                                                     "pw", "/ks", "kspw");
+
+        pool.lease(INFO).release();
+
+        assertFalse(wrong.equals(INFO));
+        assertFalse(keystore.equals(INFO));
+        assertEquals(0, pool.getIdleCount(wrong));
+        assertEquals(0, pool.getIdleCount(keystore));
+
+        // Has to log in for itself rather than take the idle session
+        pool.lease(wrong).release();
+
+        assertEquals(1, connects.get());
+        assertEquals(1, pool.getIdleCount(INFO));
+        assertEquals(1, pool.getIdleCount(wrong));
+    }
+
+    @Test
+    public void invalidatedClientsAreNotPooled()
+           throws Exception
+    {
+        ClientPool pool = new HealthyPool();
+
+        pool.lease(INFO).invalidate();
+        assertEquals(0, pool.getIdleCount(INFO));
+    }
+
+    @Test
+    public void closedPoolTakesNothingBack()
+           throws Exception
+    {
+        ClientPool pool = new HealthyPool();
+        LeasedClient lc = pool.lease(INFO);
+
+        pool.close();
+        lc.release();
+        assertEquals(0, pool.getIdleCount(INFO));
+    }
+}
@@ -0,0 +1,238 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * ParallelWorkflowQueryTest.java
+ *
+ * Projects are dealt out round robin to pooled sessions, and the
+ * results come back sorted by project name whatever order they were
+ * found in.  There's no AHP here: the pool's sessions are null clients
+ * and the projects come from a map.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.urbancode.anthill3.domain.project.Project;
+import com.urbancode.anthill3.main.client.AnthillClient;
+import com.urbancode.anthill3.persistence.UnitOfWork;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.pool.ClientPool;
+import net.epicforce.migrate.ahp.pool.ConnectionInfo;
+import net.epicforce.migrate.ahp.pool.LeasedClient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelWorkflowQueryTest
+{
+    /*
+     * Connects to nothing
+     */
+    private static final ConnectionInfo INFO =
+                            new ConnectionInfo("ahp", 4567, "user", "pw") {
+        @Override
+        public AnthillClient connect()
+        {
+            return null;
+        }
+    };
+
+    /*
+     * Project names, in the order AHP finds them; IDs are 1 up
+     */
+    private static final String[] NAMES = {
+        "gamma", "alpha", "epsilon", "beta", "zeta", "delta", "eta"
+    };
+
+    @Test
+    public void projectsAreDealtRoundRobin()
+           throws Exception
+    {
+        ClientPool pool = new ClientPool();
+        FakeQuery q = new FakeQuery(pool, 3);
+
+        q.fetchWorkflowsForProjectName("%", 0);
+
+        // One session to find them, then three to load them
+        assertEquals(4, q.sessions.size());
+        assertEquals(Collections.<Long>emptyList(), q.sessions.get(0));
+
+        Set<List<Long>> shares = new HashSet<List<Long>>(
+                                        q.sessions.subList(1, 4));
+
+        assertEquals(new HashSet<List<Long>>(Arrays.asList(
+            Arrays.asList(1L, 4L, 7L),
+            Arrays.asList(2L, 5L),
+            Arrays.asList(3L, 6L)
+        )), shares);
+
+        // The loading sessions were all out at once, and all went back
+        assertEquals(3, pool.getIdleCount(INFO));
+        pool.close();
+    }
+
+    @Test
+    public void resultsAreSortedByName()
+           throws Exception
+    {
+        ClientPool pool = new ClientPool();
+        Map<String, Map<String, Long>> got =
+                new FakeQuery(pool, 3).fetchWorkflowsForProjectName("%", 0);
+        List<String> want = new ArrayList<String>(Arrays.asList(NAMES));
+
+        Collections.sort(want);
+
+        assertEquals(want, new ArrayList<String>(got.keySet()));
+        assertEquals(Long.valueOf(101),
+                     got.get("gamma").get("gamma-workflow"));
+        pool.close();
+    }
+
+    @Test
+    public void fewerProjectsThanSessions()
+           throws Exception
+    {
+        ClientPool pool = new ClientPool();
+        FakeQuery q = new FakeQuery(pool, 10);
+        Map<String, Map<String, Long>> got =
+                                q.fetchWorkflowsForProjectName("%", 0);
+
+        assertEquals(NAMES.length, got.size());
+        assertEquals(1 + NAMES.length, q.sessions.size());
+        pool.close();
+    }
+
+    @Test
+    public void limitIsEnforced()
+    {
+        ClientPool pool = new ClientPool();
+
+        try {
+            new FakeQuery(pool, 3).fetchWorkflowsForProjectName("%", 2);
+            fail("Went over the limit");
+        } catch(MigrateException e) {
+            assertTrue(e.getMessage().contains("too many"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    /*
+     * Answers from NAMES, and remembers which session loaded what
+     */
+    private static class FakeQuery extends ParallelWorkflowQuery
+    {
+        /*
+         * What each session was asked to restore, in lease order
+         */
+        final List<List<Long>>  sessions = Collections.synchronizedList(
+                                                new ArrayList<List<Long>>());
+
+        private final ThreadLocal<List<Long>> current =
+                                            new ThreadLocal<List<Long>>();
+
+        /*
+         * Holds the loading sessions until they're all out
+         */
+        private final CountDownLatch          together;
+
+        FakeQuery(final ClientPool pool, int parallelism)
+        {
+            super(INFO, pool, parallelism);
+            together = new CountDownLatch(Math.min(parallelism,
+                                                   NAMES.length));
+        }
+
+        @Override
+        protected UnitOfWork begin(final LeasedClient lease)
+        {
+            List<Long> restored = Collections.synchronizedList(
+                                                    new ArrayList<Long>());
+
+            sessions.add(restored);
+            current.set(restored);
+
+            // The first session finds the projects; the rest load them
+            if(sessions.size() > 1) {
+                together.countDown();
+
+                try {
+                    together.await(5, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        protected Project[] restoreAllLikeName(final String project)
+        {
+            Project[] ret = new Project[NAMES.length];
+
+            for(int i = 0; i < ret.length; i++) {
+                ret[i] = new NamedProject(i + 1L, NAMES[i]);
+            }
+
+            return ret;
+        }
+
+        @Override
+        protected Project restore(final Long id)
+        {
+            current.get().add(id);
+            return new NamedProject(id, NAMES[(int)(id - 1)]);
+        }
+
+        @Override
+        protected Map<String, Long> workflowsOf(final Project p)
+        {
+            Map<String, Long> ret = new LinkedHashMap<String, Long>();
+
+            ret.put(p.getName() + "-workflow", p.getId() + 100);
+            return ret;
+        }
+    }
+
+    /*
+     * A project that's only an ID and name
+     */
+    private static class NamedProject extends Project
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Long      id;
+        private final String    name;
+
+        NamedProject(final Long id, final String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public Long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.epicforce.migrate.ahp.query;
+
+/*
+ * WorkflowCatalogTest.java
+ *
+ * The catalog's LIKE matching.  This checks our own reading of LIKE;
+ * whether AHP reads it the same way can only be checked against AHP.
+ */
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkflowCatalogTest
+{
+    @Test
+    public void percentMatchesAnyRun()
+    {
+        assertTrue(matches("Proj%", "Project One"));
+        assertTrue(matches("Proj%", "Proj"));
+        assertTrue(matches("%One", "Project One"));
+        assertTrue(matches("%", ""));
+        assertFalse(matches("Proj%", "My Project"));
+    }
+
+    @Test
+    public void underscoreMatchesOneCharacter()
+    {
+        assertTrue(matches("a_c", "abc"));
+        assertFalse(matches("a_c", "ac"));
+        assertFalse(matches("a_c", "abbc"));
+    }
+
+    @Test
+    public void matchingIgnoresCase()
+    {
+        assertTrue(matches("project", "PROJECT"));
+        assertTrue(matches("\u00e9t\u00e9", "\u00c9T\u00c9"));
+    }
+
+    @Test
+    public void regexMetacharactersAreLiteral()
+    {
+        assertTrue(matches("a.b", "a.b"));
+        assertFalse(matches("a.b", "axb"));
+        assertTrue(matches("(x)+[y]*", "(x)+[y]*"));
+        assertFalse(matches("(x)+", "xx"));
+        assertTrue(matches("a\\Eb\\Q", "a\\Eb\\Q"));
+        assertTrue(matches("$^|?{1}", "$^|?{1}"));
+        assertTrue(matches("one two", "one two"));
+    }
+
+    @Test
+    public void lettersAreNotEscapes()
+    {
+        // If letters were escaped, \d would match any digit
+        assertTrue(matches("d%", "d1"));
+        assertFalse(matches("\\d", "5"));
+        assertTrue(matches("\\d", "\\d"));
+    }
+
+    private static boolean matches(final String like, final String name)
+    {
+        Pattern p = WorkflowCatalog.likeToPattern(like);
+
+        return p.matcher(name).matches();
+    }
+}
@@ -0,0 +1,214 @@
+package net.epicforce.migrate.ahp.retry;
+
+/*
+ * RetryPolicyTest.java
+ *
+ * Backoff, the retry budget and what counts as worth retrying.  The
+ * retrying tests wait 0ms between attempts.
+ */
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.epicforce.migrate.ahp.exception.CancelledException;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.exception.SkipException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest
+{
+    /*
+     * Fails with the given exception until the given attempt
+     */
+    private static class Flaky implements Retryable<String, Exception>
+    {
+        final Exception failure;
+        final int succeedOn;
+        final AtomicInteger attempts = new AtomicInteger();
+
+        Flaky(final Exception failure, int succeedOn)
+        {
+            this.failure = failure;
+            this.succeedOn = succeedOn;
+        }
+
+        public String attempt(int attempt)
+               throws Exception
+        {
+            attempts.incrementAndGet();
+
+            if(attempt < succeedOn) {
+                throw failure;
+            }
+
+            return "done";
+        }
+    }
+
+    /**
+     * @return a policy that doesn't wait between attempts
+     */
+    private static RetryPolicy noWait(int maxAttempts)
+    {
+        RetryPolicy policy = new RetryPolicy(maxAttempts);
+
+        policy.setBackoff(0, 0, 1);
+        return policy;
+    }
+
+    @Test
+    public void delayGrowsUpToTheMax()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        policy.setBackoff(100, 350, 2);
+        policy.setJitter(0);
+
+        assertEquals(100, policy.delay(1));
+        assertEquals(200, policy.delay(2));
+        assertEquals(350, policy.delay(3));
+        assertEquals(350, policy.delay(10));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        policy.setBackoff(100, 100, 1);
+        policy.setJitter(1);
+
+        for(int i = 0; i < 100; i++) {
+            long delay = policy.delay(1);
+
+            assertTrue((delay >= 0) && (delay <= 100));
+        }
+    }
+
+    @Test
+    public void passingFailureIsRetried()
+           throws Exception
+    {
+        RetryPolicy policy = noWait(3);
+        Flaky op = new Flaky(new ConnectException("refused"), 3);
+
+        assertEquals("done", policy.execute("op", op));
+        assertEquals(3, op.attempts.get());
+        assertEquals(2, policy.getRetryCount());
+    }
+
+    @Test
+    public void lastFailureIsThrownWhenAttemptsRunOut()
+           throws Exception
+    {
+        RetryPolicy policy = noWait(3);
+        RemoteException failure = new RemoteException("gone");
+        Flaky op = new Flaky(failure, 100);
+
+        try {
+            policy.execute("op", op);
+            fail("Should have run out of attempts");
+        } catch(RemoteException e) {
+            assertSame(failure, e);
+        }
+
+        assertEquals(3, op.attempts.get());
+    }
+
+    @Test
+    public void permanentFailureIsNotRetried()
+           throws Exception
+    {
+        RetryPolicy policy = noWait(3);
+        Flaky op = new Flaky(new FileNotFoundException("nope"), 100);
+
+        try {
+            policy.execute("op", op);
+            fail("Should have failed");
+        } catch(FileNotFoundException e) {
+        }
+
+        assertEquals(1, op.attempts.get());
+        assertEquals(0, policy.getRetryCount());
+    }
+
+    @Test
+    public void budgetStopsRetries()
+           throws Exception
+    {
+        RetryPolicy policy = noWait(3);
+
+        // No ratio, so only the one retry to get going
+        policy.setBudget(0, 1);
+
+        Flaky first = new Flaky(new SocketTimeoutException(), 100);
+        Flaky second = new Flaky(new SocketTimeoutException(), 100);
+
+        try {
+            policy.execute("first", first);
+            fail("Should have failed");
+        } catch(SocketTimeoutException e) {
+        }
+
+        try {
+            policy.execute("second", second);
+            fail("Should have failed");
+        } catch(SocketTimeoutException e) {
+        }
+
+        assertEquals(2, first.attempts.get());
+        assertEquals(1, second.attempts.get());
+        assertEquals(1, policy.getRetryCount());
+        assertEquals(2, policy.getExhaustedCount());
+        assertEquals(2, policy.getCallCount());
+    }
+
+    @Test
+    public void connectionFailuresAreRetryable()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        assertTrue(policy.isRetryable(new ConnectException("refused")));
+        assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        assertTrue(policy.isRetryable(new RemoteException("gone")));
+        assertTrue(policy.isRetryable(
+            new RemoteException("gone", new EOFException())
+        ));
+        assertTrue(policy.isRetryable(
+            new MigrateException("wrapped", new ConnectException("refused"))
+        ));
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetryable()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        assertFalse(policy.isRetryable(new InvalidClassException("Foo")));
+        assertFalse(policy.isRetryable(new FileNotFoundException("nope")));
+        assertFalse(policy.isRetryable(
+            new RemoteException("unmarshal", new NotSerializableException())
+        ));
+        assertFalse(policy.isRetryable(new IllegalStateException("bug")));
+        assertFalse(policy.isRetryable(new MigrateException("bad config")));
+        assertFalse(policy.isRetryable(
+            new SkipException("skip", new ConnectException("refused"))
+        ));
+        assertFalse(policy.isRetryable(
+            new CancelledException("stop", new ConnectException("refused"))
+        ));
+    }
+}
@@ -0,0 +1,273 @@
+package net.epicforce.migrate.ahp.snapshot;
+
+/*
+ * SnapshotTest.java
+ *
+ * A snapshot reads back the same through both readers, a truncated
+ * one is refused, and a failed write leaves the old snapshot alone.
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+import net.epicforce.migrate.ahp.synthetic.InMemorySource;
+import net.epicforce.migrate.ahp.synthetic.SyntheticStepConfig;
+import net.epicforce.migrate.ahp.synthetic.WorkloadGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SnapshotTest
+{
+    private File            dir;
+    private File            file;
+    private InMemorySource  src;
+    private List<Long>      ids;
+
+    @Before
+    public void makeWorkflows()
+           throws Exception
+    {
+        dir = Files.createTempDirectory("snap").toFile();
+        file = new File(dir, "workflows.snap");
+        src = new InMemorySource();
+
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        gen.setWorkflows(3, 1);
+        gen.setJobsPerWorkflow(2, 5);
+        gen.setStepsPerJob(3);
+        gen.setShape(WorkloadGenerator.Shape.LAYERED);
+        ids = gen.populate(src);
+    }
+
+    @After
+    public void removeDirectory()
+    {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        dir.delete();
+    }
+
+    @Test
+    public void bothReadersReadBackWhatWasWritten()
+           throws Exception
+    {
+        write(src);
+
+        SnapshotSource plain = new SnapshotSource(file);
+        MappedSnapshotSource mapped = new MappedSnapshotSource(file);
+
+        assertEquals(ids.size(), plain.getWorkflowIds().size());
+        assertEquals(ids.size(), mapped.size());
+
+        src.bind();
+
+        try {
+            for(Long id : ids) {
+                WorkflowData want = src.load(id);
+
+                compare(want, plain.load(id), plain);
+                compare(want, mapped.load(id), mapped);
+
+                // One step at a time, too
+                WorkflowData got = mapped.load(id);
+
+                for(int j = 0; j < want.getGraph().size(); j++) {
+                    StepConfig[] steps = src.loadSteps(want, j);
+
+                    for(int k = 0; k < steps.length; k++) {
+                        compare(steps[k], mapped.loadStep(got, j, k));
+                    }
+                }
+            }
+        } finally {
+            src.unbind();
+        }
+
+        assertNull(plain.load(-1L));
+        assertNull(mapped.load(-1L));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void truncatedSnapshotIsRefused()
+           throws Exception
+    {
+        write(src);
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        refuse();
+
+        // Torn in the length of a record
+        write(src);
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[] { 0, 0 });
+        }
+
+        refuse();
+    }
+
+    @Test
+    public void failedWriteKeepsTheOldSnapshot()
+           throws Exception
+    {
+        write(src);
+
+        // Loads fine, but can't get at any steps
+        WorkflowSource broken = new WorkflowSource() {
+            public void bind()
+                   throws MigrateException
+            {
+                src.bind();
+            }
+
+            public void unbind()
+            {
+                src.unbind();
+            }
+
+            public AnthillClient getClient()
+            {
+                return null;
+            }
+
+            public WorkflowData load(final Long workflowId)
+                   throws MigrateException
+            {
+                return src.load(workflowId);
+            }
+
+            public StepConfig[] loadSteps(final WorkflowData workflow,
+                                          int job)
+                   throws MigrateException
+            {
+                throw new MigrateException("No steps for you");
+            }
+        };
+
+        SnapshotWriter w = new SnapshotWriter(file);
+
+        try {
+            w.export(broken, ids);
+            fail("Exported without steps");
+        } catch(MigrateException e) {
+        } finally {
+            w.close();
+        }
+
+        assertEquals(ids.size(), new SnapshotSource(file).getWorkflowIds()
+                                                         .size());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    /**
+     * Write every workflow to the snapshot file.
+     *
+     * @param from  Where they are
+     */
+    private void write(final WorkflowSource from)
+            throws Exception
+    {
+        SnapshotWriter w = new SnapshotWriter(file);
+
+        try {
+            assertEquals(ids.size(), w.export(from, ids));
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Check neither reader will read the snapshot file.
+     */
+    private void refuse()
+    {
+        try {
+            new SnapshotSource(file);
+            fail("Read a truncated snapshot");
+        } catch(MigrateException e) {
+        }
+
+        try {
+            new MappedSnapshotSource(file);
+            fail("Mapped a truncated snapshot");
+        } catch(MigrateException e) {
+        }
+    }
+
+    /**
+     * Check a workflow read from a snapshot matches the original.
+     *
+     * @param want      The original
+     * @param got       What was read
+     * @param from      Where it was read from, for its steps
+     */
+    private void compare(final WorkflowData want, final WorkflowData got,
+                         final WorkflowSource from)
+            throws Exception
+    {
+        JobGraph wg = want.getGraph();
+        JobGraph gg = got.getGraph();
+
+        assertEquals(want.getId(), got.getId());
+        assertEquals(want.getName(), got.getName());
+        assertEquals(wg.size(), gg.size());
+
+        for(int j = 0; j < wg.size(); j++) {
+            assertEquals(wg.getJob(j).getId(), gg.getJob(j).getId());
+            assertEquals(wg.getJob(j).getName(), gg.getJob(j).getName());
+            assertEquals(wg.getChildCount(j), gg.getChildCount(j));
+
+            for(int k = 0; k < wg.getChildCount(j); k++) {
+                assertEquals(wg.getChild(j, k), gg.getChild(j, k));
+            }
+
+            StepConfig[] ws = src.loadSteps(want, j);
+            StepConfig[] gs = from.loadSteps(got, j);
+
+            assertEquals(ws.length, gs.length);
+
+            for(int k = 0; k < ws.length; k++) {
+                compare(ws[k], gs[k]);
+            }
+        }
+    }
+
+    /**
+     * Check a step read from a snapshot matches the original.
+     *
+     * @param want  The original
+     * @param got   What was read
+     */
+    private static void compare(final StepConfig want, final StepConfig got)
+    {
+        assertEquals(want.getId(), got.getId());
+        assertEquals(want.getName(), got.getName());
+        assertArrayEquals(((SyntheticStepConfig)want).getPayload(),
+                          ((SyntheticStepConfig)got).getPayload());
+    }
+}
@@ -0,0 +1,236 @@
+package net.epicforce.migrate.ahp.source;
+
+/*
+ * StepPrefetcherTest.java
+ *
+ * Steps come out in the order they were asked for, jobs passed over
+ * are dropped, a failure reaches the taking thread, and stop() gets a
+ * producer out of a full queue.
+ */
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.synthetic.InMemorySource;
+import net.epicforce.migrate.ahp.synthetic.WorkloadGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StepPrefetcherTest
+{
+    private static final int[]  ALL = { 0, 1, 2, 3 };
+
+    private InMemorySource  src;
+    private WorkflowData    wf;
+
+    @Before
+    public void makeWorkflow()
+           throws Exception
+    {
+        WorkloadGenerator gen = new WorkloadGenerator();
+
+        src = new InMemorySource();
+        gen.setWorkflows(1, 1);
+        gen.setJobsPerWorkflow(4, 4);
+        gen.setStepsPerJob(2);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+        gen.populate(src);
+
+        wf = src.load(1L);
+    }
+
+    @Test
+    public void stepsComeOutInOrder()
+           throws Exception
+    {
+        StepPrefetcher p = new StepPrefetcher(src, wf, ALL, 2);
+
+        p.start();
+
+        try {
+            for(int job : ALL) {
+                assertSameSteps(src.loadSteps(wf, job), p.take(job));
+            }
+
+            // Not one of ours
+            assertNull(p.take(7));
+        } finally {
+            assertTrue(p.stop());
+        }
+    }
+
+    @Test
+    public void passedOverJobsAreDropped()
+           throws Exception
+    {
+        StepPrefetcher p = new StepPrefetcher(src, wf, ALL, 1);
+
+        p.start();
+
+        try {
+            assertSameSteps(src.loadSteps(wf, 2), p.take(2));
+
+            // 0 and 1 went by on the way to 2, and 3 on the way to the
+            // end; load them yourself
+            assertNull(p.take(0));
+            assertNull(p.take(3));
+        } finally {
+            assertTrue(p.stop());
+        }
+    }
+
+    @Test
+    public void failureIsHandedOver()
+           throws Exception
+    {
+        WorkflowSource failing = new Delegate() {
+            @Override
+            public StepConfig[] loadSteps(final WorkflowData workflow,
+                                          int job)
+                   throws MigrateException
+            {
+                if(job == 1) {
+                    throw new MigrateException("job 1 is broken");
+                }
+
+                return src.loadSteps(workflow, job);
+            }
+        };
+        StepPrefetcher p = new StepPrefetcher(failing, wf, ALL, 2);
+
+        p.start();
+
+        try {
+            assertSameSteps(src.loadSteps(wf, 0), p.take(0));
+
+            try {
+                p.take(1);
+                fail("Should have handed over the failure");
+            } catch(MigrateException e) {
+                assertEquals("job 1 is broken", e.getMessage());
+            }
+
+            // Nothing more after a failure
+            assertNull(p.take(2));
+        } finally {
+            assertTrue(p.stop());
+        }
+    }
+
+    @Test
+    public void stopGetsAProducerOutOfAFullQueue()
+           throws Exception
+    {
+        StepPrefetcher p = new StepPrefetcher(src, wf, ALL, 1);
+
+        p.start();
+
+        // One job fills the queue; once the second has been loaded,
+        // the producer is stuck putting it
+        long give = System.currentTimeMillis() + 5000;
+
+        while((src.getStepLoadCount() < 2) &&
+              (System.currentTimeMillis() < give)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, src.getStepLoadCount());
+        assertTrue(p.stop(5000));
+        assertEquals(2, src.getStepLoadCount());
+    }
+
+    @Test
+    public void reloadUsesItsOwnCopy()
+           throws Exception
+    {
+        long loads = src.getLoadCount();
+        StepPrefetcher p = new StepPrefetcher(src, wf, ALL, 2);
+
+        p.setReload(true);
+        p.start();
+
+        try {
+            assertSameSteps(src.loadSteps(wf, 0), p.take(0));
+            assertEquals(loads + 1, src.getLoadCount());
+        } finally {
+            assertTrue(p.stop());
+        }
+    }
+
+    @Test
+    public void reloadNoticesAChangedWorkflow()
+           throws Exception
+    {
+        src.remove(1L);
+
+        StepPrefetcher p = new StepPrefetcher(src, wf, ALL, 2);
+
+        p.setReload(true);
+        p.start();
+
+        try {
+            p.take(0);
+            fail("Should have noticed the workflow went away");
+        } catch(MigrateException e) {
+            assertTrue(e.getMessage().contains("changed"));
+        } finally {
+            assertTrue(p.stop());
+        }
+    }
+
+    /**
+     * Check two jobs' worth of steps are the same steps.
+     *
+     * @param want  What the source has
+     * @param got   What the prefetcher handed over
+     */
+    private static void assertSameSteps(final StepConfig[] want,
+                                        final StepConfig[] got)
+    {
+        assertEquals(want.length, got.length);
+
+        for(int k = 0; k < want.length; k++) {
+            assertEquals(want[k].getId(), got[k].getId());
+        }
+    }
+
+    /*
+     * Passes everything through to the in-memory source
+     */
+    private class Delegate implements WorkflowSource
+    {
+        public void bind()
+        {
+            src.bind();
+        }
+
+        public void unbind()
+        {
+            src.unbind();
+        }
+
+        public AnthillClient getClient()
+        {
+            return null;
+        }
+
+        public WorkflowData load(final Long workflowId)
+               throws MigrateException
+        {
+            return src.load(workflowId);
+        }
+
+        public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+               throws MigrateException
+        {
+            return src.loadSteps(workflow, job);
+        }
+    }
+}
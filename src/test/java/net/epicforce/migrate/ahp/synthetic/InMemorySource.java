@@ -0,0 +1,250 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * InMemorySource.java
+ *
+ * A WorkflowSource that stands in for an AHP server: workflows, their
+ * job graphs and their steps are kept in memory, usually filled in by a
+ * WorkloadGenerator.  With it, Migrations and BatchMigrations can be
+ * load tested on any machine.
+ *
+ * Optionally, loads can be made to take a while, to act like the
+ * network round trips to a real server.  It also keeps track of how
+ * many threads had it bound at once, to see how much concurrency a
+ * batch really got.
+ *
+ * This is threadsafe.  It's a test and benchmark fixture; it's in the
+ * test jar, not the library.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.main.client.AnthillClient;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+
+public class InMemorySource implements WorkflowSource
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final ConcurrentMap<Long, Entry>    workflows =
+                                    new ConcurrentHashMap<Long, Entry>();
+
+    /*
+     * Pretend latency, in milliseconds
+     */
+    private volatile long       loadLatency = 0;
+    private volatile long       stepLatency = 0;
+
+    /*
+     * Counters
+     */
+    private final AtomicInteger bound = new AtomicInteger();
+    private final AtomicInteger maxBound = new AtomicInteger();
+    private final AtomicLong    loadCount = new AtomicLong();
+    private final AtomicLong    stepLoadCount = new AtomicLong();
+
+    /*
+     * Which threads are bound, so unbind without bind isn't counted
+     */
+    private final ThreadLocal<Boolean>  isBound = new ThreadLocal<Boolean>();
+
+    /*****************************************************************
+     * CONTENT
+     ****************************************************************/
+
+    /**
+     * Add (or replace) a workflow.
+     *
+     * @param workflow  The workflow and its graph
+     * @param steps     Each job's steps, by job index
+     */
+    public void add(final WorkflowData workflow, final StepConfig[][] steps)
+    {
+        if(steps.length != workflow.getGraph().size()) {
+            throw new IllegalArgumentException(
+                "Need steps for each of the workflow's " +
+                workflow.getGraph().size() + " jobs"
+            );
+        }
+
+        workflows.put(workflow.getId(), new Entry(workflow, steps));
+    }
+
+    /**
+     * Drop a workflow, so it looks deleted.
+     *
+     * @param workflowId    The workflow
+     */
+    public void remove(final Long workflowId)
+    {
+        workflows.remove(workflowId);
+    }
+
+    /**
+     * @return the IDs of every workflow held, sorted
+     */
+    public List<Long> getWorkflowIds()
+    {
+        List<Long> ret = new ArrayList<Long>(workflows.keySet());
+
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /**
+     * @return how many workflows are held
+     */
+    public int size()
+    {
+        return workflows.size();
+    }
+
+    /*****************************************************************
+     * SIMULATION
+     ****************************************************************/
+
+    /**
+     * @param loadLatency   How long each load() should take, in ms
+     * @param stepLatency   How long each loadSteps() should take, in ms
+     */
+    public void setLatency(long loadLatency, long stepLatency)
+    {
+        this.loadLatency = loadLatency;
+        this.stepLatency = stepLatency;
+    }
+
+    /**
+     * @return the most threads that had this bound at once
+     */
+    public int getMaxConcurrency()
+    {
+        return maxBound.get();
+    }
+
+    /**
+     * @return how many times load() has been called
+     */
+    public long getLoadCount()
+    {
+        return loadCount.get();
+    }
+
+    /**
+     * @return how many times loadSteps() has been called
+     */
+    public long getStepLoadCount()
+    {
+        return stepLoadCount.get();
+    }
+
+    /*****************************************************************
+     * WorkflowSource
+     ****************************************************************/
+
+    public void bind()
+    {
+        if(isBound.get() != null) {
+            return;
+        }
+
+        isBound.set(Boolean.TRUE);
+
+        int now = bound.incrementAndGet();
+        int max;
+
+        while(now > (max = maxBound.get())) {
+            if(maxBound.compareAndSet(max, now)) {
+                break;
+            }
+        }
+    }
+
+    public void unbind()
+    {
+        if(isBound.get() != null) {
+            isBound.remove();
+            bound.decrementAndGet();
+        }
+    }
+
+    public AnthillClient getClient()
+    {
+        return null;
+    }
+
+    public WorkflowData load(final Long workflowId)
+           throws MigrateException
+    {
+        loadCount.incrementAndGet();
+        pause(loadLatency);
+
+        Entry e = workflows.get(workflowId);
+
+        return (e == null) ? null : e.workflow;
+    }
+
+    public StepConfig[] loadSteps(final WorkflowData workflow, int job)
+           throws MigrateException
+    {
+        stepLoadCount.incrementAndGet();
+        pause(stepLatency);
+
+        Entry e = workflows.get(workflow.getId());
+
+        if(e == null) {
+            throw new MigrateException("Workflow " + workflow.getId() +
+                                       " has gone away");
+        }
+
+        return e.steps[job].clone();
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * Pretend to wait on a server.
+     *
+     * @param millis    How long
+     * @throws MigrateException if interrupted
+     */
+    private static void pause(long millis)
+            throws MigrateException
+    {
+        if(millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrateException("Interrupted", e);
+        }
+    }
+
+    private static class Entry
+    {
+        final WorkflowData      workflow;
+        final StepConfig[][]    steps;
+
+        Entry(final WorkflowData workflow, final StepConfig[][] steps)
+        {
+            this.workflow = workflow;
+            this.steps = steps;
+        }
+    }
+}
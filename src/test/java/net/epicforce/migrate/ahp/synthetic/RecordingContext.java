@@ -0,0 +1,129 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * RecordingContext.java
+ *
+ * A context that remembers which steps were migrated into it, as
+ * "job/step" names, in the order they ran.  It can be made forkable
+ * and checkpointable, to drive the parallel and resume paths of
+ * Migration.run().  It always captures and replays jobs: a job's output
+ * is the names of the steps it migrated, replayed under the name of
+ * whatever job it's replayed for.
+ *
+ * This is a test fixture; it's in the test jar, not the library.
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+public class RecordingContext extends AbstractContext
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final boolean           forkable;
+    private final boolean           checkpointable;
+
+    /*
+     * What's been migrated so far
+     */
+    private final ArrayList<String> log = new ArrayList<String>();
+
+    /**
+     * Constructor
+     *
+     * @param forkable          Support fork() and merge()
+     * @param checkpointable    Support checkpoint() and restore()
+     */
+    public RecordingContext(boolean forkable, boolean checkpointable)
+    {
+        this.forkable = forkable;
+        this.checkpointable = checkpointable;
+    }
+
+    /*****************************************************************
+     * RECORDING
+     ****************************************************************/
+
+    /**
+     * Record the current step as migrated.
+     */
+    public synchronized void record()
+    {
+        log.add(currentJob.getName() + "/" + currentStep.getName());
+    }
+
+    /**
+     * @return what's been migrated, in order
+     */
+    public synchronized List<String> getLog()
+    {
+        return new ArrayList<String>(log);
+    }
+
+    /*****************************************************************
+     * AbstractContext
+     ****************************************************************/
+
+    @Override
+    public AbstractContext fork()
+    {
+        return forkable ? new RecordingContext(forkable, checkpointable)
+                        : null;
+    }
+
+    @Override
+    public void merge(final AbstractContext fork)
+    {
+        synchronized(this) {
+            log.addAll(((RecordingContext)fork).getLog());
+        }
+    }
+
+    @Override
+    public synchronized Serializable captureJob()
+    {
+        String prefix = currentJob.getName() + "/";
+        ArrayList<String> ret = new ArrayList<String>();
+
+        for(String s : log) {
+            if(s.startsWith(prefix)) {
+                ret.add(s.substring(prefix.length()));
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void replayJob(final Serializable output)
+    {
+        for(String s : (List<String>)output) {
+            log.add(currentJob.getName() + "/" + s);
+        }
+    }
+
+    @Override
+    public synchronized Serializable checkpoint()
+    {
+        return checkpointable ? new ArrayList<String>(log) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void restore(final Serializable state)
+           throws MigrateException
+    {
+        log.clear();
+
+        if(state != null) {
+            log.addAll((List<String>)state);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * ScriptedLoader.java
+ *
+ * A loader whose every step class records itself in a
+ * RecordingContext, after doing whatever the test scripted for it:
+ * failing, say, or taking its time.  There are no workflow or job
+ * classes.
+ *
+ * This is a test fixture; it's in the test jar, not the library.
+ */
+
+import net.epicforce.migrate.ahp.context.AbstractContext;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.loader.AbstractLoader;
+import net.epicforce.migrate.ahp.migrate.AbstractJob;
+import net.epicforce.migrate.ahp.migrate.AbstractStep;
+import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
+
+public class ScriptedLoader extends AbstractLoader
+{
+    /**
+     * What a step does before recording itself
+     */
+    public interface Script
+    {
+        /**
+         * @param context   The context, with the current job and step
+         *                  set
+         * @throws MigrateException to fail the step
+         */
+        public void run(final RecordingContext context)
+               throws MigrateException;
+    }
+
+    private final Script    script;
+
+    /**
+     * Constructor
+     *
+     * @param script    What every step does first; may be null
+     */
+    public ScriptedLoader(final Script script)
+    {
+        this.script = script;
+    }
+
+    public AbstractWorkflow loadWorkflowClass()
+    {
+        return null;
+    }
+
+    public AbstractJob loadJobClass()
+    {
+        return null;
+    }
+
+    public AbstractStep loadStepClass(final String stepName)
+    {
+        return new AbstractStep() {
+            public void run(final AbstractContext context)
+                   throws MigrateException
+            {
+                RecordingContext rc = (RecordingContext)context;
+
+                if(script != null) {
+                    script.run(rc);
+                }
+
+                rc.record();
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * SyntheticJobConfig.java
+ *
+ * A made-up job for generated workloads.  AHP's own job configs only
+ * get IDs when they're saved on a server, so this carries its own.
+ * It has no library job behind it unless it's given one.
+ *
+ * This assumes the AHP class has a no-arg constructor we can call
+ * and a getId and getName we can override.  A remoting API where that
+ * isn't so will break the tests and benchmarks, but not the library,
+ * which is why this lives in the test jar.
+ */
+
+import com.urbancode.anthill3.domain.jobconfig.JobConfig;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+public class SyntheticJobConfig extends WorkflowDefinitionJobConfig
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Long      id;
+    private final String    name;
+    private final JobConfig library;
+
+    /**
+     * Constructor
+     *
+     * @param id    Job config ID
+     * @param name  Job name
+     */
+    public SyntheticJobConfig(final Long id, final String name)
+    {
+        this(id, name, null);
+    }
+
+    /**
+     * Constructor: a job that runs a library job
+     *
+     * @param id        Job config ID
+     * @param name      Job name
+     * @param library   The library job; may be null
+     */
+    public SyntheticJobConfig(final Long id, final String name,
+                              final JobConfig library)
+    {
+        this.id = id;
+        this.name = name;
+        this.library = library;
+    }
+
+    @Override
+    public Long getId()
+    {
+        return id;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public JobConfig getJobConfig()
+    {
+        return library;
+    }
+}
@@ -0,0 +1,48 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * SyntheticLibraryJob.java
+ *
+ * A made-up library job: the JobConfig behind a workflow's job, which
+ * in AHP may be shared by any number of workflows.  Give the same one
+ * to jobs in different workflows to drive the job translation cache.
+ *
+ * This assumes the AHP class has a no-arg constructor we can call
+ * and a getId and getName we can override.  A remoting API where that
+ * isn't so will break the tests and benchmarks, but not the library,
+ * which is why this lives in the test jar.
+ */
+
+import com.urbancode.anthill3.domain.jobconfig.JobConfig;
+
+public class SyntheticLibraryJob extends JobConfig
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Long      id;
+    private final String    name;
+
+    /**
+     * Constructor
+     *
+     * @param id    Job config ID
+     * @param name  Library job name
+     */
+    public SyntheticLibraryJob(final Long id, final String name)
+    {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public Long getId()
+    {
+        return id;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,59 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * SyntheticStepConfig.java
+ *
+ * A made-up step for generated workloads.  It can carry a payload of
+ * some size, to stand in for the memory a real step config takes up.
+ *
+ * This assumes the AHP class has a no-arg constructor we can call
+ * and a getId and getName we can override.  A remoting API where that
+ * isn't so will break the tests and benchmarks, but not the library,
+ * which is why this lives in the test jar.
+ */
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+
+public class SyntheticStepConfig extends StepConfig
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Long      id;
+    private final String    name;
+    private final byte[]    payload;
+
+    /**
+     * Constructor
+     *
+     * @param id            Step config ID
+     * @param name          Step name
+     * @param payloadBytes  How big a payload to carry; may be 0
+     */
+    public SyntheticStepConfig(final Long id, final String name,
+                               int payloadBytes)
+    {
+        this.id = id;
+        this.name = name;
+        this.payload = new byte[payloadBytes];
+    }
+
+    @Override
+    public Long getId()
+    {
+        return id;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the payload; its contents mean nothing
+     */
+    public byte[] getPayload()
+    {
+        return payload;
+    }
+}
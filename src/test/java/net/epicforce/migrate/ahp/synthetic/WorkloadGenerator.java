@@ -0,0 +1,380 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * WorkloadGenerator.java
+ *
+ * Fills an InMemorySource with a fleet of made-up workflows, so
+ * migrations can be load tested without an AHP server.  The fleet's
+ * size and shape are configurable:
+ *
+ *   - how many workflows, and their IDs;
+ *   - how many jobs each has (a fixed number or a range);
+ *   - the shape of their job graphs: WIDE (one job with every other job
+ *     hanging off it), DEEP (one long chain), LAYERED (levels of about
+ *     sqrt(jobs) jobs, each depending on the whole level before) or
+ *     RANDOM;
+ *   - how many steps each job has, and what they are.
+ *
+ * Steps are SyntheticStepConfigs by default.  To exercise real step
+ * classes, give it prototypes -- straight from a live AHP or a snapshot
+ * with usePrototypes() -- and every step will be a fresh copy of one.
+ *
+ * The same seed always makes the same fleet.
+ *
+ * This is a test and benchmark fixture; it's in the test jar, not the
+ * library.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.urbancode.anthill3.domain.step.StepConfig;
+import com.urbancode.anthill3.domain.workflow.Workflow;
+import com.urbancode.anthill3.domain.workflow.WorkflowDefinitionJobConfig;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+import net.epicforce.migrate.ahp.source.WorkflowSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class WorkloadGenerator
+{
+    private final static Logger LOG =
+                        LoggerFactory.getLogger(WorkloadGenerator.class);
+
+    /**
+     * Job graph shapes
+     */
+    public enum Shape { WIDE, DEEP, LAYERED, RANDOM }
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private int         count = 100;
+    private long        firstId = 1;
+    private int         minJobs = 10;
+    private int         maxJobs = 10;
+    private Shape       shape = Shape.LAYERED;
+    private int         stepsPerJob = 5;
+    private int         payloadBytes = 0;
+    private long        seed = 0;
+
+    /*
+     * Serialized prototypes, if we're copying real objects
+     */
+    private byte[]      workflowPrototype = null;
+    private byte[][]    stepPrototypes = null;
+
+    /*****************************************************************
+     * CONFIGURATION
+     ****************************************************************/
+
+    /**
+     * @param count     How many workflows to make
+     * @param firstId   The first workflow's ID; the rest follow on
+     */
+    public void setWorkflows(int count, long firstId)
+    {
+        if(count < 0) {
+            throw new IllegalArgumentException("Count can't be negative");
+        }
+
+        this.count = count;
+        this.firstId = firstId;
+    }
+
+    /**
+     * @param minJobs   Fewest jobs per workflow; at least 1
+     * @param maxJobs   Most jobs per workflow
+     */
+    public void setJobsPerWorkflow(int minJobs, int maxJobs)
+    {
+        if((minJobs < 1) || (maxJobs < minJobs)) {
+            throw new IllegalArgumentException("Bad job range");
+        }
+
+        this.minJobs = minJobs;
+        this.maxJobs = maxJobs;
+    }
+
+    /**
+     * @param shape     The shape of every workflow's job graph
+     */
+    public void setShape(final Shape shape)
+    {
+        this.shape = shape;
+    }
+
+    /**
+     * @param stepsPerJob   How many steps each job has
+     */
+    public void setStepsPerJob(int stepsPerJob)
+    {
+        if(stepsPerJob < 0) {
+            throw new IllegalArgumentException("Steps can't be negative");
+        }
+
+        this.stepsPerJob = stepsPerJob;
+    }
+
+    /**
+     * @param payloadBytes  How much each SyntheticStepConfig carries,
+     *                      to stand in for real step configs' size.
+     *                      Not used with prototypes.
+     */
+    public void setPayloadBytes(int payloadBytes)
+    {
+        if(payloadBytes < 0) {
+            throw new IllegalArgumentException(
+                "Payload can't be negative"
+            );
+        }
+
+        this.payloadBytes = payloadBytes;
+    }
+
+    /**
+     * @param seed  Random seed
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * Copy real objects instead of making synthetic steps.
+     *
+     * @param workflow  Every workflow gets a copy of this; may be null
+     * @param steps     Step k of every job is a copy of
+     *                  steps[k % steps.length]; may be empty for
+     *                  synthetic steps
+     * @throws MigrateException if they won't serialize
+     */
+    public void setPrototypes(final Workflow workflow,
+                              final StepConfig... steps)
+           throws MigrateException
+    {
+        try {
+            workflowPrototype = (workflow == null) ? null : toBytes(workflow);
+
+            if(steps.length == 0) {
+                stepPrototypes = null;
+            } else {
+                stepPrototypes = new byte[steps.length][];
+
+                for(int i = 0; i < steps.length; i++) {
+                    stepPrototypes[i] = toBytes(steps[i]);
+                }
+            }
+        } catch(IOException e) {
+            throw new MigrateException("Could not copy prototypes", e);
+        }
+    }
+
+    /**
+     * Take prototypes from an existing workflow: its Workflow object,
+     * and every step of every job.
+     *
+     * @param source        Where to load it from; a live AHP, or a
+     *                      snapshot
+     * @param workflowId    The workflow
+     * @throws MigrateException on error, or if there's no such workflow
+     */
+    public void usePrototypes(final WorkflowSource source,
+                              final Long workflowId)
+           throws MigrateException
+    {
+        try {
+            source.bind();
+
+            WorkflowData wf = source.load(workflowId);
+
+            if(wf == null) {
+                throw new MigrateException("Workflow ID " + workflowId +
+                                           " does not exist!");
+            }
+
+            List<StepConfig> steps = new ArrayList<StepConfig>();
+
+            for(int i = 0; i < wf.getGraph().size(); i++) {
+                for(StepConfig s : source.loadSteps(wf, i)) {
+                    steps.add(s);
+                }
+            }
+
+            setPrototypes(wf.getWorkflow(),
+                          steps.toArray(new StepConfig[steps.size()]));
+        } finally {
+            source.unbind();
+        }
+    }
+
+    /*****************************************************************
+     * GENERATION
+     ****************************************************************/
+
+    /**
+     * Make the fleet and add it to a source.
+     *
+     * @param into  Where to put it
+     * @return the IDs of the workflows made, in order
+     * @throws MigrateException if a prototype won't copy
+     */
+    public List<Long> populate(final InMemorySource into)
+           throws MigrateException
+    {
+        Random rnd = new Random(seed);
+        List<Long> ret = new ArrayList<Long>(count);
+        long nextJobId = 1;
+        long nextStepId = 1;
+
+        for(int w = 0; w < count; w++) {
+            Long id = firstId + w;
+            int size = minJobs + rnd.nextInt(maxJobs - minJobs + 1);
+            WorkflowDefinitionJobConfig[] jobs =
+                                new WorkflowDefinitionJobConfig[size];
+            StepConfig[][] steps = new StepConfig[size][];
+
+            for(int j = 0; j < size; j++) {
+                jobs[j] = new SyntheticJobConfig(nextJobId++,
+                                                 "job-" + id + "-" + j);
+                steps[j] = new StepConfig[stepsPerJob];
+
+                for(int k = 0; k < stepsPerJob; k++) {
+                    steps[j][k] = newStep(nextStepId++, k);
+                }
+            }
+
+            Workflow wf = (workflowPrototype == null)
+                          ? null : (Workflow)copy(workflowPrototype);
+
+            into.add(new WorkflowData(id, "workflow-" + id, wf,
+                                      graph(shape, jobs, rnd), null),
+                     steps);
+            ret.add(id);
+        }
+
+        LOG.info("Generated {} {} workflows", count, shape);
+        return ret;
+    }
+
+    /**
+     * Make a job graph.
+     *
+     * @param shape     Its shape
+     * @param jobs      Its jobs
+     * @param rnd       For RANDOM
+     * @return the graph
+     */
+    public static JobGraph graph(final Shape shape,
+                                 final WorkflowDefinitionJobConfig[] jobs,
+                                 final Random rnd)
+    {
+        int size = jobs.length;
+        List<int[]> edges = new ArrayList<int[]>();
+
+        switch(shape) {
+            case WIDE:
+                for(int i = 1; i < size; i++) {
+                    edges.add(new int[] { 0, i });
+                }
+                break;
+            case DEEP:
+                for(int i = 1; i < size; i++) {
+                    edges.add(new int[] { i - 1, i });
+                }
+                break;
+            case LAYERED:
+                int width = Math.max(1, (int)Math.sqrt(size));
+
+                for(int i = width; i < size; i++) {
+                    int layer = (i / width) - 1;
+
+                    for(int p = layer * width; p < (layer + 1) * width; p++) {
+                        edges.add(new int[] { p, i });
+                    }
+                }
+                break;
+            case RANDOM:
+                // Every job but the first hangs off an earlier one, and
+                // sometimes a second.
+                for(int i = 1; i < size; i++) {
+                    int p = rnd.nextInt(i);
+
+                    edges.add(new int[] { p, i });
+
+                    if((i > 1) && (rnd.nextInt(4) == 0)) {
+                        int q = rnd.nextInt(i);
+
+                        if(q != p) {
+                            edges.add(new int[] { q, i });
+                        }
+                    }
+                }
+                break;
+        }
+
+        int[] from = new int[edges.size()];
+        int[] to = new int[edges.size()];
+
+        for(int i = 0; i < from.length; i++) {
+            from[i] = edges.get(i)[0];
+            to[i] = edges.get(i)[1];
+        }
+
+        return new JobGraph(jobs, from, to);
+    }
+
+    /*****************************************************************
+     * INTERNALS
+     ****************************************************************/
+
+    /**
+     * @param id    New step's ID
+     * @param k     Its index in the job
+     * @return a synthetic step, or a copy of a prototype
+     * @throws MigrateException if the prototype won't copy
+     */
+    private StepConfig newStep(long id, int k)
+            throws MigrateException
+    {
+        if(stepPrototypes == null) {
+            return new SyntheticStepConfig(id, "step-" + id, payloadBytes);
+        }
+
+        return (StepConfig)copy(stepPrototypes[k % stepPrototypes.length]);
+    }
+
+    private static byte[] toBytes(final Object o)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Object copy(final byte[] b)
+            throws MigrateException
+    {
+        try(ObjectInputStream in = new ObjectInputStream(
+                                        new ByteArrayInputStream(b))) {
+            return in.readObject();
+        } catch(IOException | ClassNotFoundException e) {
+            throw new MigrateException("Could not copy prototype", e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.epicforce.migrate.ahp.synthetic;
+
+/*
+ * WorkloadGeneratorTest.java
+ *
+ * The generator is what the other tests and the benchmarks stand on,
+ * so check it makes what it says it does.
+ */
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.epicforce.migrate.ahp.context.JobGraph;
+import net.epicforce.migrate.ahp.source.WorkflowData;
+
+public class WorkloadGeneratorTest
+{
+    @Test
+    public void makesTheFleetAsked()
+           throws Exception
+    {
+        WorkloadGenerator gen = new WorkloadGenerator();
+        InMemorySource src = new InMemorySource();
+
+        gen.setWorkflows(5, 100);
+        gen.setJobsPerWorkflow(4, 4);
+        gen.setStepsPerJob(3);
+        gen.setShape(WorkloadGenerator.Shape.DEEP);
+
+        List<Long> ids = gen.populate(src);
+
+        assertEquals(5, ids.size());
+        assertEquals(Long.valueOf(100), ids.get(0));
+
+        src.bind();
+
+        try {
+            WorkflowData wf = src.load(104L);
+            JobGraph graph = wf.getGraph();
+
+            assertEquals(4, graph.size());
+            // A chain is one job per level
+            assertEquals(4, graph.getLevelCount());
+            assertEquals(3, src.loadSteps(wf, 0).length);
+        } finally {
+            src.unbind();
+        }
+    }
+
+    @Test
+    public void sameSeedSameShape()
+           throws Exception
+    {
+        int[] first = levels(42);
+        int[] second = levels(42);
+
+        assertEquals(first.length, second.length);
+
+        for(int i = 0; i < first.length; i++) {
+            assertEquals(first[i], second[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativePayloadIsRejected()
+    {
+        new WorkloadGenerator().setPayloadBytes(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badJobRangeIsRejected()
+    {
+        new WorkloadGenerator().setJobsPerWorkflow(5, 2);
+    }
+
+    /**
+     * @param seed  Random seed
+     * @return level counts of each workflow of a random fleet
+     */
+    private static int[] levels(long seed)
+            throws Exception
+    {
+        WorkloadGenerator gen = new WorkloadGenerator();
+        InMemorySource src = new InMemorySource();
+
+        gen.setWorkflows(10, 1);
+        gen.setJobsPerWorkflow(2, 20);
+        gen.setShape(WorkloadGenerator.Shape.RANDOM);
+        gen.setSeed(seed);
+
+        List<Long> ids = gen.populate(src);
+        int[] ret = new int[ids.size()];
+
+        src.bind();
+
+        try {
+            for(int i = 0; i < ret.length; i++) {
+                JobGraph graph = src.load(ids.get(i)).getGraph();
+
+                assertTrue(graph.size() >= 2);
+                ret[i] = (graph.size() * 1000) + graph.getLevelCount();
+            }
+        } finally {
+            src.unbind();
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,105 @@
+package net.epicforce.migrate.ahp.watchdog;
+
+/*
+ * WatchdogTest.java
+ *
+ * Overdue actions run once the budget is up and not before, cancelled
+ * watches leave the queue straight away, and one failing action
+ * doesn't stop the watchdog.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WatchdogTest
+{
+    private Watchdog    dog;
+
+    @Before
+    public void startWatchdog()
+    {
+        dog = new Watchdog();
+    }
+
+    @After
+    public void stopWatchdog()
+    {
+        dog.close();
+    }
+
+    @Test
+    public void overdueActionRuns()
+           throws Exception
+    {
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        dog.watch(10, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run()
+            {
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dog.getOverdueCount());
+        assertEquals(0, dog.getWatchCount());
+    }
+
+    @Test
+    public void cancelledWatchesLeaveTheQueue()
+    {
+        List<Future<?>> watches = new ArrayList<Future<?>>();
+        Runnable never = new Runnable() {
+            public void run()
+            {
+                throw new IllegalStateException("Should have been cancelled");
+            }
+        };
+
+        for(int i = 0; i < 10; i++) {
+            watches.add(dog.watch(1, TimeUnit.HOURS, never));
+        }
+
+        assertEquals(10, dog.getWatchCount());
+
+        for(Future<?> f : watches) {
+            f.cancel(false);
+        }
+
+        assertEquals(0, dog.getWatchCount());
+        assertEquals(0, dog.getOverdueCount());
+    }
+
+    @Test
+    public void failingActionDoesNotStopTheWatchdog()
+           throws Exception
+    {
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        dog.watch(0, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run()
+            {
+                throw new IllegalStateException("Overdue action broke");
+            }
+        });
+        dog.watch(10, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run()
+            {
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(2, dog.getOverdueCount());
+    }
+}